@@ -1,12 +1,20 @@
 package com.carbonx.marketcarbon.certificate;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
 
 @Data
 @Builder
+@NoArgsConstructor
+@AllArgsConstructor
 public class CertificateData {
     private int creditsCount;
+    // Số lượng retire thực tế (có thể lẻ), hiển thị trong email; null = dùng creditsCount
+    private BigDecimal retiredQuantity;
     private double totalTco2e;
     private boolean retired;
 
@@ -0,0 +1,244 @@
+package com.carbonx.marketcarbon.certificate;
+
+import com.carbonx.marketcarbon.common.CertificateJobStatus;
+import com.carbonx.marketcarbon.common.CertificateJobType;
+import com.carbonx.marketcarbon.model.CertificateJob;
+import com.carbonx.marketcarbon.model.CreditCertificate;
+import com.carbonx.marketcarbon.repository.CertificateJobRepository;
+import com.carbonx.marketcarbon.repository.CreditCertificateRepository;
+import com.carbonx.marketcarbon.service.EmailService;
+import com.carbonx.marketcarbon.service.StorageService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * Hàng đợi bền (lưu DB) cho việc sinh chứng chỉ PDF và gửi email.
+ * - enqueue() ghi job trong cùng transaction issue/retire, worker chỉ chạy sau khi commit
+ *   nên transaction nghiệp vụ không giữ khóa trong lúc render/upload/gửi mail.
+ * - PDF render ra bytes 1 lần, vừa upload vừa đính kèm email (không tải lại từ S3).
+ * - Lỗi thì retry với backoff luỹ thừa; poller nhặt lại job bị từ chối/treo/sau restart.
+ */
+@Slf4j
+@Service
+public class CertificateJobService {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+
+    private final CertificateJobRepository jobRepository;
+    private final CreditCertificateRepository certificateRepository;
+    private final CertificatePdfService certificatePdfService;
+    private final EmailService emailService;
+    private final TaskExecutor executor;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${app.certificate-job.max-attempts:5}")
+    private int maxAttempts = 5;
+
+    @Value("${app.certificate-job.backoff-seconds:30}")
+    private long backoffSeconds = 30;
+
+    @Value("${app.certificate-job.poll-batch-size:50}")
+    private int pollBatchSize = 50;
+
+    public CertificateJobService(CertificateJobRepository jobRepository,
+                                 CreditCertificateRepository certificateRepository,
+                                 CertificatePdfService certificatePdfService,
+                                 EmailService emailService,
+                                 @Qualifier("certificateTaskExecutor") TaskExecutor executor) {
+        this.jobRepository = jobRepository;
+        this.certificateRepository = certificateRepository;
+        this.certificatePdfService = certificatePdfService;
+        this.emailService = emailService;
+        this.executor = executor;
+    }
+
+    private CertificateJobService getSelf() {
+        return applicationContext.getBean(CertificateJobService.class);
+    }
+
+    /**
+     * Ghi job vào DB (tham gia transaction hiện tại) và đẩy cho worker sau khi commit.
+     */
+    @Transactional
+    public CertificateJob enqueue(CreditCertificate certificate, CertificateData data,
+                                  CertificateJobType type, String recipientEmail) {
+        String payload;
+        try {
+            payload = MAPPER.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize certificate data", e);
+        }
+
+        CertificateJob job = jobRepository.save(CertificateJob.builder()
+                .certificate(certificate)
+                .jobType(type)
+                .payload(payload)
+                .recipientEmail(recipientEmail)
+                .nextAttemptAt(LocalDateTime.now(VIETNAM_ZONE))
+                .build());
+
+        Long jobId = job.getId();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dispatch(jobId);
+                }
+            });
+        } else {
+            dispatch(jobId);
+        }
+        return job;
+    }
+
+    private void dispatch(Long jobId) {
+        try {
+            executor.execute(() -> process(jobId));
+        } catch (TaskRejectedException e) {
+            log.warn("[CERT-JOB] Worker pool full, job {} left for poller", jobId);
+        }
+    }
+
+    // Nhặt các job đến hạn (retry, bị từ chối, hoặc còn sót sau restart)
+    @Scheduled(fixedDelayString = "${app.certificate-job.poll-ms:30000}")
+    public void pollDueJobs() {
+        getSelf().releaseStaleJobs();
+        List<Long> due = jobRepository.findDueJobIds(LocalDateTime.now(VIETNAM_ZONE), PageRequest.of(0, pollBatchSize));
+        due.forEach(this::dispatch);
+    }
+
+    void process(Long jobId) {
+        if (!getSelf().claim(jobId)) {
+            return; // worker/node khác đã nhận job
+        }
+
+        CertificateJob job = jobRepository.findWithCertificateById(jobId).orElse(null);
+        if (job == null) {
+            return;
+        }
+
+        try {
+            CertificateData data = MAPPER.readValue(job.getPayload(), CertificateData.class);
+
+            byte[] pdf = certificatePdfService.renderPdf(data);
+            StorageService.StoredObject stored = certificatePdfService.uploadPdf(data, pdf);
+            getSelf().attachPdf(job.getCertificate().getId(), stored);
+
+            if (job.getRecipientEmail() != null && !job.getRecipientEmail().isBlank()) {
+                sendEmail(job, data, stored.url(), pdf);
+            }
+
+            getSelf().markDone(jobId);
+            log.info("[CERT-JOB] Job {} ({}) done for certificate {}", jobId, job.getJobType(), data.getCertificateCode());
+        } catch (Exception e) {
+            log.error("[CERT-JOB] Job {} failed on attempt {}: {}", jobId, job.getAttempts(), e.getMessage(), e);
+            getSelf().markFailed(jobId, e.getMessage());
+        }
+    }
+
+    private void sendEmail(CertificateJob job, CertificateData data, String pdfUrl, byte[] pdf) {
+        if (job.getJobType() == CertificateJobType.RETIREMENT) {
+            String htmlBody = """
+                    <div style='font-family:Arial,sans-serif;color:#333;'>
+                      <h2 style='color:#16a34a;'>Credits Retired Successfully!</h2>
+                      <p>Your company has retired <b>%s Carbon Credits</b> from project <b>%s</b>.</p>
+                      <p>Certificate Code: <b>%s</b></p>
+                      <p>You can <a href="%s" target="_blank">view/download the retirement certificate here</a>.</p>
+                      <p>Best regards,<br><b>CarbonX Marketplace</b></p>
+                    </div>
+                    """.formatted(retiredAmount(data), data.getProjectTitle(), data.getCertificateCode(), pdfUrl);
+            emailService.sendEmailWithAttachment(job.getRecipientEmail(),
+                    "Carbon Credit Retirement Confirmation", htmlBody, pdf, "CarbonX_Retirement_Certificate.pdf");
+            return;
+        }
+
+        String htmlBody = """
+                <div style='font-family:Arial,sans-serif;color:#333;'>
+                  <h2 style='color:#16a34a;'>Congratulations, %s!</h2>
+                  <p>Your company has been issued <b>%d Carbon Credits</b> for project <b>%s</b>.</p>
+                  <p>Certificate Code: <b>%s</b></p>
+                  <p>You can <a href="%s" target="_blank">view/download the certificate here</a>.</p>
+                  <p>Best regards,<br><b>CarbonX Marketplace</b></p>
+                </div>
+                """.formatted(data.getCompanyName(), data.getCreditsCount(), data.getProjectTitle(),
+                data.getCertificateCode(), pdfUrl);
+        emailService.sendEmailWithAttachment(job.getRecipientEmail(),
+                "Your Carbon Credit Certificate is Ready!", htmlBody, pdf, "CarbonX_Certificate.pdf");
+    }
+
+    // "2.5" thay vì làm tròn xuống 2; job cũ chưa có retiredQuantity thì dùng creditsCount
+    private static String retiredAmount(CertificateData data) {
+        return data.getRetiredQuantity() != null
+                ? data.getRetiredQuantity().stripTrailingZeros().toPlainString()
+                : String.valueOf(data.getCreditsCount());
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public boolean claim(Long jobId) {
+        return jobRepository.claim(jobId, OffsetDateTime.now(VIETNAM_ZONE)) == 1;
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void releaseStaleJobs() {
+        int released = jobRepository.releaseStale(OffsetDateTime.now(VIETNAM_ZONE).minusMinutes(15));
+        if (released > 0) {
+            log.warn("[CERT-JOB] Released {} stale RUNNING jobs", released);
+        }
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void attachPdf(Long certificateId, StorageService.StoredObject stored) {
+        certificateRepository.findById(certificateId).ifPresent(cert -> {
+            cert.setCertificateUrl(stored.url());
+            certificateRepository.save(cert);
+        });
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void markDone(Long jobId) {
+        jobRepository.findById(jobId).ifPresent(job -> {
+            job.setStatus(CertificateJobStatus.DONE);
+            job.setLastError(null);
+            jobRepository.save(job);
+        });
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void markFailed(Long jobId, String error) {
+        jobRepository.findById(jobId).ifPresent(job -> {
+            job.setLastError(error);
+            if (job.getAttempts() >= maxAttempts) {
+                job.setStatus(CertificateJobStatus.FAILED);
+                log.error("[CERT-JOB] Job {} gave up after {} attempts", jobId, job.getAttempts());
+            } else {
+                // Backoff luỹ thừa: 30s, 60s, 120s, ...
+                long delay = backoffSeconds * (1L << Math.max(0, job.getAttempts() - 1));
+                job.setStatus(CertificateJobStatus.PENDING);
+                job.setNextAttemptAt(LocalDateTime.now(VIETNAM_ZONE).plusSeconds(delay));
+            }
+            jobRepository.save(job);
+        });
+    }
+}
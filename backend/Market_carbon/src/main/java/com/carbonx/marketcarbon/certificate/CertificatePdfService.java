@@ -25,6 +25,13 @@ public class CertificatePdfService {
     private final StorageService storageService;
 
     public StorageService.StoredObject generateAndUploadPdf(CertificateData data) {
+        return uploadPdf(data, renderPdf(data));
+    }
+
+    /**
+     * Render chứng chỉ ra bytes PDF trong bộ nhớ (không upload).
+     */
+    public byte[] renderPdf(CertificateData data) {
         try {
 
             Context context = new Context();
@@ -59,33 +66,38 @@ public class CertificatePdfService {
             context.setVariables(vars);
             String htmlContent = templateEngine.process("certificate-retire-green.html", context);
 
-
-            byte[] pdfBytes;
             try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
                 PdfRendererBuilder builder = new PdfRendererBuilder();
                 builder.useFastMode();
                 builder.withHtmlContent(htmlContent, new File("src/main/resources/templates/").toURI().toString());
                 builder.toStream(os);
                 builder.run();
-                pdfBytes = os.toByteArray();
+                return os.toByteArray();
             }
 
+        } catch (Exception e) {
+            log.error(" Error generating PDF certificate: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to generate PDF certificate", e);
+        }
+    }
 
-            String key = buildFileKey(data);
-            try (InputStream in = new ByteArrayInputStream(pdfBytes)) {
-                StorageService.StoredObject stored = storageService.upload(
-                        key,
-                        "application/pdf",
-                        pdfBytes.length,
-                        in
-                );
-                log.info(" Uploaded certificate PDF to S3:{}", stored.url());
-                return stored;
-            }
-
+    /**
+     * Upload bytes PDF đã render lên storage.
+     */
+    public StorageService.StoredObject uploadPdf(CertificateData data, byte[] pdfBytes) {
+        String key = buildFileKey(data);
+        try (InputStream in = new ByteArrayInputStream(pdfBytes)) {
+            StorageService.StoredObject stored = storageService.upload(
+                    key,
+                    "application/pdf",
+                    pdfBytes.length,
+                    in
+            );
+            log.info(" Uploaded certificate PDF to S3:{}", stored.url());
+            return stored;
         } catch (Exception e) {
-            log.error(" Error generating/uploading PDF certificate: {}", e.getMessage(), e);
-            throw new RuntimeException("Failed to generate and upload PDF certificate", e);
+            log.error(" Error uploading PDF certificate: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to upload PDF certificate", e);
         }
     }
 
@@ -0,0 +1,8 @@
+package com.carbonx.marketcarbon.common;
+
+public enum CertificateJobStatus {
+    PENDING, // Chờ worker xử lý (hoặc chờ retry)
+    RUNNING, // Worker đang render/upload/gửi mail
+    DONE, // Hoàn thành
+    FAILED // Hết số lần retry
+}
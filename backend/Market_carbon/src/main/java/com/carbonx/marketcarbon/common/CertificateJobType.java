@@ -0,0 +1,6 @@
+package com.carbonx.marketcarbon.common;
+
+public enum CertificateJobType {
+    ISSUANCE, // Chứng chỉ cấp phát tín chỉ
+    RETIREMENT // Chứng chỉ retire tín chỉ
+}
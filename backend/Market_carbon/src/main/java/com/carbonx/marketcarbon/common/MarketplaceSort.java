@@ -0,0 +1,9 @@
+package com.carbonx.marketcarbon.common;
+
+// Thứ tự duyệt sàn; mỗi kiểu có id làm khóa phụ để con trỏ (cursor) ổn định
+public enum MarketplaceSort {
+    NEWEST,
+    PRICE_ASC,
+    PRICE_DESC,
+    EXPIRING_SOON
+}
@@ -10,5 +10,6 @@ public enum WalletTransactionType {
     EV_OWNER_PAYOUT_RECEIVE,
     ISSUE_CREDIT,
     PROFIT_SHARING,
-    RETIRE_CREDIT
+    RETIRE_CREDIT,
+    EXPIRE_CREDIT
 }
@@ -22,4 +22,22 @@ public class AiVertexConfig {
 
 
     private int timeoutMs = 60000;
+
+    // Gateway: số request đồng thời tới Vertex, số request được xếp hàng chờ (vượt quá thì báo bận)
+    private int maxConcurrency = 8;
+
+    private int maxQueued = 100;
+
+    // Circuit breaker: số lỗi liên tiếp để ngắt mạch, thời gian ngắt trước khi thử lại 1 request
+    private int breakerFailureThreshold = 5;
+
+    private long breakerOpenMs = 30000;
+
+    // Cache response theo hash prompt + uploadSha256 của report
+    private int cacheMaxEntries = 500;
+
+    private long cacheTtlMinutes = 1440;
+
+    // Chấm điểm hàng loạt: số report chấm song song
+    private int bulkParallelism = 4;
 }
@@ -50,6 +50,7 @@ public class AppConfig {
             "/api/v1/projects/{id}",          // Cho phép xem chi tiết dự án
             "/api/v1/reports/files/download", // Cho phép tải file/ảnh (Logo)
             "/api/v1/marketplace",            // Cho phép xem chợ tín chỉ
+            "/api/v1/marketplace/search",     // Tìm kiếm chợ tín chỉ (phân trang con trỏ)
             "/files/**"
     };
 
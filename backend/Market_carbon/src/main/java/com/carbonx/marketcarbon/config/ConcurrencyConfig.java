@@ -1,20 +1,27 @@
 package com.carbonx.marketcarbon.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.security.task.DelegatingSecurityContextAsyncTaskExecutor;
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 @Configuration
 @EnableAsync
 public class ConcurrencyConfig {
     /**
      * Định nghĩa một ThreadPoolTaskExecutor
      * TaskExecutor này sẽ được sử dụng cho các tác vụ bất đồng bộ (async)
+     * Đánh dấu @Primary để @Async không chỉ định tên vẫn dùng pool này khi có thêm executor khác.
      */
+    @Primary
     @Bean("profitSharingTaskExecutor")
     public AsyncTaskExecutor profitSharingTaskExecutor() {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
@@ -26,8 +33,121 @@ public class ConcurrencyConfig {
         executor.setQueueCapacity(500);
         // Tên tiền tố cho các luồng
         executor.setThreadNamePrefix("ProfitShare-");
+        // Hàng đợi đầy (vd: email cho hàng nghìn owner sau mỗi chunk) thì luồng gọi tự chạy task, không bị từ chối
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
         // Khởi tạo executor
         executor.initialize();
         return new DelegatingSecurityContextAsyncTaskExecutor(executor);
     }
+
+    /**
+     * Pool nhỏ dùng để nạp trước (refill) các block serial ở background,
+     * tránh để luồng thanh toán đơn hàng phải chờ khóa bộ đếm serial.
+     */
+    @Bean("serialBlockExecutor")
+    public TaskExecutor serialBlockExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(4);
+        executor.setQueueCapacity(100);
+        executor.setThreadNamePrefix("SerialBlock-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Pool giới hạn cho worker sinh chứng chỉ PDF + gửi email sau commit.
+     * Hàng đợi đầy thì task bị từ chối, job vẫn nằm ở DB và được poller nhặt lại.
+     */
+    @Bean("certificateTaskExecutor")
+    public TaskExecutor certificateTaskExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(4);
+        executor.setQueueCapacity(200);
+        executor.setThreadNamePrefix("Certificate-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Luồng upload file CSV lên storage trong lúc request thread vẫn đang đọc/parse cùng stream (qua pipe).
+     * Không xếp hàng (queue 0 = giao thẳng cho luồng): task nằm chờ trong hàng đợi sẽ không đọc pipe và làm
+     * request treo. Hết luồng thì bị từ chối và request chép file ra file tạm, upload sau khi parse xong.
+     */
+    @Bean("csvUploadExecutor")
+    public TaskExecutor csvUploadExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(8);
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("CsvUpload-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Luồng ghi SSE ra socket, chỉ dùng để ghi.
+     * Luồng nghiệp vụ chỉ đẩy event vào hàng đợi của từng kết nối; hàng đợi pool đầy thì
+     * event vẫn nằm ở hàng đợi kết nối và heartbeat lên lịch ghi lại.
+     * 1 client không đọc socket giữ 1 luồng tới khi heartbeat đóng nó (write-stall-ms), nên pool đủ rộng
+     * để vài client kẹt không làm chậm kết nối khác; luồng rảnh tự thu hồi.
+     */
+    @Bean("sseWriterExecutor")
+    public TaskExecutor sseWriterExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(32);
+        executor.setMaxPoolSize(32);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(10_000);
+        executor.setThreadNamePrefix("SseWriter-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Publish thông báo sang node khác qua Redis, tách khỏi pool ghi SSE để Redis chậm
+     * không chiếm luồng ghi (và ngược lại).
+     */
+    @Bean("sseFanoutExecutor")
+    public TaskExecutor sseFanoutExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(2);
+        executor.setQueueCapacity(1_000);
+        executor.setThreadNamePrefix("SseFanout-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Scheduler chung cho mọi @Scheduled (heartbeat SSE, conflation market data, flush nến, rebuild cache...).
+     * Mặc định Spring chỉ có 1 luồng (và STOMP đăng ký thêm messageBrokerTaskScheduler nên spring.task.scheduling.*
+     * không được áp dụng), 1 task chậm sẽ trễ hết các timer khác; đặt tên "taskScheduler" để @Scheduled chọn bean này.
+     * Job nặng (quét hết hạn) không chạy trên luồng này mà đẩy sang executor riêng.
+     */
+    @Bean("taskScheduler")
+    public ThreadPoolTaskScheduler taskScheduler(@Value("${app.scheduler.pool-size:4}") int poolSize) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("Scheduler-");
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    /**
+     * 1 luồng chạy lượt quét hết hạn tín chỉ/niêm yết (có thể hàng nghìn chunk) ngoài luồng scheduler.
+     * Không xếp hàng: lượt trước chưa xong thì lượt mới bị từ chối (sweeper cũng tự chặn chạy trùng).
+     */
+    @Bean("expirySweepExecutor")
+    public TaskExecutor expirySweepExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("ExpirySweep-");
+        executor.initialize();
+        return executor;
+    }
 }
@@ -4,6 +4,7 @@
     import com.carbonx.marketcarbon.model.Role;
     import com.carbonx.marketcarbon.model.User;
     import io.jsonwebtoken.Claims;
+    import io.jsonwebtoken.JwtParser;
     import io.jsonwebtoken.Jwts;
     import io.jsonwebtoken.SignatureAlgorithm;
     import io.jsonwebtoken.security.Keys;
@@ -25,6 +26,11 @@
                 JwtConstant.SECRET_KEY.getBytes(StandardCharsets.UTF_8)
         );
 
+        // JwtParser immutable + thread-safe: dựng 1 lần thay vì mỗi request
+        private final JwtParser parser = Jwts.parserBuilder()
+                .setSigningKey(key)
+                .build();
+
         /**
          *  Tạo token đăng nhập (token chính)
          */
@@ -69,6 +75,13 @@
                     .compact();
         }
 
+        /**
+         *  Kiểm tra chữ ký + hạn và trả về claims (không có tiền tố "Bearer ")
+         */
+        public Claims parseClaims(String jwt) {
+            return parser.parseClaimsJws(jwt).getBody();
+        }
+
         /**
          *  Giải mã token để lấy email người dùng
          */
@@ -77,11 +90,7 @@
                 jwt = jwt.substring(7);
             }
 
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(key)
-                    .build()
-                    .parseClaimsJws(jwt)
-                    .getBody();
+            Claims claims = parseClaims(jwt);
 
             return String.valueOf(claims.get("email"));
         }
@@ -95,11 +104,7 @@
                 jwt = jwt.substring(7);
             }
 
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(key)
-                    .build()
-                    .parseClaimsJws(jwt)
-                    .getBody();
+            Claims claims = parseClaims(jwt);
 
             return String.valueOf(claims.get("purpose"));
         }
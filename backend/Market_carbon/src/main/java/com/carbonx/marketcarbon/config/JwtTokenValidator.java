@@ -1,12 +1,12 @@
 package com.carbonx.marketcarbon.config;
 
 import io.jsonwebtoken.Claims;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.security.Keys;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -14,14 +14,14 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
-import java.nio.charset.StandardCharsets;
 
-import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+@Slf4j
 @Component
+@RequiredArgsConstructor
 public class JwtTokenValidator extends OncePerRequestFilter {
 
     private static final List<String> PUBLIC_PATHS = List.of(
@@ -38,6 +38,8 @@ public class JwtTokenValidator extends OncePerRequestFilter {
             "/api/v1/forgot-password/resend-otp"
     );
 
+    private final JwtProvider jwtProvider;
+
     @Override
     protected void doFilterInternal(HttpServletRequest request,
                                     HttpServletResponse response,
@@ -65,12 +67,7 @@ public class JwtTokenValidator extends OncePerRequestFilter {
         jwt = jwt.substring(7);
 
         try {
-            SecretKey key = Keys.hmacShaKeyFor(JwtConstant.SECRET_KEY.getBytes(StandardCharsets.UTF_8));
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(key)
-                    .build()
-                    .parseClaimsJws(jwt)
-                    .getBody();
+            Claims claims = jwtProvider.parseClaims(jwt);
 
             String email = String.valueOf(claims.get("email"));
             Object rolesObj = claims.get("roles");
@@ -87,12 +84,12 @@ public class JwtTokenValidator extends OncePerRequestFilter {
 
             SecurityContextHolder.getContext().setAuthentication(authentication);
 
-            System.out.println("[JWT OK] User: " + email + " | Roles: " + auths);
+            log.debug("[JWT OK] User: {} | Roles: {}", email, auths);
 
         } catch (io.jsonwebtoken.ExpiredJwtException e) {
-            System.err.println("[JWT Expired] " + e.getClaims().getExpiration());
+            log.warn("[JWT Expired] {}", e.getClaims().getExpiration());
         } catch (Exception e) {
-            System.err.println("[JWT Invalid] " + e.getMessage());
+            log.warn("[JWT Invalid] {}", e.getMessage());
         }
 
         filterChain.doFilter(request, response);
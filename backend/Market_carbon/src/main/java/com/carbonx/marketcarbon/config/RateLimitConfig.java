@@ -1,41 +1,74 @@
 package com.carbonx.marketcarbon.config;
 
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
-import io.github.bucket4j.Refill;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
 import java.time.Duration;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 
+/**
+ * Chính sách rate limit theo route class x tier:
+ * - route class: AUTH (đăng nhập/OTP/quên mật khẩu), WRITE (POST/PUT/PATCH/DELETE), READ (còn lại);
+ * - tier: USER (đã đăng nhập, tính theo email) hoặc IP (ẩn danh).
+ * Mỗi bucket chứa tối đa limit token và nạp lại limit token mỗi duration-minutes.
+ */
 @Configuration
 public class RateLimitConfig {
 
-    @Value("${app.rate-limit.capacity}")
-    private int capacity;
+    public enum RouteClass { AUTH, WRITE, READ }
 
-    @Value("${app.rate-limit.refill}")
-    private int refill;
+    public enum Tier { USER, IP }
 
-    @Value("${app.rate-limit.duration-minutes}")
-    private int durationInMinutes;
+    public record Policy(long limit, Duration period) {
+        public double tokensPerMs() {
+            return (double) limit / period.toMillis();
+        }
+    }
+
+    private static final List<String> AUTH_PATHS = List.of(
+            "/api/v1/auth/",
+            "/api/v1/send-otp-forgot",
+            "/api/v1/forgot-password",
+            "/api/v1/check-exists-user"
+    );
+
+    @Value("${app.rate-limit.duration-minutes:1}")
+    private int durationInMinutes = 1;
+
+    @Value("${app.rate-limit.auth.ip-limit:5}")
+    private int authIpLimit = 5;
+
+    @Value("${app.rate-limit.write.ip-limit:10}")
+    private int writeIpLimit = 10;
+
+    @Value("${app.rate-limit.write.user-limit:60}")
+    private int writeUserLimit = 60;
+
+    @Value("${app.rate-limit.read.ip-limit:20}")
+    private int readIpLimit = 20;
 
-    // Map này sẽ lưu bucket cho từng KEY (Key = IP + API)
-    private final Map<String, Bucket> cache = new ConcurrentHashMap<>();
+    @Value("${app.rate-limit.read.user-limit:120}")
+    private int readUserLimit = 120;
 
-    // Phương thức này để tìm hoặc tạo mới bucket cho 1 key
-    public Bucket resolveBucket(String key) {
-        // computeIfAbsent sẽ tự động gọi newBucket(key) nếu key chưa có
-        return cache.computeIfAbsent(key, this::newBucket);
+    public RouteClass classify(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        if (AUTH_PATHS.stream().anyMatch(path::startsWith)) {
+            return RouteClass.AUTH;
+        }
+        return switch (request.getMethod()) {
+            case "GET", "HEAD", "OPTIONS" -> RouteClass.READ;
+            default -> RouteClass.WRITE;
+        };
     }
 
-    // Phương thức này tạo ra 1 bucket mới với cấu hình đã định
-    private Bucket newBucket(String key) {
-        Bandwidth limit = Bandwidth.classic(capacity, Refill.greedy(refill, Duration.ofMinutes(durationInMinutes)));
-        return Bucket.builder()
-                .addLimit(limit)
-                .build();
+    public Policy policy(RouteClass routeClass, Tier tier) {
+        int limit = switch (routeClass) {
+            // Route đăng nhập chưa có user: luôn theo IP
+            case AUTH -> authIpLimit;
+            case WRITE -> tier == Tier.USER ? writeUserLimit : writeIpLimit;
+            case READ -> tier == Tier.USER ? readUserLimit : readIpLimit;
+        };
+        return new Policy(limit, Duration.ofMinutes(durationInMinutes));
     }
 }
@@ -1,67 +1,72 @@
 package com.carbonx.marketcarbon.config;
 
-import io.github.bucket4j.Bucket;
-import io.github.bucket4j.ConsumptionProbe;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.HandlerInterceptor;
 
-import java.time.Duration;
-
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class RateLimitInterceptor implements HandlerInterceptor {
 
-    // Phụ thuộc vào RateLimitConfig (để quản lý Map)
+    // Chính sách theo route class/tier
     private final RateLimitConfig rateLimitConfig;
+    private final RedisRateLimiter rateLimiter;
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
 
-        // B1: Lấy IP
-        String apiKey = request.getHeader("X-Forwarded-For");
-        if (apiKey == null || apiKey.isEmpty()) {
-            apiKey = request.getRemoteAddr();
-        } else {
-            apiKey = apiKey.split(",")[0].trim();
-        }
+        // B1: Route class + tier (đã đăng nhập: theo email, ẩn danh hoặc route đăng nhập: theo IP)
+        RateLimitConfig.RouteClass routeClass = rateLimitConfig.classify(request);
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        boolean perUser = routeClass != RateLimitConfig.RouteClass.AUTH
+                && auth != null && auth.isAuthenticated()
+                && !(auth instanceof AnonymousAuthenticationToken);
+        RateLimitConfig.Tier tier = perUser ? RateLimitConfig.Tier.USER : RateLimitConfig.Tier.IP;
+        String subject = perUser ? auth.getName() : clientIp(request);
 
         // B2: Lấy tên API (Controller + Method)
         String endpointKey;
-        if (handler instanceof HandlerMethod) {
-            HandlerMethod handlerMethod = (HandlerMethod) handler;
+        if (handler instanceof HandlerMethod handlerMethod) {
             endpointKey = handlerMethod.getBeanType().getSimpleName() + "#" + handlerMethod.getMethod().getName();
         } else {
             endpointKey = request.getRequestURI(); // Fallback
         }
 
-        // B3: Tạo KEY TỔ HỢP (ví dụ: "1.2.3.4-ProjectController#getProjectById")
-        String compositeKey = apiKey + "-" + endpointKey;
+        // B3: Tạo KEY TỔ HỢP (ví dụ: "IP:1.2.3.4:READ:ProjectController#getProjectById")
+        String compositeKey = tier + ":" + subject + ":" + routeClass + ":" + endpointKey;
 
         log.debug("RateLimit Key: {}", compositeKey);
 
-        // B4: Lấy bucket cho key này
-        Bucket tokenBucket = rateLimitConfig.resolveBucket(compositeKey);
-
-        // B5: Kiểm tra token
-        ConsumptionProbe probe = tokenBucket.tryConsumeAndReturnRemaining(1);
+        // B4: Kiểm tra token (Redis dùng chung mọi node, near-cache cục bộ cho key đang bị chặn)
+        RedisRateLimiter.Decision decision = rateLimiter.tryConsume(compositeKey, rateLimitConfig.policy(routeClass, tier));
 
-        if (probe.isConsumed()) {
-            response.addHeader("X-Rate-Limit-Remaining", String.valueOf(probe.getRemainingTokens()));
+        if (decision.allowed()) {
+            response.addHeader("X-Rate-Limit-Remaining", String.valueOf(decision.remaining()));
             return true; // OK, cho đi tiếp
         } else {
             // Hết token, chặn
-            long waitForRefillSeconds = Duration.ofNanos(probe.getNanosToWaitForRefill()).toSeconds();
+            long waitForRefillSeconds = (decision.retryAfterMs() + 999) / 1000;
             response.addHeader("X-Rate-Limit-Retry-After-Seconds", String.valueOf(waitForRefillSeconds));
             response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(),
                     "You have exhausted your API request quota for this endpoint");
             return false; // Chặn
         }
     }
+
+    private static String clientIp(HttpServletRequest request) {
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (forwarded == null || forwarded.isEmpty()) {
+            return request.getRemoteAddr();
+        }
+        return forwarded.split(",")[0].trim();
+    }
 }
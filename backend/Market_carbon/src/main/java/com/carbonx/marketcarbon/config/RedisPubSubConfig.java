@@ -0,0 +1,38 @@
+package com.carbonx.marketcarbon.config;
+
+import com.carbonx.marketcarbon.service.DynamicPricingService;
+import com.carbonx.marketcarbon.service.market.ListingSnapshotCache;
+import com.carbonx.marketcarbon.service.notification.SseFanout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisPubSubConfig {
+
+    /**
+     * 1 kết nối Redis pub/sub dùng chung cho các kênh giữa các node:
+     * - app.pricing.channel: version giá mới (DynamicPricingService nạp lại);
+     * - app.listing-cache.channel: listing vừa đổi ở node khác (ListingSnapshotCache nạp lại dòng đó);
+     * - app.sse.channel: thông báo SSE do node khác publish (khi app.sse.redis-enabled).
+     * Redis chưa lên thì container tự thử kết nối lại, ứng dụng vẫn chạy (giá nạp lại định kỳ, SSE giao cục bộ).
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       DynamicPricingService pricingService,
+                                                                       ListingSnapshotCache listingCache,
+                                                                       SseFanout sseFanout,
+                                                                       @Value("${app.sse.redis-enabled:true}") boolean sseRedisEnabled) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(pricingService, new ChannelTopic(pricingService.channel()));
+        container.addMessageListener(listingCache, new ChannelTopic(listingCache.channel()));
+        if (sseRedisEnabled) {
+            container.addMessageListener(sseFanout, new ChannelTopic(sseFanout.channel()));
+        }
+        return container;
+    }
+}
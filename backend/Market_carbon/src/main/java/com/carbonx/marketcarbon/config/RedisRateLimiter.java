@@ -0,0 +1,141 @@
+package com.carbonx.marketcarbon.config;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.Refill;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket dùng chung cho mọi node qua Redis (1 script Lua nguyên tử / request, 1 key / bucket, có TTL).
+ * Cục bộ chỉ giữ 2 map LRU có giới hạn (local-max-keys):
+ * - near-cache các key đang bị chặn: hết token thì tới lúc nạp lại không cần hỏi Redis (chặn scan rẻ);
+ * - bucket bucket4j dự phòng khi Redis lỗi (mỗi node tự giới hạn, thử lại Redis sau redis-retry-ms).
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class RedisRateLimiter {
+
+    private static final String KEY_PREFIX = "rate-limit:";
+
+    // Dùng TIME của Redis để mọi node chung 1 đồng hồ (Redis >= 5 replicate theo effect nên được phép trước lệnh ghi)
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TOKEN_BUCKET = new DefaultRedisScript<>("""
+            local capacity = tonumber(ARGV[1])
+            local rate = tonumber(ARGV[2])
+            local cost = tonumber(ARGV[3])
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+            local state = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(state[1])
+            local ts = tonumber(state[2])
+            if tokens == nil or ts == nil then
+              tokens = capacity
+              ts = now
+            end
+            tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate)
+            local allowed = 0
+            local retry = 0
+            if tokens >= cost then
+              tokens = tokens - cost
+              allowed = 1
+            else
+              retry = math.ceil((cost - tokens) / rate)
+            end
+            redis.call('HSET', KEYS[1], 'tokens', tokens, 'ts', now)
+            redis.call('PEXPIRE', KEYS[1], math.ceil(capacity / rate))
+            return {allowed, math.floor(tokens), retry}
+            """, List.class);
+
+    private final StringRedisTemplate redis;
+
+    @Value("${app.rate-limit.local-max-keys:10000}")
+    private int localMaxKeys = 10000;
+
+    @Value("${app.rate-limit.redis-retry-ms:5000}")
+    private long redisRetryMs = 5000;
+
+    public record Decision(boolean allowed, long remaining, long retryAfterMs) {
+    }
+
+    // key -> thời điểm hết bị chặn
+    private final Map<String, Long> blockedUntil = lru();
+    private final Map<String, Bucket> localBuckets = lru();
+    private volatile long redisRetryAt;
+
+    public Decision tryConsume(String key, RateLimitConfig.Policy policy) {
+        long now = System.currentTimeMillis();
+        Long until = blockedUntil.get(key);
+        if (until != null) {
+            if (until > now) {
+                return new Decision(false, 0, until - now);
+            }
+            blockedUntil.remove(key);
+        }
+
+        Decision decision = now >= redisRetryAt ? consumeRedis(key, policy, now) : null;
+        if (decision == null) {
+            decision = consumeLocal(key, policy);
+        }
+        if (!decision.allowed() && decision.retryAfterMs() > 0) {
+            blockedUntil.put(key, now + decision.retryAfterMs());
+        }
+        return decision;
+    }
+
+    // Số key đang giữ cục bộ (near-cache + bucket dự phòng)
+    public int localKeys() {
+        return blockedUntil.size() + localBuckets.size();
+    }
+
+    private Decision consumeRedis(String key, RateLimitConfig.Policy policy, long now) {
+        try {
+            List<?> result = redis.execute(TOKEN_BUCKET, List.of(KEY_PREFIX + key),
+                    String.valueOf(policy.limit()), String.valueOf(policy.tokensPerMs()), "1");
+            if (result == null || result.size() < 3) {
+                return null;
+            }
+            return new Decision(toLong(result.get(0)) == 1, toLong(result.get(1)), toLong(result.get(2)));
+        } catch (RuntimeException e) {
+            redisRetryAt = now + redisRetryMs;
+            log.warn("[RATE-LIMIT] Redis unavailable, using local buckets for {} ms: {}", redisRetryMs, e.getMessage());
+            return null;
+        }
+    }
+
+    private Decision consumeLocal(String key, RateLimitConfig.Policy policy) {
+        Bucket bucket = localBuckets.computeIfAbsent(key, k -> Bucket.builder()
+                .addLimit(Bandwidth.classic(policy.limit(), Refill.greedy(policy.limit(), policy.period())))
+                .build());
+        ConsumptionProbe probe = bucket.tryConsumeAndReturnRemaining(1);
+        return new Decision(probe.isConsumed(), probe.getRemainingTokens(),
+                TimeUnit.NANOSECONDS.toMillis(probe.getNanosToWaitForRefill()));
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number n ? n.longValue() : Long.parseLong(String.valueOf(value));
+    }
+
+    // LRU theo thứ tự truy cập, vượt localMaxKeys thì bỏ key lâu nhất không dùng
+    private <V> Map<String, V> lru() {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > localMaxKeys;
+            }
+        });
+    }
+}
@@ -3,12 +3,16 @@ package com.carbonx.marketcarbon.controller;
 
 import com.carbonx.marketcarbon.service.GeminiAiService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.util.Map;
 
@@ -20,13 +24,31 @@ public class ChatAiController {
     private final GeminiAiService aiService;
     @PreAuthorize("hasRole('COMPANY')")
     @PostMapping("/chat")
-    public ResponseEntity<?> chat(@RequestBody Map<String, String> body) {
+    public Mono<ResponseEntity<String>> chat(@RequestBody Map<String, String> body) {
         String question = body.get("message");
         try {
-            String answer = aiService.answer(question);
-            return ResponseEntity.ok(answer);
+            return aiService.answer(question)
+                    .map(ResponseEntity::ok)
+                    .onErrorResume(e -> Mono.just(ResponseEntity.internalServerError().body("Lỗi: " + e.getMessage())));
         } catch (Exception e) {
-            return ResponseEntity.internalServerError().body("Lỗi: " + e.getMessage());
+            return Mono.just(ResponseEntity.internalServerError().body("Lỗi: " + e.getMessage()));
         }
     }
+
+    // Stream câu trả lời qua SSE: event "token" cho từng đoạn text, kết thúc bằng event "done"
+    @PreAuthorize("hasRole('COMPANY')")
+    @PostMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> chatStream(@RequestBody Map<String, String> body) {
+        String question = body.get("message");
+        Flux<String> tokens;
+        try {
+            tokens = aiService.answerStream(question);
+        } catch (Exception e) {
+            tokens = Flux.just("Lỗi: " + e.getMessage());
+        }
+        return tokens
+                .map(token -> ServerSentEvent.builder(token).event("token").build())
+                .onErrorResume(e -> Flux.just(ServerSentEvent.builder("Lỗi: " + e.getMessage()).event("token").build()))
+                .concatWithValues(ServerSentEvent.builder("").event("done").build());
+    }
 }
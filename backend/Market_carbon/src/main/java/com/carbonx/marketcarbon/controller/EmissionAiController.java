@@ -6,6 +6,9 @@ import com.carbonx.marketcarbon.service.EmissionReportService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
 
 @RestController
 @RequestMapping("/api/v1/reports")
@@ -16,12 +19,19 @@ public class EmissionAiController {
 
     @PostMapping("/{id}/ai-score")
     @PreAuthorize("hasAnyRole('CVA','ADMIN')")
-    public AiEvaluationResponse aiScore(@PathVariable("id") Long reportId) {
-        EmissionReportResponse updated = emissionReportService.aiSuggestScore(reportId);
-        return new AiEvaluationResponse(
-                updated.getAiPreScore() != null ? updated.getAiPreScore().doubleValue() : null,
-                updated.getAiVersion(),
-                updated.getAiPreNotes()
-        );
+    public Mono<AiEvaluationResponse> aiScore(@PathVariable("id") Long reportId) {
+        return emissionReportService.aiSuggestScore(reportId)
+                .map(updated -> new AiEvaluationResponse(
+                        updated.getAiPreScore() != null ? updated.getAiPreScore().doubleValue() : null,
+                        updated.getAiVersion(),
+                        updated.getAiPreNotes()
+                ));
+    }
+
+    // Chấm AI hàng loạt: các report được xếp hàng và chấm song song, trả về các report đã chấm xong
+    @PostMapping("/ai-score/bulk")
+    @PreAuthorize("hasAnyRole('CVA','ADMIN')")
+    public Mono<List<EmissionReportResponse>> aiScoreBulk(@RequestBody List<Long> reportIds) {
+        return emissionReportService.aiSuggestScores(reportIds).collectList();
     }
 }
@@ -0,0 +1,20 @@
+package com.carbonx.marketcarbon.controller;
+
+import com.carbonx.marketcarbon.service.market.MarketDataPublisher;
+import lombok.RequiredArgsConstructor;
+import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.simp.annotation.SubscribeMapping;
+import org.springframework.stereotype.Controller;
+
+@Controller
+@RequiredArgsConstructor
+public class MarketDataController {
+
+    private final MarketDataPublisher marketDataPublisher;
+
+    // Client SUBSCRIBE /app/market/{projectId}/snapshot: trả ngay snapshot kèm seq để ghép với delta trên /topic
+    @SubscribeMapping("/market/{projectId}/snapshot")
+    public MarketDataPublisher.Snapshot snapshot(@DestinationVariable Long projectId) {
+        return marketDataPublisher.snapshot(projectId);
+    }
+}
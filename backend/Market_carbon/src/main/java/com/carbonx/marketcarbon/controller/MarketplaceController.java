@@ -3,14 +3,19 @@ package com.carbonx.marketcarbon.controller;
 import com.carbonx.marketcarbon.common.StatusCode;
 import com.carbonx.marketcarbon.dto.request.CreditListingRequest;
 import com.carbonx.marketcarbon.dto.request.CreditListingUpdateRequest;
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
 import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
+import com.carbonx.marketcarbon.dto.response.RawJson;
 import com.carbonx.marketcarbon.service.MarketplaceService;
+import com.carbonx.marketcarbon.service.market.ListingSnapshotCache;
 import com.carbonx.marketcarbon.utils.Tuong.TuongCommonRequest;
 import com.carbonx.marketcarbon.utils.Tuong.TuongCommonResponse;
 import com.carbonx.marketcarbon.utils.Tuong.TuongResponseStatus;
 import io.swagger.v3.oas.annotations.Operation;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
@@ -25,6 +30,7 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class MarketplaceController {
     private final MarketplaceService marketplaceService;
+    private final ListingSnapshotCache listingCache;
 
     @Operation(summary = "The list credit of Market place" , description = "API to list carbon credits")
     @PostMapping
@@ -47,19 +53,40 @@ public class MarketplaceController {
 
     @Operation(summary = "The list credit of Market place" , description = "API to list carbon credits")
     @GetMapping
-    public ResponseEntity<TuongCommonResponse<List<MarketplaceListingResponse>>> getActiveListing(
+    public ResponseEntity<TuongCommonResponse<RawJson>> getActiveListing(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
             @RequestHeader(value = "X-Request-Trace", required = false) String requestTrace,
             @RequestHeader(value = "X-Request-DateTime", required = false) String requestDateTime
     ){
+        return cached(listingCache.active(), ifNoneMatch, requestTrace, requestDateTime);
+    }
+
+    @Operation(summary = "Search marketplace listings",
+            description = "Filter by project, vintage, price range, seller; seek pagination with nextCursor")
+    @GetMapping("/search")
+    public ResponseEntity<TuongCommonResponse<RawJson>> searchListings(
+            @ModelAttribute MarketplaceSearchFilter filter,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = "X-Request-Trace", required = false) String requestTrace,
+            @RequestHeader(value = "X-Request-DateTime", required = false) String requestDateTime
+    ){
+        ListingSnapshotCache.Rendered page = listingCache.searchPage(filter, () -> marketplaceService.searchListings(filter));
+        return cached(page, ifNoneMatch, requestTrace, requestDateTime);
+    }
+
+    // Dữ liệu dựng sẵn từ ListingSnapshotCache: ETag khớp thì trả 304, không serialize lại
+    private ResponseEntity<TuongCommonResponse<RawJson>> cached(ListingSnapshotCache.Rendered rendered, String ifNoneMatch,
+                                                               String requestTrace, String requestDateTime) {
+        if (ListingSnapshotCache.matches(ifNoneMatch, rendered.etag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(rendered.etag()).build();
+        }
         String trace = requestTrace != null ? requestTrace : UUID.randomUUID().toString();
         String now = requestDateTime != null ? requestDateTime : OffsetDateTime.now(ZoneOffset.UTC).toString();
 
-        List<MarketplaceListingResponse> listings = marketplaceService.getActiveListing();
-
         TuongResponseStatus rs = new TuongResponseStatus(StatusCode.SUCCESS.getCode(),
                 StatusCode.SUCCESS.getMessage());
-        TuongCommonResponse<List<MarketplaceListingResponse>> response = new TuongCommonResponse<>(trace, now , rs , listings);
-        return ResponseEntity.ok(response);
+        return ResponseEntity.ok().eTag(rendered.etag())
+                .body(new TuongCommonResponse<>(trace, now, rs, new RawJson(rendered.json())));
     }
 
     @Operation(summary = "The list credit of Market place by company " , description = "API to list carbon credits")
@@ -1,9 +1,11 @@
 package com.carbonx.marketcarbon.controller;
 
 import com.carbonx.marketcarbon.common.StatusCode;
+import com.carbonx.marketcarbon.dto.request.MarketOrderRequest;
 import com.carbonx.marketcarbon.dto.request.OrderRequest;
 import com.carbonx.marketcarbon.dto.response.MessageResponse;
 import com.carbonx.marketcarbon.dto.response.CreditTradeResponse;
+import com.carbonx.marketcarbon.dto.response.MarketOrderResponse;
 import com.carbonx.marketcarbon.service.OrderService;
 import com.carbonx.marketcarbon.utils.Tuong.TuongCommonRequest;
 import com.carbonx.marketcarbon.utils.Tuong.TuongCommonResponse;
@@ -46,6 +48,26 @@ public class OrderController {
         return ResponseEntity.ok(response);
     }
 
+    @Operation(summary = "Buyer company place a market/limit order",
+            description = "Matches against the in-memory order book of a project/vintage (price-time priority), sweeping multiple listings, and settles all fills at once. Omit limitPrice for a market order.")
+    @PostMapping("/market")
+    @PreAuthorize("hasRole('COMPANY')")
+    public ResponseEntity<TuongCommonResponse<MarketOrderResponse>> placeMarketOrder(
+            @Valid @RequestBody TuongCommonRequest<MarketOrderRequest> request,
+            @RequestHeader(value = "X-Request-Trace", required = false) String requestTrace,
+            @RequestHeader(value = "X-Request-DateTime", required = false) String requestDateTime
+    ) {
+        String trace = requestTrace != null ? requestTrace : UUID.randomUUID().toString();
+        String now = requestDateTime != null ? requestDateTime : OffsetDateTime.now(ZoneOffset.UTC).toString();
+
+        MarketOrderResponse result = orderService.placeMarketOrder(request.getData());
+
+        TuongResponseStatus rs = new TuongResponseStatus(StatusCode.SUCCESS.getCode(),
+                StatusCode.SUCCESS.getMessage());
+        TuongCommonResponse<MarketOrderResponse> response = new TuongCommonResponse<>(trace, now, rs, result);
+        return ResponseEntity.ok(response);
+    }
+
     @Operation(summary = "System complete a PENDING Order", description = "System executes the financial transaction for a PENDING order. This moves funds and transfers carbon credits.")
     @PostMapping("/{id}/complete")
     public ResponseEntity<TuongCommonResponse<MessageResponse>> completeOrder(
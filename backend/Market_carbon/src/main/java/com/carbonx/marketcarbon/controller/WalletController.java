@@ -2,7 +2,9 @@ package com.carbonx.marketcarbon.controller;
 
 import com.carbonx.marketcarbon.common.StatusCode;
 import com.carbonx.marketcarbon.dto.request.WalletTransactionRequest;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.PaymentOrderResponse;
+import com.carbonx.marketcarbon.dto.response.WalletCarbonCreditResponse;
 import com.carbonx.marketcarbon.dto.response.WalletResponse;
 import com.carbonx.marketcarbon.dto.response.WalletTransactionResponse;
 import com.carbonx.marketcarbon.exception.WalletException;
@@ -18,6 +20,8 @@ import io.swagger.v3.oas.annotations.Operation;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
@@ -55,6 +59,25 @@ public class WalletController {
         return ResponseEntity.ok(response);
     }
 
+    @Operation(summary = "Carbon credits in wallet (paginated)",
+            description = "Credits of the current company with source, origin lot and batch")
+    @GetMapping("/credits")
+    public ResponseEntity<TuongCommonResponse<Page<WalletCarbonCreditResponse>>> getWalletCredits(
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size,
+            @RequestHeader(value = "X-Request-Trace", required = false) String requestTrace,
+            @RequestHeader(value = "X-Request-DateTime", required = false) String requestDateTime
+    ){
+        String trace = requestTrace != null ? requestTrace : UUID.randomUUID().toString();
+        String now = requestDateTime != null ? requestDateTime : OffsetDateTime.now(ZoneOffset.UTC).toString();
+
+        Page<WalletCarbonCreditResponse> credits = walletService.getWalletCredits(PageRequest.of(page, size));
+
+        TuongResponseStatus rs = new TuongResponseStatus(StatusCode.SUCCESS.getCode(),
+                StatusCode.SUCCESS.getMessage());
+        return ResponseEntity.ok(new TuongCommonResponse<>(trace, now, rs, credits));
+    }
+
 //    @Operation(summary = "API add money to Wallet   " , description = "API deposit money ")
 //    @PutMapping("/deposit/amount/{amount}")
 //    public ResponseEntity<TuongCommonResponse<PaymentOrderResponse>> depositMoney(
@@ -122,6 +145,25 @@ public class WalletController {
         return ResponseEntity.ok(response);
     }
 
+    @Operation(summary = "Wallet history (cursor pagination)",
+            description = "Newest first; profit-sharing payouts merged per distribution; pass nextCursor to get the next page")
+    @GetMapping("/transactions/history")
+    public ResponseEntity<TuongCommonResponse<CursorPageResponse<WalletTransactionResponse>>> getTransactionHistory(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size,
+            @RequestHeader(value = "X-Request-Trace", required = false) String requestTrace,
+            @RequestHeader(value = "X-Request-DateTime", required = false) String requestDateTime
+    ){
+        String trace = requestTrace != null ? requestTrace : UUID.randomUUID().toString();
+        String now = requestDateTime != null ? requestDateTime : OffsetDateTime.now(ZoneOffset.UTC).toString();
+
+        CursorPageResponse<WalletTransactionResponse> page = walletTransactionService.getTransactionHistory(cursor, size);
+
+        TuongResponseStatus rs = new TuongResponseStatus(StatusCode.SUCCESS.getCode(),
+                StatusCode.SUCCESS.getMessage());
+        return ResponseEntity.ok(new TuongCommonResponse<>(trace, now, rs, page));
+    }
+
     @Operation(summary = "Count My Transactions", description = "API to count transactions for the current user's wallet")
     @GetMapping("/transactions/my/count")
     public ResponseEntity<TuongCommonResponse<Long>> countMyTransactions(
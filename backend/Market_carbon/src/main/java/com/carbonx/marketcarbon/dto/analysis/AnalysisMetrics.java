@@ -0,0 +1,36 @@
+package com.carbonx.marketcarbon.dto.analysis;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Số liệu thống kê energy của report, tính cùng lúc với các rule (cùng AnalysisContext)
+ * và lưu trong snapshot, để AI prompt/màn hình CVA không phải tính lại.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class AnalysisMetrics {
+    private int rows;
+    private int energyCount;          // số ô total_energy là số
+    private int nonNumericEnergy;     // null / không phải số
+    private int nonPositiveEnergy;    // <= 0
+    private double q1;
+    private double q3;
+    private double iqr;
+    private double lowerFence;
+    private double upperFence;
+    private long outlierCount;
+    private double meanEnergy;
+    private double stdEnergy;
+    private double coefficientOfVariation;
+    private int repeatedRoundedKeys;
+    private List<String> topRepeatedRoundedValues; // giá trị làm tròn lặp nhiều nhất
+    private int duplicatePlates;
+    private int duplicateRows;
+}
@@ -0,0 +1,29 @@
+package com.carbonx.marketcarbon.dto.request;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.*;
+
+import java.math.BigDecimal;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class MarketOrderRequest {
+
+    @NotNull(message = "projectId cannot be null")
+    private Long projectId;
+
+    // Mỗi (project, vintage) là 1 sổ lệnh riêng, không khớp chéo giữa các vintage
+    @NotNull(message = "vintageYear cannot be null")
+    private Integer vintageYear;
+
+    @NotNull(message = "quantity cannot be null")
+    @Positive(message = "quantity must be positive")
+    private BigDecimal quantity;
+
+    // null = lệnh market (quét hết các mức giá), có giá trị = lệnh limit
+    @Positive(message = "limitPrice must be positive")
+    private BigDecimal limitPrice;
+}
@@ -0,0 +1,24 @@
+package com.carbonx.marketcarbon.dto.request;
+
+import com.carbonx.marketcarbon.common.MarketplaceSort;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.math.BigDecimal;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class MarketplaceSearchFilter {
+    Long projectId;
+    Integer vintageYear;
+    BigDecimal minPrice;
+    BigDecimal maxPrice;
+    Long sellerCompanyId;
+    MarketplaceSort sort;        // mặc định NEWEST
+    String cursor;               // nextCursor của trang trước, bỏ trống = trang đầu
+    Integer size;
+}
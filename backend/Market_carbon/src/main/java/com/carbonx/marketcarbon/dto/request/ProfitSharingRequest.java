@@ -21,4 +21,7 @@ public class ProfitSharingRequest {
     //  Chỉ chia lợi nhuận cho 1 report cụ thể
     private Long emissionReportId;
 
+    //  Version giá lấy từ payout formula đã xem trước (bỏ trống = giá hiện tại)
+    private Long pricingVersion;
+
 }
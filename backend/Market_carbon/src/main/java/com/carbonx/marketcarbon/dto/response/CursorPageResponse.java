@@ -0,0 +1,16 @@
+package com.carbonx.marketcarbon.dto.response;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.List;
+
+@Getter
+@Builder
+public class CursorPageResponse<T> implements Serializable {
+    private final List<T> items;
+    private final int pageSize;
+    private final boolean hasMore;
+    private final String nextCursor; // null khi hết dữ liệu
+}
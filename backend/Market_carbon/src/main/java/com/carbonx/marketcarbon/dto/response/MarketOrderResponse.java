@@ -0,0 +1,28 @@
+package com.carbonx.marketcarbon.dto.response;
+
+import com.carbonx.marketcarbon.common.OrderStatus;
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class MarketOrderResponse {
+
+    private OrderStatus status;
+
+    private BigDecimal requestedQuantity;
+
+    private BigDecimal filledQuantity;
+
+    private BigDecimal averagePrice;
+
+    private BigDecimal totalAmount;
+
+    // Mỗi fill là 1 order SUCCESS trên 1 listing
+    private List<CreditTradeResponse> fills;
+}
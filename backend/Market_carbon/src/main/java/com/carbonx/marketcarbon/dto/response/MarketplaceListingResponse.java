@@ -29,6 +29,8 @@ public class MarketplaceListingResponse {
 
     private String projectTitle;
 
+    private Integer vintageYear;
+
     private LocalDate expiresAt;
 
     private String logo;
@@ -15,4 +15,5 @@ public class PayoutFormulaResponse {
     private final BigDecimal unitPricePerKwh;
     private final BigDecimal unitPricePerCredit;
     private final String currency;
+    private final Long pricingVersion;
 }
@@ -94,6 +94,7 @@ public enum ErrorCode {
     CSV_INVALID_FILE_FORMAT(400302, "Invalid CSV file format.", HttpStatus.BAD_REQUEST), // có thể dùng 415 nếu muốn
     CSV_INVALID_NUMBER_FORMAT(400303, "Invalid number format in CSV.", HttpStatus.BAD_REQUEST),
     CSV_UNEXPECTED_ERROR(500201, "Unexpected error while processing CSV.", HttpStatus.INTERNAL_SERVER_ERROR),
+    CSV_READ_FAILED(500202, "Failed to read the uploaded CSV file.", HttpStatus.INTERNAL_SERVER_ERROR),
     // 5xx: storage hoặc lỗi hệ thống
     STORAGE_UPLOAD_FAILED(500101, "Failed to store the uploaded file.", HttpStatus.INTERNAL_SERVER_ERROR),
     STORAGE_READ_FAILED(500102, "Failed to read the stored file.", HttpStatus.INTERNAL_SERVER_ERROR),
@@ -132,6 +133,14 @@ public enum ErrorCode {
     EMISSION_REPORT_NOT_APPROVED(400, "Emission Report not approved", HttpStatus.BAD_REQUEST),
     MONEY_MUST_POSITIVE(400, "Money must be positive", HttpStatus.BAD_REQUEST),
     WALLET_NOT_FOUND(400, "Wallet not found.", HttpStatus.NOT_FOUND),
+
+    // AI gateway (Vertex)
+    AI_GATEWAY_BUSY(503, "AI service is busy, please try again later.", HttpStatus.SERVICE_UNAVAILABLE),
+    AI_GATEWAY_UNAVAILABLE(503, "AI service is temporarily unavailable.", HttpStatus.SERVICE_UNAVAILABLE),
+
+    PRICING_SNAPSHOT_NOT_FOUND(404, "Pricing snapshot version not found.", HttpStatus.NOT_FOUND),
+    MARKETPLACE_CURSOR_INVALID(400, "Invalid marketplace cursor.", HttpStatus.BAD_REQUEST),
+    WALLET_HISTORY_CURSOR_INVALID(400, "Invalid wallet history cursor.", HttpStatus.BAD_REQUEST),
     ;
 
 
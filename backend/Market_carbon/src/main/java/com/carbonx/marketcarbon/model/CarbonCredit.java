@@ -1,6 +1,7 @@
 package com.carbonx.marketcarbon.model;
 
 import com.carbonx.marketcarbon.common.CreditStatus;
+import com.carbonx.marketcarbon.service.ai.CreditChangeListener;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import jakarta.persistence.*;
@@ -12,7 +13,13 @@ import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 
 @Entity
-@Table(name = "carbon_credits")
+@Table(name = "carbon_credits",
+        indexes = {
+                @Index(name = "idx_credit_status_expiry", columnList = "status, expiry_date"),
+                @Index(name = "idx_credit_origin", columnList = "origin_credit_id, lineage_depth"),
+                @Index(name = "idx_credit_batch_company", columnList = "batch_id, company_id")
+        })
+@EntityListeners(CreditChangeListener.class)
 @AllArgsConstructor
 @NoArgsConstructor
 @Setter
@@ -36,6 +43,14 @@ public class CarbonCredit extends BaseEntity{
     @JsonIgnore
     private CarbonCredit sourceCredit;
 
+    // Lô gốc của chuỗi chuyển nhượng (lô gốc trỏ về chính nó) và số lần chuyển nhượng tính từ lô gốc.
+    // Ghi lúc phát hành/khớp lệnh, không phải đi ngược sourceCredit từng cấp
+    @Column(name = "origin_credit_id")
+    private Long originCreditId;
+
+    @Column(name = "lineage_depth")
+    private Integer lineageDepth;
+
     @Column(name = "t_co2e", precision = 18, scale = 3, nullable = false)
     @Builder.Default
     private BigDecimal tCo2e = BigDecimal.ONE;
@@ -83,9 +98,24 @@ public class CarbonCredit extends BaseEntity{
     @Column(name = "expiry_date")
     private LocalDate expiryDate;
 
+    // Dải serial của lô (lot), mã từng tín chỉ được suy ra khi cần thay vì lưu thành từng dòng
+    @Column(name = "serial_from")
+    private Long serialFrom;
+
+    @Column(name = "serial_to")
+    private Long serialTo;
+
     @Transient
     public Integer getIssuedYear() {
         return issuedAt != null ? issuedAt.getYear() : vintageYear;
     }
+
+    @Transient
+    public long getSerialCount() {
+        if (serialFrom == null || serialTo == null) {
+            return amount != null ? amount.longValue() : 0L;
+        }
+        return serialTo - serialFrom + 1;
+    }
     }
 
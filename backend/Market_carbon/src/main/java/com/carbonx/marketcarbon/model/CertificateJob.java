@@ -0,0 +1,57 @@
+package com.carbonx.marketcarbon.model;
+
+import com.carbonx.marketcarbon.common.CertificateJobStatus;
+import com.carbonx.marketcarbon.common.CertificateJobType;
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Job sinh chứng chỉ PDF + gửi email, được ghi cùng transaction nghiệp vụ (issue/retire)
+ * và xử lý sau commit bởi worker, nên không mất job khi restart.
+ */
+@Entity
+@Table(name = "certificate_jobs",
+        indexes = @Index(name = "idx_certificate_job_due", columnList = "status, next_attempt_at"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CertificateJob extends BaseEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "certificate_id", nullable = false)
+    private CreditCertificate certificate;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "job_type", length = 20, nullable = false)
+    private CertificateJobType jobType;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", length = 20, nullable = false)
+    @Builder.Default
+    private CertificateJobStatus status = CertificateJobStatus.PENDING;
+
+    // CertificateData dạng JSON để render lại PDF khi retry
+    @Column(name = "payload", columnDefinition = "text", nullable = false)
+    private String payload;
+
+    @Column(name = "recipient_email", length = 256)
+    private String recipientEmail;
+
+    @Column(name = "attempts", nullable = false)
+    @Builder.Default
+    private int attempts = 0;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    private LocalDateTime nextAttemptAt;
+
+    @Column(name = "last_error", columnDefinition = "text")
+    private String lastError;
+}
@@ -1,6 +1,7 @@
 package com.carbonx.marketcarbon.model;
 
 
+import com.carbonx.marketcarbon.service.principal.PrincipalChangeListener;
 import jakarta.persistence.*;
 import lombok.*;
 
@@ -8,6 +9,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 @Entity
+@EntityListeners(PrincipalChangeListener.class)
 @Getter
 @Setter
 @NoArgsConstructor
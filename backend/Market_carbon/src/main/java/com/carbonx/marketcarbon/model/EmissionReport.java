@@ -74,6 +74,16 @@ public class EmissionReport {
     @Builder.Default
     Integer vehicleCount = 0;
 
+    // Tổng đóng góp của các chủ xe (bảng report_owner_contributions); NULL = chưa tổng hợp
+    @Column(name = "payout_owners")
+    Integer payoutOwners;
+
+    @Column(name = "payout_energy_kwh", precision = 18, scale = 6)
+    BigDecimal payoutEnergyKwh;
+
+    @Column(name = "payout_credits_tco2e", precision = 18, scale = 6)
+    BigDecimal payoutCreditsTco2e;
+
     // Metadata file CSV upload
     String uploadOriginalFilename;
     String uploadMimeType;
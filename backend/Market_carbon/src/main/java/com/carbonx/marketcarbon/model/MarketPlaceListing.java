@@ -17,7 +17,11 @@ import java.time.LocalDateTime;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "marketplace_listings")
+@Table(name = "marketplace_listings",
+        indexes = {
+                @Index(name = "idx_listing_status_expires", columnList = "status, expires_at"),
+                @Index(name = "idx_listing_status_price", columnList = "status, price_per_credit")
+        })
 public class MarketPlaceListing {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
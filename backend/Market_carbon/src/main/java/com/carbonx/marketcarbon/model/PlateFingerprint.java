@@ -0,0 +1,43 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+/**
+ * Chỉ mục biển số đã chuẩn hóa: mỗi biển số khác nhau của 1 report là 1 dòng,
+ * ghi lúc upload. Dùng để tìm biển số trùng giữa các công ty bằng tra cứu theo hash
+ * thay vì self-join toàn bảng emission_report_details.
+ */
+@Entity
+@Table(name = "plate_fingerprints",
+        uniqueConstraints = @UniqueConstraint(name = "uk_plate_fingerprint_report_hash",
+                columnNames = {"report_id", "plate_hash"}),
+        indexes = @Index(name = "idx_plate_fingerprint_hash_company", columnList = "plate_hash, company_id"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PlateFingerprint {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // 8 byte đầu SHA-256 của biển số đã chuẩn hóa
+    @Column(name = "plate_hash", nullable = false)
+    private Long plateHash;
+
+    // Biển số đã chuẩn hóa (in hoa, bỏ khoảng trắng/dấu gạch/dấu chấm)
+    @Column(name = "normalized_plate", length = 50, nullable = false)
+    private String normalizedPlate;
+
+    @Column(name = "company_id", nullable = false)
+    private Long companyId;
+
+    @Column(name = "report_id", nullable = false)
+    private Long reportId;
+
+    @Column(length = 16, nullable = false)
+    private String period;
+}
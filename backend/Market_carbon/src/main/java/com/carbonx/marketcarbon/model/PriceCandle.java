@@ -0,0 +1,87 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Nến giá (OHLC + khối lượng) của các lệnh khớp thành công, theo phạm vi (toàn sàn / project / công ty)
+ * và độ phân giải 1 phút / 1 giờ / 1 ngày (giờ Việt Nam). Mỗi (scope, scope_id, resolution, bucket_start) 1 dòng,
+ * cộng dồn bằng upsert nên nhiều node ghi cùng nến vẫn đúng.
+ */
+@Entity
+@Table(name = "price_candles",
+        uniqueConstraints = @UniqueConstraint(name = "uk_price_candle_bucket",
+                columnNames = {"scope", "scope_id", "resolution", "bucket_start"}))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PriceCandle {
+
+    public enum Scope { MARKET, PROJECT, COMPANY }
+
+    public enum Resolution {
+        M1(ChronoUnit.MINUTES), H1(ChronoUnit.HOURS), D1(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        Resolution(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        public LocalDateTime bucketOf(LocalDateTime time) {
+            return time.truncatedTo(unit);
+        }
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Scope scope;
+
+    // 0 cho MARKET, projectId hoặc companyId cho phạm vi còn lại
+    @Column(name = "scope_id", nullable = false)
+    private Long scopeId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 4)
+    private Resolution resolution;
+
+    @Column(name = "bucket_start", nullable = false)
+    private LocalDateTime bucketStart;
+
+    @Column(name = "open_price", nullable = false, precision = 18, scale = 2)
+    private BigDecimal openPrice;
+
+    @Column(name = "high_price", nullable = false, precision = 18, scale = 2)
+    private BigDecimal highPrice;
+
+    @Column(name = "low_price", nullable = false, precision = 18, scale = 2)
+    private BigDecimal lowPrice;
+
+    @Column(name = "close_price", nullable = false, precision = 18, scale = 2)
+    private BigDecimal closePrice;
+
+    // Tổng số tín chỉ khớp
+    @Column(nullable = false, precision = 18, scale = 4)
+    private BigDecimal volume;
+
+    // Tổng giá x số lượng (VWAP = notional / volume)
+    @Column(nullable = false, precision = 24, scale = 6)
+    private BigDecimal notional;
+
+    // Tổng đơn giá từng lệnh (giá trung bình theo lệnh = priceSum / tradeCount)
+    @Column(name = "price_sum", nullable = false, precision = 24, scale = 2)
+    private BigDecimal priceSum;
+
+    @Column(name = "trade_count", nullable = false)
+    private long tradeCount;
+}
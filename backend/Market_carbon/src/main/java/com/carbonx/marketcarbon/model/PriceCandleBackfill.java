@@ -0,0 +1,43 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Mốc dựng nến từ các lệnh khớp trước khi có price_candles (chỉ 1 dòng, id = 1).
+ * up_to_order_id / cutoff_at cố định lúc node đầu tiên tạo dòng: lệnh sau mốc đã được cộng trực tiếp khi khớp.
+ * last_order_id ghi cùng transaction với nến của từng trang nên restart chạy tiếp đúng chỗ, không cộng trùng.
+ * claimed_by / claimed_until là lease: tại 1 thời điểm chỉ 1 node dựng nến.
+ */
+@Entity
+@Table(name = "price_candle_backfills")
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PriceCandleBackfill {
+
+    @Id
+    private Long id;
+
+    @Column(name = "up_to_order_id", nullable = false)
+    private Long upToOrderId;
+
+    @Column(name = "cutoff_at", nullable = false)
+    private LocalDateTime cutoffAt;
+
+    @Column(name = "last_order_id", nullable = false)
+    private Long lastOrderId;
+
+    @Column(nullable = false)
+    private boolean completed;
+
+    @Column(name = "claimed_by", length = 64)
+    private String claimedBy;
+
+    @Column(name = "claimed_until")
+    private LocalDateTime claimedUntil;
+}
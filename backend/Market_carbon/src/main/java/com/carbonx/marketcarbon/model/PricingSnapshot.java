@@ -0,0 +1,41 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Phiên bản giá dùng chung cho mọi node (giá thị trường / tín chỉ, hệ số kWh / tín chỉ).
+ * Chỉ thêm dòng mới, id chính là version. source_key chống ghi trùng khi nhiều node
+ * cùng chạy 1 lượt cron (vd "cron:2025-03-10T09:15").
+ */
+@Entity
+@Table(name = "pricing_snapshots",
+        uniqueConstraints = @UniqueConstraint(name = "uk_pricing_snapshot_source_key", columnNames = "source_key"))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class PricingSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "market_price_per_credit", nullable = false, precision = 18, scale = 2)
+    private BigDecimal marketPricePerCredit;
+
+    @Column(name = "kwh_per_credit_factor", nullable = false, precision = 18, scale = 4)
+    private BigDecimal kwhPerCreditFactor;
+
+    @Column(name = "source_key", length = 64)
+    private String sourceKey;
+
+    @CreationTimestamp
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+}
@@ -33,6 +33,11 @@ public class ProfitDistribution extends BaseEntity {
     @JoinColumn(name = "project_id")
     private Project project;
 
+    // Báo cáo phát thải được chia lợi nhuận (dùng khi chạy tiếp đợt chi trả sau restart)
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "emission_report_id")
+    private EmissionReport emissionReport;
+
     // Tổng số tiền được chia sẻ trong đợt này
     @Column(nullable = false)
     private BigDecimal totalMoneyDistributed;
@@ -46,6 +51,10 @@ public class ProfitDistribution extends BaseEntity {
     @Column(nullable = false)
     private ProfitDistributionStatus status;
 
+    // Version giá (pricing_snapshots.id) dùng cho cả đợt chia sẻ
+    @Column(name = "pricing_version")
+    private Long pricingVersion;
+
     // Chi tiết các khoản thanh toán cho từng EV Owner
     @OneToMany(mappedBy = "distribution", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private List<ProfitDistributionDetail> details;
@@ -43,10 +43,14 @@ public class ProfitDistributionDetail extends BaseEntity {
     @Column(name = "energy_amount", nullable = false)
     private BigDecimal energyAmount;
 
-    // Trạng thái
+    // Trạng thái: PENDING (đã lập kế hoạch, chưa trả) -> SUCCESS / FAILED
     @Column(nullable = false)
     private String status;
 
+    // Số thứ tự chunk chi trả, dùng làm checkpoint để chạy tiếp các chunk còn PENDING
+    @Column(name = "chunk_no")
+    private Integer chunkNo;
+
     // Ghi chú lỗi nếu có
     @Column
     private String errorMessage;
@@ -0,0 +1,50 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+/**
+ * Kết quả chấm rule của 1 report, khóa theo (report, uploadSha256, analyzerVersion).
+ * Tính 1 lần sau khi upload; CVA, AI prompt và rubric thủ công đọc lại bản này.
+ * Dữ liệu report đổi (sha khác) hoặc đổi phiên bản rule engine thì khóa không còn khớp -> tính lại.
+ */
+@Entity
+@Table(name = "report_analysis_snapshots",
+        uniqueConstraints = @UniqueConstraint(name = "uk_analysis_snapshot_report_sha_version",
+                columnNames = {"report_id", "upload_sha256", "analyzer_version"}))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReportAnalysisSnapshot extends BaseEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "report_id", nullable = false)
+    private EmissionReport report;
+
+    // SHA-256 của file CSV lúc chấm (report không có file thì dùng "-")
+    @Column(name = "upload_sha256", length = 128, nullable = false)
+    private String uploadSha256;
+
+    @Column(name = "analyzer_version", length = 32, nullable = false)
+    private String analyzerVersion;
+
+    @Column(name = "data_quality_score", nullable = false)
+    private int dataQualityScore;
+
+    @Column(name = "fraud_risk_score", nullable = false)
+    private int fraudRiskScore;
+
+    // AnalysisResult dạng JSON (điểm + evidence từng rule, lý do fraud)
+    @Column(name = "result_json", columnDefinition = "mediumtext", nullable = false)
+    private String resultJson;
+
+    // AnalysisMetrics dạng JSON (số liệu thống kê cho AI prompt / màn hình CVA)
+    @Column(name = "metrics_json", columnDefinition = "text", nullable = false)
+    private String metricsJson;
+}
@@ -0,0 +1,54 @@
+package com.carbonx.marketcarbon.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.math.BigDecimal;
+
+/**
+ * Đóng góp đã tổng hợp của từng chủ xe trong 1 report: mỗi (report, owner) 1 dòng, ghi lúc upload.
+ * Danh sách chi trả đọc/sắp xếp/phân trang thẳng trên bảng này thay vì gom lại toàn bộ detail mỗi request.
+ */
+@Entity
+@Table(name = "report_owner_contributions",
+        uniqueConstraints = @UniqueConstraint(name = "uk_owner_contribution_report_owner",
+                columnNames = {"report_id", "ev_owner_id"}),
+        indexes = {
+                @Index(name = "idx_owner_contribution_company_period", columnList = "company_id, period, ev_owner_id"),
+                @Index(name = "idx_owner_contribution_report_energy", columnList = "report_id, energy_kwh"),
+                @Index(name = "idx_owner_contribution_report_credits", columnList = "report_id, credits_tco2e"),
+                @Index(name = "idx_owner_contribution_report_vehicles", columnList = "report_id, vehicles_count")
+        })
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ReportOwnerContribution {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "report_id", nullable = false)
+    private Long reportId;
+
+    @Column(name = "company_id", nullable = false)
+    private Long companyId;
+
+    @Column(length = 16, nullable = false)
+    private String period;
+
+    @Column(name = "ev_owner_id", nullable = false)
+    private Long evOwnerId;
+
+    // Số xe của owner có dòng trong report
+    @Column(name = "vehicles_count", nullable = false)
+    private Integer vehiclesCount;
+
+    @Column(name = "energy_kwh", precision = 18, scale = 6, nullable = false)
+    private BigDecimal energyKwh;
+
+    @Column(name = "credits_tco2e", precision = 18, scale = 6, nullable = false)
+    private BigDecimal creditsTco2e;
+}
@@ -2,6 +2,7 @@ package com.carbonx.marketcarbon.model;
 
 import com.carbonx.marketcarbon.common.OtpPurpose;
 import com.carbonx.marketcarbon.common.USER_STATUS;
+import com.carbonx.marketcarbon.service.principal.PrincipalChangeListener;
 import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
@@ -14,6 +15,7 @@ import java.util.List;
 import java.util.Set;
 
 @Entity
+@EntityListeners(PrincipalChangeListener.class)
 @Table(name="users")
 @Getter @Setter @NoArgsConstructor @AllArgsConstructor @Builder
 public class User {
@@ -7,7 +7,9 @@ import jakarta.validation.constraints.Min;
 import lombok.*;
 
 @Entity
-@Table(name="vehicles")
+@Table(name="vehicles", indexes = {
+        @Index(name = "idx_vehicle_company_owner", columnList = "company_id, ev_owner_id")
+})
 @Getter @Setter @NoArgsConstructor @AllArgsConstructor @Builder
 public class Vehicle extends BaseEntity {
 
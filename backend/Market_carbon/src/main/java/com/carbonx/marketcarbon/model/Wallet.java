@@ -1,5 +1,6 @@
 package com.carbonx.marketcarbon.model;
 
+import com.carbonx.marketcarbon.service.principal.PrincipalChangeListener;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 import jakarta.persistence.*;
@@ -10,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 @Entity
+@EntityListeners(PrincipalChangeListener.class)
 @Table(name = "wallets")
 @AllArgsConstructor
 @NoArgsConstructor
@@ -11,6 +11,10 @@ import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Entity
+@Table(name = "wallet_transaction", indexes = {
+        @Index(name = "idx_wtx_wallet_created", columnList = "wallet_id, created_at, id"),
+        @Index(name = "idx_wtx_wallet_distribution", columnList = "wallet_id, distribution_id, transaction_type")
+})
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
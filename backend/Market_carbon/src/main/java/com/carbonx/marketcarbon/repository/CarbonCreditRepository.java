@@ -8,8 +8,11 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.*;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -27,8 +30,6 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
 
     List<CarbonCredit> findByCompanyId(Long companyId);
 
-    List<CarbonCredit> findByStatusNot(CreditStatus status);
-
     List<CarbonCredit> findByBatch_IdAndCompany_Id(Long batchId, Long companyId);
 
     Optional<CarbonCredit> findFirstByCompanyAndStatus(Company company, CreditStatus status);
@@ -100,6 +101,15 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
     long sumAmountByCompany_IdAndStatus(@Param("companyId") Long companyId,
                                         @Param("status") CreditStatus status);
 
+    // Tổng amount theo từng status của 1 công ty trong 1 truy vấn: [status, sum]
+    @Query("""
+        SELECT c.status, COALESCE(SUM(c.amount), 0)
+        FROM CarbonCredit c
+        WHERE c.company.id = :companyId
+        GROUP BY c.status
+    """)
+    List<Object[]> sumAmountByCompanyGroupByStatus(@Param("companyId") Long companyId);
+
     @Query("""
         SELECT COALESCE(SUM(c.amount), 0)
         FROM CarbonCredit c
@@ -112,14 +122,43 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
     long countByCompany_IdAndStatusNot(Long companyId, CreditStatus status);
 
 
-    @Modifying
+    // Keyset theo (expiryDate, id) trên index (status, expiry_date): chỉ đọc id + ngày hết hạn của 1 chunk
     @Query("""
-        UPDATE CarbonCredit c
-        SET c.status = 'EXPIRED'
-        WHERE c.expiryDate < CURRENT_DATE
-          AND c.status <> 'EXPIRED'
+        SELECT c.id AS id, c.expiryDate AS expiryDate
+        FROM CarbonCredit c
+        WHERE c.status = :status
+          AND c.expiryDate < :today
+          AND c.expiryDate >= :afterDate
+          AND (c.expiryDate > :afterDate OR c.id > :afterId)
+        ORDER BY c.expiryDate, c.id
     """)
-    int markExpiredCredits();
+    List<ExpiryKey> findExpiredKeysAfter(@Param("status") CreditStatus status,
+                                         @Param("today") LocalDate today,
+                                         @Param("afterDate") LocalDate afterDate,
+                                         @Param("afterId") Long afterId,
+                                         Pageable pageable);
+
+    interface ExpiryKey {
+        Long getId();
+        LocalDate getExpiryDate();
+    }
+
+    // Các lô của 1 công ty trong 1 batch còn phần chưa niêm yết, khóa theo id tăng dần (FIFO, cùng thứ tự mọi luồng)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("""
+        SELECT c FROM CarbonCredit c
+        WHERE c.batch.id = :batchId AND c.company.id = :companyId
+          AND c.status IN :statuses AND c.carbonCredit > 0
+        ORDER BY c.id
+    """)
+    List<CarbonCredit> lockOpenLotsInBatch(@Param("batchId") Long batchId,
+                                           @Param("companyId") Long companyId,
+                                           @Param("statuses") Collection<CreditStatus> statuses);
+
+    // Khóa nhiều credit theo id tăng dần (cùng thứ tự với các luồng khác, tránh deadlock)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT c FROM CarbonCredit c WHERE c.id IN :ids ORDER BY c.id")
+    List<CarbonCredit> findAllByIdInForUpdate(@Param("ids") Collection<Long> ids);
 
     @Query("""
     SELECT COALESCE(SUM(c.amount), 0)
@@ -147,12 +186,12 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
     @Query("SELECT c FROM CarbonCredit c WHERE c.id = :id AND c.company.id = :companyId")
     Optional<CarbonCredit> findByIdAndCompanyIdWithLock(@Param("id") Long id, @Param("companyId") Long companyId);
 
-    // Query tối ưu để tìm credit phù hợp
+    // Query tối ưu để tìm credit phù hợp: chính nó, lô nhận từ nó, mọi lô cùng lô gốc (origin) hoặc cùng batch
     @Query(nativeQuery = true, value =
             "SELECT c.* FROM carbon_credits c " +
-                    "LEFT JOIN credit_batches b ON c.batch_id = b.id " +
                     "WHERE (c.company_id = :companyId) AND " +
-                    "((c.id = :creditId) OR (c.source_credit_id = :creditId) OR (b.id = :creditId)) AND " +
+                    "((c.id = :creditId) OR (c.source_credit_id = :creditId) " +
+                    "OR (c.origin_credit_id = :creditId) OR (c.batch_id = :creditId)) AND " +
                     "((c.carbon_credit >= :requiredAmount) OR (:requiredAmount IS NULL)) " +
                     "ORDER BY c.carbon_credit DESC LIMIT 1")
     List<CarbonCredit> findCreditsBatchOrChainLinkedToIdWithSufficientAmount(
@@ -160,6 +199,79 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
             @Param("companyId") Long companyId,
             @Param("requiredAmount") BigDecimal requiredAmount);
 
+    /**
+     * Tín chỉ trong ví công ty kèm nguồn, lô gốc, batch, công ty liên quan trong 1 query
+     * (lô gốc lấy từ origin_credit_id; dòng chưa backfill thì lấy theo nguồn trực tiếp).
+     */
+    @Query(nativeQuery = true, value = """
+        SELECT c.id AS creditId, c.credit_code AS creditCode, c.amount AS amount, c.listed_amount AS listedAmount,
+               c.status AS status, c.expiry_date AS expiryDate,
+               sc.id AS sourceCreditId, sc.credit_code AS sourceCreditCode,
+               sco.id AS sellerCompanyId, sco.company_name AS sellerCompanyName,
+               oc.id AS originCreditId, oc.credit_code AS originCreditCode,
+               oco.id AS originCompanyId, oco.company_name AS originCompanyName,
+               b.id AS batchId, b.batch_code AS batchCode, bco.id AS batchCompanyId, bco.company_name AS batchCompanyName
+        FROM carbon_credits c
+        LEFT JOIN carbon_credits sc ON sc.id = c.source_credit_id
+        LEFT JOIN company sco ON sco.id = sc.company_id
+        LEFT JOIN carbon_credits oc ON oc.id = COALESCE(c.origin_credit_id, sc.origin_credit_id, sc.id, c.id)
+        LEFT JOIN credit_batches b ON b.id = COALESCE(c.batch_id, sc.batch_id, oc.batch_id)
+        LEFT JOIN company bco ON bco.id = b.company_id
+        LEFT JOIN company oco ON oco.id = COALESCE(oc.company_id, bco.id)
+        WHERE c.company_id = :companyId
+        ORDER BY c.id DESC
+        """, countQuery = "SELECT COUNT(*) FROM carbon_credits c WHERE c.company_id = :companyId")
+    Page<WalletCreditRow> findWalletCredits(@Param("companyId") Long companyId, Pageable pageable);
+
+    interface WalletCreditRow {
+        Long getCreditId();
+        String getCreditCode();
+        BigDecimal getAmount();
+        BigDecimal getListedAmount();
+        String getStatus();
+        LocalDate getExpiryDate();
+        Long getSourceCreditId();
+        String getSourceCreditCode();
+        Long getSellerCompanyId();
+        String getSellerCompanyName();
+        Long getOriginCreditId();
+        String getOriginCreditCode();
+        Long getOriginCompanyId();
+        String getOriginCompanyName();
+        Long getBatchId();
+        String getBatchCode();
+        Long getBatchCompanyId();
+        String getBatchCompanyName();
+    }
+
+    // Mọi lô thuộc chuỗi của 1 lô gốc (kể cả lô gốc), theo thứ tự chuyển nhượng: range scan trên idx_credit_origin
+    List<CarbonCredit> findByOriginCreditIdOrderByLineageDepthAscIdAsc(Long originCreditId);
+
+    // Backfill lineage cho dữ liệu cũ, theo cửa sổ id (lô nguồn luôn có id nhỏ hơn lô nhận)
+    @Query("SELECT MIN(c.id) FROM CarbonCredit c WHERE c.originCreditId IS NULL")
+    Long findMinIdWithoutLineage();
+
+    @Query("SELECT MAX(c.id) FROM CarbonCredit c")
+    Long findMaxId();
+
+    @Modifying
+    @Transactional
+    @Query(value = """
+        UPDATE carbon_credits SET origin_credit_id = id, lineage_depth = 0
+        WHERE id BETWEEN :fromId AND :toId AND source_credit_id IS NULL AND origin_credit_id IS NULL
+    """, nativeQuery = true)
+    int backfillRootLineage(@Param("fromId") Long fromId, @Param("toId") Long toId);
+
+    // 1 cấp: lô có nguồn đã có lineage; gọi lặp đến khi 0 dòng để đi hết chuỗi trong cửa sổ
+    @Modifying
+    @Transactional
+    @Query(value = """
+        UPDATE carbon_credits c JOIN carbon_credits s ON s.id = c.source_credit_id
+        SET c.origin_credit_id = s.origin_credit_id, c.lineage_depth = COALESCE(s.lineage_depth, 0) + 1
+        WHERE c.id BETWEEN :fromId AND :toId AND c.origin_credit_id IS NULL AND s.origin_credit_id IS NOT NULL
+    """, nativeQuery = true)
+    int backfillLineageLevel(@Param("fromId") Long fromId, @Param("toId") Long toId);
+
     // AVAILABLE có nguồn gốc "mua qua sàn"
     @Query("""
     SELECT COALESCE(SUM(c.amount), 0)
@@ -224,20 +336,20 @@ public interface CarbonCreditRepository extends JpaRepository<CarbonCredit, Long
                                    @Param("status") CreditStatus status);
 
 
-    // Tổng số credit
-    @Query("SELECT COUNT(c) FROM CarbonCredit c")
+    // Tổng số credit đã phát hành (lô gốc bị tách dải khi chuyển nhượng/retire nên lấy theo batch)
+    @Query("SELECT COALESCE(SUM(b.creditsCount), 0) FROM CreditBatch b")
     long countAllCredits();
 
-    // Đếm credit theo trạng thái/tháng
+    // Đếm credit theo trạng thái/tháng (mỗi lô tính theo số lượng nó đang nắm giữ)
     @Query(value = """
         SELECT 
             MONTHNAME(c.created_at) AS month,
-            SUM(CASE WHEN c.status = 'LISTED' THEN 1 ELSE 0 END) AS listed,
-            SUM(CASE WHEN c.status = 'SOLD' THEN 1 ELSE 0 END) AS sold,
-            SUM(CASE WHEN c.status = 'TRADED' THEN 1 ELSE 0 END) AS traded,
-            SUM(CASE WHEN c.status = 'RETIRED' THEN 1 ELSE 0 END) AS retired,
-            SUM(CASE WHEN c.status = 'PENDING' THEN 1 ELSE 0 END) AS pending,
-            SUM(CASE WHEN c.status IN ('ISSUE', 'ISSUED', 'AVAILABLE') THEN 1 ELSE 0 END) AS active
+            SUM(CASE WHEN c.status = 'LISTED' THEN COALESCE(c.amount, 1) ELSE 0 END) AS listed,
+            SUM(CASE WHEN c.status = 'SOLD' THEN COALESCE(c.amount, 1) ELSE 0 END) AS sold,
+            SUM(CASE WHEN c.status = 'TRADED' THEN COALESCE(c.amount, 1) ELSE 0 END) AS traded,
+            SUM(CASE WHEN c.status = 'RETIRED' THEN COALESCE(c.amount, 1) ELSE 0 END) AS retired,
+            SUM(CASE WHEN c.status = 'PENDING' THEN COALESCE(c.amount, 1) ELSE 0 END) AS pending,
+            SUM(CASE WHEN c.status IN ('ISSUE', 'ISSUED', 'AVAILABLE') THEN COALESCE(c.amount, 1) ELSE 0 END) AS active
         FROM carbon_credits c
         GROUP BY MONTH(c.created_at), MONTHNAME(c.created_at)
         ORDER BY MONTH(c.created_at)
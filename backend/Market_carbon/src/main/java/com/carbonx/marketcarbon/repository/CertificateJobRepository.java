@@ -0,0 +1,53 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.CertificateJob;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+
+public interface CertificateJobRepository extends JpaRepository<CertificateJob, Long> {
+
+    @Query("""
+        SELECT j.id FROM CertificateJob j
+        WHERE j.status = com.carbonx.marketcarbon.common.CertificateJobStatus.PENDING
+          AND j.nextAttemptAt <= :now
+        ORDER BY j.nextAttemptAt
+    """)
+    List<Long> findDueJobIds(@Param("now") LocalDateTime now, Pageable pageable);
+
+    /**
+     * Chiếm job (PENDING -> RUNNING) theo kiểu compare-and-set để 2 worker/2 node không xử lý trùng.
+     */
+    @Modifying
+    @Query("""
+        UPDATE CertificateJob j
+        SET j.status = com.carbonx.marketcarbon.common.CertificateJobStatus.RUNNING,
+            j.attempts = j.attempts + 1,
+            j.updatedAt = :now
+        WHERE j.id = :id
+          AND j.status = com.carbonx.marketcarbon.common.CertificateJobStatus.PENDING
+    """)
+    int claim(@Param("id") Long id, @Param("now") OffsetDateTime now);
+
+    // Trả lại các job RUNNING bị treo (node chết giữa chừng) về PENDING
+    @Modifying
+    @Query("""
+        UPDATE CertificateJob j
+        SET j.status = com.carbonx.marketcarbon.common.CertificateJobStatus.PENDING
+        WHERE j.status = com.carbonx.marketcarbon.common.CertificateJobStatus.RUNNING
+          AND j.updatedAt < :before
+    """)
+    int releaseStale(@Param("before") OffsetDateTime before);
+
+    @EntityGraph(attributePaths = {"certificate"})
+    Optional<CertificateJob> findWithCertificateById(Long id);
+
+}
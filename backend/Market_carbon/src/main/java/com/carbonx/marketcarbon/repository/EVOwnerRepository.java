@@ -5,6 +5,7 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -19,4 +20,8 @@ public interface EVOwnerRepository extends JpaRepository<EVOwner,Long> {
         WHERE u.email = :email
     """)
     Optional<EVOwner> findByEmail(String email);
+
+    // Nạp owner + user của cả chunk chi trả trong 1 query
+    @Query("SELECT e FROM EVOwner e JOIN FETCH e.user WHERE e.id IN :ids")
+    List<EVOwner> findAllWithUserByIdIn(Collection<Long> ids);
 }
@@ -0,0 +1,11 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.EmissionReportDetail;
+
+import java.util.List;
+
+public interface EmissionReportDetailBatchRepository {
+
+    // Insert nhiều dòng detail trong 1 JDBC batch (khóa IDENTITY làm saveAll của Hibernate insert từng dòng)
+    void insertBatch(List<EmissionReportDetail> details);
+}
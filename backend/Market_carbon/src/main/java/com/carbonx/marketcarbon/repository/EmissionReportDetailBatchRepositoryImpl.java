@@ -0,0 +1,36 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.EmissionReportDetail;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+public class EmissionReportDetailBatchRepositoryImpl implements EmissionReportDetailBatchRepository {
+
+    private static final String INSERT_SQL = """
+            INSERT INTO emission_report_details
+                (report_id, period, company_id, project_id, total_energy, co2_kg, vehicle_plate)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // Chạy trên connection của transaction JPA hiện tại; report phải được insert trước (khóa ngoại report_id)
+    @Override
+    public void insertBatch(List<EmissionReportDetail> details) {
+        if (details.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, details, details.size(), (ps, d) -> {
+            ps.setLong(1, d.getReport().getId());
+            ps.setString(2, d.getPeriod());
+            ps.setLong(3, d.getCompanyId());
+            ps.setLong(4, d.getProjectId());
+            ps.setBigDecimal(5, d.getTotalEnergy());
+            ps.setBigDecimal(6, d.getCo2Kg());
+            ps.setString(7, d.getVehiclePlate());
+        });
+    }
+}
@@ -6,10 +6,19 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
+import java.math.BigDecimal;
 import java.util.List;
 
-public interface EmissionReportDetailRepository extends JpaRepository<EmissionReportDetail, Long> {
+public interface EmissionReportDetailRepository extends JpaRepository<EmissionReportDetail, Long>,
+        EmissionReportDetailBatchRepository {
+
+    interface PlateTotal {
+        String getPlate();
+        BigDecimal getEnergy();
+        BigDecimal getCreditKg();
+    }
     Page<EmissionReportDetail> findByReport_Id(Long reportId, Pageable pageable);
     List<EmissionReportDetail> findByReport_Id(Long reportId);
 
@@ -18,16 +27,23 @@ public interface EmissionReportDetailRepository extends JpaRepository<EmissionRe
             Long reportId, String q, Pageable pageable);
     List<EmissionReportDetail> findByCompanyIdAndPeriod(Long companyId, String period);
     List<EmissionReportDetail> findByReport(EmissionReport report);
+
+    // Biển số khác nhau của 1 report (dựng chỉ mục plate_fingerprints cho dữ liệu cũ)
+    @Query("""
+        SELECT DISTINCT d.vehiclePlate FROM EmissionReportDetail d
+        WHERE d.report.id = :reportId AND d.vehiclePlate IS NOT NULL
+    """)
+    List<String> findDistinctPlatesByReportId(@Param("reportId") Long reportId);
+
+    // Tổng theo biển số của 1 report (dựng lại bảng đóng góp theo owner).
+    // Cùng quy tắc từng dòng như lúc upload: bỏ dòng energy <= 0, CO2 > 0 thì lấy CO2, không thì energy * factor
     @Query("""
-SELECT COUNT(DISTINCT d2.report.id)
-FROM EmissionReportDetail d1
-JOIN EmissionReportDetail d2
-  ON d1.vehiclePlate = d2.vehiclePlate
-  AND d1.report.id <> d2.report.id
-JOIN EmissionReport r2 ON r2.id = d2.report.id
-WHERE d1.report.id = :reportId
-  AND r2.seller.id <> :sellerId
-""")
-    int countDuplicatePlatesAcrossCompanies(Long reportId, Long sellerId);
+        SELECT d.vehiclePlate AS plate, SUM(d.totalEnergy) AS energy,
+               SUM(CASE WHEN d.co2Kg > 0 THEN d.co2Kg ELSE d.totalEnergy * :factor END) AS creditKg
+        FROM EmissionReportDetail d
+        WHERE d.report.id = :reportId AND d.vehiclePlate IS NOT NULL AND d.totalEnergy > 0
+        GROUP BY d.vehiclePlate
+    """)
+    List<PlateTotal> sumByPlateForReport(@Param("reportId") Long reportId, @Param("factor") BigDecimal emissionFactor);
 
 }
@@ -4,15 +4,18 @@ import com.carbonx.marketcarbon.common.ListingStatus;
 import com.carbonx.marketcarbon.model.MarketPlaceListing;
 import io.lettuce.core.dynamic.annotation.Param;
 import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
-public interface MarketplaceListingRepository extends JpaRepository<MarketPlaceListing,Long> {
+public interface MarketplaceListingRepository extends JpaRepository<MarketPlaceListing,Long>,
+        MarketplaceListingSearchRepository {
     // Tìm các niêm yết còn hoạt động (chưa hết hạn và còn hàng)
     List<MarketPlaceListing> findByStatusAndExpiresAtAfter(ListingStatus status, LocalDate now);
 
@@ -23,8 +26,38 @@ public interface MarketplaceListingRepository extends JpaRepository<MarketPlaceL
 
     List<MarketPlaceListing> findByCompanyId(Long id);
 
-    // Tìm các niêm yết đã hết hạn và vẫn đang AVAILABLE
-    List<MarketPlaceListing> findByStatusAndExpiresAtBefore(ListingStatus status, LocalDate now);
+    // Keyset theo (expiresAt, id) trên index (status, expires_at): các niêm yết đã hết hạn, chỉ đọc id của 1 chunk
+    @Query("""
+    SELECT m.id AS id, m.expiresAt AS expiresAt
+    FROM MarketPlaceListing m
+    WHERE m.status = :status
+      AND m.expiresAt < :today
+      AND m.expiresAt >= :afterDate
+      AND (m.expiresAt > :afterDate OR m.id > :afterId)
+    ORDER BY m.expiresAt, m.id
+    """)
+    List<ExpiryKey> findExpiredKeysAfter(@Param("status") ListingStatus status,
+                                         @Param("today") LocalDate today,
+                                         @Param("afterDate") LocalDate afterDate,
+                                         @Param("afterId") Long afterId,
+                                         Pageable pageable);
+
+    interface ExpiryKey {
+        Long getId();
+        LocalDate getExpiresAt();
+    }
+
+    // Khóa các niêm yết theo id tăng dần
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT m FROM MarketPlaceListing m WHERE m.id IN :ids AND m.status = :status ORDER BY m.id")
+    List<MarketPlaceListing> findByIdInAndStatusForUpdate(@Param("ids") Collection<Long> ids,
+                                                          @Param("status") ListingStatus status);
+
+    // Khóa các niêm yết của nhiều credit theo id tăng dần
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT m FROM MarketPlaceListing m WHERE m.carbonCredit.id IN :creditIds AND m.status = :status ORDER BY m.id")
+    List<MarketPlaceListing> findByCreditIdInAndStatusForUpdate(@Param("creditIds") Collection<Long> creditIds,
+                                                                @Param("status") ListingStatus status);
 
     //listing theo công ty và carbon credit
     List<MarketPlaceListing> findByCompanyIdAndCarbonCreditIdAndStatus(
@@ -38,9 +71,29 @@ public interface MarketplaceListingRepository extends JpaRepository<MarketPlaceL
             Long batchId,
             ListingStatus status);
 
+    // Nạp listing kèm credit + project để dựng order book trong bộ nhớ
+    @Query("""
+    SELECT m FROM MarketPlaceListing m
+    JOIN FETCH m.carbonCredit c
+    LEFT JOIN FETCH c.project
+    WHERE m.status = :status AND m.expiresAt > :today
+    """)
+    List<MarketPlaceListing> findOpenForOrderBook(@Param("status") ListingStatus status, @Param("today") LocalDate today);
+
+    @Query("""
+    SELECT m FROM MarketPlaceListing m
+    JOIN FETCH m.carbonCredit c
+    LEFT JOIN FETCH c.project
+    WHERE m.id = :id
+    """)
+    Optional<MarketPlaceListing> findWithCreditById(@Param("id") Long id);
+
+    // Chỉ dùng khi chưa có nến giá nào: giá chào bán bình quân của các listing đang mở
     @Query("""
     SELECT SUM(m.pricePerCredit * m.quantity) / SUM(m.quantity)
     FROM MarketPlaceListing m
+    WHERE m.status = com.carbonx.marketcarbon.common.ListingStatus.AVAILABLE
+      AND m.quantity > 0
     """)
     Double getWeightedAveragePrice();
 
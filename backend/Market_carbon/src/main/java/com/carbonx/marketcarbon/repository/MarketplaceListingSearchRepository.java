@@ -0,0 +1,23 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+public interface MarketplaceListingSearchRepository {
+
+    // Vị trí dòng cuối của trang trước theo khóa sắp xếp (giá hoặc ngày hết hạn; NEWEST chỉ dùng id)
+    record Seek(String key, long id) {}
+
+    /**
+     * Niêm yết đang mở theo bộ lọc, 1 truy vấn join sẵn credit/project/batch/công ty, đọc thẳng ra DTO.
+     * Phân trang seek: chỉ đọc các dòng sau {@code after} theo thứ tự sort, tối đa {@code limit} dòng.
+     */
+    List<MarketplaceListingResponse> searchOpen(MarketplaceSearchFilter filter, LocalDate today, Seek after, int limit);
+
+    // 1 niêm yết nếu còn mở (cập nhật từng dòng của snapshot sàn)
+    Optional<MarketplaceListingResponse> findOpenById(Long listingId, LocalDate today);
+}
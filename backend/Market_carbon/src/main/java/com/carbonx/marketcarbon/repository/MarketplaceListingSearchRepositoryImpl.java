@@ -0,0 +1,147 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.common.MarketplaceSort;
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+@RequiredArgsConstructor
+public class MarketplaceListingSearchRepositoryImpl implements MarketplaceListingSearchRepository {
+
+    private static final String SELECT_SQL = """
+            SELECT m.id, m.quantity, m.original_quantity, m.sold_quantity, m.price_per_credit, m.expires_at,
+                   co.company_name, c.id AS credit_id, c.carbon_credit, c.listed_amount, c.vintage_year,
+                   p.id AS project_id, p.title, p.logo, b.id AS batch_id, b.batch_code
+            FROM marketplace_listings m
+            JOIN carbon_credits c ON c.id = m.carbon_credits_id
+            JOIN company co ON co.id = m.company_id
+            LEFT JOIN project p ON p.id = c.project_id
+            LEFT JOIN credit_batches b ON b.id = c.batch_id
+            WHERE m.status = 'AVAILABLE' AND m.expires_at > ?
+            """;
+
+    private static final RowMapper<MarketplaceListingResponse> ROW_MAPPER = (rs, i) -> {
+        BigDecimal quantity = zero(rs.getBigDecimal("quantity"));
+        BigDecimal sold = zero(rs.getBigDecimal("sold_quantity"));
+        BigDecimal original = rs.getBigDecimal("original_quantity");
+        if (original == null || original.signum() <= 0) {
+            original = quantity.add(sold);
+        }
+        Date expiresAt = rs.getDate("expires_at");
+        return MarketplaceListingResponse.builder()
+                .listingId(rs.getLong("id"))
+                .quantity(quantity)
+                .availableQuantity(quantity)
+                .originalQuantity(original)
+                .soldQuantity(sold)
+                .pricePerCredit(rs.getBigDecimal("price_per_credit"))
+                .sellerCompanyName(rs.getString("company_name"))
+                .projectId(rs.getObject("project_id", Long.class))
+                .projectTitle(rs.getString("title"))
+                .expiresAt(expiresAt != null ? expiresAt.toLocalDate() : null)
+                .logo(rs.getString("logo"))
+                .remainingCreditBalance(zero(rs.getBigDecimal("carbon_credit")))
+                .totalListedAmount(zero(rs.getBigDecimal("listed_amount")))
+                .carbonCreditId(rs.getLong("credit_id"))
+                .vintageYear(rs.getObject("vintage_year", Integer.class))
+                .batchId(rs.getObject("batch_id", Long.class))
+                .batchCode(rs.getString("batch_code"))
+                .build();
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public List<MarketplaceListingResponse> searchOpen(MarketplaceSearchFilter filter, LocalDate today, Seek after, int limit) {
+        StringBuilder sql = new StringBuilder(SELECT_SQL);
+        List<Object> args = new ArrayList<>();
+        args.add(Date.valueOf(today));
+
+        if (filter.getProjectId() != null) {
+            sql.append(" AND c.project_id = ?");
+            args.add(filter.getProjectId());
+        }
+        if (filter.getVintageYear() != null) {
+            sql.append(" AND c.vintage_year = ?");
+            args.add(filter.getVintageYear());
+        }
+        if (filter.getMinPrice() != null) {
+            sql.append(" AND m.price_per_credit >= ?");
+            args.add(filter.getMinPrice());
+        }
+        if (filter.getMaxPrice() != null) {
+            sql.append(" AND m.price_per_credit <= ?");
+            args.add(filter.getMaxPrice());
+        }
+        if (filter.getSellerCompanyId() != null) {
+            sql.append(" AND m.company_id = ?");
+            args.add(filter.getSellerCompanyId());
+        }
+
+        MarketplaceSort sort = Objects.requireNonNullElse(filter.getSort(), MarketplaceSort.NEWEST);
+        // Điều kiện seek viết tách (cột >= key AND (cột > key OR id ...)) để MySQL dùng range trên index
+        switch (sort) {
+            case PRICE_ASC -> {
+                if (after != null) {
+                    BigDecimal key = new BigDecimal(after.key());
+                    sql.append(" AND m.price_per_credit >= ? AND (m.price_per_credit > ? OR m.id > ?)");
+                    args.add(key);
+                    args.add(key);
+                    args.add(after.id());
+                }
+                sql.append(" ORDER BY m.price_per_credit ASC, m.id ASC");
+            }
+            case PRICE_DESC -> {
+                if (after != null) {
+                    BigDecimal key = new BigDecimal(after.key());
+                    sql.append(" AND m.price_per_credit <= ? AND (m.price_per_credit < ? OR m.id < ?)");
+                    args.add(key);
+                    args.add(key);
+                    args.add(after.id());
+                }
+                sql.append(" ORDER BY m.price_per_credit DESC, m.id DESC");
+            }
+            case EXPIRING_SOON -> {
+                if (after != null) {
+                    Date key = Date.valueOf(LocalDate.parse(after.key()));
+                    sql.append(" AND m.expires_at >= ? AND (m.expires_at > ? OR m.id > ?)");
+                    args.add(key);
+                    args.add(key);
+                    args.add(after.id());
+                }
+                sql.append(" ORDER BY m.expires_at ASC, m.id ASC");
+            }
+            default -> {
+                if (after != null) {
+                    sql.append(" AND m.id < ?");
+                    args.add(after.id());
+                }
+                sql.append(" ORDER BY m.id DESC");
+            }
+        }
+        sql.append(" LIMIT ?");
+        args.add(limit);
+
+        return jdbcTemplate.query(sql.toString(), ROW_MAPPER, args.toArray());
+    }
+
+    @Override
+    public Optional<MarketplaceListingResponse> findOpenById(Long listingId, LocalDate today) {
+        return jdbcTemplate.query(SELECT_SQL + " AND m.id = ?", ROW_MAPPER, Date.valueOf(today), listingId)
+                .stream().findFirst();
+    }
+
+    private static BigDecimal zero(BigDecimal value) {
+        return value != null ? value : BigDecimal.ZERO;
+    }
+}
@@ -1,67 +1,47 @@
 package com.carbonx.marketcarbon.repository;
 
 import com.carbonx.marketcarbon.model.Order;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.List;
 
 public interface OrderStatsRepository extends JpaRepository<Order, Long> {
 
-    @Query("""
-        select avg(o.unitPrice) 
-        from Order o  
-        join o.marketplaceListing l
-        where (o.company.id = :companyId or l.company.id = :companyId)
-          and o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-          and coalesce(o.completedAt, o.createdAt) between :from and :to
-    """)
-    BigDecimal avgPrice(Long companyId, LocalDateTime from, LocalDateTime to);
-
-    @Query("""
-        select min(o.unitPrice) 
-        from Order o
-        join o.marketplaceListing l
-        where (o.company.id = :companyId or l.company.id = :companyId)
-          and o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-          and coalesce(o.completedAt, o.createdAt) between :from and :to
-    """)
-    BigDecimal minPrice(Long companyId, LocalDateTime from, LocalDateTime to);
+    interface FillRow {
+        Long getId();
+        Long getBuyerCompanyId();
+        Long getSellerCompanyId();
+        Long getProjectId();
+        BigDecimal getUnitPrice();
+        BigDecimal getQuantity();
+        LocalDateTime getCompletedAt();
+    }
 
     @Query("""
-        select max(o.unitPrice) 
-        from Order o
-        join o.marketplaceListing l
-        where (o.company.id = :companyId or l.company.id = :companyId)
-          and o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-          and coalesce(o.completedAt, o.createdAt) between :from and :to
-    """)
-    BigDecimal maxPrice(Long companyId, LocalDateTime from, LocalDateTime to);
-
-    @Query("""
-    SELECT MIN(o.unitPrice)
-    FROM Order o
-    WHERE o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-      AND coalesce(o.completedAt, o.createdAt) BETWEEN :from AND :to
-""")
-    BigDecimal minPriceMarket(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
-
-    @Query("""
-    SELECT MAX(o.unitPrice)
-    FROM Order o
+    SELECT MAX(o.id) FROM Order o
     WHERE o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-      AND coalesce(o.completedAt, o.createdAt) BETWEEN :from AND :to
 """)
-    BigDecimal maxPriceMarket(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+    Long findMaxSuccessfulOrderId();
 
+    // Lệnh đã khớp trước mốc (id và thời điểm khớp) để dựng nến lần đầu, duyệt keyset theo id
     @Query("""
-    SELECT AVG(o.unitPrice)
+    SELECT o.id AS id, o.company.id AS buyerCompanyId, l.company.id AS sellerCompanyId, p.id AS projectId,
+           o.unitPrice AS unitPrice, o.quantity AS quantity, coalesce(o.completedAt, o.createdAt) AS completedAt
     FROM Order o
+    JOIN o.marketplaceListing l
+    JOIN o.carbonCredit c
+    LEFT JOIN c.project p
     WHERE o.orderStatus = com.carbonx.marketcarbon.common.OrderStatus.SUCCESS
-      AND coalesce(o.completedAt, o.createdAt) BETWEEN :from AND :to
+      AND o.id > :afterId AND o.id <= :maxId
+      AND coalesce(o.completedAt, o.createdAt) <= :cutoffAt
+    ORDER BY o.id
 """)
-    BigDecimal avgPriceMarket(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+    List<FillRow> findFillsAfter(@Param("afterId") Long afterId, @Param("maxId") Long maxId,
+                                 @Param("cutoffAt") LocalDateTime cutoffAt, Pageable pageable);
 
 }
@@ -0,0 +1,11 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PlateFingerprint;
+
+import java.util.List;
+
+public interface PlateFingerprintBatchRepository {
+
+    // Insert theo JDBC batch, bỏ qua dòng đã có (report_id, plate_hash) để ghi lại/backfill an toàn
+    void insertIgnoreBatch(List<PlateFingerprint> fingerprints);
+}
@@ -0,0 +1,33 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PlateFingerprint;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+@RequiredArgsConstructor
+public class PlateFingerprintBatchRepositoryImpl implements PlateFingerprintBatchRepository {
+
+    private static final String INSERT_SQL = """
+            INSERT IGNORE INTO plate_fingerprints
+                (plate_hash, normalized_plate, company_id, report_id, period)
+            VALUES (?, ?, ?, ?, ?)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void insertIgnoreBatch(List<PlateFingerprint> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, fingerprints, fingerprints.size(), (ps, f) -> {
+            ps.setLong(1, f.getPlateHash());
+            ps.setString(2, f.getNormalizedPlate());
+            ps.setLong(3, f.getCompanyId());
+            ps.setLong(4, f.getReportId());
+            ps.setString(5, f.getPeriod());
+        });
+    }
+}
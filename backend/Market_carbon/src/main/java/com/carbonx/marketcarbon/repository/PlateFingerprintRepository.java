@@ -0,0 +1,65 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PlateFingerprint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface PlateFingerprintRepository extends JpaRepository<PlateFingerprint, Long>,
+        PlateFingerprintBatchRepository {
+
+    interface FingerprintKey {
+        Long getId();
+        Long getPlateHash();
+        // 1 nếu lúc đọc đã có dòng cùng biển số của công ty khác, 0 nếu chưa
+        Long getShared();
+    }
+
+    boolean existsByReportId(Long reportId);
+
+    @Query("SELECT f.plateHash FROM PlateFingerprint f WHERE f.reportId = :reportId")
+    List<Long> findPlateHashesByReportId(@Param("reportId") Long reportId);
+
+    String KEY_SELECT = """
+        SELECT f.id AS id, f.plate_hash AS plateHash,
+               EXISTS (SELECT 1 FROM plate_fingerprints o
+                       WHERE o.plate_hash = f.plate_hash AND o.company_id <> f.company_id) AS shared
+        FROM plate_fingerprints f
+        """;
+
+    // Nạp Bloom filter theo keyset trên id; cột shared tra theo index (plate_hash, company_id)
+    @Query(value = KEY_SELECT + "WHERE f.id > :afterId ORDER BY f.id LIMIT :limit", nativeQuery = true)
+    List<FingerprintKey> findKeysAfter(@Param("afterId") Long afterId, @Param("limit") int limit);
+
+    @Query(value = KEY_SELECT + "WHERE f.id IN (:ids)", nativeQuery = true)
+    List<FingerprintKey> findKeysByIdIn(@Param("ids") Collection<Long> ids);
+
+    // Report của công ty khác có chung ít nhất 1 biển số (tra theo index plate_hash, company_id)
+    @Query("""
+        SELECT DISTINCT f.reportId FROM PlateFingerprint f
+        WHERE f.plateHash IN :hashes
+          AND f.companyId <> :companyId
+    """)
+    List<Long> findReportIdsSharingPlates(@Param("hashes") Collection<Long> hashes,
+                                          @Param("companyId") Long companyId);
+
+    // Report của công ty có biển số này (tra theo index plate_hash, company_id)
+    @Query("""
+        SELECT DISTINCT f.reportId FROM PlateFingerprint f
+        WHERE f.plateHash = :hash AND f.companyId = :companyId
+    """)
+    List<Long> findReportIdsByPlate(@Param("hash") Long plateHash, @Param("companyId") Long companyId);
+
+    // Report chưa có chỉ mục biển số (dữ liệu trước khi có bảng này), duyệt keyset theo id
+    @Query("""
+        SELECT r.id FROM EmissionReport r
+        WHERE r.id > :afterId
+          AND NOT EXISTS (SELECT 1 FROM PlateFingerprint f WHERE f.reportId = r.id)
+        ORDER BY r.id
+    """)
+    List<Long> findUnindexedReportIds(@Param("afterId") Long afterId, Pageable pageable);
+}
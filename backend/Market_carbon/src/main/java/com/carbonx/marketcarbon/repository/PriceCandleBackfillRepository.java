@@ -0,0 +1,50 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PriceCandleBackfill;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface PriceCandleBackfillRepository extends JpaRepository<PriceCandleBackfill, Long> {
+
+    // Node đầu tiên tạo mốc; node khởi động sau (dòng đã có) bỏ qua, giữ nguyên mốc cũ
+    @Modifying
+    @Transactional
+    @Query(value = """
+        INSERT IGNORE INTO price_candle_backfills (id, up_to_order_id, cutoff_at, last_order_id, completed)
+        VALUES (:id, :upToOrderId, :cutoffAt, 0, false)
+    """, nativeQuery = true)
+    int insertIgnore(@Param("id") Long id,
+                     @Param("upToOrderId") Long upToOrderId,
+                     @Param("cutoffAt") LocalDateTime cutoffAt);
+
+    // Nhận lease khi chưa xong và chưa node nào giữ (hoặc lease đã hết hạn); 0 = không được chạy
+    @Modifying
+    @Transactional
+    @Query("""
+        UPDATE PriceCandleBackfill b SET b.claimedBy = :node, b.claimedUntil = :until
+        WHERE b.id = :id AND b.completed = false
+          AND (b.claimedBy IS NULL OR b.claimedBy = :node OR b.claimedUntil < :now)
+    """)
+    int claim(@Param("id") Long id,
+              @Param("node") String node,
+              @Param("now") LocalDateTime now,
+              @Param("until") LocalDateTime until);
+
+    // Ghi tiến độ + gia hạn lease (chạy trong transaction ghi nến); 0 = node khác đã nhận lease
+    @Modifying
+    @Query("""
+        UPDATE PriceCandleBackfill b
+        SET b.lastOrderId = :lastOrderId, b.completed = :completed, b.claimedUntil = :until
+        WHERE b.id = :id AND b.claimedBy = :node
+    """)
+    int advance(@Param("id") Long id,
+                @Param("node") String node,
+                @Param("lastOrderId") Long lastOrderId,
+                @Param("completed") boolean completed,
+                @Param("until") LocalDateTime until);
+}
@@ -0,0 +1,15 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PriceCandle;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+
+public interface PriceCandleBatchRepository {
+
+    // Cộng dồn phần thay đổi của từng nến vào dòng đã có (hoặc tạo mới), theo JDBC batch.
+    // Cả batch trong 1 transaction: lỗi giữa chừng thì rollback hết, người gọi trả delta lại để ghi lần sau
+    // mà không cộng trùng phần đã ghi (câu upsert cộng dồn nên không ghi lại an toàn được)
+    @Transactional
+    void upsertBatch(Collection<PriceCandle> deltas);
+}
@@ -0,0 +1,51 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PriceCandle;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+@RequiredArgsConstructor
+public class PriceCandleBatchRepositoryImpl implements PriceCandleBatchRepository {
+
+    // open giữ giá đầu tiên đã ghi; close lấy phần ghi sau cùng
+    private static final String UPSERT_SQL = """
+            INSERT INTO price_candles
+                (scope, scope_id, resolution, bucket_start, open_price, high_price, low_price, close_price,
+                 volume, notional, price_sum, trade_count)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON DUPLICATE KEY UPDATE
+                high_price = GREATEST(high_price, VALUES(high_price)),
+                low_price = LEAST(low_price, VALUES(low_price)),
+                close_price = VALUES(close_price),
+                volume = volume + VALUES(volume),
+                notional = notional + VALUES(notional),
+                price_sum = price_sum + VALUES(price_sum),
+                trade_count = trade_count + VALUES(trade_count)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void upsertBatch(Collection<PriceCandle> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPSERT_SQL, deltas, deltas.size(), (ps, c) -> {
+            ps.setString(1, c.getScope().name());
+            ps.setLong(2, c.getScopeId());
+            ps.setString(3, c.getResolution().name());
+            ps.setTimestamp(4, Timestamp.valueOf(c.getBucketStart()));
+            ps.setBigDecimal(5, c.getOpenPrice());
+            ps.setBigDecimal(6, c.getHighPrice());
+            ps.setBigDecimal(7, c.getLowPrice());
+            ps.setBigDecimal(8, c.getClosePrice());
+            ps.setBigDecimal(9, c.getVolume());
+            ps.setBigDecimal(10, c.getNotional());
+            ps.setBigDecimal(11, c.getPriceSum());
+            ps.setLong(12, c.getTradeCount());
+        });
+    }
+}
@@ -0,0 +1,39 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PriceCandle;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+public interface PriceCandleRepository extends JpaRepository<PriceCandle, Long>, PriceCandleBatchRepository {
+
+    interface Aggregate {
+        BigDecimal getVolume();
+        BigDecimal getNotional();
+        BigDecimal getPriceSum();
+        Long getTradeCount();
+        BigDecimal getLow();
+        BigDecimal getHigh();
+    }
+
+    // Gộp các nến của 1 độ phân giải có bucket_start trong [from, to) (quét theo unique key, số dòng theo độ dài khoảng)
+    @Query("""
+        SELECT SUM(c.volume) AS volume, SUM(c.notional) AS notional, SUM(c.priceSum) AS priceSum,
+               SUM(c.tradeCount) AS tradeCount, MIN(c.lowPrice) AS low, MAX(c.highPrice) AS high
+        FROM PriceCandle c
+        WHERE c.scope = :scope AND c.scopeId = :scopeId AND c.resolution = :resolution
+          AND c.bucketStart >= :from AND c.bucketStart < :to
+    """)
+    Aggregate aggregate(@Param("scope") PriceCandle.Scope scope,
+                        @Param("scopeId") Long scopeId,
+                        @Param("resolution") PriceCandle.Resolution resolution,
+                        @Param("from") LocalDateTime from,
+                        @Param("to") LocalDateTime to);
+
+    Optional<PriceCandle> findTopByScopeAndScopeIdAndResolutionOrderByBucketStartDesc(
+            PriceCandle.Scope scope, Long scopeId, PriceCandle.Resolution resolution);
+}
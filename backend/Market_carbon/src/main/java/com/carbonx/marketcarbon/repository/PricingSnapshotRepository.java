@@ -0,0 +1,27 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.PricingSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.util.Optional;
+
+public interface PricingSnapshotRepository extends JpaRepository<PricingSnapshot, Long> {
+
+    Optional<PricingSnapshot> findTopByOrderByIdDesc();
+
+    // Node khác đã ghi cùng source_key thì bỏ qua (trả về 0)
+    @Modifying
+    @Transactional
+    @Query(value = """
+        INSERT IGNORE INTO pricing_snapshots (market_price_per_credit, kwh_per_credit_factor, source_key, created_at)
+        VALUES (:price, :kwhFactor, :sourceKey, NOW())
+    """, nativeQuery = true)
+    int insertIgnore(@Param("price") BigDecimal price,
+                     @Param("kwhFactor") BigDecimal kwhFactor,
+                     @Param("sourceKey") String sourceKey);
+}
@@ -1,10 +1,16 @@
 package com.carbonx.marketcarbon.repository;
 
 import com.carbonx.marketcarbon.model.ProfitDistributionDetail;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
 import java.util.List;
 
 public interface ProfitDistributionDetailRepository extends JpaRepository<ProfitDistributionDetail, Long> {
@@ -15,4 +21,59 @@ public interface ProfitDistributionDetailRepository extends JpaRepository<Profit
     @EntityGraph(attributePaths = {"evOwner", "evOwner.user"})
     @Query("SELECT d FROM ProfitDistributionDetail d WHERE d.distribution.id = :distributionId")
     List<ProfitDistributionDetail> findByDistributionIdWithOwner(Long distributionId);
+
+    // Khóa các dòng PENDING của 1 chunk: chunk chạy lại (retry/resume/node khác) không trả 2 lần
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM ProfitDistributionDetail d " +
+            "WHERE d.distribution.id = :distributionId AND d.chunkNo = :chunkNo AND d.status = 'PENDING'")
+    List<ProfitDistributionDetail> lockPendingChunk(@Param("distributionId") Long distributionId,
+                                                    @Param("chunkNo") Integer chunkNo);
+
+    // Khóa 1 dòng PENDING (trả lại từng owner khi cả chunk lỗi)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM ProfitDistributionDetail d WHERE d.id = :id AND d.status = 'PENDING'")
+    List<ProfitDistributionDetail> lockPendingById(@Param("id") Long id);
+
+    @Query("SELECT d.id FROM ProfitDistributionDetail d " +
+            "WHERE d.distribution.id = :distributionId AND d.chunkNo = :chunkNo AND d.status = 'PENDING' ORDER BY d.id")
+    List<Long> findPendingIdsInChunk(@Param("distributionId") Long distributionId,
+                                     @Param("chunkNo") Integer chunkNo);
+
+    @Query("SELECT d.evOwner.id FROM ProfitDistributionDetail d " +
+            "WHERE d.distribution.id = :distributionId AND d.chunkNo = :chunkNo AND d.status = 'PENDING'")
+    List<Long> findPendingOwnerIds(@Param("distributionId") Long distributionId,
+                                   @Param("chunkNo") Integer chunkNo);
+
+    @Query("SELECT DISTINCT d.chunkNo FROM ProfitDistributionDetail d " +
+            "WHERE d.distribution.id = :distributionId AND d.status = 'PENDING' ORDER BY d.chunkNo")
+    List<Integer> findPendingChunks(@Param("distributionId") Long distributionId);
+
+    @Query("SELECT DISTINCT d.distribution.id FROM ProfitDistributionDetail d " +
+            "WHERE d.status = 'PENDING' AND d.distribution.status = com.carbonx.marketcarbon.common.ProfitDistributionStatus.PROCESSING")
+    List<Long> findProcessingDistributionIdsWithPending();
+
+    @Modifying
+    @Query("UPDATE ProfitDistributionDetail d SET d.status = 'FAILED', d.errorMessage = :error, d.updatedAt = :now " +
+            "WHERE d.id = :id AND d.status = 'PENDING'")
+    int failPendingDetail(@Param("id") Long id,
+                          @Param("error") String error,
+                          @Param("now") OffsetDateTime now);
+
+    // Tiền đã giữ trước cho các owner không trả được (hoàn lại ví công ty khi kết thúc đợt)
+    @Query("SELECT COALESCE(SUM(d.moneyAmount), 0) FROM ProfitDistributionDetail d " +
+            "WHERE d.distribution.id = :distributionId AND d.status = 'FAILED'")
+    BigDecimal sumFailedMoney(@Param("distributionId") Long distributionId);
+
+    // Tổng hợp các khoản đã trả thành công của 1 đợt (cho email tổng kết)
+    @Query("SELECT COUNT(d) AS owners, COALESCE(SUM(d.moneyAmount), 0) AS money, " +
+            "COALESCE(SUM(d.energyAmount), 0) AS energy, COALESCE(SUM(d.creditAmount), 0) AS credits " +
+            "FROM ProfitDistributionDetail d WHERE d.distribution.id = :distributionId AND d.status = 'SUCCESS'")
+    PaidTotals sumPaid(@Param("distributionId") Long distributionId);
+
+    interface PaidTotals {
+        Long getOwners();
+        BigDecimal getMoney();
+        BigDecimal getEnergy();
+        BigDecimal getCredits();
+    }
 }
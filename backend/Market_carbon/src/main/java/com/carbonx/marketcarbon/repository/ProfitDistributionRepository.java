@@ -1,7 +1,18 @@
 package com.carbonx.marketcarbon.repository;
 
 import com.carbonx.marketcarbon.model.ProfitDistribution;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Optional;
 
 public interface ProfitDistributionRepository extends JpaRepository<ProfitDistribution, Long> {
+
+    // Khóa đợt khi kết thúc (hoàn tiền + COMPLETED chỉ chạy 1 lần dù nhiều node cùng finish)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM ProfitDistribution d WHERE d.id = :id")
+    Optional<ProfitDistribution> lockById(@Param("id") Long id);
 }
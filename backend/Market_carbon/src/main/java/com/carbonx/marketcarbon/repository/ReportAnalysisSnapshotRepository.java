@@ -0,0 +1,26 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.ReportAnalysisSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Optional;
+
+public interface ReportAnalysisSnapshotRepository extends JpaRepository<ReportAnalysisSnapshot, Long> {
+
+    Optional<ReportAnalysisSnapshot> findByReport_IdAndUploadSha256AndAnalyzerVersion(
+            Long reportId, String uploadSha256, String analyzerVersion);
+
+    // Xóa các bản cũ của report (sha/phiên bản khác) khi lưu bản mới
+    @Modifying
+    @Query("""
+        DELETE FROM ReportAnalysisSnapshot s
+        WHERE s.report.id = :reportId
+          AND (s.uploadSha256 <> :sha OR s.analyzerVersion <> :version)
+    """)
+    int deleteStale(@Param("reportId") Long reportId,
+                    @Param("sha") String uploadSha256,
+                    @Param("version") String analyzerVersion);
+}
@@ -0,0 +1,26 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.ReportOwnerContribution;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+public interface ReportOwnerContributionQueryRepository {
+
+    record OwnerContributionRow(Long ownerId, String ownerName, String email, String phone,
+                                long vehiclesCount, BigDecimal energyKwh, BigDecimal creditsTco2e) {}
+
+    // Cột sắp xếp cho phép (không nhận tên cột từ request)
+    enum SortKey { OWNER_NAME, ENERGY, CREDITS, VEHICLES }
+
+    // Insert đóng góp của 1 report trong 1 JDBC batch (cùng transaction với upload)
+    void insertBatch(List<ReportOwnerContribution> rows);
+
+    // 1 trang owner của report, sắp xếp theo index (report_id, cột)
+    List<OwnerContributionRow> findReportPage(Long reportId, SortKey sortKey, boolean desc, int limit, long offset);
+
+    // 1 trang owner có xe thuộc công ty, cộng đóng góp các report của kỳ (owner chưa đóng góp = 0)
+    List<OwnerContributionRow> findPeriodPage(Long companyId, String period, String search, int limit, long offset);
+
+    long countPeriodOwners(Long companyId, String search);
+}
@@ -0,0 +1,118 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.ReportOwnerContribution;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+@RequiredArgsConstructor
+public class ReportOwnerContributionQueryRepositoryImpl implements ReportOwnerContributionQueryRepository {
+
+    private static final String INSERT_SQL = """
+            INSERT INTO report_owner_contributions
+                (report_id, company_id, period, ev_owner_id, vehicles_count, energy_kwh, credits_tco2e)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private static final String REPORT_SELECT = """
+            SELECT c.ev_owner_id, o.name, o.email, o.phone, c.vehicles_count, c.energy_kwh, c.credits_tco2e
+            FROM report_owner_contributions c
+            LEFT JOIN ev_owner o ON o.user_id = c.ev_owner_id
+            WHERE c.report_id = ?
+            """;
+
+    // Owner có xe thuộc công ty (index vehicles(company_id, ev_owner_id)), đóng góp cộng theo kỳ
+    private static final String PERIOD_SELECT = """
+            SELECT o.user_id, o.name, o.email, o.phone,
+                   (SELECT COUNT(*) FROM vehicles v WHERE v.company_id = ? AND v.ev_owner_id = o.user_id),
+                   COALESCE(c.energy_kwh, 0), COALESCE(c.credits_tco2e, 0)
+            FROM ev_owner o
+            LEFT JOIN (SELECT ev_owner_id, SUM(energy_kwh) AS energy_kwh, SUM(credits_tco2e) AS credits_tco2e
+                       FROM report_owner_contributions
+                       WHERE company_id = ? AND period = ?
+                       GROUP BY ev_owner_id) c ON c.ev_owner_id = o.user_id
+            WHERE EXISTS (SELECT 1 FROM vehicles v WHERE v.company_id = ? AND v.ev_owner_id = o.user_id)
+            """;
+
+    private static final String PERIOD_COUNT = """
+            SELECT COUNT(*) FROM ev_owner o
+            WHERE EXISTS (SELECT 1 FROM vehicles v WHERE v.company_id = ? AND v.ev_owner_id = o.user_id)
+            """;
+
+    private static final String SEARCH_CLAUSE =
+            " AND (LOWER(o.name) LIKE ? OR LOWER(o.email) LIKE ? OR LOWER(o.phone) LIKE ?)";
+
+    private static final RowMapper<OwnerContributionRow> ROW_MAPPER = (rs, i) -> new OwnerContributionRow(
+            rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+            rs.getLong(5), rs.getBigDecimal(6), rs.getBigDecimal(7));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void insertBatch(List<ReportOwnerContribution> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, rows, rows.size(), (ps, r) -> {
+            ps.setLong(1, r.getReportId());
+            ps.setLong(2, r.getCompanyId());
+            ps.setString(3, r.getPeriod());
+            ps.setLong(4, r.getEvOwnerId());
+            ps.setInt(5, r.getVehiclesCount());
+            ps.setBigDecimal(6, r.getEnergyKwh());
+            ps.setBigDecimal(7, r.getCreditsTco2e());
+        });
+    }
+
+    @Override
+    public List<OwnerContributionRow> findReportPage(Long reportId, SortKey sortKey, boolean desc, int limit, long offset) {
+        String dir = desc ? " DESC" : " ASC";
+        // Tie-break theo c.id: index (report_id, cột) đã kèm khóa chính nên không phải filesort
+        String orderBy = switch (sortKey) {
+            case ENERGY -> "c.energy_kwh" + dir;
+            case CREDITS -> "c.credits_tco2e" + dir;
+            case VEHICLES -> "c.vehicles_count" + dir;
+            case OWNER_NAME -> "(o.name IS NULL)" + dir + ", o.name" + dir;
+        };
+        return jdbcTemplate.query(REPORT_SELECT + " ORDER BY " + orderBy + ", c.id" + dir + " LIMIT ? OFFSET ?",
+                ROW_MAPPER, reportId, limit, offset);
+    }
+
+    @Override
+    public List<OwnerContributionRow> findPeriodPage(Long companyId, String period, String search, int limit, long offset) {
+        List<Object> args = new ArrayList<>(List.of(companyId, companyId, period, companyId));
+        StringBuilder sql = new StringBuilder(PERIOD_SELECT);
+        appendSearch(sql, args, search);
+        sql.append(" ORDER BY (o.name IS NULL), o.name, o.user_id LIMIT ? OFFSET ?");
+        args.add(limit);
+        args.add(offset);
+        return jdbcTemplate.query(sql.toString(), ROW_MAPPER, args.toArray());
+    }
+
+    @Override
+    public long countPeriodOwners(Long companyId, String search) {
+        List<Object> args = new ArrayList<>(List.of(companyId));
+        StringBuilder sql = new StringBuilder(PERIOD_COUNT);
+        appendSearch(sql, args, search);
+        Long count = jdbcTemplate.queryForObject(sql.toString(), Long.class, args.toArray());
+        return count == null ? 0 : count;
+    }
+
+    private static void appendSearch(StringBuilder sql, List<Object> args, String search) {
+        if (!StringUtils.hasText(search)) {
+            return;
+        }
+        String keyword = search.trim().toLowerCase(Locale.ROOT)
+                .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        String pattern = "%" + keyword + "%";
+        sql.append(SEARCH_CLAUSE);
+        args.add(pattern);
+        args.add(pattern);
+        args.add(pattern);
+    }
+}
@@ -0,0 +1,52 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.EmissionReport;
+import com.carbonx.marketcarbon.model.ReportOwnerContribution;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface ReportOwnerContributionRepository extends JpaRepository<ReportOwnerContribution, Long>,
+        ReportOwnerContributionQueryRepository {
+
+    @Modifying
+    @Query("DELETE FROM ReportOwnerContribution c WHERE c.reportId = :reportId")
+    int deleteByReportId(@Param("reportId") Long reportId);
+
+    // Toàn bộ đóng góp của report (lập kế hoạch chi trả)
+    List<ReportOwnerContribution> findByReportIdOrderByIdAsc(Long reportId);
+
+    // Khóa dòng report trước khi dựng lại: các lần dựng chạy lần lượt, đọc bảng xe sau khi có khóa
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT r FROM EmissionReport r WHERE r.id = :reportId")
+    Optional<EmissionReport> lockReport(@Param("reportId") Long reportId);
+
+    // Đánh dấu report cần tổng hợp lại (xe đổi biển số/chủ/công ty), lần đọc sau dựng với mapping mới
+    @Modifying
+    @Transactional
+    @Query("UPDATE EmissionReport r SET r.payoutOwners = NULL WHERE r.id IN :reportIds")
+    int invalidate(@Param("reportIds") Collection<Long> reportIds);
+
+    // Report chưa tổng hợp đóng góp (dữ liệu trước khi có bảng này), duyệt keyset theo id
+    @Query("""
+        SELECT r.id FROM EmissionReport r
+        WHERE r.id > :afterId AND r.payoutOwners IS NULL
+        ORDER BY r.id
+    """)
+    List<Long> findUnaggregatedReportIds(@Param("afterId") Long afterId, Pageable pageable);
+
+    @Query("""
+        SELECT r.id FROM EmissionReport r
+        WHERE r.seller.id = :companyId AND r.period = :period AND r.payoutOwners IS NULL
+    """)
+    List<Long> findUnaggregatedReportIds(@Param("companyId") Long companyId, @Param("period") String period);
+}
@@ -36,4 +36,20 @@ public interface UserRepository extends JpaRepository<User, Long> {
                                        @Param("status") USER_STATUS status,
                                        Pageable pageable);
     long count();
+
+    // Id của user + công ty + ví trong 1 câu (dựng CurrentPrincipal)
+    @Query("""
+            SELECT u.id AS userId, c.id AS companyId, w.id AS walletId
+            FROM User u
+            LEFT JOIN Company c ON c.user = u
+            LEFT JOIN Wallet w ON w.user = u
+            WHERE u.email = :email
+            """)
+    List<PrincipalIds> findPrincipalIdsByEmail(@Param("email") String email);
+
+    interface PrincipalIds {
+        Long getUserId();
+        Long getCompanyId();
+        Long getWalletId();
+    }
 }
@@ -7,6 +7,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.List;
 import java.util.Optional;
@@ -14,6 +15,11 @@ import java.util.Set;
 
 public interface VehicleRepository extends JpaRepository<Vehicle, Long> {
 
+    interface PlateOwner {
+        String getPlateNumber();
+        Long getOwnerId();
+    }
+
     boolean existsByPlateNumber(String plateNumber);
 
     // EV Owner
@@ -54,5 +60,9 @@ public interface VehicleRepository extends JpaRepository<Vehicle, Long> {
     long countByCompany_Id(Long companyId);
     List<Vehicle> findByCompany_Id(Long companyId);
 
+    // Biển số -> owner của công ty (chỉ 2 cột, dùng khi tổng hợp đóng góp theo owner)
+    @Query("SELECT v.plateNumber AS plateNumber, v.evOwner.id AS ownerId FROM Vehicle v WHERE v.company.id = :companyId")
+    List<PlateOwner> findPlateOwnersByCompanyId(@Param("companyId") Long companyId);
+
 
 }
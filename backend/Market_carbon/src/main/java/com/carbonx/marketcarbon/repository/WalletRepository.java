@@ -9,6 +9,8 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 public interface WalletRepository extends JpaRepository<Wallet, Long> {
@@ -22,4 +24,25 @@ public interface WalletRepository extends JpaRepository<Wallet, Long> {
 
     Optional<Wallet> findByUser(User user);
 
+    // Chỉ lấy id ví (không nạp entity) để khóa theo thứ tự id qua WalletTransferEngine
+    @Query("SELECT w.id FROM Wallet w WHERE w.user.id = :userId")
+    Long findIdByUserId(@Param("userId") Long userId);
+
+    // Map userId -> walletId cho nhiều user (chi trả theo chunk)
+    @Query("SELECT w.user.id AS userId, w.id AS walletId FROM Wallet w WHERE w.user.id IN :userIds")
+    List<UserWalletId> findWalletIdsByUserIds(@Param("userIds") Collection<Long> userIds);
+
+    // Map companyId -> walletId cho nhiều công ty (điều chỉnh số dư tín chỉ theo chunk)
+    @Query("SELECT w.company.id AS companyId, w.id AS walletId FROM Wallet w WHERE w.company.id IN :companyIds")
+    List<CompanyWalletId> findWalletIdsByCompanyIds(@Param("companyIds") Collection<Long> companyIds);
+
+    interface CompanyWalletId {
+        Long getCompanyId();
+        Long getWalletId();
+    }
+
+    interface UserWalletId {
+        Long getUserId();
+        Long getWalletId();
+    }
 }
@@ -0,0 +1,12 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.WalletTransaction;
+
+import java.util.List;
+
+public interface WalletTransactionBatchRepository {
+
+    // Insert nhiều bút toán trong 1 JDBC batch (khóa IDENTITY làm saveAll của Hibernate insert từng dòng).
+    // Các entity truyền vào không được gán id.
+    void insertBatch(List<WalletTransaction> entries);
+}
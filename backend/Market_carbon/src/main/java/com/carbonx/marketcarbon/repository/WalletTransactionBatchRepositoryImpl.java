@@ -0,0 +1,54 @@
+package com.carbonx.marketcarbon.repository;
+
+import com.carbonx.marketcarbon.model.WalletTransaction;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@RequiredArgsConstructor
+public class WalletTransactionBatchRepositoryImpl implements WalletTransactionBatchRepository {
+
+    private static final String INSERT_SQL = """
+            INSERT INTO wallet_transaction
+                (wallet_id, order_id, transaction_type, description, balance_before, balance_after, amount,
+                 created_at, payment_order_id, credit_batch_id, distribution_id)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // Chạy trên connection của transaction JPA hiện tại; ví/đơn/đợt chia được tham chiếu phải đã có id
+    @Override
+    public void insertBatch(List<WalletTransaction> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, entries, entries.size(), (ps, t) -> {
+            ps.setLong(1, t.getWallet().getId());
+            setId(ps, 2, t.getOrder() != null ? t.getOrder().getId() : null);
+            ps.setString(3, t.getTransactionType().name());
+            ps.setString(4, t.getDescription());
+            ps.setBigDecimal(5, t.getBalanceBefore());
+            ps.setBigDecimal(6, t.getBalanceAfter());
+            ps.setBigDecimal(7, t.getAmount());
+            ps.setTimestamp(8, Timestamp.valueOf(t.getCreatedAt() != null ? t.getCreatedAt() : LocalDateTime.now()));
+            setId(ps, 9, t.getPaymentOrder() != null ? t.getPaymentOrder().getId() : null);
+            setId(ps, 10, t.getCreditBatch() != null ? t.getCreditBatch().getId() : null);
+            setId(ps, 11, t.getDistribution() != null ? t.getDistribution().getId() : null);
+        });
+    }
+
+    private static void setId(PreparedStatement ps, int index, Long id) throws SQLException {
+        if (id == null) {
+            ps.setNull(index, Types.BIGINT);
+        } else {
+            ps.setLong(index, id);
+        }
+    }
+}
@@ -3,18 +3,67 @@ package com.carbonx.marketcarbon.repository;
 import com.carbonx.marketcarbon.common.WalletTransactionType;
 import com.carbonx.marketcarbon.model.*;
 import io.lettuce.core.dynamic.annotation.Param;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
-public interface WalletTransactionRepository extends JpaRepository<WalletTransaction, Long> {
+public interface WalletTransactionRepository extends JpaRepository<WalletTransaction, Long>, WalletTransactionBatchRepository {
     // list theo danh sách order gần nhất
     @Query("SELECT wt FROM WalletTransaction wt LEFT JOIN FETCH wt.distribution WHERE wt.wallet = :wallet ORDER BY wt.createdAt DESC")
     List<WalletTransaction> findByWalletOrderByCreatedAtDesc(@Param("wallet") Wallet wallet);
     long count(); // Đếm tổng số giao dịch
 
+    /*
+     * Lịch sử ví theo (createdAt, id) giảm dần, mỗi đợt chia lợi nhuận chỉ hiện 1 dòng đại diện:
+     * khoản chi PROFIT_SHARING mới nhất của đợt, các khoản chi cũ hơn cùng đợt bị ẩn (gộp bằng findDistributionTotals).
+     */
+    String HISTORY_SELECT = "SELECT t FROM WalletTransaction t " +
+            "LEFT JOIN FETCH t.order o LEFT JOIN FETCH o.carbonCredit " +
+            "LEFT JOIN FETCH t.creditBatch LEFT JOIN FETCH t.distribution " +
+            "WHERE t.wallet.id = :walletId ";
+    String HISTORY_HEAD = "AND NOT EXISTS (SELECT n.id FROM WalletTransaction n " +
+            "WHERE t.transactionType = com.carbonx.marketcarbon.common.WalletTransactionType.PROFIT_SHARING " +
+            "AND t.amount < 0 AND n.wallet = t.wallet AND n.distribution = t.distribution " +
+            "AND n.transactionType = t.transactionType AND n.amount < 0 " +
+            "AND (n.createdAt > t.createdAt OR (n.createdAt = t.createdAt AND n.id > t.id))) " +
+            "ORDER BY t.createdAt DESC, t.id DESC";
+
+    @Query(HISTORY_SELECT + HISTORY_HEAD)
+    List<WalletTransaction> findHistory(@Param("walletId") Long walletId, Pageable pageable);
+
+    @Query(HISTORY_SELECT +
+            "AND (t.createdAt < :beforeAt OR (t.createdAt = :beforeAt AND t.id < :beforeId)) " + HISTORY_HEAD)
+    List<WalletTransaction> findHistoryBefore(@Param("walletId") Long walletId,
+                                              @Param("beforeAt") LocalDateTime beforeAt,
+                                              @Param("beforeId") Long beforeId,
+                                              Pageable pageable);
+
+    // Tổng các khoản chi theo đợt cho các dòng đại diện trong trang; số dư đầu lấy từ khoản chi cũ nhất
+    @Query(value = """
+        SELECT g.distribution_id AS distributionId, g.members AS members, g.total AS total,
+               o.balance_before AS balanceBefore
+        FROM (SELECT distribution_id, COUNT(*) AS members, SUM(amount) AS total, MIN(id) AS oldest_id
+              FROM wallet_transaction
+              WHERE wallet_id = :walletId AND distribution_id IN (:distributionIds)
+                AND transaction_type = 'PROFIT_SHARING' AND amount < 0
+              GROUP BY distribution_id) g
+        JOIN wallet_transaction o ON o.id = g.oldest_id
+    """, nativeQuery = true)
+    List<DistributionTotal> findDistributionTotals(@Param("walletId") Long walletId,
+                                                   @Param("distributionIds") Collection<Long> distributionIds);
+
+    interface DistributionTotal {
+        Long getDistributionId();
+        Long getMembers();
+        BigDecimal getTotal();
+        BigDecimal getBalanceBefore();
+    }
+
     long countByWalletUserId(Long userId); // Đếm số giao dịch của một người dùng (thay vì countMyTransactions)
 
     // Đếm số giao dịch mua cho một tín chỉ
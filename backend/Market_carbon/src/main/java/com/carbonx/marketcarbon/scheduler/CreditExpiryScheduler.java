@@ -1,9 +1,11 @@
 package com.carbonx.marketcarbon.scheduler;
 
-import com.carbonx.marketcarbon.repository.CarbonCreditRepository;
-import jakarta.transaction.Transactional;
+import com.carbonx.marketcarbon.service.expiry.CreditExpirySweeper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
@@ -12,14 +14,20 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class CreditExpiryScheduler {
 
-    private final CarbonCreditRepository creditRepo;
+    private final CreditExpirySweeper creditExpirySweeper;
 
-    // Chạy lúc 02:00 sáng mỗi ngày
+    @Qualifier("expirySweepExecutor")
+    private final TaskExecutor expirySweepExecutor;
+
+    // Chạy lúc 02:00 sáng mỗi ngày: niêm yết và tín chỉ quá hạn (mỗi chunk 1 transaction riêng)
+    // Lượt quét chạy trên executor riêng, không giữ luồng scheduler dùng chung với các timer khác
     @Scheduled(cron = "0 0 2 * * *")
-    @Transactional
     public void autoMarkExpiredCredits() {
-        log.info("[Scheduler] Checking expired carbon credits...");
-        int updated = creditRepo.markExpiredCredits();
-        log.info("[Scheduler] {} credits marked as EXPIRED.", updated);
+        log.info("[Scheduler] Checking expired carbon credits and listings...");
+        try {
+            expirySweepExecutor.execute(creditExpirySweeper::sweep);
+        } catch (TaskRejectedException e) {
+            log.info("[Scheduler] Previous expiry sweep still running, skipping this run");
+        }
     }
 }
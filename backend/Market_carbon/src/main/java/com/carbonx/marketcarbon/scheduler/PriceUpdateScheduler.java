@@ -2,13 +2,17 @@ package com.carbonx.marketcarbon.scheduler;
 
 import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
 import com.carbonx.marketcarbon.service.DynamicPricingService;
+import com.carbonx.marketcarbon.service.market.PriceCandleEngine;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.Locale;
 import java.util.Random;
 
@@ -17,35 +21,38 @@ import java.util.Random;
 @Slf4j
 public class PriceUpdateScheduler {
 
+    private static final ZoneId ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+
     private final DynamicPricingService dynamicPricingService;
     private final MarketplaceListingRepository  marketplaceListingRepository;
+    private final PriceCandleEngine priceCandleEngine;
 
-    @Transactional
 //    @Scheduled(cron = "0 0 8 * * *", zone = "Asia/Ho_Chi_Minh") // 8h sáng giờ VN
     @Scheduled(cron = "0 * * * * *") // Chạy mỗi phút để test
     public void updateMarketPrices() {
         log.info("[CRON] Running daily price update job (Redis)...");
 
-        // lấy giá trung bình từ repo
-        Double priceAvg = marketplaceListingRepository.getWeightedAveragePrice();
-
-        if (priceAvg == null) {
-            log.warn("[CRON] No marketplace listing available → skip update.");
-            return;
+        // VWAP các lệnh khớp gần đây từ nến giá; chưa có nến nào thì lấy giá chào bán bình quân đang mở
+        BigDecimal newPrice = priceCandleEngine.marketVwap();
+        if (newPrice == null) {
+            Double priceAvg = marketplaceListingRepository.getWeightedAveragePrice();
+            if (priceAvg == null) {
+                log.warn("[CRON] No trade or open listing available → skip update.");
+                return;
+            }
+            newPrice = BigDecimal.valueOf(priceAvg).setScale(2, RoundingMode.HALF_UP);
         }
 
-        BigDecimal newPrice = BigDecimal.valueOf(priceAvg)
-                .setScale(2, BigDecimal.ROUND_HALF_UP);
-
-        // Cập nhật giá vào ram
-        dynamicPricingService.updateMarketPrice(newPrice);
-
-        // Cập nhật hệ số
-        dynamicPricingService.updateKwhPerCreditFactor(new BigDecimal("2500"));
+        // Ghi version giá mới cho cả cụm; mọi node cùng chạy cron trong 1 phút chỉ ghi 1 dòng (cùng sourceKey)
+        // Hệ số kWh giữ theo version mới nhất (admin có thể đã đổi), cron chỉ cập nhật giá
+        String sourceKey = "cron:" + LocalDateTime.now(ZONE).truncatedTo(ChronoUnit.MINUTES);
+        DynamicPricingService.Snapshot snapshot =
+                dynamicPricingService.publish(newPrice, null, sourceKey);
 
-        log.info("[CRON] Updated Redis MarketPrice={} | KwhFactor={}",
-                dynamicPricingService.getMarketPricePerCredit(),
-                dynamicPricingService.getKwhPerCreditFactor()
+        log.info("[CRON] Pricing v{} MarketPrice={} | KwhFactor={}",
+                snapshot.version(),
+                snapshot.marketPricePerCredit(),
+                snapshot.kwhPerCreditFactor()
         );
     }
 }
@@ -1,12 +1,17 @@
 package com.carbonx.marketcarbon.service;
 
-import com.carbonx.marketcarbon.model.EmissionReport;
-import com.carbonx.marketcarbon.model.EmissionReportDetail;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
-import java.util.List;
+import java.util.Collection;
 
 public interface AiScoringService {
     record AiScoreResult(BigDecimal score, String notes, String version) {}
-    AiScoreResult suggestScore(EmissionReport report, List<EmissionReportDetail> details);
+    record BulkScore(Long reportId, AiScoreResult result) {}
+
+    Mono<AiScoreResult> suggestScore(Long reportId);
+
+    // Chấm nhiều report: xếp hàng và chạy song song có giới hạn, report lỗi bị bỏ qua
+    Flux<BulkScore> suggestScores(Collection<Long> reportIds);
 }
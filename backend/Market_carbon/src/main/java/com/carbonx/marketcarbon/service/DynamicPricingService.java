@@ -1,64 +1,187 @@
 package com.carbonx.marketcarbon.service;
 
-import lombok.Getter;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import com.carbonx.marketcarbon.model.PricingSnapshot;
+import com.carbonx.marketcarbon.repository.PricingSnapshotRepository;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.util.concurrent.atomic.AtomicReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * Bean Singleton để lưu trữ giá thị trường động (lưu trữ trong RAM).
- * Được cập nhật bởi Cron Job và được đọc bởi Payout Service.
+ * Giá thị trường động dùng chung cho mọi node.
+ * - Nguồn đúng là bảng pricing_snapshots (mỗi lần đổi giá 1 version mới, không sửa dòng cũ).
+ * - Mỗi node giữ bản sao cục bộ (1 field volatile, đọc không khóa); đổi giá thì publish version lên Redis
+ *   để node khác nạp lại ngay, kèm nạp lại định kỳ refresh-ms phòng khi lỡ thông báo.
+ * - Đợt chi trả lấy 1 Snapshot rồi dùng xuyên suốt (có thể chỉ định version đã xem trước qua snapshot(version)).
  */
 @Service
 @Slf4j
-@Getter
-public class DynamicPricingService {
-
-    // Sử dụng AtomicReference để đảm bảo an toàn khi nhiều luồng cùng đọc/ghi
-    /*
-    Để Cron job update giá, trong khi thread khác đang đọc giá
-    Tránh race condition
-    Thread-safe 100% mà không cần synchronized
-     */
-    private final AtomicReference<BigDecimal> marketPricePerCredit;
-    private final AtomicReference<BigDecimal> kwhPerCreditFactor;
+@RequiredArgsConstructor
+public class DynamicPricingService implements MessageListener {
+
+    public record Snapshot(long version, BigDecimal marketPricePerCredit, BigDecimal kwhPerCreditFactor) {}
 
-    // Giá trị mặc định khi ứng dụng mới khởi động
+    // Giá trị mặc định khi chưa có version nào trong DB
     private static final BigDecimal DEFAULT_MARKET_PRICE = new BigDecimal("100.00");
     private static final BigDecimal DEFAULT_KWH_FACTOR = new BigDecimal("2500");
+    private static final Snapshot DEFAULT_SNAPSHOT = new Snapshot(0, DEFAULT_MARKET_PRICE, DEFAULT_KWH_FACTOR);
+    private static final int RECENT_VERSIONS = 64;
+    private static final int MAX_PUBLISH_ATTEMPTS = 3;
 
-    //Khi Spring khởi tạo bean, nó sẽ gán default giá vào RAM.Sau khi app start, scheduler sẽ override lại.
-    public DynamicPricingService() {
-        this.marketPricePerCredit = new AtomicReference<>(DEFAULT_MARKET_PRICE);
-        this.kwhPerCreditFactor = new AtomicReference<>(DEFAULT_KWH_FACTOR);
-        log.info("DynamicPricingService (In-Memory) initialized with default price: {}", DEFAULT_MARKET_PRICE);
-    }
+    private final PricingSnapshotRepository snapshotRepository;
+    private final StringRedisTemplate redis;
 
-    // Cron Job sẽ gọi hàm này
-    public void updateMarketPrice(BigDecimal newPrice) {
-        if (newPrice != null && newPrice.compareTo(BigDecimal.ZERO) > 0) {
-            marketPricePerCredit.set(newPrice);
-            log.info("In-Memory Market price updated to: {}", newPrice);
-        }
-    }
+    @Value("${app.pricing.channel:carbonx:pricing}")
+    private String channel = "carbonx:pricing";
 
-    // Cron Job cũng có thể gọi hàm này (mặc dù ít thay đổi)
-    public void updateKwhPerCreditFactor(BigDecimal newFactor) {
-        if (newFactor != null && newFactor.compareTo(BigDecimal.ZERO) > 0) {
-            kwhPerCreditFactor.set(newFactor);
-            log.info("In-Memory KWH per Credit factor updated to: {}", newFactor);
+    private volatile Snapshot current = DEFAULT_SNAPSHOT;
+
+    // Các version gần đây để đợt chi trả chỉ định version không phải hỏi DB
+    private final Map<Long, Snapshot> recent = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+            return size() > RECENT_VERSIONS;
         }
+    });
+
+    public Snapshot current() {
+        return current;
     }
 
     // Service Payout sẽ gọi hàm này
     public BigDecimal getMarketPricePerCredit() {
-        return marketPricePerCredit.get();
+        return current.marketPricePerCredit();
     }
 
     // Service Payout sẽ gọi hàm này
     public BigDecimal getKwhPerCreditFactor() {
-        return kwhPerCreditFactor.get();
+        return current.kwhPerCreditFactor();
+    }
+
+    public Snapshot snapshot(long version) {
+        Snapshot snapshot = current;
+        if (snapshot.version() == version) {
+            return snapshot;
+        }
+        Snapshot cached = recent.get(version);
+        if (cached != null) {
+            return cached;
+        }
+        return snapshotRepository.findById(version)
+                .map(this::remember)
+                .orElseThrow(() -> new AppException(ErrorCode.PRICING_SNAPSHOT_NOT_FOUND));
+    }
+
+    /**
+     * Ghi version giá mới nếu khác version mới nhất rồi báo các node khác.
+     * Giá trị null = giữ nguyên giá trị của version mới nhất đọc lại từ DB ngay trước khi ghi
+     * (không lấy từ bản sao cục bộ có thể đã cũ, tránh ghi đè thay đổi node khác vừa ghi).
+     * sourceKey khác null: nhiều node cùng ghi 1 key thì chỉ 1 dòng được ghi, các node còn lại dùng dòng đó.
+     * sourceKey null: key là version vừa đọc (compare-and-set), 2 thay đổi cùng dựa trên 1 version thì
+     * thay đổi ghi sau đọc lại version mới và áp lên đó.
+     */
+    public Snapshot publish(BigDecimal marketPrice, BigDecimal kwhFactor, String sourceKey) {
+        if ((marketPrice == null && kwhFactor == null)
+                || (marketPrice != null && marketPrice.signum() <= 0)
+                || (kwhFactor != null && kwhFactor.signum() <= 0)) {
+            return current;
+        }
+        for (int attempt = 1; ; attempt++) {
+            Snapshot latest = reload();
+            BigDecimal price = marketPrice != null ? marketPrice : latest.marketPricePerCredit();
+            BigDecimal factor = kwhFactor != null ? kwhFactor : latest.kwhPerCreditFactor();
+            if (latest.version() > 0
+                    && latest.marketPricePerCredit().compareTo(price) == 0
+                    && latest.kwhPerCreditFactor().compareTo(factor) == 0) {
+                return latest;
+            }
+            String key = sourceKey != null ? sourceKey : "after:v" + latest.version();
+            int inserted = snapshotRepository.insertIgnore(price, factor, key);
+            Snapshot published = reload();
+            if (inserted > 0) {
+                log.info("Pricing snapshot v{}: MarketPrice={} | KwhFactor={}",
+                        published.version(), published.marketPricePerCredit(), published.kwhPerCreditFactor());
+                notifyNodes(published.version());
+                return published;
+            }
+            if (sourceKey != null || attempt >= MAX_PUBLISH_ATTEMPTS) {
+                return published;
+            }
+        }
+    }
+
+    public void updateMarketPrice(BigDecimal newPrice) {
+        publish(newPrice, null, null);
+    }
+
+    public void updateKwhPerCreditFactor(BigDecimal newFactor) {
+        publish(null, newFactor, null);
+    }
+
+    // Node khác vừa ghi version mới
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            long version = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8).trim());
+            if (version > current.version()) {
+                reload();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot apply pricing notification: {}", e.getMessage());
+        }
+    }
+
+    public String channel() {
+        return channel;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${app.pricing.refresh-ms:30000}", initialDelayString = "${app.pricing.refresh-ms:30000}")
+    public void refresh() {
+        try {
+            reload();
+        } catch (RuntimeException e) {
+            log.warn("Cannot reload pricing snapshot, keeping v{}: {}", current.version(), e.getMessage());
+        }
+    }
+
+    // Chỉ tiến lên version lớn hơn (thông báo/refresh đến trễ không kéo giá về cũ)
+    private Snapshot reload() {
+        snapshotRepository.findTopByOrderByIdDesc().map(this::remember).ifPresent(latest -> {
+            synchronized (this) {
+                if (latest.version() > current.version()) {
+                    current = latest;
+                }
+            }
+        });
+        return current;
+    }
+
+    private Snapshot remember(PricingSnapshot row) {
+        Snapshot snapshot = new Snapshot(row.getId(), row.getMarketPricePerCredit(), row.getKwhPerCreditFactor());
+        recent.put(snapshot.version(), snapshot);
+        return snapshot;
+    }
+
+    private void notifyNodes(long version) {
+        try {
+            redis.convertAndSend(channel, String.valueOf(version));
+        } catch (RuntimeException e) {
+            log.warn("Cannot notify pricing v{} (other nodes pick it up on refresh): {}", version, e.getMessage());
+        }
     }
 }
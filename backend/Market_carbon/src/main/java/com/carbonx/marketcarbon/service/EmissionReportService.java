@@ -5,8 +5,11 @@ import com.carbonx.marketcarbon.dto.response.EmissionReportResponse;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 
 public interface EmissionReportService {
@@ -20,7 +23,8 @@ public interface EmissionReportService {
     Page<EmissionReportResponse> listReportsForAdmin(String status, Pageable pageable);              // ADMIN có thể lọc theo status
     EmissionReportResponse getById(Long reportId);
     Page<EmissionReportDetailResponse> getReportDetails(Long reportId, String plateContains, Pageable pageable);
-    EmissionReportResponse aiSuggestScore(Long reportId);
+    Mono<EmissionReportResponse> aiSuggestScore(Long reportId);
+    Flux<EmissionReportResponse> aiSuggestScores(Collection<Long> reportIds);                       // CVA chấm AI hàng loạt
     EmissionReportResponse verifyReportWithScore(Long reportId, BigDecimal score, boolean approved, String comment);
     List<EmissionReportResponse> listReportsForCompany(String status, Long projectId);               // COMPANY xem report theo dự án
 }
@@ -2,6 +2,8 @@ package com.carbonx.marketcarbon.service;
 
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+
 public interface FileStorageService {
     record PutResult(String key, String url) {}
 
@@ -11,5 +13,11 @@ public interface FileStorageService {
     // Overload cũ: giữ lại cho tương thích, sẽ gộp folder/filename thành key
     PutResult putObject(String folder, String filename, MultipartFile file);
 
+    // Upload thẳng từ stream (không đọc lại MultipartFile), size phải đúng số byte của stream
+    PutResult putObject(String key, String contentType, long size, InputStream in);
+
     byte[] getObject(String key);
+
+    // Xóa object (vd: dọn file đã upload khi transaction nghiệp vụ rollback); key không tồn tại thì bỏ qua
+    void deleteObject(String key);
 }
@@ -7,18 +7,17 @@ import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.model.Company;
 import com.carbonx.marketcarbon.model.EmissionReport;
 import com.carbonx.marketcarbon.model.Project;
-import com.carbonx.marketcarbon.model.User;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.credit.formula.CreditComputationResult;
 import com.carbonx.marketcarbon.service.credit.formula.CreditFormula;
 import lombok.RequiredArgsConstructor;
+import com.carbonx.marketcarbon.service.ai.ChatContextCache;
+import com.carbonx.marketcarbon.service.ai.VertexAiGateway;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import lombok.extern.slf4j.Slf4j;
 
-import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.math.BigDecimal;
@@ -31,7 +30,6 @@ import java.util.*;
 @Slf4j
 public class GeminiAiService {
 
-    private final UserRepository userRepo;
     private final CompanyRepository companyRepo;
     private final CarbonCreditRepository creditRepo;
     private final EmissionReportRepository emissionReportRepo;
@@ -39,78 +37,127 @@ public class GeminiAiService {
     private final PriceAnalyticsService priceAnalytics;
 
     private final AiVertexConfig cfg;
-    private final WebClient vertexWebClient;
+    private final VertexAiGateway vertexAiGateway;
+    private final ChatContextCache chatContextCache;
+    private final CurrentPrincipalProvider principalProvider;
+
+    private static final String SYSTEM_PROMPT = """
+Bạn là Casia AI — trợ lý ảo của nền tảng Casia Carbon Market.
+
+NHIỆM VỤ CHÍNH:
+- Trả lời rõ ràng, đầy đủ, dễ hiểu.
+- Ưu tiên sử dụng dữ liệu thật được cung cấp trong CONTEXT.
+- Không bịa số liệu, không tạo dữ liệu thị trường nếu không có trong context.
+- Khi người dùng hỏi khái niệm (ví dụ: tín chỉ carbon là gì), trả lời chi tiết, dễ hiểu.
+- Khi người dùng hỏi về giá cả, số lượng, tồn kho hoặc số liệu → dùng đúng dữ liệu context hoặc kết quả tính toán từ backend.
+- Không trả lời ngắn gọn trừ khi câu hỏi yêu cầu.
+- Luôn giữ giọng văn thân thiện, chuyên nghiệp, giống trợ lý cá nhân.
+
+QUY TẮC KHI TRẢ LỜI:
+1. Nếu câu hỏi liên quan đến số liệu mà không có dữ liệu trong context → nêu rõ rằng bạn không có dữ liệu đó.
+2. Nếu câu hỏi mơ hồ → yêu cầu người dùng nói rõ hơn.
+3. Khi người dùng muốn giải thích quy trình/hệ thống → trình bày theo dạng từng bước chi tiết.
+4. Khi trả lời về giá thị trường hoặc giá công ty → chỉ dùng kết quả backend trả về.
+5. Tránh lặp lại nguyên câu hỏi của người dùng.
+6. Không chèn ký hiệu lạ, không markdown quá phức tạp — giữ bố cục gọn gàng.
+
+MỤC TIÊU:
+- Hỗ trợ doanh nghiệp hiểu rõ tín chỉ carbon của họ.
+- Giải thích cách hoạt động của hệ thống Casia Carbon Market.
+- Cung cấp thông tin minh bạch, tin cậy và thực tế.
+""";
+
+    // Ngữ cảnh dựng sẵn của 1 công ty (cache, xóa khi tín chỉ của công ty đổi trạng thái)
+    private record CompanyContext(String companyName, String promptPrefix) {}
+
+    // Kết quả định tuyến câu hỏi: trả lời ngay (intent) hoặc prompt cần gửi model
+    private record Route(String answer, String prompt) {}
 
     // ==============================================
     //                MAIN ENTRY
     // ==============================================
-    public String answer(String question) {
+    // Intent/ngữ cảnh lấy từ DB trên request thread (nhanh, có cache); chỉ phần gọi Vertex là non-blocking
+    public Mono<String> answer(String question) {
+        if (!cfg.isEnabled()) {
+            return Mono.just("Casia AI đang tạm tắt. Vui lòng thử lại sau.");
+        }
+
+        long start = System.currentTimeMillis();
+        Route route = route(question);
+        if (route.answer() != null) {
+            return Mono.just(route.answer());
+        }
+
+        return callGeminiVertex(route.prompt())
+                .doOnNext(response -> log.info("[Casia AI] Model={} | Took {} ms | Q='{}' | Response len={}",
+                        cfg.getModel(), System.currentTimeMillis() - start, question, response.length()));
+    }
+
+    // Như answer() nhưng phát từng đoạn text của model ngay khi nhận được
+    public Flux<String> answerStream(String question) {
         if (!cfg.isEnabled()) {
-            return "Casia AI đang tạm tắt. Vui lòng thử lại sau.";
+            return Flux.just("Casia AI đang tạm tắt. Vui lòng thử lại sau.");
         }
 
         long start = System.currentTimeMillis();
+        Route route = route(question);
+        if (route.answer() != null) {
+            return Flux.just(route.answer());
+        }
+
+        return streamGeminiVertex(route.prompt())
+                .doOnComplete(() -> log.info("[Casia AI] Model={} | Streamed in {} ms | Q='{}'",
+                        cfg.getModel(), System.currentTimeMillis() - start, question));
+    }
+
+    private Route route(String question) {
         Long companyId = currentCompanyId();
-        Company company = companyRepo.findById(companyId)
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
+        CompanyContext ctx = chatContextCache.companyContext(companyId, () -> buildCompanyContext(companyId));
 
         // ===== INTENT HANDLERS =====
         if (isGreeting(question)) {
-            return "Chào " + safe(company.getCompanyName())
-                    + "! Mình là Casia AI. Bạn muốn xem tồn kho, batch hay theo dự án/vintage nào?";
+            return new Route("Chào " + ctx.companyName()
+                    + "! Mình là Casia AI. Bạn muốn xem tồn kho, batch hay theo dự án/vintage nào?", null);
         }
 
         if (isFormulaQuestion(question)) {
-            return handleFormulaExplain(companyId);
+            return new Route(chatContextCache.companyAnswer(companyId, "formula",
+                    () -> handleFormulaExplain(companyId)), null);
         }
 
         if (isHowSystemWork(question)) {
-            return handleHowSystemWork();
+            return new Route(HOW_SYSTEM_WORKS, null);
         }
 
         if (isMarketPriceQuestion(question)) {
-            return handleMarketPriceQA(question);
+            return new Route(handleMarketPriceQA(question), null);
         }
 
         if (isPriceQuestion(question)) {
-            return handlePriceQA(companyId, question);
+            return new Route(handlePriceQA(companyId, question), null);
         }
 
         if (isVolumeQuestion(question)) {
-            return handleVolumeQA();
+            return new Route(handleVolumeQA(), null);
         }
 
-        // ===== NGỮ CẢNH DỮ LIỆU CHUNG =====
-        long available = creditRepo.sumAmountByCompany_IdAndStatus(companyId, CreditStatus.AVAILABLE);
-        long sold = creditRepo.sumAmountByCompany_IdAndStatus(companyId, CreditStatus.SOLD);
-        long retired = creditRepo.sumAmountByCompany_IdAndStatus(companyId, CreditStatus.RETIRED);
-
-        String systemPrompt = """
-Bạn là Casia AI — trợ lý ảo của nền tảng Casia Carbon Market.
-
-NHIỆM VỤ CHÍNH:
-- Trả lời rõ ràng, đầy đủ, dễ hiểu.
-- Ưu tiên sử dụng dữ liệu thật được cung cấp trong CONTEXT.
-- Không bịa số liệu, không tạo dữ liệu thị trường nếu không có trong context.
-- Khi người dùng hỏi khái niệm (ví dụ: tín chỉ carbon là gì), trả lời chi tiết, dễ hiểu.
-- Khi người dùng hỏi về giá cả, số lượng, tồn kho hoặc số liệu → dùng đúng dữ liệu context hoặc kết quả tính toán từ backend.
-- Không trả lời ngắn gọn trừ khi câu hỏi yêu cầu.
-- Luôn giữ giọng văn thân thiện, chuyên nghiệp, giống trợ lý cá nhân.
-
-QUY TẮC KHI TRẢ LỜI:
-1. Nếu câu hỏi liên quan đến số liệu mà không có dữ liệu trong context → nêu rõ rằng bạn không có dữ liệu đó.
-2. Nếu câu hỏi mơ hồ → yêu cầu người dùng nói rõ hơn.
-3. Khi người dùng muốn giải thích quy trình/hệ thống → trình bày theo dạng từng bước chi tiết.
-4. Khi trả lời về giá thị trường hoặc giá công ty → chỉ dùng kết quả backend trả về.
-5. Tránh lặp lại nguyên câu hỏi của người dùng.
-6. Không chèn ký hiệu lạ, không markdown quá phức tạp — giữ bố cục gọn gàng.
+        String finalPrompt = ctx.promptPrefix()
+                + "\nCÂU HỎI NGƯỜI DÙNG: " + question + "\n"
+                + "\nHƯỚNG DẪN:\n"
+                + "- Chỉ nêu số liệu nếu người dùng hỏi về chúng.\n"
+                + "- Nếu không có trong context, trả lời rằng bạn không có dữ liệu đó.\n";
+        return new Route(null, finalPrompt);
+    }
 
-MỤC TIÊU:
-- Hỗ trợ doanh nghiệp hiểu rõ tín chỉ carbon của họ.
-- Giải thích cách hoạt động của hệ thống Casia Carbon Market.
-- Cung cấp thông tin minh bạch, tin cậy và thực tế.
-""";
+    // ===== NGỮ CẢNH DỮ LIỆU CHUNG =====
+    private CompanyContext buildCompanyContext(Long companyId) {
+        Company company = companyRepo.findById(companyId)
+                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
 
+        Map<CreditStatus, Long> amounts = new EnumMap<>(CreditStatus.class);
+        for (Object[] row : creditRepo.sumAmountByCompanyGroupByStatus(companyId)) {
+            amounts.put((CreditStatus) row[0], ((Number) row[1]).longValue());
+        }
 
         String context = String.format("""
 DỮ LIỆU:
@@ -122,29 +169,18 @@ TỒN KHO HIỆN TẠI:
 - SOLD: %d
 - RETIRED: %d
 
-THỜI ĐIỂM (UTC):
+THỜI ĐIỂM DỮ LIỆU (UTC):
 - %s
 """,
                 company.getId(),
                 safe(company.getCompanyName()),
-                available, sold, retired,
+                amounts.getOrDefault(CreditStatus.AVAILABLE, 0L),
+                amounts.getOrDefault(CreditStatus.SOLD, 0L),
+                amounts.getOrDefault(CreditStatus.RETIRED, 0L),
                 OffsetDateTime.now(ZoneOffset.UTC)
         );
 
-        String finalPrompt = systemPrompt
-                + "\n---\n"
-                + context
-                + "\nCÂU HỎI NGƯỜI DÙNG: " + question + "\n"
-                + "\nHƯỚNG DẪN:\n"
-                + "- Chỉ nêu số liệu nếu người dùng hỏi về chúng.\n"
-                + "- Nếu không có trong context, trả lời rằng bạn không có dữ liệu đó.\n";
-
-        String response = callGeminiVertex(finalPrompt);
-        long took = System.currentTimeMillis() - start;
-        log.info("[Casia AI] Model={} | Took {} ms | Q='{}' | Response len={}",
-                cfg.getModel(), took, question, response != null ? response.length() : 0);
-
-        return response;
+        return new CompanyContext(safe(company.getCompanyName()), SYSTEM_PROMPT + "\n---\n" + context);
     }
 
     // ==============================================
@@ -280,7 +316,9 @@ Công thức tính tín chỉ + minh họa báo cáo gần nhất:
     // ==============================================
     private String handleMarketPriceQA(String q) {
         TimeRange tr = parseRange(q);
-        var st = priceAnalytics.statsForMarket(tr.from(), tr.to());
+        // Thống kê toàn sàn giống nhau cho mọi công ty: cache theo khoảng thời gian
+        var st = chatContextCache.sharedAnswer("market-price:" + tr.label(),
+                () -> priceAnalytics.statsForMarket(tr.from(), tr.to()));
 
         if (st.avg() == null && st.min() == null && st.max() == null) {
             return "Chưa có giao dịch toàn thị trường trong " + tr.label() + ".";
@@ -347,8 +385,8 @@ Trên sàn hiện tại:
         }
     }
 
-    private String handleHowSystemWork() {
-        return """
+    // Câu trả lời cố định, dựng sẵn (không gọi model)
+    private static final String HOW_SYSTEM_WORKS = """
 Hệ thống Casia Carbon Market hoạt động như một sàn giao dịch tín chỉ carbon:
 
 1) **Dự án tạo tín chỉ**
@@ -373,54 +411,47 @@ Hệ thống Casia Carbon Market hoạt động như một sàn giao dịch tín
 
 Nếu bạn muốn giải thích chi tiết từng bước, hãy nói: “mô tả chi tiết”.
 """;
-    }
 
 
     // ==============================================
     //                  VERTEX AI CALL
     // ==============================================
-    private String callGeminiVertex(String prompt) {
-        String path = String.format(
-                "/v1/projects/%s/locations/%s/publishers/google/models/%s:generateContent",
-                cfg.getProjectId(), cfg.getLocation(), cfg.getModel()
-        );
+    private Mono<String> callGeminiVertex(String prompt) {
+        // Prompt chứa thời điểm hiện tại nên không cache
+        return vertexAiGateway.generate(prompt, 0.3, 1024, null)
+                .map(raw -> {
+                    String text = extractText(raw);
+                    if (text.isBlank()) return "Xin lỗi, Casia AI chưa có câu trả lời phù hợp.";
+                    return text.trim();
+                })
+                .onErrorResume(ex -> {
+                    log.error("[Casia AI] Vertex Gemini error: {}", ex.getMessage(), ex);
+                    return Mono.just("Xin lỗi, Casia AI đang bận: " + ex.getMessage());
+                });
+    }
 
-        Map<String, Object> body = Map.of(
-                "contents", List.of(Map.of(
-                        "role", "user",
-                        "parts", List.of(Map.of("text", prompt))
-                )),
-                "generationConfig", Map.of(
-                        "temperature", 0.3,
-                        "maxOutputTokens", 1024
-                )
-        );
+    private Flux<String> streamGeminiVertex(String prompt) {
+        return vertexAiGateway.stream(prompt, 0.3, 1024)
+                .map(GeminiAiService::extractChunkText)
+                .filter(text -> !text.isEmpty())
+                .onErrorResume(ex -> {
+                    log.error("[Casia AI] Vertex Gemini stream error: {}", ex.getMessage(), ex);
+                    return Flux.just("Xin lỗi, Casia AI đang bận: " + ex.getMessage());
+                });
+    }
 
-        try {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> raw = vertexWebClient.post()
-                    .uri(path)
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .bodyValue(body)
-                    .retrieve()
-                    .onStatus(HttpStatusCode::isError, resp ->
-                            resp.bodyToMono(String.class).flatMap(b -> {
-                                log.error("[Vertex Gemini] {} body:\n{}", resp.statusCode(), b);
-                                return Mono.error(new RuntimeException("Vertex " + resp.statusCode() + ": " + b));
-                            })
-                    )
-                    .bodyToMono(Map.class)
-                    .block(Duration.ofSeconds(60));
-
-            String text = extractText(raw);
-            if (text.isBlank()) return "Xin lỗi, Casia AI chưa có câu trả lời phù hợp.";
-            return text.trim();
-
-        } catch (Exception ex) {
-            log.error("[Casia AI] Vertex Gemini error: {}", ex.getMessage(), ex);
-            return "Xin lỗi, Casia AI đang bận: " + ex.getMessage();
+    // Text của 1 chunk stream: nối các part, giữ nguyên khoảng trắng giữa các chunk
+    private static String extractChunkText(Map<String, Object> chunk) {
+        if (!(chunk.get("candidates") instanceof List<?> candidates) || candidates.isEmpty()) return "";
+        if (!(candidates.get(0) instanceof Map<?, ?> candidate)) return "";
+        if (!(candidate.get("content") instanceof Map<?, ?> content)) return "";
+        if (!(content.get("parts") instanceof List<?> parts)) return "";
+
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (p instanceof Map<?, ?> part && part.get("text") != null) sb.append(part.get("text"));
         }
+        return sb.toString();
     }
 
     private static String extractText(Object raw) {
@@ -447,13 +478,7 @@ Nếu bạn muốn giải thích chi tiết từng bước, hãy nói: “mô t
     //                  HELPERS
     // ==============================================
     private Long currentCompanyId() {
-        String email = SecurityContextHolder.getContext().getAuthentication().getName();
-        User user = userRepo.findByEmail(email);
-        if (user == null) throw new AppException(ErrorCode.UNAUTHORIZED);
-
-        return companyRepo.findByUserId(user.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND))
-                .getId();
+        return principalProvider.requireCompanyId();
     }
 
     private static boolean isGreeting(String q) {
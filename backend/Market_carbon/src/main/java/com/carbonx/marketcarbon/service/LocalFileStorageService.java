@@ -8,6 +8,7 @@ import org.springframework.web.multipart.MultipartFile;
 
 import jakarta.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.*;
 
 @Slf4j
@@ -36,6 +37,15 @@ public class LocalFileStorageService implements FileStorageService {
 
     @Override
     public PutResult putObject(String key, MultipartFile file) {
+        try (InputStream in = file.getInputStream()) {
+            return putObject(key, file.getContentType(), file.getSize(), in);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store file (key=" + key + ")", e);
+        }
+    }
+
+    @Override
+    public PutResult putObject(String key, String contentType, long size, InputStream in) {
         try {
             String safeKey = sanitizeKey(key);
             Path path = root.resolve(safeKey).normalize();
@@ -43,7 +53,7 @@ public class LocalFileStorageService implements FileStorageService {
                 throw new SecurityException("Invalid key path traversal: " + key);
             }
             Files.createDirectories(path.getParent());
-            Files.copy(file.getInputStream(), path, StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
 
             String url = buildPublicUrl(safeKey);
             log.info("Stored locally: key={}, path={}, url={}", safeKey, path, url);
@@ -74,6 +84,20 @@ public class LocalFileStorageService implements FileStorageService {
         }
     }
 
+    @Override
+    public void deleteObject(String key) {
+        try {
+            String safeKey = sanitizeKey(key);
+            Path path = root.resolve(safeKey).normalize();
+            if (!path.startsWith(root)) {
+                throw new SecurityException("Invalid key path traversal: " + key);
+            }
+            Files.deleteIfExists(path);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to delete file: " + key, e);
+        }
+    }
+
     private String buildPublicUrl(String key) {
         return publicBaseUrl.endsWith("/") ? publicBaseUrl + key : publicBaseUrl + "/" + key;
     }
@@ -2,6 +2,8 @@ package com.carbonx.marketcarbon.service;
 
 import com.carbonx.marketcarbon.dto.request.CreditListingRequest;
 import com.carbonx.marketcarbon.dto.request.CreditListingUpdateRequest;
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
 
 import java.util.List;
@@ -10,6 +12,7 @@ import java.util.List;
 public interface MarketplaceService {
     MarketplaceListingResponse listCreditsForSale(CreditListingRequest request);
     List<MarketplaceListingResponse> getActiveListing();
+    CursorPageResponse<MarketplaceListingResponse> searchListings(MarketplaceSearchFilter filter);
     List<MarketplaceListingResponse> getALlCreditListingsByCompanyID();
     MarketplaceListingResponse updateListCredits(CreditListingUpdateRequest request);
     MarketplaceListingResponse deleteListCredits(Long creditListingId);
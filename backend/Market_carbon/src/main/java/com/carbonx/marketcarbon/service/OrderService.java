@@ -1,7 +1,9 @@
 package com.carbonx.marketcarbon.service;
 
+import com.carbonx.marketcarbon.dto.request.MarketOrderRequest;
 import com.carbonx.marketcarbon.dto.request.OrderRequest;
 import com.carbonx.marketcarbon.dto.response.CreditTradeResponse;
+import com.carbonx.marketcarbon.dto.response.MarketOrderResponse;
 
 import java.util.List;
 
@@ -16,4 +18,6 @@ public interface OrderService {
     void cancelOrder(Long orderId);
 
     void completeOrder(Long orderId);
+
+    MarketOrderResponse placeMarketOrder(MarketOrderRequest request);
 }
@@ -1,5 +1,6 @@
 package com.carbonx.marketcarbon.service;
 
+import com.carbonx.marketcarbon.dto.response.WalletCarbonCreditResponse;
 import com.carbonx.marketcarbon.dto.response.WalletResponse;
 import com.carbonx.marketcarbon.exception.WalletException;
 import com.carbonx.marketcarbon.model.PaymentOrder;
@@ -7,6 +8,8 @@ import com.carbonx.marketcarbon.model.ProfitDistribution;
 import com.carbonx.marketcarbon.model.User;
 import com.carbonx.marketcarbon.model.Wallet;
 import jakarta.transaction.Transactional;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 
 import java.math.BigDecimal;
 import java.util.Optional;
@@ -20,6 +23,9 @@ public interface WalletService {
     @Transactional
     WalletResponse addBalanceToWallet(Long amount) throws WalletException;
 
+    // Tín chỉ trong ví công ty (phân trang)
+    Page<WalletCarbonCreditResponse> getWalletCredits(Pageable pageable);
+
     // tìm ví
     WalletResponse findWalletById(Long id) throws WalletException;
 
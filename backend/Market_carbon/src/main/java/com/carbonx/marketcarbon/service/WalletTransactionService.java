@@ -1,6 +1,7 @@
 package com.carbonx.marketcarbon.service;
 
 import com.carbonx.marketcarbon.dto.request.WalletTransactionRequest;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.WalletTransactionResponse;
 import com.carbonx.marketcarbon.model.WalletTransaction;
 
@@ -13,6 +14,9 @@ public interface WalletTransactionService {
     // Return list of DTOs for API
     List<WalletTransactionResponse> getTransactions();
 
+    // Lịch sử ví phân trang seek (cursor = nextCursor của trang trước)
+    CursorPageResponse<WalletTransactionResponse> getTransactionHistory(String cursor, Integer size);
+
     // New method to get DTOs specifically for a wallet ID
     List<WalletTransactionResponse> getTransactionDtosForWallet(Long walletId);
 
@@ -0,0 +1,138 @@
+package com.carbonx.marketcarbon.service.ai;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache cho Casia chat:
+ * - ngữ cảnh theo công ty (tồn kho tín chỉ + prompt đã dựng), xóa khi tín chỉ của công ty đổi trạng thái;
+ * - câu trả lời/số liệu cho các intent hay hỏi (công thức, giá thị trường) theo TTL.
+ * Mỗi công ty có 1 version: giá trị dựng xong chỉ được lưu nếu version không đổi trong lúc dựng,
+ * tránh ghi đè dữ liệu cũ sau khi vừa bị invalidate.
+ * Số key giới hạn bởi app.ai-chat.max-entries (LRU), nên key không bao giờ được đọc lại vẫn bị bỏ.
+ */
+@Slf4j
+@Component
+public class ChatContextCache {
+
+    private static final String COMPANY_PREFIX = "company:";
+
+    @Value("${app.ai-chat.context-ttl-seconds:300}")
+    private long contextTtlSeconds = 300;
+
+    @Value("${app.ai-chat.answer-ttl-seconds:60}")
+    private long answerTtlSeconds = 60;
+
+    @Value("${app.ai-chat.max-entries:10000}")
+    private int maxEntries = 10_000;
+
+    private record Entry(Object value, long expiresAt) {
+        boolean expired() {
+            return expiresAt < System.currentTimeMillis();
+        }
+    }
+
+    // LRU theo thứ tự truy cập: vượt maxEntries thì bỏ key lâu nhất không dùng
+    private final Map<String, Entry> entries = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    });
+    private final Map<Long, AtomicLong> companyVersions = new ConcurrentHashMap<>();
+    private final AtomicLong globalVersion = new AtomicLong();
+
+    // Ngữ cảnh của công ty (TTL dài, xóa theo sự kiện)
+    public <T> T companyContext(Long companyId, Supplier<T> builder) {
+        return get(companyKey(companyId, "context"), companyId, contextTtlSeconds, builder);
+    }
+
+    // Câu trả lời intent gắn với 1 công ty (vd: công thức theo report gần nhất)
+    public <T> T companyAnswer(Long companyId, String intent, Supplier<T> builder) {
+        return get(companyKey(companyId, intent), companyId, answerTtlSeconds, builder);
+    }
+
+    // Câu trả lời/số liệu dùng chung toàn sàn (vd: thống kê giá thị trường theo khoảng thời gian)
+    public <T> T sharedAnswer(String key, Supplier<T> builder) {
+        return get("shared:" + key, null, answerTtlSeconds, builder);
+    }
+
+    /**
+     * Xóa cache của công ty ngay và sau khi transaction hiện tại kết thúc
+     * (request khác có thể đã đọc dữ liệu cũ trước khi commit).
+     */
+    public void invalidateCompany(Long companyId) {
+        if (companyId == null) return;
+        evictCompany(companyId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evictCompany(companyId);
+                }
+            });
+        }
+    }
+
+    // Dùng sau các câu UPDATE hàng loạt (không đi qua entity listener)
+    public synchronized void invalidateAll() {
+        globalVersion.incrementAndGet();
+        companyVersions.values().forEach(AtomicLong::incrementAndGet);
+        entries.clear();
+        log.debug("[AI-CHAT] Context cache cleared");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, Long companyId, long ttlSeconds, Supplier<T> builder) {
+        Entry cached = entries.get(key);
+        if (cached != null) {
+            if (!cached.expired()) {
+                return (T) cached.value();
+            }
+            entries.remove(key, cached);
+        }
+        long version = version(companyId);
+        T value = builder.get();
+        if (value != null) {
+            synchronized (this) {
+                if (version == version(companyId)) {
+                    entries.put(key, new Entry(value, System.currentTimeMillis() + ttlSeconds * 1000));
+                }
+            }
+        }
+        return value;
+    }
+
+    // invalidateAll tăng cả version của mọi công ty đã biết nên key công ty chỉ cần version riêng
+    private long version(Long companyId) {
+        if (companyId == null) return globalVersion.get();
+        return companyVersions.computeIfAbsent(companyId, id -> new AtomicLong()).get();
+    }
+
+    private synchronized void evictCompany(Long companyId) {
+        companyVersions.computeIfAbsent(companyId, id -> new AtomicLong()).incrementAndGet();
+        String prefix = COMPANY_PREFIX + companyId + ":";
+        synchronized (entries) {
+            entries.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    private static String companyKey(Long companyId, String name) {
+        return COMPANY_PREFIX + companyId + ":" + name;
+    }
+
+    // Số key đang giữ (theo dõi/kiểm thử)
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,63 @@
+package com.carbonx.marketcarbon.service.ai;
+
+/**
+ * Circuit breaker tối giản cho lời gọi ra ngoài.
+ * - CLOSED: cho qua, đếm lỗi liên tiếp; đủ failureThreshold thì chuyển OPEN.
+ * - OPEN: từ chối ngay trong openMs.
+ * - HALF_OPEN: hết openMs thì cho đúng 1 request thử; thành công -> CLOSED, lỗi -> OPEN lại.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMs;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMs = Math.max(0, openMs);
+    }
+
+    // true = được gọi; mỗi lần true phải kết thúc bằng onSuccess/onFailure/onIgnored
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMs) return false;
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) return false;
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        probeInFlight = false;
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            failures = 0;
+        }
+    }
+
+    // Lời gọi không tới được đích (bị hủy, hàng đợi đầy): không tính thành công hay lỗi
+    public synchronized void onIgnored() {
+        probeInFlight = false;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+}
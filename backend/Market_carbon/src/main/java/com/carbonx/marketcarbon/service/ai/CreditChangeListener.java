@@ -0,0 +1,29 @@
+package com.carbonx.marketcarbon.service.ai;
+
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Entity listener của CarbonCredit (Spring bean qua SpringBeanContainer của Hibernate):
+ * tín chỉ của công ty được tạo/đổi trạng thái/số lượng thì xóa ngữ cảnh chat của công ty đó.
+ */
+@Component
+@RequiredArgsConstructor
+public class CreditChangeListener {
+
+    private final ChatContextCache chatContextCache;
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onCreditChanged(CarbonCredit credit) {
+        // getId() trên proxy lazy không nạp Company
+        if (credit.getCompany() != null) {
+            chatContextCache.invalidateCompany(credit.getCompany().getId());
+        }
+    }
+}
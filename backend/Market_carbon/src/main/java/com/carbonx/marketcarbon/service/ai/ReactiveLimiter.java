@@ -0,0 +1,128 @@
+package com.carbonx.marketcarbon.service.ai;
+
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Giới hạn số lời gọi reactive chạy đồng thời, không chặn luồng nào.
+ * Hết permit thì lời gọi được xếp hàng (FIFO, tối đa maxQueued), hàng đợi đầy thì báo AI_GATEWAY_BUSY.
+ * Subscriber hủy khi đang chờ thì bị bỏ khỏi hàng đợi; hủy khi đang chạy thì permit được trả lại.
+ */
+public class ReactiveLimiter {
+
+    private final int maxConcurrent;
+    private final int maxQueued;
+
+    private final Deque<Slot> waiting = new ArrayDeque<>();
+    private int active;
+
+    public ReactiveLimiter(int maxConcurrent, int maxQueued) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    public <T> Mono<T> run(Supplier<Mono<T>> call) {
+        return Mono.create(sink -> {
+            Slot slot = new Slot(sink::error, () -> call.get()
+                    .doFinally(signal -> release())
+                    .subscribe(sink::success, sink::error, () -> sink.success()));
+            sink.onCancel(slot::cancel);
+            if (!admit(slot)) {
+                sink.error(new AppException(ErrorCode.AI_GATEWAY_BUSY));
+            }
+        });
+    }
+
+    // Giữ permit suốt thời gian stream (vd: các chunk token của 1 câu trả lời)
+    public <T> Flux<T> runMany(Supplier<Flux<T>> call) {
+        return Flux.create(sink -> {
+            Slot slot = new Slot(sink::error, () -> call.get()
+                    .doFinally(signal -> release())
+                    .subscribe(sink::next, sink::error, sink::complete));
+            sink.onCancel(slot::cancel);
+            if (!admit(slot)) {
+                sink.error(new AppException(ErrorCode.AI_GATEWAY_BUSY));
+            }
+        });
+    }
+
+    public synchronized int active() {
+        return active;
+    }
+
+    public synchronized int queued() {
+        return waiting.size();
+    }
+
+    private boolean admit(Slot slot) {
+        synchronized (this) {
+            if (active >= maxConcurrent) {
+                if (waiting.size() >= maxQueued) return false;
+                waiting.add(slot);
+                return true;
+            }
+            active++;
+        }
+        slot.start();
+        return true;
+    }
+
+    // Trả permit: chuyển thẳng cho lời gọi đầu hàng đợi nếu có
+    private void release() {
+        Slot next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+        }
+        next.start();
+    }
+
+    private synchronized boolean dequeue(Slot slot) {
+        return waiting.remove(slot);
+    }
+
+    // 1 lời gọi chờ/đang giữ permit; subscriber gốc luôn trả permit qua doFinally
+    private final class Slot {
+        private final Consumer<Throwable> onError;
+        private final Supplier<Disposable> subscriber;
+        private final AtomicReference<Disposable> running = new AtomicReference<>();
+        private volatile boolean cancelled;
+
+        private Slot(Consumer<Throwable> onError, Supplier<Disposable> subscriber) {
+            this.onError = onError;
+            this.subscriber = subscriber;
+        }
+
+        private void start() {
+            if (cancelled) {
+                release();
+                return;
+            }
+            try {
+                running.set(subscriber.get());
+            } catch (Throwable e) {
+                release();
+                onError.accept(e);
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            if (dequeue(this)) return;
+            Disposable d = running.get();
+            if (d != null) d.dispose();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.carbonx.marketcarbon.service.ai;
+
+import com.carbonx.marketcarbon.config.AiVertexConfig;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cổng gọi Vertex AI generateContent/streamGenerateContent dạng non-blocking, dùng chung cho chấm điểm report và chat.
+ * - Giới hạn số request đồng thời (ReactiveLimiter) + circuit breaker khi Vertex lỗi liên tục.
+ * - Cache response theo hash (model, tham số, prompt) + cacheScope (vd: uploadSha256 của report);
+ *   các lời gọi trùng key đang chạy dùng chung 1 request.
+ */
+@Slf4j
+@Service
+public class VertexAiGateway {
+
+    private static final ParameterizedTypeReference<Map<String, Object>> RAW_RESPONSE =
+            new ParameterizedTypeReference<>() {};
+    private static final ParameterizedTypeReference<ServerSentEvent<Map<String, Object>>> RAW_EVENT =
+            new ParameterizedTypeReference<>() {};
+
+    private final WebClient vertexWebClient;
+    private final AiVertexConfig cfg;
+    private final ReactiveLimiter limiter;
+    private final CircuitBreaker breaker;
+
+    // key -> response đã nhận (LRU theo thứ tự truy cập)
+    private final Map<String, CachedResponse> cache;
+    private final Map<String, Mono<Map<String, Object>>> inFlight = new ConcurrentHashMap<>();
+
+    private record CachedResponse(Map<String, Object> raw, long expiresAt) {
+    }
+
+    public VertexAiGateway(@Qualifier("vertexWebClient") WebClient vertexWebClient, AiVertexConfig cfg) {
+        this.vertexWebClient = vertexWebClient;
+        this.cfg = cfg;
+        this.limiter = new ReactiveLimiter(cfg.getMaxConcurrency(), cfg.getMaxQueued());
+        this.breaker = new CircuitBreaker(cfg.getBreakerFailureThreshold(), cfg.getBreakerOpenMs());
+        int maxEntries = Math.max(0, cfg.getCacheMaxEntries());
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gọi generateContent với 1 prompt dạng text.
+     * cacheScope = null: không cache (vd: prompt chứa thời điểm hiện tại).
+     */
+    public Mono<Map<String, Object>> generate(String prompt, double temperature, int maxOutputTokens, String cacheScope) {
+        Map<String, Object> body = requestBody(prompt, temperature, maxOutputTokens);
+        if (cacheScope == null || cfg.getCacheMaxEntries() <= 0) {
+            return call(body);
+        }
+
+        String key = cacheKey(prompt, temperature, maxOutputTokens, cacheScope);
+        return Mono.defer(() -> {
+            Map<String, Object> cached = cacheGet(key);
+            if (cached != null) {
+                log.debug("[AI-GATEWAY] Cache hit {}", key);
+                return Mono.just(cached);
+            }
+            return inFlight.computeIfAbsent(key, k -> call(body)
+                    .doOnNext(raw -> cachePut(k, raw))
+                    .doFinally(signal -> inFlight.remove(k))
+                    .cache());
+        });
+    }
+
+    /**
+     * streamGenerateContent (SSE): mỗi phần tử là 1 chunk response của model, phát ra ngay khi tới.
+     * Không cache; giữ 1 permit của limiter đến khi stream kết thúc.
+     */
+    public Flux<Map<String, Object>> stream(String prompt, double temperature, int maxOutputTokens) {
+        Map<String, Object> body = requestBody(prompt, temperature, maxOutputTokens);
+        String path = modelPath("streamGenerateContent") + "?alt=sse";
+        return Flux.defer(() -> {
+            if (!breaker.tryAcquire()) {
+                return Flux.error(new AppException(ErrorCode.AI_GATEWAY_UNAVAILABLE));
+            }
+            return limiter.runMany(() -> vertexWebClient.post()
+                            .uri(path)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .accept(MediaType.TEXT_EVENT_STREAM)
+                            .bodyValue(body)
+                            .retrieve()
+                            .onStatus(HttpStatusCode::isError, this::toError)
+                            .bodyToFlux(RAW_EVENT)
+                            .mapNotNull(ServerSentEvent::data)
+                            // timeout giữa 2 chunk liên tiếp
+                            .timeout(Duration.ofMillis(cfg.getTimeoutMs())))
+                    .doOnComplete(breaker::onSuccess)
+                    .doOnError(this::recordFailure)
+                    .doOnCancel(breaker::onIgnored);
+        });
+    }
+
+    public CircuitBreaker.State circuitState() {
+        return breaker.state();
+    }
+
+    private Mono<Map<String, Object>> call(Map<String, Object> body) {
+        String path = modelPath("generateContent");
+        return Mono.defer(() -> {
+            if (!breaker.tryAcquire()) {
+                return Mono.error(new AppException(ErrorCode.AI_GATEWAY_UNAVAILABLE));
+            }
+            return limiter.run(() -> vertexWebClient.post()
+                            .uri(path)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .accept(MediaType.APPLICATION_JSON)
+                            .bodyValue(body)
+                            .retrieve()
+                            .onStatus(HttpStatusCode::isError, this::toError)
+                            .bodyToMono(RAW_RESPONSE)
+                            .timeout(Duration.ofMillis(cfg.getTimeoutMs())))
+                    .doOnSuccess(raw -> breaker.onSuccess())
+                    .doOnError(this::recordFailure)
+                    .doOnCancel(breaker::onIgnored);
+        });
+    }
+
+    private Map<String, Object> requestBody(String prompt, double temperature, int maxOutputTokens) {
+        return Map.of(
+                "contents", List.of(Map.of(
+                        "role", "user",
+                        "parts", List.of(Map.of("text", prompt))
+                )),
+                "generationConfig", Map.of(
+                        "temperature", temperature,
+                        "maxOutputTokens", maxOutputTokens
+                )
+        );
+    }
+
+    private String modelPath(String method) {
+        return String.format(
+                "/v1/projects/%s/locations/%s/publishers/google/models/%s:%s",
+                cfg.getProjectId(), cfg.getLocation(), cfg.getModel(), method
+        );
+    }
+
+    private Mono<? extends Throwable> toError(ClientResponse resp) {
+        return resp.createException().flatMap(ex -> {
+            log.error("[Vertex Gemini] {} body:\n{}", resp.statusCode(), ex.getResponseBodyAsString());
+            return Mono.error(ex);
+        });
+    }
+
+    // Lỗi 5xx/429, timeout, lỗi kết nối làm hở mạch; 4xx là lỗi của request chứ không phải của Vertex
+    private void recordFailure(Throwable e) {
+        if (e instanceof AppException) {
+            breaker.onIgnored();
+        } else if (e instanceof WebClientResponseException wre
+                && wre.getStatusCode().is4xxClientError() && wre.getStatusCode().value() != 429) {
+            breaker.onSuccess();
+        } else {
+            breaker.onFailure();
+        }
+    }
+
+    private synchronized Map<String, Object> cacheGet(String key) {
+        CachedResponse cached = cache.get(key);
+        if (cached == null) return null;
+        if (cached.expiresAt() < System.currentTimeMillis()) {
+            cache.remove(key);
+            return null;
+        }
+        return cached.raw();
+    }
+
+    private synchronized void cachePut(String key, Map<String, Object> raw) {
+        long ttl = Duration.ofMinutes(cfg.getCacheTtlMinutes()).toMillis();
+        cache.put(key, new CachedResponse(raw, System.currentTimeMillis() + ttl));
+    }
+
+    private String cacheKey(String prompt, double temperature, int maxOutputTokens, String cacheScope) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((cfg.getModel() + "|" + temperature + "|" + maxOutputTokens + "|").getBytes(StandardCharsets.UTF_8));
+            md.update(prompt.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(md.digest()) + ":" + cacheScope;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
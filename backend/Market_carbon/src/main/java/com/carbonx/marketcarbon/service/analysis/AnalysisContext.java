@@ -1,21 +1,210 @@
 package com.carbonx.marketcarbon.service.analysis;
 
+import lombok.AccessLevel;
 import lombok.Builder;
-import lombok.Data;
+import lombok.Getter;
 
-import java.util.List;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-@Data
-@Builder
+/**
+ * Ngữ cảnh chấm 1 report: dữ liệu dạng cột + kết quả các pass dùng chung (SharedPass),
+ * mỗi pass tính tối đa 1 lần rồi cache cho mọi rule và FraudDetector.
+ * Không thread-safe: mỗi lần phân tích tạo 1 context riêng.
+ */
+@Getter
 public class AnalysisContext {
-    private long reportId;
-    private String reportingPeriod;                 // "2026-10"
-    private List<Map<String, Object>> rows;        // {period, total_energy, license_plate}
-    private Set<String> columns;                   // tập tên cột (có thể null)
+
+    private final long reportId;
+    private final String reportingPeriod;           // "2026-10"
+    private final ColumnarRows rows;                // period, total_energy, license_plate
+    private final Set<String> columns;              // tập tên cột (có thể null)
+    private final Integer crossCompanyPlateReports; // số report công ty khác trùng biển số (PlateFingerprintIndex), null = không tra
 
     // tuning
-    @Builder.Default private double cvUniformityThreshold = 0.02; // 2%
-    @Builder.Default private int roundRepeatScale = 2;             // làm tròn 2 chữ số
-}
\ No newline at end of file
+    private final double cvUniformityThreshold;
+    private final int roundRepeatScale;
+
+    // kết quả pass dùng chung (lazy)
+    @Getter(AccessLevel.NONE) private EnergyStats energyStats;
+    @Getter(AccessLevel.NONE) private double[] sortedEnergies;
+    @Getter(AccessLevel.NONE) private Integer duplicateRows;
+    @Getter(AccessLevel.NONE) private final Map<Integer, Map<String, Integer>> roundedFrequencies = new HashMap<>();
+
+    @Builder
+    private AnalysisContext(long reportId, String reportingPeriod, ColumnarRows rows, Set<String> columns,
+                            Integer crossCompanyPlateReports, double cvUniformityThreshold, int roundRepeatScale) {
+        this.reportId = reportId;
+        this.reportingPeriod = reportingPeriod;
+        this.rows = rows;
+        this.columns = columns;
+        this.crossCompanyPlateReports = crossCompanyPlateReports;
+        this.cvUniformityThreshold = cvUniformityThreshold;
+        this.roundRepeatScale = roundRepeatScale;
+    }
+
+    public static class AnalysisContextBuilder {
+        private double cvUniformityThreshold = 0.02; // 2%
+        private int roundRepeatScale = 2;             // làm tròn 2 chữ số
+    }
+
+    /**
+     * Thống kê energy trên các giá trị hợp lệ; mean/std tính như DoubleStream (tổng có bù sai số)
+     * để kết quả trùng với cách tính trên List cũ. std = NaN khi count < 2.
+     */
+    public record EnergyStats(int count, int nonNumeric, int nonPositive, double mean, double std) {
+    }
+
+    /**
+     * Tính gộp các pass được yêu cầu (chưa có trong cache) trong 1 lần duyệt các dòng.
+     */
+    public void prepare(Collection<SharedPass> passes) {
+        EnumSet<SharedPass> todo = EnumSet.noneOf(SharedPass.class);
+        for (SharedPass pass : passes) {
+            if (!isPrepared(pass)) todo.add(pass);
+        }
+        if (todo.isEmpty()) return;
+
+        boolean energy = todo.contains(SharedPass.ENERGY_STATS) || todo.contains(SharedPass.ENERGY_SORTED);
+        boolean dupRows = todo.contains(SharedPass.ROW_DUPLICATES);
+
+        int size = rows.size();
+        double[] valid = energy ? new double[size] : null;
+        int n = 0;
+        int nonPositive = 0;
+        Set<RowKey> signatures = dupRows ? new HashSet<>() : null;
+        int duplicates = 0;
+
+        for (int i = 0; i < size; i++) {
+            boolean present = rows.hasEnergy(i);
+            if (energy && present) {
+                double v = rows.energy(i);
+                valid[n++] = v;
+                if (v <= 0) nonPositive++;
+            }
+            // Dòng trùng hoàn toàn chắc chắn trùng biển số, chỉ băm các dòng có biển số lặp
+            if (dupRows && rows.plateOccurrences(i) > 1) {
+                RowKey key = new RowKey(rows.periodId(i), rows.plateId(i), present,
+                        present ? Double.doubleToLongBits(rows.energy(i)) : 0L);
+                if (!signatures.add(key)) duplicates++;
+            }
+        }
+
+        if (dupRows) {
+            duplicateRows = duplicates;
+        }
+        if (energy) {
+            double[] values = Arrays.copyOf(valid, n);
+            if (todo.contains(SharedPass.ENERGY_STATS)) {
+                energyStats = computeStats(values, size, nonPositive);
+            }
+            if (todo.contains(SharedPass.ENERGY_SORTED)) {
+                Arrays.sort(values);
+                sortedEnergies = values;
+            }
+        }
+    }
+
+    public EnergyStats energyStats() {
+        prepare(EnumSet.of(SharedPass.ENERGY_STATS));
+        return energyStats;
+    }
+
+    // Các giá trị energy hợp lệ đã sắp xếp tăng dần (không được sửa mảng trả về)
+    public double[] sortedEnergies() {
+        prepare(EnumSet.of(SharedPass.ENERGY_SORTED));
+        return sortedEnergies;
+    }
+
+    public int duplicateRows() {
+        prepare(EnumSet.of(SharedPass.ROW_DUPLICATES));
+        return duplicateRows;
+    }
+
+    // Quantile nội suy tuyến tính trên mảng đã sắp xếp
+    public double energyQuantile(double p) {
+        double[] sorted = sortedEnergies();
+        double pos = p * (sorted.length - 1);
+        int i = (int) Math.floor(pos);
+        int j = (int) Math.ceil(pos);
+        if (i == j) return sorted[i];
+        double w = pos - i;
+        return sorted[i] * (1 - w) + sorted[j] * w;
+    }
+
+    /**
+     * Tần suất giá trị energy sau khi làm tròn HALF_UP về scale chữ số.
+     * Dựa trên mảng đã sắp xếp: chỉ làm tròn BigDecimal 1 lần cho mỗi giá trị khác nhau.
+     */
+    public Map<String, Integer> roundedEnergyFrequency(int scale) {
+        return roundedFrequencies.computeIfAbsent(scale, s -> {
+            double[] sorted = sortedEnergies();
+            Map<String, Integer> freq = new HashMap<>();
+            int i = 0;
+            while (i < sorted.length) {
+                int j = i + 1;
+                while (j < sorted.length && Double.compare(sorted[j], sorted[i]) == 0) j++;
+                if (Double.isFinite(sorted[i])) {
+                    String key = new BigDecimal(sorted[i]).setScale(s, RoundingMode.HALF_UP).toPlainString();
+                    freq.merge(key, j - i, Integer::sum);
+                }
+                i = j;
+            }
+            return freq;
+        });
+    }
+
+    /**
+     * Số biển số lặp (mỗi lần xuất hiện thêm tính 1), bỏ khoảng trắng 2 đầu, bỏ biển số rỗng.
+     * nullAsText = true: biển số null được coi là chuỗi "null" (như String.valueOf).
+     */
+    public int duplicatePlates(boolean nullAsText) {
+        Map<String, Integer> counts = new HashMap<>();
+        var values = rows.plateValues();
+        for (int id = 0; id < values.size(); id++) {
+            String raw = values.get(id);
+            String plate = raw == null ? (nullAsText ? "null" : "") : raw.trim();
+            if (plate.isEmpty()) continue;
+            counts.merge(plate, rows.plateCount(id), Integer::sum);
+        }
+        int dup = 0;
+        for (int c : counts.values()) dup += c - 1;
+        return dup;
+    }
+
+    // Tập period khác nhau (null được ghi là "null" như String.valueOf)
+    public Set<String> distinctPeriods() {
+        Set<String> periods = new HashSet<>();
+        for (String p : rows.periodValues()) periods.add(String.valueOf(p));
+        return periods;
+    }
+
+    private boolean isPrepared(SharedPass pass) {
+        return switch (pass) {
+            case ENERGY_STATS -> energyStats != null;
+            case ENERGY_SORTED -> sortedEnergies != null;
+            case ROW_DUPLICATES -> duplicateRows != null;
+        };
+    }
+
+    private static EnergyStats computeStats(double[] values, int totalRows, int nonPositive) {
+        int n = values.length;
+        double mean = Arrays.stream(values).average().orElse(0);
+        double std = Double.NaN;
+        if (n >= 2) {
+            double var = Arrays.stream(values).map(d -> (d - mean) * (d - mean)).sum() / (n - 1);
+            std = Math.sqrt(var);
+        }
+        return new EnergyStats(n, totalRows - n, nonPositive, mean, std);
+    }
+
+    private record RowKey(int periodId, int plateId, boolean hasEnergy, long energyBits) {
+    }
+}
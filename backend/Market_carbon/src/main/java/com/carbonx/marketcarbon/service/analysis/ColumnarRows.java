@@ -0,0 +1,147 @@
+package com.carbonx.marketcarbon.service.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dữ liệu report dạng cột cho rule engine, dựng 1 lần từ EmissionReportDetail:
+ * - total_energy: double[] + BitSet đánh dấu ô có giá trị (null = không phải số)
+ * - period, license_plate: mã int trỏ vào từ điển giá trị (intern), kèm số lần xuất hiện
+ * Rule đọc mảng nguyên thủy, không còn parse lại String -> Double hay duyệt Map từng dòng.
+ */
+public final class ColumnarRows {
+
+    public static final String PERIOD = "period";
+    public static final String TOTAL_ENERGY = "total_energy";
+    public static final String LICENSE_PLATE = "license_plate";
+
+    private final int size;
+    private final double[] energies;
+    private final BitSet energyPresent;
+    private final int[] periodIds;
+    private final Dictionary periods;
+    private final int[] plateIds;
+    private final Dictionary plates;
+
+    private ColumnarRows(Builder b) {
+        this.size = b.size;
+        this.energies = Arrays.copyOf(b.energies, b.size);
+        this.energyPresent = b.energyPresent;
+        this.periodIds = Arrays.copyOf(b.periodIds, b.size);
+        this.periods = b.periods;
+        this.plateIds = Arrays.copyOf(b.plateIds, b.size);
+        this.plates = b.plates;
+    }
+
+    public static Builder builder(int expectedRows) {
+        return new Builder(expectedRows);
+    }
+
+    public int size() { return size; }
+
+    public boolean hasEnergy(int row) { return energyPresent.get(row); }
+
+    public double energy(int row) { return energies[row]; }
+
+    public int energyCount() { return energyPresent.cardinality(); }
+
+    public int periodId(int row) { return periodIds[row]; }
+
+    public int plateId(int row) { return plateIds[row]; }
+
+    // Số dòng có cùng biển số (nguyên văn) với dòng này
+    public int plateOccurrences(int row) { return plates.counts[plateIds[row]]; }
+
+    // Giá trị period khác nhau (có thể chứa null), theo thứ tự xuất hiện
+    public List<String> periodValues() { return Collections.unmodifiableList(periods.values); }
+
+    // Giá trị biển số khác nhau (có thể chứa null) và số lần xuất hiện, cùng chỉ số
+    public List<String> plateValues() { return Collections.unmodifiableList(plates.values); }
+
+    public int plateCount(int plateId) { return plates.counts[plateId]; }
+
+    // Số ô trống (null/blank) của 1 cột; cột không có trong dữ liệu coi như trống toàn bộ
+    public int emptyCells(String column) {
+        return switch (column) {
+            case PERIOD -> periods.blankCount();
+            case LICENSE_PLATE -> plates.blankCount();
+            case TOTAL_ENERGY -> size - energyCount();
+            default -> size;
+        };
+    }
+
+    public static final class Builder {
+        private int size;
+        private double[] energies;
+        private final BitSet energyPresent = new BitSet();
+        private int[] periodIds;
+        private int[] plateIds;
+        private final Dictionary periods = new Dictionary();
+        private final Dictionary plates = new Dictionary();
+
+        private Builder(int expectedRows) {
+            int capacity = Math.max(expectedRows, 16);
+            this.energies = new double[capacity];
+            this.periodIds = new int[capacity];
+            this.plateIds = new int[capacity];
+        }
+
+        public Builder add(String period, Double totalEnergy, String licensePlate) {
+            if (size == energies.length) {
+                int capacity = size + (size >> 1);
+                energies = Arrays.copyOf(energies, capacity);
+                periodIds = Arrays.copyOf(periodIds, capacity);
+                plateIds = Arrays.copyOf(plateIds, capacity);
+            }
+            if (totalEnergy != null) {
+                energies[size] = totalEnergy;
+                energyPresent.set(size);
+            }
+            periodIds[size] = periods.intern(period);
+            plateIds[size] = plates.intern(licensePlate);
+            size++;
+            return this;
+        }
+
+        public ColumnarRows build() {
+            return new ColumnarRows(this);
+        }
+    }
+
+    // Từ điển intern: mỗi giá trị khác nhau giữ 1 lần, dòng chỉ lưu mã int
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private int[] counts = new int[16];
+
+        int intern(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+                if (id == counts.length) {
+                    counts = Arrays.copyOf(counts, id * 2);
+                }
+            }
+            counts[id]++;
+            return id;
+        }
+
+        int blankCount() {
+            int blank = 0;
+            for (int id = 0; id < values.size(); id++) {
+                String v = values.get(id);
+                if (v == null || v.trim().isEmpty()) {
+                    blank += counts[id];
+                }
+            }
+            return blank;
+        }
+    }
+}
@@ -2,9 +2,16 @@ package com.carbonx.marketcarbon.service.analysis;
 
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 
+import java.util.Set;
+
 public interface IRule {
     String id();
     String name();
     int maxScore();
     RuleResult apply(AnalysisContext ctx);
+
+    // Pass dùng chung rule cần; service gộp lại và tính 1 lần trước khi chạy các rule
+    default Set<SharedPass> sharedPasses() {
+        return Set.of();
+    }
 }
@@ -1,25 +1,55 @@
 package com.carbonx.marketcarbon.service.analysis;
 
+import com.carbonx.marketcarbon.dto.analysis.AnalysisMetrics;
 import com.carbonx.marketcarbon.dto.analysis.AnalysisResult;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.dto.analysis.RuleRubric;
+import com.carbonx.marketcarbon.model.EmissionReport;
 import com.carbonx.marketcarbon.model.EmissionReportDetail;
+import com.carbonx.marketcarbon.model.ReportAnalysisSnapshot;
 import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
 import com.carbonx.marketcarbon.repository.EmissionReportRepository;
+import com.carbonx.marketcarbon.repository.ReportAnalysisSnapshotRepository;
 import com.carbonx.marketcarbon.service.analysis.rules.*;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.util.*;
-import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class ReportAnalysisService {
 
+    public static final String ANALYZER_VERSION = "logic-no-co2-v3";
+
+    // Khóa snapshot cho report tạo không kèm file upload
+    private static final String NO_UPLOAD_SHA = "-";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     private final EmissionReportRepository reportRepo;
     private final EmissionReportDetailRepository detailRepo;
+    private final ReportAnalysisSnapshotRepository snapshotRepo;
+    private final PlateFingerprintIndex plateFingerprintIndex;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private ReportAnalysisService getSelf() {
+        return applicationContext.getBean(ReportAnalysisService.class);
+    }
 
     // Maximum score per rule (weights)
     private static final Map<String, Integer> DQ_WEIGHTS = Map.of(
@@ -35,6 +65,9 @@ public class ReportAnalysisService {
 
     private static final int FRAUD_MAX = 30;
 
+    private static final Set<String> COLUMNS =
+            Set.of(ColumnarRows.PERIOD, ColumnarRows.TOTAL_ENERGY, ColumnarRows.LICENSE_PLATE);
+
     // Canonical names for rules (no abbreviations in UI)
     private static final Map<String, String> RULE_NAMES = Map.of(
             "DQ1_SCHEMA", "Schema Validation Rule",
@@ -58,48 +91,96 @@ public class ReportAnalysisService {
             "DQ7_UNIFORMITY_CV", "Check whether energy values are suspiciously uniform based on the coefficient of variation.",
             "DQ8_REPEAT_VALUES", "Detect repeated rounded energy values that may indicate manual rounding or synthetic aggregation."
     );
+    /**
+     * Kết quả phân tích đã cache của 1 report: kết quả các rule + số liệu năng lượng tính từ cùng context.
+     */
+    public record Snapshot(AnalysisResult result, AnalysisMetrics metrics) {
+    }
+
     // 1) AUTO ANALYSIS MODE (system / AI scoring)
+    //    Lấy từ snapshot của lần upload hiện tại; chưa có thì tính (và lưu khi persist=true)
     public AnalysisResult analyzeNoCo2(long reportId, boolean persist) {
+        return snapshot(loadReport(reportId), persist).result();
+    }
 
-        var report = reportRepo.findById(reportId)
-                .orElseThrow(() -> new IllegalArgumentException("Report not found: " + reportId));
+    /**
+     * Snapshot theo khóa (report, uploadSha256, phiên bản analyzer). Upload lại thì SHA đổi nên
+     * không bao giờ trả kết quả cũ; lưu snapshot mới sẽ xóa các bản cũ của report.
+     * Phần trùng biển số với công ty khác đổi theo upload của công ty khác nên không nằm trong snapshot:
+     * tra chỉ mục biển số mỗi lần trả về rồi gắn vào DQ4 + FR5.
+     */
+    public Snapshot snapshot(EmissionReport report, boolean persist) {
+        return withCrossCompany(cachedOrCompute(report, persist), crossCompanyPlateReports(report));
+    }
+
+    private Snapshot cachedOrCompute(EmissionReport report, boolean persist) {
+        String sha = snapshotKey(report);
+        var cached = snapshotRepo.findByReport_IdAndUploadSha256AndAnalyzerVersion(report.getId(), sha, ANALYZER_VERSION);
+        if (cached.isPresent()) {
+            return read(cached.get());
+        }
+
+        Snapshot fresh = compute(report);
+        if (persist) {
+            try {
+                getSelf().store(report, sha, fresh);
+            } catch (DataIntegrityViolationException e) {
+                // Request/node khác đã lưu cùng snapshot trước; cùng dữ liệu vào cho cùng kết quả
+                log.debug("[ANALYSIS] Snapshot for report {} already stored: {}", report.getId(), e.getMessage());
+            }
+        }
+        return fresh;
+    }
 
-        // Load all details for this report
-        List<EmissionReportDetail> details = detailRepo.findByReport_Id(reportId);
+    // Chạy các rule 1 lần ngay sau khi upload commit, để màn hình CVA và prompt AI có sẵn snapshot
+    @Async
+    public void analyzeAfterUpload(Long reportId) {
+        try {
+            snapshot(loadReport(reportId), true);
+            log.info("[ANALYSIS] Snapshot ready for report {}", reportId);
+        } catch (Exception e) {
+            log.warn("[ANALYSIS] Snapshot for report {} failed, will be computed on first read: {}",
+                    reportId, e.getMessage());
+        }
+    }
 
-        // Map each row into a generic map for the rule engine
-        List<Map<String, Object>> rows = details.stream()
-                .map(d -> {
-                    Map<String, Object> m = new HashMap<>();
-                    m.put("period", report.getPeriod());
-                    m.put("total_energy", toDouble(d.getTotalEnergy()));
-                    m.put("license_plate", d.getVehiclePlate());
-                    return m;
-                })
-                .collect(Collectors.toList());
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void store(EmissionReport report, String sha, Snapshot snapshot) {
+        snapshotRepo.deleteStale(report.getId(), sha, ANALYZER_VERSION);
+        snapshotRepo.save(ReportAnalysisSnapshot.builder()
+                .report(reportRepo.getReferenceById(report.getId()))
+                .uploadSha256(sha)
+                .analyzerVersion(ANALYZER_VERSION)
+                .dataQualityScore(snapshot.result().getDataQualityScore())
+                .fraudRiskScore(snapshot.result().getFraudRiskScore())
+                .resultJson(write(snapshot.result()))
+                .metricsJson(write(snapshot.metrics()))
+                .build());
+    }
 
-        Set<String> columns = Set.of("period", "total_energy", "license_plate");
+    // 2) MANUAL RUBRIC MODE (per-report, but score = 0)
+    //    Used when a human or external AI wants to grade manually
+    //    Evidence lấy từ snapshot đã cache
+    public List<RuleResult> buildManualEvaluation(long reportId) {
 
-        AnalysisContext ctx = AnalysisContext.builder()
-                .reportId(reportId)
-                .reportingPeriod(report.getPeriod())
-                .rows(rows)
-                .columns(columns)
-                .cvUniformityThreshold(0.02)
-                .roundRepeatScale(2)
-                .build();
+        AnalysisResult analysis = snapshot(loadReport(reportId), true).result();
+
+        List<RuleResult> rubric = new ArrayList<>();
+        for (RuleResult rr : analysis.getDetails()) {
+            // Manual mode: do not auto-score, leave score = 0
+            rubric.add(new RuleResult(rr.getRuleId(), rr.getName(), 0, rr.getMaxScore(),
+                    rr.getMessage(), rr.getEvidence()));
+        }
+        return rubric;
+    }
+
+    private Snapshot compute(EmissionReport report) {
+        AnalysisContext ctx = buildContext(report);
 
         // Active rule set
-        List<IRule> rules = List.of(
-                new SchemaRule(Set.of("period", "total_energy", "license_plate")),
-                new PeriodRule(),
-                new EnergyValidRule(),
-                new DuplicatePlateRule(),
-                new ExactDuplicateRowRule(),
-                new EnergyOutlierIqrRule(),
-                new EnergyUniformityCvRule(0.02),
-                new RepeatedRoundedEnergyRule(2)
-        );
+        // Các lượt tính chung (thống kê, sắp xếp, trùng lặp) chỉ chạy 1 lần cho mọi rule + fraud
+        List<IRule> rules = activeRules();
+        ctx.prepare(sharedPasses(rules, FraudDetector.SHARED_PASSES));
 
         int totalDQScore = 0;
         List<RuleResult> results = new ArrayList<>();
@@ -136,8 +217,8 @@ public class ReportAnalysisService {
         var fraud = new FraudDetector().detect(ctx);
 
         AnalysisResult output = new AnalysisResult(
-                reportId,
-                "logic-no-co2-v1",
+                report.getId(),
+                ANALYZER_VERSION,
                 totalDQScore,
                 dqMax,
                 fraud.getScore(),
@@ -146,79 +227,52 @@ public class ReportAnalysisService {
                 fraud.getReasons()
         );
 
-        if (persist) {
-            reportRepo.save(report);
-        }
-
-        return output;
+        return new Snapshot(output, metrics(ctx));
     }
 
-    // 2) MANUAL RUBRIC MODE (per-report, but score = 0)
-    //    Used when a human or external AI wants to grade manually
-    public List<RuleResult> buildManualEvaluation(long reportId) {
-
-        var report = reportRepo.findById(reportId)
-                .orElseThrow(() -> new IllegalArgumentException("Report not found: " + reportId));
-
-        List<EmissionReportDetail> details = detailRepo.findByReport_Id(reportId);
-
-        List<Map<String, Object>> rows = details.stream()
-                .map(d -> {
-                    Map<String, Object> m = new HashMap<>();
-                    m.put("period", report.getPeriod());
-                    m.put("total_energy", toDouble(d.getTotalEnergy()));
-                    m.put("license_plate", d.getVehiclePlate());
-                    return m;
-                })
-                .collect(Collectors.toList());
-
-        Set<String> columns = Set.of("period", "total_energy", "license_plate");
-
-        AnalysisContext ctx = AnalysisContext.builder()
-                .reportId(reportId)
-                .reportingPeriod(report.getPeriod())
-                .rows(rows)
-                .columns(columns)
-                .cvUniformityThreshold(0.02)
-                .roundRepeatScale(2)
-                .build();
-
-        List<IRule> rules = List.of(
-                new SchemaRule(Set.of("period", "total_energy", "license_plate")),
-                new PeriodRule(),
-                new EnergyValidRule(),
-                new DuplicatePlateRule(),
-                new ExactDuplicateRowRule(),
-                new EnergyOutlierIqrRule(),
-                new EnergyUniformityCvRule(0.02),
-                new RepeatedRoundedEnergyRule(2)
-        );
-
-        List<RuleResult> rubric = new ArrayList<>();
-
-        for (IRule rule : rules) {
-            RuleResult rr = rule.apply(ctx);
-
-            rr.setName(RULE_NAMES.getOrDefault(rr.getRuleId(), "Unknown Rule"));
-
-            if (rr.getMessage() == null || rr.getMessage().isBlank()) {
-                rr.setMessage(RULE_DESCRIPTIONS.getOrDefault(rr.getRuleId(), ""));
-            }
-
-            int maxScore = DQ_WEIGHTS.getOrDefault(rr.getRuleId(), rule.maxScore());
-            rr.setMaxScore(maxScore);
-
-            // Manual mode: do not auto-score, leave score = 0
-            rr.setScore(0);
+    // Số liệu năng lượng dùng lại các lượt tính đã cache trên context (không parse/sắp xếp thêm)
+    private static AnalysisMetrics metrics(AnalysisContext ctx) {
+        var stats = ctx.energyStats();
+        double[] sorted = ctx.sortedEnergies();
+
+        double q1 = sorted.length == 0 ? 0 : ctx.energyQuantile(0.25);
+        double q3 = sorted.length == 0 ? 0 : ctx.energyQuantile(0.75);
+        double iqr = q3 - q1;
+        double lower = q1 - 1.5 * iqr;
+        double upper = q3 + 1.5 * iqr;
+        long outliers = 0;
+        for (double v : sorted) {
+            if (v < lower || v > upper) outliers++;
+        }
 
-            if (rr.getEvidence() == null) {
-                rr.setEvidence("");
-            }
+        double std = stats.count() >= 2 ? stats.std() : 0;
+        double cv = stats.mean() == 0 ? 0 : std / stats.mean();
 
-            rubric.add(rr);
+        List<Map.Entry<String, Integer>> repeated = new ArrayList<>();
+        for (var e : ctx.roundedEnergyFrequency(ctx.getRoundRepeatScale()).entrySet()) {
+            if (e.getValue() > 1) repeated.add(e);
         }
-
-        return rubric;
+        repeated.sort((a, b) -> b.getValue() - a.getValue());
+
+        return AnalysisMetrics.builder()
+                .rows(ctx.getRows().size())
+                .energyCount(stats.count())
+                .nonNumericEnergy(stats.nonNumeric())
+                .nonPositiveEnergy(stats.nonPositive())
+                .q1(q1)
+                .q3(q3)
+                .iqr(iqr)
+                .lowerFence(lower)
+                .upperFence(upper)
+                .outlierCount(outliers)
+                .meanEnergy(stats.mean())
+                .stdEnergy(std)
+                .coefficientOfVariation(cv)
+                .repeatedRoundedKeys(repeated.size())
+                .topRepeatedRoundedValues(repeated.stream().limit(5).map(Map.Entry::getKey).toList())
+                .duplicatePlates(ctx.duplicatePlates(true))
+                .duplicateRows(ctx.duplicateRows())
+                .build();
     }
 
     // 3) GLOBAL RULE RUBRIC (no reportId required)
@@ -336,6 +390,101 @@ public class ReportAnalysisService {
         return rubrics;
     }
 
+    // Dựng context dạng cột 1 lần: mảng năng lượng kiểu nguyên thủy + period/biển số đã intern
+    private AnalysisContext buildContext(EmissionReport report) {
+        List<EmissionReportDetail> details = detailRepo.findByReport_Id(report.getId());
+
+        ColumnarRows.Builder rows = ColumnarRows.builder(details.size());
+        for (EmissionReportDetail d : details) {
+            rows.add(report.getPeriod(), toDouble(d.getTotalEnergy()), d.getVehiclePlate());
+        }
+
+        return AnalysisContext.builder()
+                .reportId(report.getId())
+                .reportingPeriod(report.getPeriod())
+                .rows(rows.build())
+                .columns(COLUMNS)
+                .cvUniformityThreshold(0.02)
+                .roundRepeatScale(2)
+                .build();
+    }
+
+    // Gắn số report công ty khác trùng biển số (tra lúc trả về) lên kết quả đã cache; null = tra lỗi, bỏ qua
+    private static Snapshot withCrossCompany(Snapshot base, Integer cross) {
+        if (cross == null) {
+            return base;
+        }
+        AnalysisResult result = base.result();
+        for (RuleResult rr : result.getDetails()) {
+            if ("DQ4_DUP_PLATE".equals(rr.getRuleId())) {
+                DuplicatePlateRule.addCrossCompany(rr, cross);
+            }
+        }
+        List<String> reasons = result.getFraudReasons() != null ? new ArrayList<>(result.getFraudReasons()) : new ArrayList<>();
+        result.setFraudRiskScore(Math.min(
+                FraudDetector.addCrossCompanyRisk(result.getFraudRiskScore(), reasons, cross), FRAUD_MAX));
+        result.setFraudReasons(reasons);
+        return base;
+    }
+
+    private Integer crossCompanyPlateReports(EmissionReport report) {
+        try {
+            return plateFingerprintIndex.countCrossCompanyReports(report.getId(), report.getSeller().getId());
+        } catch (Exception e) {
+            log.warn("[ANALYSIS] Plate index lookup failed for report {}: {}", report.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<IRule> activeRules() {
+        return List.of(
+                new SchemaRule(COLUMNS),
+                new PeriodRule(),
+                new EnergyValidRule(),
+                new DuplicatePlateRule(),
+                new ExactDuplicateRowRule(),
+                new EnergyOutlierIqrRule(),
+                new EnergyUniformityCvRule(0.02),
+                new RepeatedRoundedEnergyRule(2)
+        );
+    }
+
+    private static Set<SharedPass> sharedPasses(List<IRule> rules, Set<SharedPass> extra) {
+        Set<SharedPass> passes = EnumSet.noneOf(SharedPass.class);
+        passes.addAll(extra);
+        for (IRule rule : rules) {
+            passes.addAll(rule.sharedPasses());
+        }
+        return passes;
+    }
+
+    private EmissionReport loadReport(long reportId) {
+        return reportRepo.findById(reportId)
+                .orElseThrow(() -> new IllegalArgumentException("Report not found: " + reportId));
+    }
+
+    private static String snapshotKey(EmissionReport report) {
+        String sha = report.getUploadSha256();
+        return sha == null || sha.isBlank() ? NO_UPLOAD_SHA : sha;
+    }
+
+    private static Snapshot read(ReportAnalysisSnapshot s) {
+        try {
+            return new Snapshot(MAPPER.readValue(s.getResultJson(), AnalysisResult.class),
+                    MAPPER.readValue(s.getMetricsJson(), AnalysisMetrics.class));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Corrupted analysis snapshot " + s.getId(), e);
+        }
+    }
+
+    private static String write(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize analysis snapshot", e);
+        }
+    }
+
     private static Double toDouble(BigDecimal v) {
         return v == null ? null : v.doubleValue();
     }
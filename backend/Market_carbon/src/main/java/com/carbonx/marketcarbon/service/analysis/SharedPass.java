@@ -0,0 +1,11 @@
+package com.carbonx.marketcarbon.service.analysis;
+
+/**
+ * Các phép tính dùng chung giữa nhiều rule. Rule khai báo qua IRule.sharedPasses(),
+ * AnalysisContext.prepare() gộp tất cả và tính trong 1 lần duyệt các cột.
+ */
+public enum SharedPass {
+    ENERGY_STATS,     // số giá trị hợp lệ, số giá trị <= 0, mean, std
+    ENERGY_SORTED,    // mảng energy đã sắp xếp (quantile, tần suất giá trị làm tròn)
+    ROW_DUPLICATES    // số dòng trùng hoàn toàn
+}
@@ -4,9 +4,6 @@ import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
 
-import java.util.HashSet;
-import java.util.Set;
-
 public class DuplicatePlateRule implements IRule {
 
     @Override
@@ -21,14 +18,7 @@ public class DuplicatePlateRule implements IRule {
     @Override
     public RuleResult apply(AnalysisContext ctx) {
 
-        Set<String> seen = new HashSet<>();
-        int dup = 0;
-
-        for (var row : ctx.getRows()) {
-            String plate = String.valueOf(row.get("license_plate")).trim();
-            if (plate.isEmpty()) continue;
-            if (!seen.add(plate)) dup++;
-        }
+        int dup = ctx.duplicatePlates(true);
 
         int score = (dup == 0) ? 10 : (dup <= 2 ? 7 : (dup <= 5 ? 3 : 0));
 
@@ -38,6 +28,18 @@ public class DuplicatePlateRule implements IRule {
 
         String evidence = "duplicateCount=" + dup;
 
-        return new RuleResult(id(), name(), score, maxScore(), message, evidence);
+        RuleResult result = new RuleResult(id(), name(), score, maxScore(), message, evidence);
+        addCrossCompany(result, ctx.getCrossCompanyPlateReports());
+        return result;
+    }
+
+    // Trùng với report của công ty khác (chỉ mục biển số), chỉ ghi nhận, không trừ điểm rule này.
+    // Tách riêng để ReportAnalysisService gắn số mới nhất lên snapshot đã cache
+    public static void addCrossCompany(RuleResult result, Integer cross) {
+        if (cross == null) return;
+        result.setEvidence(result.getEvidence() + ", crossCompanyReports=" + cross);
+        if (cross > 0) {
+            result.setMessage(result.getMessage() + " Plates also appear in " + cross + " report(s) of other companies.");
+        }
     }
 }
@@ -3,9 +3,9 @@ package com.carbonx.marketcarbon.service.analysis.rules;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 
 public class EnergyOutlierIqrRule implements IRule {
 
@@ -18,30 +18,30 @@ public class EnergyOutlierIqrRule implements IRule {
     @Override
     public int maxScore() { return 10; }
 
+    @Override
+    public Set<SharedPass> sharedPasses() { return Set.of(SharedPass.ENERGY_SORTED); }
+
     @Override
     public RuleResult apply(AnalysisContext ctx) {
 
-        List<Double> vals = new ArrayList<>();
-        for (var r : ctx.getRows()) {
-            try { vals.add(Double.valueOf(String.valueOf(r.get("total_energy")))); }
-            catch (Exception ignored) {}
-        }
+        double[] sorted = ctx.sortedEnergies();
 
-        if (vals.size() < 4) {
+        if (sorted.length < 4) {
             return new RuleResult(id(), name(), 10, maxScore(),
                     "Not enough data for outlier detection (< 4 rows).",
-                    "rows=" + vals.size());
+                    "rows=" + sorted.length);
         }
 
-        vals.sort(Double::compareTo);
-
-        double q1 = quantile(vals, 0.25);
-        double q3 = quantile(vals, 0.75);
+        double q1 = ctx.energyQuantile(0.25);
+        double q3 = ctx.energyQuantile(0.75);
         double iqr = q3 - q1;
         double lower = q1 - 1.5 * iqr;
         double upper = q3 + 1.5 * iqr;
 
-        long outliers = vals.stream().filter(v -> v < lower || v > upper).count();
+        long outliers = 0;
+        for (double v : sorted) {
+            if (v < lower || v > upper) outliers++;
+        }
 
         int score = (outliers == 0) ? 10 : (outliers <= 2 ? 8 : (outliers <= 5 ? 5 : 2));
 
@@ -57,13 +57,4 @@ public class EnergyOutlierIqrRule implements IRule {
 
         return new RuleResult(id(), name(), score, maxScore(), message, evidence);
     }
-
-    private double quantile(List<Double> sorted, double p) {
-        double pos = p * (sorted.size() - 1);
-        int i = (int) Math.floor(pos);
-        int j = (int) Math.ceil(pos);
-        if (i == j) return sorted.get(i);
-        double w = pos - i;
-        return sorted.get(i) * (1 - w) + sorted.get(j) * w;
-    }
 }
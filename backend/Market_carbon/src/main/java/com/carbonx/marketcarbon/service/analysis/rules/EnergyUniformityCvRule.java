@@ -3,9 +3,9 @@ package com.carbonx.marketcarbon.service.analysis.rules;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
 
 public class EnergyUniformityCvRule implements IRule {
 
@@ -24,24 +24,22 @@ public class EnergyUniformityCvRule implements IRule {
     @Override
     public int maxScore() { return 5; }
 
+    @Override
+    public Set<SharedPass> sharedPasses() { return Set.of(SharedPass.ENERGY_STATS); }
+
     @Override
     public RuleResult apply(AnalysisContext ctx) {
 
-        List<Double> vals = new ArrayList<>();
-        for (var row : ctx.getRows()) {
-            try { vals.add(Double.valueOf(String.valueOf(row.get("total_energy")))); }
-            catch (Exception ignored) {}
-        }
+        var stats = ctx.energyStats();
 
-        if (vals.size() < 2) {
+        if (stats.count() < 2) {
             return new RuleResult(id(), name(), 5, maxScore(),
                     "Not enough data to calculate uniformity (< 2 rows).",
-                    "n=" + vals.size());
+                    "n=" + stats.count());
         }
 
-        double mean = vals.stream().mapToDouble(d -> d).average().orElse(0);
-        double var = vals.stream().mapToDouble(d -> (d - mean) * (d - mean)).sum() / (vals.size() - 1);
-        double std = Math.sqrt(var);
+        double mean = stats.mean();
+        double std = stats.std();
         double cv = (mean == 0) ? 0 : std / mean;
 
         boolean suspicious = cv < threshold;
@@ -3,6 +3,9 @@ package com.carbonx.marketcarbon.service.analysis.rules;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
+
+import java.util.Set;
 
 public class EnergyValidRule implements IRule {
 
@@ -15,22 +18,16 @@ public class EnergyValidRule implements IRule {
     @Override
     public int maxScore() { return 15; }
 
+    @Override
+    public Set<SharedPass> sharedPasses() { return Set.of(SharedPass.ENERGY_STATS); }
+
     @Override
     public RuleResult apply(AnalysisContext ctx) {
 
+        var stats = ctx.energyStats();
         int total = ctx.getRows().size();
-        int nonNumeric = 0;
-        int nonPositive = 0;
-
-        for (var row : ctx.getRows()) {
-            Object v = row.get("total_energy");
-            try {
-                double d = Double.parseDouble(String.valueOf(v));
-                if (d <= 0) nonPositive++;
-            } catch (Exception e) {
-                nonNumeric++;
-            }
-        }
+        int nonNumeric = stats.nonNumeric();
+        int nonPositive = stats.nonPositive();
 
         boolean perfect = (nonNumeric == 0 && nonPositive == 0);
 
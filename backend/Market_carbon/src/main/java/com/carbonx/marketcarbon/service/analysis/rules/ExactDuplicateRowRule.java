@@ -3,8 +3,8 @@ package com.carbonx.marketcarbon.service.analysis.rules;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
 
-import java.util.HashSet;
 import java.util.Set;
 
 public class ExactDuplicateRowRule implements IRule {
@@ -19,15 +19,12 @@ public class ExactDuplicateRowRule implements IRule {
     public int maxScore() { return 5; }
 
     @Override
-    public RuleResult apply(AnalysisContext ctx) {
+    public Set<SharedPass> sharedPasses() { return Set.of(SharedPass.ROW_DUPLICATES); }
 
-        Set<String> signatures = new HashSet<>();
-        int duplicates = 0;
+    @Override
+    public RuleResult apply(AnalysisContext ctx) {
 
-        for (var row : ctx.getRows()) {
-            String sig = row.toString();
-            if (!signatures.add(sig)) duplicates++;
-        }
+        int duplicates = ctx.duplicateRows();
 
         int score = (duplicates == 0) ? 5 : (duplicates <= 2 ? 3 : 0);
 
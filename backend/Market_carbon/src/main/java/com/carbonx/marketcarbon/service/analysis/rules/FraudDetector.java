@@ -1,12 +1,12 @@
 package com.carbonx.marketcarbon.service.analysis.rules;
 
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public class FraudDetector {
 
@@ -17,15 +17,20 @@ public class FraudDetector {
         private List<String> reasons;  // giải thích nghi ngờ
     }
 
+    // Pass dùng chung FraudDetector cần (gộp cùng pass của các rule)
+    public static final Set<SharedPass> SHARED_PASSES = Set.of(SharedPass.ENERGY_STATS, SharedPass.ENERGY_SORTED);
+
+    private static final Pattern PERIOD_PATTERN = Pattern.compile("^\\d{4}-\\d{2}$");
+
     public FraudResult detect(AnalysisContext ctx){
         int score = 0; List<String> reasons = new ArrayList<>();
 
         // FR1 – Mass duplicate license_plate
-        int dup = countDuplicatePlates(ctx.getRows());
+        int dup = ctx.duplicatePlates(false);
         if (dup > 0) { score += Math.min(10, dup*2); reasons.add("Duplicate license_plate rows: "+dup); }
 
         // FR2 – Copy–paste pattern: repeated rounded energies
-        int rep = countRepeatedRoundedEnergies(ctx.getRows(), ctx.getRoundRepeatScale());
+        int rep = countRepeatedRoundedEnergies(ctx, ctx.getRoundRepeatScale());
         if (rep > 3) { score += 10; reasons.add("Many repeated rounded energy values (keys="+rep+")"); }
         else if (rep > 0) { score += 5; reasons.add("Some repeated rounded energy values (keys="+rep+")"); }
 
@@ -33,6 +38,9 @@ public class FraudDetector {
         boolean uniform = isUniformCV(ctx);
         if (uniform) { score += 5; reasons.add("Suspicious uniformity (CV below threshold)"); }
 
+        // FR5 – Plates also reported by other companies (PlateFingerprintIndex)
+        score = addCrossCompanyRisk(score, reasons, ctx.getCrossCompanyPlateReports());
+
         // FR4 – Period mismatch
         if (!isSingleValidPeriod(ctx)) {
             score += 5; reasons.add("Multiple/invalid periods present");
@@ -42,52 +50,31 @@ public class FraudDetector {
         return new FraudResult(score, reasons);
     }
 
-    private int countDuplicatePlates(List<Map<String,Object>> rows){
-        Set<String> seen = new HashSet<>();
-        int dup = 0;
-        for (var r : rows){
-            String plate = r.get("license_plate")==null? "" : String.valueOf(r.get("license_plate")).trim();
-            if (plate.isEmpty()) continue;
-            if (!seen.add(plate)) dup++;
-        }
-        return dup;
+    // FR5, tách riêng để ReportAnalysisService gắn số mới nhất lên snapshot đã cache; trả về điểm chưa chặn trần
+    public static int addCrossCompanyRisk(int score, List<String> reasons, Integer cross) {
+        if (cross == null || cross <= 0) return score;
+        reasons.add("License plates shared with other companies' reports: "+cross);
+        return score + 5;
     }
 
-    private int countRepeatedRoundedEnergies(List<Map<String,Object>> rows, int scale){
-        Map<String,Integer> freq = new HashMap<>();
-        for (var r : rows){
-            try {
-                double v = Double.parseDouble(String.valueOf(r.get("total_energy")));
-                String key = new BigDecimal(v).setScale(scale, RoundingMode.HALF_UP).toPlainString();
-                freq.merge(key, 1, Integer::sum);
-            } catch (Exception ignored){}
-        }
+    private int countRepeatedRoundedEnergies(AnalysisContext ctx, int scale){
         int repeated = 0;
-        for (var e : freq.entrySet()) if (e.getValue()>1) repeated++;
+        for (int count : ctx.roundedEnergyFrequency(scale).values()) if (count>1) repeated++;
         return repeated;
     }
 
     private boolean isUniformCV(AnalysisContext ctx){
-        List<Double> vals = new ArrayList<>();
-        for (var r : ctx.getRows()){
-            try { vals.add(Double.valueOf(String.valueOf(r.get("total_energy")))); } catch (Exception ignored){}
-        }
-        if (vals.size()<2) return false;
-        double mean = vals.stream().mapToDouble(d->d).average().orElse(0);
-        double var = vals.stream().mapToDouble(d->(d-mean)*(d-mean)).sum()/(vals.size()-1);
-        double std = Math.sqrt(var);
-        double cv = (mean==0)? 0 : std/mean;
+        var stats = ctx.energyStats();
+        if (stats.count()<2) return false;
+        double cv = (stats.mean()==0)? 0 : stats.std()/stats.mean();
         return cv < ctx.getCvUniformityThreshold();
     }
 
     private boolean isSingleValidPeriod(AnalysisContext ctx){
-        var P = java.util.regex.Pattern.compile("^\\d{4}-\\d{2}$");
-        Set<String> periods = new HashSet<>();
+        Set<String> periods = ctx.distinctPeriods();
         boolean fmt = true;
-        for (var r : ctx.getRows()){
-            String p = String.valueOf(r.get("period"));
-            if (!P.matcher(p).matches()) fmt = false;
-            if (p!=null && !p.isEmpty()) periods.add(p);
+        for (String p : periods){
+            if (!PERIOD_PATTERN.matcher(p).matches()) fmt = false;
         }
         return fmt && periods.size()==1;
     }
@@ -27,10 +27,11 @@ public class PeriodRule implements IRule {
         Set<String> periods = new HashSet<>();
         boolean formatOK = true;
 
-        for (var row : ctx.getRows()) {
-            String p = String.valueOf(row.get("period"));
+        // Duyệt các giá trị period khác nhau thay vì từng dòng
+        for (String value : ctx.getRows().periodValues()) {
+            String p = String.valueOf(value);
             if (!DATE_PATTERN.matcher(p).matches()) formatOK = false;
-            if (p != null && !p.isEmpty()) periods.add(p);
+            if (!p.isEmpty()) periods.add(p);
         }
 
         int score = (formatOK && periods.size() == 1) ? 10 : (formatOK ? 5 : 0);
@@ -3,9 +3,8 @@ package com.carbonx.marketcarbon.service.analysis.rules;
 import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
 import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.*;
 
 public class RepeatedRoundedEnergyRule implements IRule {
@@ -26,17 +25,12 @@ public class RepeatedRoundedEnergyRule implements IRule {
     public int maxScore() { return 5; }
 
     @Override
-    public RuleResult apply(AnalysisContext ctx) {
+    public Set<SharedPass> sharedPasses() { return Set.of(SharedPass.ENERGY_SORTED); }
 
-        Map<String, Integer> freq = new HashMap<>();
+    @Override
+    public RuleResult apply(AnalysisContext ctx) {
 
-        for (var row : ctx.getRows()) {
-            try {
-                double v = Double.parseDouble(String.valueOf(row.get("total_energy")));
-                String key = new BigDecimal(v).setScale(scale, RoundingMode.HALF_UP).toPlainString();
-                freq.merge(key, 1, Integer::sum);
-            } catch (Exception ignored) {}
-        }
+        Map<String, Integer> freq = ctx.roundedEnergyFrequency(scale);
 
         List<Map.Entry<String, Integer>> entries = new ArrayList<>(freq.entrySet());
         entries.sort((a, b) -> b.getValue() - a.getValue());
@@ -30,12 +30,8 @@ public class SchemaRule implements IRule {
         int emptyCells = 0;
 
         if (hasAll) {
-            for (var row : ctx.getRows()) {
-                for (String col : required) {
-                    if (row.get(col) == null || row.get(col).toString().trim().isEmpty()) {
-                        emptyCells++;
-                    }
-                }
+            for (String col : required) {
+                emptyCells += ctx.getRows().emptyCells(col);
             }
         }
 
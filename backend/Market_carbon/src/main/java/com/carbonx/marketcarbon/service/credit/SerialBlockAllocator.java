@@ -0,0 +1,113 @@
+package com.carbonx.marketcarbon.service.credit;
+
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.Project;
+import com.carbonx.marketcarbon.service.credit.SerialNumberService.SerialRange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cấp dải serial từ một block đã giữ trước trong bộ nhớ cho mỗi (project, company, year).
+ * - Mỗi block được giữ từ CreditSerialCounter bằng 1 lần khóa (transaction riêng), sau đó
+ *   các lần thanh toán chỉ cắt dải trong RAM, không còn chờ khóa DB theo từng đơn.
+ * - Khi block sắp hết, block kế tiếp được nạp trước ở background (serialBlockExecutor);
+ *   pool đầy thì bỏ qua, block kế tiếp được giữ đồng bộ khi cần.
+ * - Dải serial luôn liên tục; nếu phần còn lại của block không đủ thì bỏ phần dư (tạo khoảng trống
+ *   serial, giống cơ chế cache của sequence). Serial đã giữ nhưng chưa dùng cũng mất khi restart.
+ */
+@Slf4j
+@Service
+public class SerialBlockAllocator {
+
+    private final SerialNumberService serialNumberService;
+    private final TaskExecutor executor;
+    private final Map<BlockKey, SerialBlock> blocks = new ConcurrentHashMap<>();
+
+    @Value("${app.serial-block.size:1000}")
+    private int blockSize = 1000;
+
+    // Nạp block kế tiếp khi phần còn lại nhỏ hơn ngưỡng này
+    @Value("${app.serial-block.refill-threshold:200}")
+    private int refillThreshold = 200;
+
+    public SerialBlockAllocator(SerialNumberService serialNumberService,
+                                @Qualifier("serialBlockExecutor") TaskExecutor executor) {
+        this.serialNumberService = serialNumberService;
+        this.executor = executor;
+    }
+
+    public SerialRange allocate(Project project, Company company, int year, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Serial count must be positive: " + count);
+        }
+
+        // Yêu cầu lớn hơn 1 block thì giữ thẳng từ DB, không làm xáo trộn block đang dùng
+        if (count > blockSize) {
+            return serialNumberService.reserve(project, company, year, count);
+        }
+
+        BlockKey key = new BlockKey(project.getId(), company.getId(), year);
+        SerialBlock block = blocks.computeIfAbsent(key, k -> new SerialBlock());
+
+        synchronized (block) {
+            if (block.remaining() < count) {
+                block.reset(nextBlock(block, project, company, year));
+            }
+
+            SerialRange range = new SerialRange(block.next, block.next + count - 1);
+            block.next += count;
+
+            if (block.remaining() < refillThreshold && block.refill == null) {
+                try {
+                    block.refill = CompletableFuture.supplyAsync(
+                            () -> serialNumberService.reserve(project, company, year, blockSize), executor);
+                } catch (TaskRejectedException e) {
+                    // Pool nạp trước đang đầy: dải đã cắt vẫn hợp lệ, lần cấp sau hết block thì giữ đồng bộ
+                    log.warn("[SERIAL] Async refill rejected for project {} company {} year {}",
+                            project.getId(), company.getId(), year);
+                }
+            }
+            return range;
+        }
+    }
+
+    // Ưu tiên block đã nạp trước, nếu nạp lỗi thì giữ đồng bộ
+    private SerialRange nextBlock(SerialBlock block, Project project, Company company, int year) {
+        CompletableFuture<SerialRange> refill = block.refill;
+        block.refill = null;
+        if (refill != null) {
+            try {
+                return refill.join();
+            } catch (Exception e) {
+                log.warn("[SERIAL] Async refill failed for project {} company {} year {}: {}",
+                        project.getId(), company.getId(), year, e.getMessage());
+            }
+        }
+        return serialNumberService.reserve(project, company, year, blockSize);
+    }
+
+    private record BlockKey(Long projectId, Long companyId, int year) {}
+
+    private static final class SerialBlock {
+        private long next = 1;
+        private long end = 0;
+        private CompletableFuture<SerialRange> refill;
+
+        long remaining() {
+            return end - next + 1;
+        }
+
+        void reset(SerialRange range) {
+            next = range.from();
+            end = range.to();
+        }
+    }
+}
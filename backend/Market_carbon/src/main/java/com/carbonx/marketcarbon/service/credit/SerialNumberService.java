@@ -1,5 +1,6 @@
 package com.carbonx.marketcarbon.service.credit;
 
+import com.carbonx.marketcarbon.model.CarbonCredit;
 import com.carbonx.marketcarbon.model.Company;
 import com.carbonx.marketcarbon.model.CreditSerialCounter;
 import com.carbonx.marketcarbon.model.Project;
@@ -31,9 +32,51 @@ public class SerialNumberService {
         return new SerialRange(from, to);
     }
 
+    /**
+     * Giữ trước một dải serial trong transaction riêng để khóa trên CreditSerialCounter
+     * được nhả ngay, không bị giữ suốt transaction của đơn hàng gọi tới.
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public SerialRange reserve(Project p, Company c, int year, int count) {
+        return allocate(p, c, year, count);
+    }
+
     public String buildCode(int year, String companyCode, String projectCode, long serial) {
         return year + "-" + companyCode + "-" + projectCode + "-" + String.format("%06d", serial);
     }
 
-    public record SerialRange(long from, long to) {}
+    /**
+     * Mã đại diện cho cả một lô: cùng định dạng với batchCode (prefix + from_to).
+     */
+    public String buildRangeCode(int year, String companyCode, String projectCode, SerialRange range) {
+        return year + "-" + companyCode + "-" + projectCode + "-"
+                + String.format("%06d", range.from()) + "_" + String.format("%06d", range.to());
+    }
+
+    /**
+     * Tách n serial đầu dải của lô khi chuyển nhượng/retire 1 phần: trả về dải tách ra,
+     * lô giữ phần còn lại (hết dải thì serialFrom/serialTo = null). Lô không có dải (dữ liệu cũ) trả về null.
+     */
+    public static SerialRange takeHead(CarbonCredit lot, long count) {
+        Long from = lot.getSerialFrom();
+        Long to = lot.getSerialTo();
+        if (from == null || to == null || count <= 0) {
+            return null;
+        }
+        long taken = Math.min(count, to - from + 1);
+        SerialRange head = new SerialRange(from, from + taken - 1);
+        if (head.to() >= to) {
+            lot.setSerialFrom(null);
+            lot.setSerialTo(null);
+        } else {
+            lot.setSerialFrom(head.to() + 1);
+        }
+        return head;
+    }
+
+    public record SerialRange(long from, long to) {
+        public long count() {
+            return to - from + 1;
+        }
+    }
 }
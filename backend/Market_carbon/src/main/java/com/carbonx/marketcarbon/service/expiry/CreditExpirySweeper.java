@@ -0,0 +1,353 @@
+package com.carbonx.marketcarbon.service.expiry;
+
+import com.carbonx.marketcarbon.common.CreditStatus;
+import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import com.carbonx.marketcarbon.model.MarketPlaceListing;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.model.WalletTransaction;
+import com.carbonx.marketcarbon.repository.CarbonCreditRepository;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import com.carbonx.marketcarbon.repository.WalletRepository;
+import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
+import com.carbonx.marketcarbon.service.ai.ChatContextCache;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Quét hết hạn tín chỉ và niêm yết theo chunk, bộ nhớ và thời gian giữ khóa không phụ thuộc số dòng.
+ * - Đọc id theo keyset (expiry_date, id) trên index (status, expiry_date), mỗi lần chunk-size dòng, không nạp entity.
+ * - Mỗi chunk 1 transaction riêng; khóa theo thứ tự listing -> credit -> ví (như luồng khớp lệnh) và kiểm tra lại điều kiện dưới khóa,
+ *   nên nhiều node cùng quét không xử lý trùng.
+ * - Niêm yết quá hạn: EXPIRED, số lượng còn lại trả về credit.
+ * - Credit quá hạn: niêm yết đang mở bị CANCELLED (trả lại số lượng), credit EXPIRED, ví công ty trừ số tín chỉ còn lại (1 bút toán / công ty / chunk).
+ * - Chunk lỗi khóa được thử lại; hết lượt thì bỏ qua, các dòng đó vẫn thỏa điều kiện nên lượt quét sau xử lý tiếp.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CreditExpirySweeper {
+
+    // DATE nhỏ nhất của MySQL, điểm bắt đầu keyset
+    private static final LocalDate MIN_DATE = LocalDate.of(1000, 1, 1);
+
+    private final CarbonCreditRepository creditRepository;
+    private final MarketplaceListingRepository listingRepository;
+    private final WalletRepository walletRepository;
+    private final WalletTransactionRepository walletTransactionRepository;
+    private final WalletTransferEngine walletTransferEngine;
+    private final MatchingEngine matchingEngine;
+    private final ChatContextCache chatContextCache;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${app.expiry.chunk-size:500}")
+    private int chunkSize = 500;
+
+    @Value("${app.expiry.max-attempts:3}")
+    private int maxAttempts = 3;
+
+    @Value("${app.expiry.backoff-ms:200}")
+    private long backoffMs = 200;
+
+    public record ChunkResult(int listingsClosed, int creditsExpired, int walletsAdjusted) {}
+
+    public record Progress(boolean running, LocalDateTime startedAt, LocalDateTime finishedAt,
+                           long listingsExpired, long listingsCancelled, long creditsExpired,
+                           long walletsAdjusted, int chunks, int failedChunks) {}
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong listingsExpired = new AtomicLong();
+    private final AtomicLong listingsCancelled = new AtomicLong();
+    private final AtomicLong creditsExpired = new AtomicLong();
+    private final AtomicLong walletsAdjusted = new AtomicLong();
+    private final AtomicInteger chunks = new AtomicInteger();
+    private final AtomicInteger failedChunks = new AtomicInteger();
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+
+    private CreditExpirySweeper getSelf() {
+        return applicationContext.getBean(CreditExpirySweeper.class);
+    }
+
+    // Tiến độ lượt quét đang chạy (hoặc lượt gần nhất)
+    public Progress progress() {
+        return new Progress(running.get(), startedAt, finishedAt, listingsExpired.get(), listingsCancelled.get(),
+                creditsExpired.get(), walletsAdjusted.get(), chunks.get(), failedChunks.get());
+    }
+
+    /**
+     * 1 lượt quét: niêm yết quá hạn trước, sau đó credit quá hạn theo từng trạng thái.
+     * @return false nếu node này đang có lượt quét khác chạy
+     */
+    public boolean sweep() {
+        if (!running.compareAndSet(false, true)) {
+            log.info("[EXPIRY] Sweep already running on this node");
+            return false;
+        }
+        LocalDate today = LocalDate.now();
+        resetProgress();
+        try {
+            sweepListings(today);
+            for (CreditStatus status : CreditStatus.values()) {
+                if (status != CreditStatus.EXPIRED) {
+                    sweepCredits(status, today);
+                }
+            }
+        } finally {
+            finishedAt = LocalDateTime.now();
+            running.set(false);
+        }
+        Progress done = progress();
+        log.info("[EXPIRY] Sweep done in {} ms: {} listings expired, {} listings cancelled, {} credits expired, "
+                        + "{} wallet adjustments, {} chunks ({} failed)",
+                Duration.between(done.startedAt(), done.finishedAt()).toMillis(),
+                done.listingsExpired(), done.listingsCancelled(), done.creditsExpired(),
+                done.walletsAdjusted(), done.chunks(), done.failedChunks());
+        if (done.creditsExpired() > 0 || done.listingsExpired() > 0) {
+            // Ngữ cảnh chat dùng chung (giá, thị trường) không đi qua listener của từng credit
+            chatContextCache.invalidateAll();
+        }
+        return true;
+    }
+
+    private void sweepListings(LocalDate today) {
+        LocalDate afterDate = MIN_DATE;
+        long afterId = 0L;
+        while (true) {
+            List<MarketplaceListingRepository.ExpiryKey> keys = listingRepository.findExpiredKeysAfter(
+                    ListingStatus.AVAILABLE, today, afterDate, afterId, PageRequest.of(0, chunkSize));
+            if (keys.isEmpty()) {
+                return;
+            }
+            MarketplaceListingRepository.ExpiryKey last = keys.get(keys.size() - 1);
+            afterDate = last.getExpiresAt();
+            afterId = last.getId();
+
+            List<Long> ids = keys.stream().map(MarketplaceListingRepository.ExpiryKey::getId).toList();
+            ChunkResult result = runChunk("listings", () -> getSelf().expireListingChunk(ids, today));
+            if (result != null) {
+                listingsExpired.addAndGet(result.listingsClosed());
+            }
+            if (keys.size() < chunkSize) {
+                return;
+            }
+        }
+    }
+
+    private void sweepCredits(CreditStatus status, LocalDate today) {
+        LocalDate afterDate = MIN_DATE;
+        long afterId = 0L;
+        while (true) {
+            List<CarbonCreditRepository.ExpiryKey> keys = creditRepository.findExpiredKeysAfter(
+                    status, today, afterDate, afterId, PageRequest.of(0, chunkSize));
+            if (keys.isEmpty()) {
+                return;
+            }
+            CarbonCreditRepository.ExpiryKey last = keys.get(keys.size() - 1);
+            afterDate = last.getExpiryDate();
+            afterId = last.getId();
+
+            List<Long> ids = keys.stream().map(CarbonCreditRepository.ExpiryKey::getId).toList();
+            ChunkResult result = runChunk("credits " + status, () -> getSelf().expireCreditChunk(ids, today));
+            if (result != null) {
+                listingsCancelled.addAndGet(result.listingsClosed());
+                creditsExpired.addAndGet(result.creditsExpired());
+                walletsAdjusted.addAndGet(result.walletsAdjusted());
+            }
+            if (keys.size() < chunkSize) {
+                return;
+            }
+        }
+    }
+
+    private ChunkResult runChunk(String label, Supplier<ChunkResult> chunk) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ChunkResult result = chunk.get();
+                log.info("[EXPIRY] {} chunk {}: {} listings closed, {} credits expired, {} wallets adjusted",
+                        label, chunks.incrementAndGet(), result.listingsClosed(), result.creditsExpired(),
+                        result.walletsAdjusted());
+                return result;
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= maxAttempts) {
+                    failedChunks.incrementAndGet();
+                    log.error("[EXPIRY] {} chunk skipped after {} attempts (retried next sweep): {}",
+                            label, attempt, e.getMessage());
+                    return null;
+                }
+                log.warn("[EXPIRY] {} chunk lock conflict (attempt {}), retrying", label, attempt);
+                sleep(backoffMs * attempt);
+            }
+        }
+    }
+
+    // Niêm yết quá hạn của 1 chunk: EXPIRED, trả số lượng còn lại về credit
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public ChunkResult expireListingChunk(List<Long> listingIds, LocalDate today) {
+        List<MarketPlaceListing> listings = listingRepository.findByIdInAndStatusForUpdate(listingIds, ListingStatus.AVAILABLE)
+                .stream()
+                .filter(l -> l.getExpiresAt() != null && l.getExpiresAt().isBefore(today))
+                .toList();
+        if (listings.isEmpty()) {
+            return new ChunkResult(0, 0, 0);
+        }
+        Map<Long, CarbonCredit> credits = lockCredits(listings.stream()
+                .map(l -> l.getCarbonCredit().getId()).toList());
+        for (MarketPlaceListing listing : listings) {
+            restoreListed(credits.get(listing.getCarbonCredit().getId()), listing);
+            listing.setStatus(ListingStatus.EXPIRED);
+            matchingEngine.refreshListingAfterCommit(listing.getId());
+        }
+        return new ChunkResult(listings.size(), 0, 0);
+    }
+
+    /**
+     * Credit quá hạn của 1 chunk: hủy niêm yết đang mở, đánh dấu EXPIRED, trừ số tín chỉ còn lại khỏi ví công ty.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public ChunkResult expireCreditChunk(List<Long> creditIds, LocalDate today) {
+        // Khóa listing trước credit như luồng khớp lệnh
+        listingRepository.findByCreditIdInAndStatusForUpdate(creditIds, ListingStatus.AVAILABLE);
+        Map<Long, CarbonCredit> credits = lockCredits(creditIds);
+        credits.values().removeIf(c -> c.getStatus() == CreditStatus.EXPIRED
+                || c.getExpiryDate() == null || !c.getExpiryDate().isBefore(today));
+        if (credits.isEmpty()) {
+            return new ChunkResult(0, 0, 0);
+        }
+
+        // Đọc lại dưới khóa credit: gồm cả listing vừa tạo trước khi credit bị khóa
+        List<MarketPlaceListing> listings =
+                listingRepository.findByCreditIdInAndStatusForUpdate(credits.keySet(), ListingStatus.AVAILABLE);
+        for (MarketPlaceListing listing : listings) {
+            restoreListed(credits.get(listing.getCarbonCredit().getId()), listing);
+            listing.setStatus(ListingStatus.CANCELLED);
+            matchingEngine.refreshListingAfterCommit(listing.getId());
+        }
+
+        Map<Long, BigDecimal> expiredByCompany = new HashMap<>();
+        Map<Long, Integer> lotsByCompany = new HashMap<>();
+        for (CarbonCredit credit : credits.values()) {
+            credit.setStatus(CreditStatus.EXPIRED);
+            BigDecimal remaining = safe(credit.getAmount());
+            if (credit.getCompany() != null && remaining.signum() > 0) {
+                expiredByCompany.merge(credit.getCompany().getId(), remaining, BigDecimal::add);
+                lotsByCompany.merge(credit.getCompany().getId(), 1, Integer::sum);
+            }
+        }
+        int wallets = adjustWallets(expiredByCompany, lotsByCompany);
+        return new ChunkResult(listings.size(), credits.size(), wallets);
+    }
+
+    private Map<Long, CarbonCredit> lockCredits(List<Long> creditIds) {
+        Map<Long, CarbonCredit> credits = new LinkedHashMap<>();
+        for (CarbonCredit credit : creditRepository.findAllByIdInForUpdate(new TreeSet<>(creditIds))) {
+            credits.put(credit.getId(), credit);
+        }
+        return credits;
+    }
+
+    // Trả số lượng còn lại của listing về phần available của credit (như khi người bán xóa niêm yết)
+    private void restoreListed(CarbonCredit credit, MarketPlaceListing listing) {
+        BigDecimal quantity = safe(listing.getQuantity());
+        if (credit == null || quantity.signum() <= 0) {
+            return;
+        }
+        BigDecimal listed = safe(credit.getListedAmount()).subtract(quantity).max(BigDecimal.ZERO);
+        BigDecimal available = safe(credit.getCarbonCredit()).add(quantity);
+        credit.setListedAmount(listed);
+        credit.setCarbonCredit(available);
+        credit.setAmount(available.add(listed));
+        if (credit.getStatus() == CreditStatus.LISTED && listed.signum() == 0) {
+            credit.setStatus(CreditStatus.AVAILABLE);
+        }
+    }
+
+    private int adjustWallets(Map<Long, BigDecimal> expiredByCompany, Map<Long, Integer> lotsByCompany) {
+        if (expiredByCompany.isEmpty()) {
+            return 0;
+        }
+        Map<Long, Long> walletIdByCompany = new HashMap<>();
+        for (WalletRepository.CompanyWalletId row : walletRepository.findWalletIdsByCompanyIds(expiredByCompany.keySet())) {
+            walletIdByCompany.put(row.getCompanyId(), row.getWalletId());
+        }
+        Map<Long, Wallet> wallets = walletTransferEngine.lockInOrder(walletIdByCompany.values());
+
+        List<WalletTransaction> transactions = new ArrayList<>();
+        for (Map.Entry<Long, BigDecimal> entry : expiredByCompany.entrySet()) {
+            Wallet wallet = wallets.get(walletIdByCompany.get(entry.getKey()));
+            if (wallet == null) {
+                log.warn("[EXPIRY] Company {} has no wallet, {} expired credits not deducted",
+                        entry.getKey(), entry.getValue());
+                continue;
+            }
+            BigDecimal before = safe(wallet.getCarbonCreditBalance());
+            BigDecimal after = before.subtract(entry.getValue());
+            wallet.setCarbonCreditBalance(after);
+            transactions.add(WalletTransaction.builder()
+                    .wallet(wallet)
+                    .transactionType(WalletTransactionType.EXPIRE_CREDIT)
+                    .amount(entry.getValue())
+                    .balanceBefore(before)
+                    .balanceAfter(after)
+                    .description("Expired " + entry.getValue() + " credits from "
+                            + lotsByCompany.get(entry.getKey()) + " lots")
+                    .createdAt(LocalDateTime.now())
+                    .build());
+        }
+        // 1 dòng / công ty: ghi bằng JDBC batch (id IDENTITY làm saveAll insert từng dòng)
+        walletTransactionRepository.insertBatch(transactions);
+        return transactions.size();
+    }
+
+    private void resetProgress() {
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        listingsExpired.set(0);
+        listingsCancelled.set(0);
+        creditsExpired.set(0);
+        walletsAdjusted.set(0);
+        chunks.set(0);
+        failedChunks.set(0);
+    }
+
+    private static BigDecimal safe(BigDecimal value) {
+        return Objects.requireNonNullElse(value, BigDecimal.ZERO);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -9,9 +9,11 @@ import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.exception.ResourceNotFoundException;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
+import com.carbonx.marketcarbon.repository.ReportOwnerContributionQueryRepository.OwnerContributionRow;
+import com.carbonx.marketcarbon.repository.ReportOwnerContributionQueryRepository.SortKey;
 import com.carbonx.marketcarbon.service.CompanyPayoutQueryService;
 import com.carbonx.marketcarbon.service.DynamicPricingService;
-import lombok.Getter;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.core.Authentication;
@@ -22,7 +24,6 @@ import org.springframework.util.StringUtils;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Service Implementation: CompanyPayoutQueryService
@@ -38,13 +39,12 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
 
     // Quy đổi: 1000 kg CO2 = 1 Tín chỉ (1 Tấn)
     private static final BigDecimal KG_PER_CREDIT = new BigDecimal("1000");
-    // Hệ số phát thải mặc định nếu không có dữ liệu cụ thể (0.4 kg/kWh - ví dụ)
-    private static final BigDecimal DEFAULT_EMISSION_FACTOR = new BigDecimal("0.4");
 
     private final ProfitSharingProperties profitSharingProperties;
     private final CompanyRepository companyRepository;
     private final VehicleRepository vehicleRepository;
-    private final EmissionReportDetailRepository emissionReportDetailRepository;
+    private final ReportOwnerContributionRepository contributionRepository;
+    private final OwnerContributionIndex ownerContributionIndex;
     private final ProfitDistributionRepository profitDistributionRepository;
     private final ProfitDistributionDetailRepository profitDistributionDetailRepository;
     private final UserRepository userRepository;
@@ -66,8 +66,10 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
         ResolvedPolicy policy = profitSharingProperties.resolveForCompany(company.getId());
 
         // B2: Lấy giá tín chỉ thị trường và hệ số quy đổi từ Service giá động (Dynamic Pricing)
-        BigDecimal marketPricePerCredit = dynamicPricingService.getMarketPricePerCredit();
-        BigDecimal kwhPerCreditFactor = dynamicPricingService.getKwhPerCreditFactor();
+        // Đọc 1 snapshot cho cả 2 giá trị; trả version để đợt chi trả dùng đúng giá đã xem trước
+        DynamicPricingService.Snapshot pricing = dynamicPricingService.current();
+        BigDecimal marketPricePerCredit = pricing.marketPricePerCredit();
+        BigDecimal kwhPerCreditFactor = pricing.kwhPerCreditFactor();
 
         // B3: Tính giá Payout thực tế cho Owner
         // (Giá thị trường * % Owner được hưởng)
@@ -105,6 +107,7 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
                 .unitPricePerKwh(payoutPricePerKwh)            // Giá tham khảo per kWh
                 .unitPricePerCredit(actualPayoutPricePerCredit)// Giá tham khảo per Credit
                 .currency(policy.getCurrency())
+                .pricingVersion(pricing.version())
                 .build();
     }
 
@@ -132,32 +135,21 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
         if (size <= 0) { size = 20; }
         if (page < 0) { page = 0; }
 
-        // 2. Tổng hợp dữ liệu (Energy, Credits) nhóm theo từng Owner
-        Map<Long, OwnerAggregation> aggregations = buildOwnerAggregations(company, period.trim());
-        List<OwnerAggregation> filtered = new ArrayList<>(aggregations.values());
-
-        // 3. Lọc theo từ khóa tìm kiếm (nếu có)
-        if (StringUtils.hasText(search)) {
-            String keyword = search.trim().toLowerCase(Locale.ROOT);
-            filtered = filtered.stream()
-                    .filter(a -> matchesSearch(a, keyword))
-                    .collect(Collectors.toList());
-        }
-
-        // 4. Sắp xếp theo tên Owner
-        filtered.sort(Comparator.comparing(OwnerAggregation::getOwnerName,
-                Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)));
+        String trimmedPeriod = period.trim();
 
-        // 5. Phân trang thủ công trên List đã lọc
-        int totalItems = filtered.size();
-        int fromIndex = Math.min(page * size, totalItems);
-        int toIndex = Math.min(fromIndex + size, totalItems);
+        // 2. Report của kỳ chưa có bảng đóng góp (dữ liệu cũ) thì dựng trước
+        ownerContributionIndex.ensureAggregated(company.getId(), trimmedPeriod);
 
-        List<CompanyEVOwnerSummaryResponse> items = filtered.subList(fromIndex, toIndex).stream()
-                .map(OwnerAggregation::toResponseWithoutPayout)
-                .toList();
+        // 3. Đếm + đọc đúng 1 trang owner: lọc từ khóa, sắp theo tên và cộng đóng góp của kỳ trong SQL
+        long totalItems = contributionRepository.countPeriodOwners(company.getId(), search);
+        List<CompanyEVOwnerSummaryResponse> items = totalItems == 0
+                ? List.of()
+                : contributionRepository.findPeriodPage(company.getId(), trimmedPeriod, search, size, (long) page * size)
+                        .stream()
+                        .map(this::toOwnerSummary)
+                        .toList();
 
-        int totalPages = size == 0 ? 0 : (int) Math.ceil(totalItems / (double) size);
+        int totalPages = (int) Math.ceil(totalItems / (double) size);
 
         return PageResponse.<List<CompanyEVOwnerSummaryResponse>>builder()
                 .pageNo(page)
@@ -227,31 +219,26 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
             throw new AppException(ErrorCode.ACCESS_DENIED);
         }
 
-        List<EmissionReportDetail> details = emissionReportDetailRepository.findByReport_Id(reportId);
-
-        // Tổng hợp dữ liệu thô (Energy/Credit) theo Owner
-        Map<Long, OwnerAggregation> aggregationMap = buildOwnerAggregations(company.getId(), details);
-
-        // Chỉ lấy những owner có đóng góp (Energy > 0 hoặc Credit > 0)
-        List<OwnerAggregation> relevantAggregations = aggregationMap.values().stream()
-                .filter(OwnerAggregation::hasContribution)
-                .toList();
+        // Tổng của report đọc từ 1 dòng đã lưu lúc upload (report cũ thì dựng ở lần đọc đầu)
+        OwnerContributionIndex.Summary totals = ownerContributionIndex.ensureAggregated(report);
 
         // Case danh sách rỗng
-        if (relevantAggregations.isEmpty()) {
+        if (totals.owners() == 0) {
             return buildEmptyReportResponse(page, size, scale);
         }
 
-        // --- TÍNH TOÁN CHI TIẾT ---
+        // --- TÍNH TOÁN CHI TIẾT (chỉ cho trang hiện tại) ---
 
-        List<OwnerPayoutView> ownerViews = new ArrayList<>();
-        BigDecimal grandTotalPayout = BigDecimal.ZERO;
-        BigDecimal totalEnergy = BigDecimal.ZERO;
-        BigDecimal totalCreditsTCO2e = BigDecimal.ZERO;
+        // Sắp xếp + phân trang bằng index (report_id, cột) của bảng đóng góp
+        SortSpec sortSpec = resolveSort(sort, formulaMode);
+        List<OwnerContributionRow> rows = contributionRepository.findReportPage(
+                reportId, sortSpec.key(), sortSpec.desc(), size, (long) page * size);
 
-        for (OwnerAggregation aggregation : relevantAggregations) {
-            BigDecimal energy = aggregation.getEnergy().setScale(6, RoundingMode.HALF_UP);
-            BigDecimal creditsTCO2e = aggregation.getCredits().setScale(6, RoundingMode.HALF_UP);
+        List<CompanyPayoutSummaryItemResponse> pageItems = new ArrayList<>(rows.size());
+        BigDecimal pageTotalPayout = BigDecimal.ZERO;
+        for (OwnerContributionRow row : rows) {
+            BigDecimal energy = optional(row.energyKwh(), 6);
+            BigDecimal creditsTCO2e = optional(row.creditsTco2e(), 6);
 
             // Tính tiền payout cho từng Owner dựa trên mode đã chọn
             BigDecimal payout = computePayout(
@@ -262,36 +249,24 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
                     kwhPerCreditFactor,
                     scale
             );
+            pageTotalPayout = pageTotalPayout.add(payout);
+            pageItems.add(toPayoutItem(row, energy, creditsTCO2e, payout));
+        }
+
+        // Tổng tiền tính trên tổng energy/credit đã lưu (payout tuyến tính theo 2 giá trị này)
+        BigDecimal totalEnergy = optional(totals.energyKwh(), 6);
+        BigDecimal totalCreditsTCO2e = optional(totals.creditsTco2e(), 6);
+        BigDecimal grandTotalPayout = computePayout(
+                totalEnergy,
+                totalCreditsTCO2e,
+                formulaMode,
+                actualPayoutPricePerCredit,
+                kwhPerCreditFactor,
+                scale
+        );
 
-            ownerViews.add(new OwnerPayoutView(aggregation, energy, creditsTCO2e, payout, ownerSharePct));
-
-            // Cộng dồn tổng
-            grandTotalPayout = grandTotalPayout.add(payout);
-            totalEnergy = totalEnergy.add(energy);
-            totalCreditsTCO2e = totalCreditsTCO2e.add(creditsTCO2e);
-        }
-
-        // Sắp xếp danh sách kết quả
-        ownerViews.sort(resolveComparator(sort));
-
-        // Phân trang kết quả tính toán
-        int totalOwners = ownerViews.size();
-        int fromIndex = Math.min(page * size, totalOwners);
-        int toIndex = Math.min(fromIndex + size, totalOwners);
-        List<OwnerPayoutView> pageSlice = ownerViews.subList(fromIndex, toIndex);
-
-        // Convert sang DTO response
-        List<CompanyPayoutSummaryItemResponse> pageItems = pageSlice.stream()
-                .map(view -> view.toResponse(scale))
-                .toList();
-
-        // Tính tổng tiền của trang hiện tại
-        BigDecimal pageTotalPayout = pageSlice.stream()
-                .map(OwnerPayoutView::getPayout)
-                .reduce(BigDecimal.ZERO, BigDecimal::add)
-                .setScale(scale, RoundingMode.HALF_UP);
-
-        int totalPages = size == 0 ? 0 : (int) Math.ceil(totalOwners / (double) size);
+        int totalOwners = totals.owners();
+        int totalPages = (int) Math.ceil(totalOwners / (double) size);
 
         // Build response object
         PageResponse<List<CompanyPayoutSummaryItemResponse>> pageResponse = PageResponse.<List<CompanyPayoutSummaryItemResponse>>builder()
@@ -303,10 +278,10 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
 
         CompanyPayoutSummaryResponse summary = CompanyPayoutSummaryResponse.builder()
                 .items(pageItems)
-                .pageTotalPayout(pageTotalPayout)
-                .grandTotalPayout(grandTotalPayout.setScale(scale, RoundingMode.HALF_UP))
-                .totalEnergyKwh(totalEnergy.setScale(6, RoundingMode.HALF_UP))
-                .totalCredits(totalCreditsTCO2e.setScale(6, RoundingMode.HALF_UP))
+                .pageTotalPayout(pageTotalPayout.setScale(scale, RoundingMode.HALF_UP))
+                .grandTotalPayout(grandTotalPayout)
+                .totalEnergyKwh(totalEnergy)
+                .totalCredits(totalCreditsTCO2e)
                 .ownersCount(totalOwners)
                 .build();
 
@@ -411,111 +386,6 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
                 .build();
     }
 
-    /**
-     * Helper: Tổng hợp dữ liệu Owner theo kỳ (Period).
-     */
-    private Map<Long, OwnerAggregation> buildOwnerAggregations(Company company, String period) {
-        List<EmissionReportDetail> details = emissionReportDetailRepository
-                .findByCompanyIdAndPeriod(company.getId(), period);
-        return buildOwnerAggregations(company.getId(), details);
-    }
-
-    /**
-     * Core Logic: Gom nhóm dữ liệu từ List<EmissionReportDetail> vào Map<OwnerId, OwnerAggregation>.
-     * Xử lý việc map biển số xe (Plate) về đúng chủ sở hữu (Owner).
-     */
-    private Map<Long, OwnerAggregation> buildOwnerAggregations(Long companyId, List<EmissionReportDetail> details) {
-        // Chuẩn bị context: Map sẵn Vehicle Plate -> Owner
-        OwnerAggregationContext context = prepareOwnerAggregation(companyId);
-
-        if (details == null || details.isEmpty()) {
-            return context.getOwnersById();
-        }
-
-        // Duyệt qua từng record chi tiết phát thải
-        for (EmissionReportDetail detail : details) {
-            if (detail.getCompanyId() != null && !Objects.equals(detail.getCompanyId(), companyId)) {
-                continue;
-            }
-            String normalizedPlate = normalizePlate(detail.getVehiclePlate());
-            if (!StringUtils.hasText(normalizedPlate)) {
-                continue;
-            }
-
-            // Tìm Owner dựa trên biển số xe
-            OwnerAggregation aggregation = context.getOwnersByPlate().get(normalizedPlate);
-            if (aggregation == null) {
-                continue; // Bỏ qua nếu xe không thuộc về owner nào trong hệ thống
-            }
-
-            BigDecimal energy = optional(detail.getTotalEnergy(), 6);
-            BigDecimal credits = resolveCredits(detail, energy);
-
-            // Cộng dồn vào object tổng hợp
-            aggregation.addEnergy(energy);
-            aggregation.addCredits(credits);
-        }
-        return context.getOwnersById();
-    }
-
-    /**
-     * Helper: Tạo Map ánh xạ từ Vehicle Plate -> OwnerAggregation object.
-     * Giúp việc lookup owner khi duyệt report detail nhanh hơn (O(1)).
-     */
-    private OwnerAggregationContext prepareOwnerAggregation(Long companyId) {
-        List<Vehicle> vehicles = vehicleRepository.findByCompanyId(companyId);
-        Map<Long, OwnerAggregation> ownersById = new HashMap<>();
-        Map<String, OwnerAggregation> ownersByPlate = new HashMap<>();
-
-        for (Vehicle vehicle : vehicles) {
-            if (vehicle.getEvOwner() == null) {
-                continue;
-            }
-            // Tạo hoặc lấy OwnerAggregation đã tồn tại
-            OwnerAggregation aggregation = ownersById.computeIfAbsent(
-                    vehicle.getEvOwner().getId(),
-                    id -> new OwnerAggregation(vehicle.getEvOwner().getId(),
-                            vehicle.getEvOwner().getName(),
-                            vehicle.getEvOwner().getEmail(),
-                            vehicle.getEvOwner().getPhone()));
-
-            aggregation.incrementVehicleCount();
-
-            // Map biển số xe vào aggregation này
-            if (StringUtils.hasText(vehicle.getPlateNumber())) {
-                ownersByPlate.put(normalizePlate(vehicle.getPlateNumber()), aggregation);
-            }
-        }
-        return new OwnerAggregationContext(ownersById, ownersByPlate);
-    }
-
-    // Helper lọc kết quả search
-    private boolean matchesSearch(OwnerAggregation aggregation, String keyword) {
-        return (aggregation.getOwnerName() != null && aggregation.getOwnerName().toLowerCase(Locale.ROOT).contains(keyword))
-                || (aggregation.getEmail() != null && aggregation.getEmail().toLowerCase(Locale.ROOT).contains(keyword))
-                || (aggregation.getPhone() != null && aggregation.getPhone().toLowerCase(Locale.ROOT).contains(keyword));
-    }
-
-    // Helper chuẩn hóa biển số xe (xóa khoảng trắng, uppercase)
-    private String normalizePlate(String plate) {
-        return plate == null ? null : plate.replaceAll("\\s+", "").toUpperCase(Locale.ROOT);
-    }
-
-    /**
-     * Helper: Tính toán lượng Credit.
-     * Ưu tiên lấy từ field co2Kg có sẵn, nếu không có thì tính từ Energy * EmissionFactor.
-     */
-    private BigDecimal resolveCredits(EmissionReportDetail detail, BigDecimal fallbackEnergy) {
-        if (detail.getCo2Kg() != null && detail.getCo2Kg().compareTo(BigDecimal.ZERO) > 0) {
-            return detail.getCo2Kg().divide(KG_PER_CREDIT, 6, RoundingMode.HALF_UP);
-        }
-        if (fallbackEnergy != null && fallbackEnergy.compareTo(BigDecimal.ZERO) > 0) {
-            return fallbackEnergy.multiply(DEFAULT_EMISSION_FACTOR)
-                    .divide(KG_PER_CREDIT, 6, RoundingMode.HALF_UP);
-        }
-        return BigDecimal.ZERO;
-    }
-
     // --- Helpers resolve override values (Lấy giá trị override nếu có, không thì lấy mặc định) ---
 
     private BigDecimal resolvePricePerCredit(BigDecimal override,
@@ -595,8 +465,8 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
         return base.setScale(scale, RoundingMode.HALF_UP);
     }
 
-    // Helper xây dựng Comparator để sort
-    private Comparator<OwnerPayoutView> resolveComparator(String sort) {
+    // Helper chọn cột sắp xếp (chỉ các cột có index, không nhận tên cột tự do từ request)
+    private SortSpec resolveSort(String sort, FormulaMode formulaMode) {
         String field = "ownerName";
         String direction = "asc";
         if (StringUtils.hasText(sort)) {
@@ -609,21 +479,15 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
             }
         }
 
-        Comparator<OwnerPayoutView> comparator;
-        switch (field) {
-            case "totalEnergyKwh" -> comparator = Comparator.comparing(OwnerPayoutView::getEnergy);
-            case "totalCredits" -> comparator = Comparator.comparing(OwnerPayoutView::getCredits);
-            case "payoutAmount" -> comparator = Comparator.comparing(OwnerPayoutView::getPayout);
-            case "vehiclesCount" -> comparator = Comparator.comparingLong(view -> view.getAggregation().getVehiclesCount());
-            default -> comparator = Comparator.comparing(
-                    view -> view.getAggregation().getOwnerName(),
-                    Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER));
-        }
-
-        if ("desc".equalsIgnoreCase(direction)) {
-            comparator = comparator.reversed();
-        }
-        return comparator;
+        SortKey key = switch (field) {
+            case "totalEnergyKwh" -> SortKey.ENERGY;
+            case "totalCredits" -> SortKey.CREDITS;
+            // Payout tỉ lệ thuận với energy (ENERGY) hoặc credit (CREDITS) nên sắp theo đúng cột đó
+            case "payoutAmount" -> formulaMode == FormulaMode.ENERGY ? SortKey.ENERGY : SortKey.CREDITS;
+            case "vehiclesCount" -> SortKey.VEHICLES;
+            default -> SortKey.OWNER_NAME;
+        };
+        return new SortSpec(key, "desc".equalsIgnoreCase(direction));
     }
 
     // Enum định nghĩa chế độ tính toán
@@ -643,60 +507,38 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
         }
     }
 
-    /**
-     * Inner Class: Context chứa các map lookup chủ xe.
-     */
-    @Getter
-    private static class OwnerAggregationContext {
-        private final Map<Long, OwnerAggregation> ownersById;
-        private final Map<String, OwnerAggregation> ownersByPlate;
-
-        private OwnerAggregationContext(Map<Long, OwnerAggregation> ownersById,
-                                        Map<String, OwnerAggregation> ownersByPlate) {
-            this.ownersById = ownersById;
-            this.ownersByPlate = ownersByPlate;
-        }
+    private record SortSpec(SortKey key, boolean desc) {}
+
+    // Helper map 1 dòng đóng góp -> item chi trả (credit hiển thị là số gốc, chưa nhân %)
+    private CompanyPayoutSummaryItemResponse toPayoutItem(OwnerContributionRow row,
+                                                          BigDecimal energy,
+                                                          BigDecimal creditsTCO2e,
+                                                          BigDecimal payout) {
+        return CompanyPayoutSummaryItemResponse.builder()
+                .ownerId(row.ownerId())
+                .ownerName(row.ownerName())
+                .email(row.email())
+                .phone(row.phone())
+                .vehiclesCount(row.vehiclesCount())
+                .energyKwh(energy)
+                .credits(creditsTCO2e)
+                .amountUsd(payout)
+                .status("PREVIEW")
+                .build();
     }
 
-    /**
-     * Inner Class: View Model dùng cho việc tính toán hiển thị chi tiết.
-     */
-    @Getter
-    private static class OwnerPayoutView {
-        private final OwnerAggregation aggregation;
-        private final BigDecimal energy;
-        private final BigDecimal credits; // (Đây là tCO2e)
-        private final BigDecimal payout;
-        private final BigDecimal ownerSharePct;
-
-        private OwnerPayoutView(OwnerAggregation aggregation,
-                                BigDecimal energy,
-                                BigDecimal credits,
-                                BigDecimal payout,
-                                BigDecimal ownerSharePct) {
-            this.aggregation = aggregation;
-            this.energy = energy;
-            this.credits = credits;
-            this.payout = payout;
-            this.ownerSharePct = ownerSharePct;
-        }
-
-        private CompanyPayoutSummaryItemResponse toResponse(int payoutScale) {
-            // Hiển thị số credit gốc (chưa nhân %)
-            BigDecimal originalCredits = credits.setScale(6, RoundingMode.HALF_UP);
-
-            return CompanyPayoutSummaryItemResponse.builder()
-                    .ownerId(aggregation.getOwnerId())
-                    .ownerName(aggregation.getOwnerName())
-                    .email(aggregation.getEmail())
-                    .phone(aggregation.getPhone())
-                    .vehiclesCount(aggregation.getVehiclesCount())
-                    .energyKwh(energy)
-                    .credits(originalCredits) // Hiển thị credit gốc
-                    .amountUsd(payout.setScale(payoutScale, RoundingMode.HALF_UP))
-                    .status("PREVIEW")
-                    .build();
-        }
+    // Helper map 1 owner của kỳ -> summary (Payout = 0 vì đây chỉ là summary)
+    private CompanyEVOwnerSummaryResponse toOwnerSummary(OwnerContributionRow row) {
+        return CompanyEVOwnerSummaryResponse.builder()
+                .ownerId(row.ownerId())
+                .ownerName(row.ownerName())
+                .email(row.email())
+                .phone(row.phone())
+                .vehiclesCount(row.vehiclesCount())
+                .totalEnergyKwh(optional(row.energyKwh(), 6))
+                .payoutAmount(BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP))
+                .totalCredits(optional(row.creditsTco2e(), 6))
+                .build();
     }
 
     // Helper Security check: Đảm bảo user đang login có quyền truy cập công ty
@@ -722,59 +564,4 @@ public class CompanyPayoutQueryServiceImpl implements CompanyPayoutQueryService
                 .orElse(BigDecimal.ZERO)
                 .setScale(scale, RoundingMode.HALF_UP);
     }
-
-    /**
-     * Inner Class: DTO dùng nội bộ để cộng dồn Energy/Credits cho từng Owner.
-     */
-    @Getter
-    private static class OwnerAggregation {
-        private final Long ownerId;
-        private final String ownerName;
-        private final String email;
-        private final String phone;
-        private long vehiclesCount;
-        private BigDecimal energy = BigDecimal.ZERO;
-        private BigDecimal credits = BigDecimal.ZERO; // (Đây là tCO2e)
-
-        private OwnerAggregation(Long ownerId, String ownerName, String email, String phone) {
-            this.ownerId = ownerId;
-            this.ownerName = ownerName;
-            this.email = email;
-            this.phone = phone;
-        }
-
-        private void incrementVehicleCount() {
-            this.vehiclesCount++;
-        }
-
-        private void addEnergy(BigDecimal value) {
-            if (value == null) {
-                return;
-            }
-            energy = energy.add(value);
-        }
-
-        private void addCredits(BigDecimal value) {
-            if (value == null) {
-                return;
-            }
-            credits = credits.add(value);
-        }
-
-        private CompanyEVOwnerSummaryResponse toResponseWithoutPayout() {
-            return CompanyEVOwnerSummaryResponse.builder()
-                    .ownerId(ownerId)
-                    .ownerName(ownerName)
-                    .email(email)
-                    .phone(phone)
-                    .vehiclesCount(vehiclesCount)
-                    .totalEnergyKwh(energy.setScale(6, RoundingMode.HALF_UP))
-                    .payoutAmount(BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP)) // Payout = 0 vì đây chỉ là summary
-                    .totalCredits(credits.setScale(6, RoundingMode.HALF_UP))
-                    .build();
-        }
-        private boolean hasContribution() {
-            return energy.compareTo(BigDecimal.ZERO) > 0 || credits.compareTo(BigDecimal.ZERO) > 0;
-        }
-    }
 }
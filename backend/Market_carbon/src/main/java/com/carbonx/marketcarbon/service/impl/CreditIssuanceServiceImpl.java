@@ -1,7 +1,8 @@
 package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.certificate.CertificateData;
-import com.carbonx.marketcarbon.certificate.CertificatePdfService;
+import com.carbonx.marketcarbon.certificate.CertificateJobService;
+import com.carbonx.marketcarbon.common.CertificateJobType;
 import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.EmissionStatus;
 import com.carbonx.marketcarbon.common.WalletTransactionType;
@@ -11,9 +12,8 @@ import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.CreditIssuanceService;
-import com.carbonx.marketcarbon.service.EmailService;
 import com.carbonx.marketcarbon.service.SseService;
-import com.carbonx.marketcarbon.service.StorageService;
+import com.carbonx.marketcarbon.service.credit.SerialBlockAllocator;
 import com.carbonx.marketcarbon.service.credit.SerialNumberService;
 import com.carbonx.marketcarbon.service.credit.SerialNumberService.SerialRange;
 import com.carbonx.marketcarbon.service.credit.formula.CreditFormula;
@@ -27,16 +27,13 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.io.InputStream;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
-import java.util.ArrayList;
-import java.util.List;
 
 @Slf4j
 @Service
@@ -49,10 +46,10 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
     private final CompanyRepository companyRepository;
     private final ProjectRepository projectRepository;
     private final CreditCertificateRepository certificateRepo;
-    private final CertificatePdfService certificatePdfService;
-    private final EmailService emailService;
+    private final CertificateJobService certificateJobService;
     private final CreditFormula creditFormula;
     private final SerialNumberService serialSvc;
+    private final SerialBlockAllocator serialBlockAllocator;
     private final WalletRepository walletRepository;
     private final WalletTransactionRepository walletTransactionRepository;
     private final SseService sseService;
@@ -63,235 +60,8 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
     @Transactional
     @Override
     public CreditBatchResponse issueForReport(Long reportId) {
-        EmissionReport report = reportRepo.findById(reportId)
-                .orElseThrow(() -> new AppException(ErrorCode.REPORT_NOT_FOUND));
-
-        if (report.getStatus() != EmissionStatus.ADMIN_APPROVED)
-            throw new AppException(ErrorCode.REPORT_NOT_APPROVED);
-
-        batchRepo.findByReportId(reportId)
-                .ifPresent(b -> { throw new AppException(ErrorCode.CREDIT_ALREADY_ISSUED); });
-
-        Company company = companyRepository.findById(report.getSeller().getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
-        Project project = projectRepository.findById(report.getProject().getId())
-                .orElseThrow(() -> new AppException(ErrorCode.PROJECT_NOT_FOUND));
-
-        var result = creditFormula.compute(report, project);
-        if (result.getCreditsCount() <= 0)
-            throw new AppException(ErrorCode.CREDIT_QUANTITY_INVALID);
-
-        int year = Integer.parseInt(report.getPeriod().substring(0, 4));
-        String companyCode = CodeGenerator.slug3WithId(company.getCompanyName(), "COMP", company.getId());
-        String projectCode = CodeGenerator.slug3WithId(project.getTitle(), "PRJ", project.getId());
-
-        SerialRange range = serialSvc.allocate(project, company, year, result.getCreditsCount());
-        String prefix = year + "-" + companyCode + "-" + projectCode + "-";
-        String batchCode = prefix + String.format("%06d", range.from()) + "_" + String.format("%06d", range.to());
-
-        String issuedBy = java.util.Optional
-                .ofNullable(SecurityContextHolder.getContext().getAuthentication())
-                .map(Authentication::getName)
-                .orElse("system@carbonx.com");
-
-        LocalDateTime issuedAt = LocalDateTime.now();
-        LocalDate expiresAt = issuedAt.toLocalDate().plusYears(1);
-
-        CreditBatch batch = CreditBatch.builder()
-                .report(report)
-                .company(company)
-                .project(project)
-                .batchCode(batchCode)
-                .totalTco2e(result.getTotalTco2e())
-                .creditsCount(result.getCreditsCount())
-                .residualTco2e(result.getResidualTco2e())
-                .vintageYear(year)
-                .serialPrefix(prefix)
-                .serialFrom(range.from())
-                .serialTo(range.to())
-                .status("ISSUED")
-                .issuedBy(issuedBy)
-                .issuedAt(issuedAt)
-                .expiresAt(expiresAt)
-                .build();
-
-        batch = batchRepo.save(batch);
-
-        // Giai đoạn 1: Sinh các tín chỉ ở trạng thái ISSUED
-        List<CarbonCredit> credits = new ArrayList<>(result.getCreditsCount());
-        for (long s = range.from(); s <= range.to(); s++) {
-            String code = serialSvc.buildCode(year, companyCode, projectCode, s);
-            credits.add(CarbonCredit.builder()
-                    .batch(batch)
-                    .company(company)
-                    .project(project)
-                    .creditCode(code)
-                    .vintageYear(year)
-                    .status(CreditStatus.ISSUED)
-                    .issuedBy(issuedBy)
-                    .issuedAt(OffsetDateTime.now())
-                    .expiryDate(LocalDate.now().plusYears(1))
-                    .amount(BigDecimal.ONE)
-                    .carbonCredit(BigDecimal.ONE)
-                    .tCo2e(BigDecimal.ONE)
-                    .name("Carbon Credit")
-                    .currentPrice(0.0)
-                    .build());
-        }
-        creditRepo.saveAll(credits);
-
-        // Giai đoạn 2: Sau khi nạp vào ví, chuyển sang AVAILABLE
-        credits.forEach(c -> c.setStatus(CreditStatus.AVAILABLE));
-        creditRepo.saveAll(credits);
-
-        // Cập nhật ví và tạo giao dịch
-        Wallet wallet = walletRepository.findByCompany(company)
-                .orElseGet(() -> {
-                    Wallet existing = walletRepository.findByUserId(company.getUser().getId());
-                    if (existing != null) return existing;
-
-                    Wallet newWallet = Wallet.builder()
-                            .company(company)
-                            .user(company.getUser())
-                            .balance(BigDecimal.ZERO)
-                            .carbonCreditBalance(BigDecimal.ZERO)
-                            .build();
-                    return walletRepository.save(newWallet);
-                });
-
-        BigDecimal issuedCredits = BigDecimal.valueOf(result.getCreditsCount());
-        BigDecimal before = wallet.getCarbonCreditBalance();
-        BigDecimal after = before.add(issuedCredits);
-        wallet.setCarbonCreditBalance(after);
-        walletRepository.save(wallet);
-
-        WalletTransaction tx = WalletTransaction.builder()
-                .wallet(wallet)
-                .transactionType(WalletTransactionType.ISSUE_CREDIT)
-                .amount(issuedCredits)
-                .balanceBefore(before)
-                .balanceAfter(after)
-                .creditBatch(batch)
-                .description("Issued " + result.getCreditsCount() + " Carbon Credits for project " + project.getTitle())
-                .createdAt(LocalDateTime.now())
-                .build();
-        walletTransactionRepository.save(tx);
-
-        report.setStatus(EmissionStatus.CREDIT_ISSUED);
-        report.setResidualTco2e(result.getResidualTco2e());
-        reportRepo.save(report);
-
-        log.info("Issued {} credits for company {} (project {})",
-                result.getCreditsCount(), company.getCompanyName(), project.getTitle());
-
-        String message = "Admin issue " +  result.getCreditsCount() + " to your company wallet" ;
-        sseService.sendNotificationToUser(company.getUser().getId(), message);
-
-        // ------------------ CERTIFICATE ------------------
-            String certificateCode = "CERT-" + batch.getBatchCode().replace("-", "") + "-" + System.currentTimeMillis();
-
-            CreditCertificate cert = CreditCertificate.builder()
-                    .batch(batch)
-                    .certificateCode(certificateCode)
-                    .issuedTo(company.getCompanyName())
-                    .issuedEmail(company.getUser().getEmail())
-                    .verifyUrl("https://verify.carbonx.io/" + certificateCode)
-                    .qrCodeUrl("https://api.qrserver.com/v1/create-qr-code/?size=220x220&data=" +
-                            java.net.URLEncoder.encode("https://verify.carbonx.io/" + certificateCode,
-                                    java.nio.charset.StandardCharsets.UTF_8))
-                    .registry("CarbonX Internal Registry")
-                    .standard("ISO 14064-2 aligned")
-                    .methodology("EV Charging Emission Reduction Methodology v1.0")
-                    .build();
-            cert = certificateRepo.save(cert);
-
-            String validatedBy = "CVA Organization";
-            if (report.getVerifiedAt() != null && report.getVerifiedByCva() != null)
-                validatedBy = report.getVerifiedByCva().getDisplayName();
-
-            CertificateData data = CertificateData.builder()
-                    .creditsCount(batch.getCreditsCount())
-                    .totalTco2e(result.getTotalTco2e().doubleValue())
-                    .retired(false)
-                    .projectTitle(project.getTitle())
-                    .companyName(company.getCompanyName())
-                    .status("ISSUED")
-                    .vintageYear(year)
-                    .batchCode(batchCode)
-                    .serialPrefix(prefix)
-                    .serialFrom(String.format("%06d", range.from()))
-                    .serialTo(String.format("%06d", range.to()))
-                    .certificateCode(certificateCode)
-                    .standard(
-                            project.getTechnicalIndicators() != null && !project.getTechnicalIndicators().isBlank()
-                                    ? project.getTechnicalIndicators()
-                                    : "N/A"
-                    )
-                    .methodology(
-                            project.getMeasurementMethod() != null && !project.getMeasurementMethod().isBlank()
-                                    ? project.getMeasurementMethod()
-                                    : "N/A"
-                    )
-                    .projectId("PRJ-" + project.getId())
-                    .issuedAt(batch.getIssuedAt().toLocalDate().toString())
-                    .issuerName("CarbonX Marketplace")
-                    .issuerTitle("Authorized Signatory")
-                    .issuerSignatureUrl("https://carbonx-storagee.s3.ap-southeast-2.amazonaws.com/ch%E1%BB%AF+k%C3%AD+CarbonX.jpg")
-                    .leftLogoUrl("https://carbonx-storagee.s3.ap-southeast-2.amazonaws.com/carbonlogooo.jpg")
-                    .rightLogoUrl("https://carbonx-storagee.s3.ap-southeast-2.amazonaws.com/carbonlogooo.jpg")
-                    .verifiedBy(validatedBy)
-                    .qrCodeUrl(cert.getQrCodeUrl())
-                    .verifyUrl(cert.getVerifyUrl())
-                    .build();
-
-            StorageService.StoredObject stored = certificatePdfService.generateAndUploadPdf(data);
-            String pdfUrl = stored.url(); // URL S3 public/presigned
-
-            // LƯU URL S3 vào certificate
-            cert.setCertificateUrl(pdfUrl);
-            certificateRepo.save(cert);
-
-            batch.setCertificate(cert);
-            batchRepo.save(batch);
-
-        // Tải bytes để đính kèm email
-        byte[] pdf;
-        try (InputStream in = new java.net.URL(pdfUrl).openStream()) {
-            pdf = in.readAllBytes();
-        } catch (IOException ioEx) {
-            throw new UncheckedIOException("Cannot download PDF from " + pdfUrl, ioEx);
-        }
-
-        try {
-            String subject = "Your Carbon Credit Certificate is Ready!";
-            String htmlBody = """
-            <div style='font-family:Arial,sans-serif;color:#333;'>
-              <h2 style='color:#16a34a;'>Congratulations, %s!</h2>
-              <p>Your company has been issued <b>%d Carbon Credits</b> for project <b>%s</b>.</p>
-              <p>Certificate Code: <b>%s</b></p>
-              <p>You can <a href="%s" target="_blank">view/download the certificate here</a>.</p>
-              <p>Best regards,<br><b>CarbonX Marketplace</b></p>
-            </div>
-            """.formatted(
-                    company.getCompanyName(),
-                    batch.getCreditsCount(),
-                    project.getTitle(),
-                    certificateCode,
-                    pdfUrl
-            );
-
-            emailService.sendEmailWithAttachment(
-                    company.getUser().getEmail(),
-                    subject,
-                    htmlBody,
-                    pdf,
-                    "CarbonX_Certificate.pdf"
-            );
-        } catch (Exception e) {
-            log.error("Failed to send certificate email: {}", e.getMessage(), e);
-        }
-
-        return toResponse(batch, cert);
+        // Không truyền số duyệt => cấp full số tín chỉ hệ thống tính
+        return issueForReport(reportId, null);
     }
 
     @Transactional
@@ -370,33 +140,32 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
 
         batch = batchRepo.save(batch);
 
-        // Giai đoạn 1: Sinh các tín chỉ ở trạng thái ISSUED
-        List<CarbonCredit> credits = new ArrayList<>(creditsToIssue);
-        long serial = range.from();
-        for (int i = 0; i < creditsToIssue; i++, serial++) {
-            String code = serialSvc.buildCode(year, companyCode, projectCode, serial);
-            credits.add(CarbonCredit.builder()
-                    .batch(batch)
-                    .company(company)
-                    .project(project)
-                    .creditCode(code)
-                    .vintageYear(year)
-                    .status(CreditStatus.ISSUED)
-                    .issuedBy(issuedBy)
-                    .issuedAt(OffsetDateTime.now())
-                    .expiryDate(LocalDate.now().plusYears(1))
-                    .amount(BigDecimal.ONE)
-                    .carbonCredit(BigDecimal.ONE)
-                    .tCo2e(BigDecimal.ONE)
-                    .name("Carbon Credit")
-                    .currentPrice(0.0)
-                    .build());
-        }
-        creditRepo.saveAll(credits);
-
-        // Giai đoạn 2: Sau khi nạp vào ví, chuyển sang AVAILABLE
-        credits.forEach(c -> c.setStatus(CreditStatus.AVAILABLE));
-        creditRepo.saveAll(credits);
+        // Ghi 1 lô (lot) duy nhất cho toàn bộ batch, trạng thái cuối AVAILABLE ngay từ đầu.
+        // Lô giữ dải serial của batch; chuyển nhượng/retire 1 phần sẽ tách dải (SerialNumberService.takeHead)
+        BigDecimal lotQuantity = BigDecimal.valueOf(creditsToIssue);
+        CarbonCredit lot = CarbonCredit.builder()
+                .batch(batch)
+                .company(company)
+                .project(project)
+                .creditCode(batchCode)
+                .vintageYear(year)
+                .status(CreditStatus.AVAILABLE)
+                .issuedBy(issuedBy)
+                .issuedAt(OffsetDateTime.now())
+                .expiryDate(expiresAt)
+                .amount(lotQuantity)
+                .carbonCredit(lotQuantity)
+                .listedAmount(BigDecimal.ZERO)
+                .tCo2e(BigDecimal.ONE)
+                .serialFrom(range.from())
+                .serialTo(range.to())
+                .name("Carbon Credit")
+                .currentPrice(0.0)
+                .lineageDepth(0)
+                .build();
+        creditRepo.save(lot);
+        // Lô gốc: origin là chính nó (id có sau insert, cập nhật khi flush cùng transaction)
+        lot.setOriginCreditId(lot.getId());
 
         // Cập nhật ví và tạo giao dịch
         Wallet wallet = walletRepository.findByCompany(company)
@@ -441,7 +210,7 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
                 creditsToIssue, company.getCompanyName(), project.getTitle(), computedCredits);
 
         String message = "Admin issued " + creditsToIssue + " credits to your company wallet";
-        sseService.sendNotificationToUser(company.getUser().getId(), message);
+        notifyAfterCommit(company.getUser().getId(), message);
 
         // ------------------ CERTIFICATE ------------------
         String certificateCode = "CERT-" + batch.getBatchCode().replace("-", "") + "-" + System.currentTimeMillis();
@@ -501,50 +270,12 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
                 .verifyUrl(cert.getVerifyUrl())
                 .build();
 
-        StorageService.StoredObject stored = certificatePdfService.generateAndUploadPdf(data);
-        String pdfUrl = stored.url();
-
-        cert.setCertificateUrl(pdfUrl);
-        certificateRepo.save(cert);
-
         batch.setCertificate(cert);
         batchRepo.save(batch);
 
-        byte[] pdf;
-        try (InputStream in = new java.net.URL(pdfUrl).openStream()) {
-            pdf = in.readAllBytes();
-        } catch (IOException ioEx) {
-            throw new UncheckedIOException("Cannot download PDF from " + pdfUrl, ioEx);
-        }
-
-        try {
-            String subject = "Your Carbon Credit Certificate is Ready!";
-            String htmlBody = """
-        <div style='font-family:Arial,sans-serif;color:#333;'>
-          <h2 style='color:#16a34a;'>Congratulations, %s!</h2>
-          <p>Your company has been issued <b>%d Carbon Credits</b> for project <b>%s</b>.</p>
-          <p>Certificate Code: <b>%s</b></p>
-          <p>You can <a href="%s" target="_blank">view/download the certificate here</a>.</p>
-          <p>Best regards,<br><b>CarbonX Marketplace</b></p>
-        </div>
-        """.formatted(
-                    company.getCompanyName(),
-                    batch.getCreditsCount(),
-                    project.getTitle(),
-                    certificateCode,
-                    pdfUrl
-            );
-
-            emailService.sendEmailWithAttachment(
-                    company.getUser().getEmail(),
-                    subject,
-                    htmlBody,
-                    pdf,
-                    "CarbonX_Certificate.pdf"
-            );
-        } catch (Exception e) {
-            log.error("Failed to send certificate email: {}", e.getMessage(), e);
-        }
+        // Render/upload PDF và gửi email chạy ở worker sau khi transaction commit (CertificateJobService),
+        // certificateUrl được cập nhật khi job hoàn tất
+        certificateJobService.enqueue(cert, data, CertificateJobType.ISSUANCE, company.getUser().getEmail());
 
         return toResponse(batch, cert);
     }
@@ -587,39 +318,48 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
         }
 
         int numberOfCreditsToCreate = quantity.intValueExact(); // Giả định mua số lượng nguyên
-        List<CarbonCredit> newCredits = new ArrayList<>(numberOfCreditsToCreate);
-
-        for (int i = 0; i < numberOfCreditsToCreate; i++) {
-            // Phải tạo creditCode mới cho từng cái
-            SerialRange range = serialSvc.allocate(project, buyerCompany, year, 1);
-            String creditCode = serialSvc.buildCode(year, companyCode, projectCode, range.from());
-            String issuer = (issuedBy == null || issuedBy.isBlank()) ? "system@carbonx.com" : issuedBy;
-
-            CarbonCredit newCredit = CarbonCredit.builder()
-                    .batch(sourceCredit.getBatch())
-                    .company(buyerCompany)
-                    .project(project)
-                    .sourceCredit(sourceCredit) // Tất cả đều trỏ về nguồn
-                    .creditCode(creditCode)      // Code mới, duy nhất
-                    .status(CreditStatus.AVAILABLE)
-                    .carbonCredit(BigDecimal.ONE) // LUÔN LÀ 1
-                    .tCo2e(sourceCredit.getTCo2e()) // (Hoặc tCo2e/quantity)
-                    .amount(BigDecimal.ONE)       // LUÔN LÀ 1
-                    .name(sourceCredit.getName())
-                    .currentPrice(pricePerUnit != null ? pricePerUnit.doubleValue() : sourceCredit.getCurrentPrice())
-                    .vintageYear(sourceCredit.getVintageYear())
-                    .issuedAt(OffsetDateTime.now())
-                    .issuedBy(issuer)
-                    .expiryDate(expiryDate)
-                    .build();
-
-            newCredits.add(newCredit);
+        String issuer = (issuedBy == null || issuedBy.isBlank()) ? "system@carbonx.com" : issuedBy;
+
+        // Người mua nhận 1 lô mới (tách lô khi chuyển nhượng), không sinh từng dòng cho mỗi tín chỉ.
+        // Mã lô của người mua cắt 1 lần từ block giữ trước, không khóa bộ đếm trong transaction đơn hàng
+        SerialRange range = serialBlockAllocator.allocate(project, buyerCompany, year, numberOfCreditsToCreate);
+        String creditCode = serialSvc.buildRangeCode(year, companyCode, projectCode, range);
+
+        // Serial của các tín chỉ thì đi theo tín chỉ: tách dải đầu của lô bán (lô bán đã khóa, flush cùng transaction)
+        SerialRange transferred = SerialNumberService.takeHead(sourceCredit, numberOfCreditsToCreate);
+
+        // Lineage: kế thừa lô gốc của nguồn; nguồn là lô chuyển nhượng chưa có lineage thì để backfill điền
+        Long originCreditId = sourceCredit.getOriginCreditId();
+        if (originCreditId == null && sourceCredit.getSourceCredit() == null) {
+            originCreditId = sourceCredit.getId();
         }
+        Integer lineageDepth = originCreditId == null ? null
+                : (sourceCredit.getLineageDepth() != null ? sourceCredit.getLineageDepth() : 0) + 1;
 
-        creditRepo.saveAll(newCredits);
+        CarbonCredit lot = CarbonCredit.builder()
+                .batch(sourceCredit.getBatch())
+                .company(buyerCompany)
+                .project(project)
+                .sourceCredit(sourceCredit)
+                .originCreditId(originCreditId)
+                .lineageDepth(lineageDepth)
+                .creditCode(creditCode)
+                .status(CreditStatus.AVAILABLE)
+                .carbonCredit(quantity)
+                .listedAmount(BigDecimal.ZERO)
+                .tCo2e(sourceCredit.getTCo2e())
+                .amount(quantity)
+                .serialFrom(transferred != null ? transferred.from() : null)
+                .serialTo(transferred != null ? transferred.to() : null)
+                .name(sourceCredit.getName())
+                .currentPrice(pricePerUnit != null ? pricePerUnit.doubleValue() : sourceCredit.getCurrentPrice())
+                .vintageYear(sourceCredit.getVintageYear())
+                .issuedAt(OffsetDateTime.now())
+                .issuedBy(issuer)
+                .expiryDate(expiryDate)
+                .build();
 
-        // Trả về credit đầu tiên làm đại diện
-        return newCredits.get(0);
+        return creditRepo.save(lot);
     }
 
     @Override
@@ -663,6 +403,20 @@ public class CreditIssuanceServiceImpl implements CreditIssuanceService {
                 .build();
     }
 
+    // Gửi SSE sau khi commit: không đẩy I/O vào transaction đang giữ khóa ví, rollback thì không báo nhầm
+    private void notifyAfterCommit(Long userId, String message) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    sseService.sendNotificationToUser(userId, message);
+                }
+            });
+        } else {
+            sseService.sendNotificationToUser(userId, message);
+        }
+    }
+
     private CreditBatchResponse toResponse(CreditBatch b, CreditCertificate cert) {
         String viewUrl = (frontendBaseUrl != null)
                 ? (frontendBaseUrl.endsWith("/") ? frontendBaseUrl + "credits/" + b.getId()
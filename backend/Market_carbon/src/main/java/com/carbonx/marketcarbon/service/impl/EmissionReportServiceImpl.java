@@ -11,29 +11,58 @@ import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.AiScoringService;
 import com.carbonx.marketcarbon.service.EmissionReportService;
 import com.carbonx.marketcarbon.service.FileStorageService;
+import com.carbonx.marketcarbon.service.analysis.ReportAnalysisService;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
+import com.carbonx.marketcarbon.utils.BoundedPipe;
+import com.carbonx.marketcarbon.utils.TeeInputStream;
 import org.springframework.transaction.annotation.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service
@@ -51,37 +80,52 @@ public class EmissionReportServiceImpl implements EmissionReportService {
     private final CvaRepository cvaRepository;
     private final ReportNotificationService notificationService;
     private final AdminRepository adminRepository;
+    private final ReportAnalysisService reportAnalysisService;
+    private final PlateFingerprintIndex plateFingerprintIndex;
+    private final OwnerContributionIndex ownerContributionIndex;
+    private final CurrentPrincipalProvider principalProvider;
+
+    @Qualifier("csvUploadExecutor")
+    private final TaskExecutor csvUploadExecutor;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private EmissionReportServiceImpl getSelf() {
+        return applicationContext.getBean(EmissionReportServiceImpl.class);
+    }
 
     // Hệ số phát thải mặc định nếu CSV không có cột CO2
     private static final BigDecimal DEFAULT_EF_KG_PER_KWH = new BigDecimal("0.4");
+    // Số chunk (~8KB mỗi chunk) được nằm chờ trong pipe upload
+    private static final int UPLOAD_PIPE_CHUNKS = 16;
 
-    private Long currentCompanyId() {
-        String email = SecurityContextHolder.getContext().getAuthentication().getName();
-        User user = userRepository.findByEmail(email);
-        if (user == null) {
-            throw new AppException(ErrorCode.UNAUTHORIZED);
-        }
+    @Value("${app.csv-ingest.batch-size:1000}")
+    private int detailBatchSize = 1000;
+
+    @Value("${app.csv-ingest.upload-timeout-ms:120000}")
+    private long uploadTimeoutMs = 120000;
+
+    @Value("${app.csv-ingest.pipe-write-timeout-ms:30000}")
+    private long pipeWriteTimeoutMs = 30000;
 
-        return companyRepository.findByUserId(user.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND))
-                .getId();
+    private Long currentCompanyId() {
+        return principalProvider.requireCompanyId();
     }
 
     @Override
     @PreAuthorize("hasRole('COMPANY')")
     @Transactional
     public EmissionReportResponse uploadCsvAsReport(MultipartFile file, Long projectIdParam) {
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        String email = auth.getName();
-
-        User currentUser = Optional.ofNullable(userRepository.findByEmail(email))
+        CurrentPrincipal principal = Optional.ofNullable(principalProvider.current())
                 .orElseThrow(() -> new AppException(ErrorCode.UNAUTHENTICATED));
-
-        Company seller = companyRepository.findByUserId(currentUser.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
+        if (principal.companyId() == null) {
+            throw new AppException(ErrorCode.COMPANY_NOT_FOUND);
+        }
+        Company seller = companyRepository.getReferenceById(principal.companyId());
 
         log.info("[CSV-UPLOAD] User = {}, Company = {} (ID={})",
-                email, seller.getCompanyName(), seller.getId());
+                principal.email(), seller.getCompanyName(), seller.getId());
 
         if (projectIdParam == null)
             throw new AppException(ErrorCode.PROJECT_NOT_FOUND);
@@ -90,21 +134,44 @@ public class EmissionReportServiceImpl implements EmissionReportService {
                 .orElseThrow(() -> new AppException(ErrorCode.PROJECT_NOT_FOUND));
 
         String filename = file.getOriginalFilename() != null ? file.getOriginalFilename() : "emission.csv";
-        FileStorageService.PutResult put;
+
+        // Key riêng cho mỗi lần upload: dọn object khi lỗi/rollback không đụng file của report khác trùng tên
+        String storageKey = "emission-reports/" + UUID.randomUUID() + "_" + filename;
+        MessageDigest sha256;
         try {
-            put = storage.putObject("emission-reports", filename, file);
-        } catch (Exception ex) {
-            log.error("[CSV-UPLOAD] Upload storage failed: {}", ex.getMessage(), ex);
-            throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AppException(ErrorCode.CSV_UNEXPECTED_ERROR);
         }
 
-        String sha256 = computeSha256(file);
+        // Đọc file đúng 1 lần: stream -> SHA-256 -> (tee) upload storage -> parser.
+        // Có luồng upload rảnh thì upload song song qua pipe; pool hết luồng thì chép tạm ra file, upload sau khi parse
+        BoundedPipe pipe = new BoundedPipe(UPLOAD_PIPE_CHUNKS, pipeWriteTimeoutMs);
+        CompletableFuture<FileStorageService.PutResult> upload =
+                startUpload(storageKey, file.getContentType(), file.getSize(), pipe.source());
+        Path spool = null;
+        OutputStream uploadOut;
+        if (upload != null) {
+            uploadOut = pipe.sink();
+        } else {
+            try {
+                spool = Files.createTempFile("csv-upload-", ".csv");
+                uploadOut = new BufferedOutputStream(Files.newOutputStream(spool));
+            } catch (IOException e) {
+                log.error("[CSV-UPLOAD] Cannot create spool file: {}", e.getMessage(), e);
+                deleteSpool(spool);
+                throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+            }
+        }
 
-        String period = null;
-        List<EmissionReportDetail> details = new ArrayList<>();
-        int rows = 0;
+        CsvIngestState state = new CsvIngestState();
+        EmissionReport report = null;
+        boolean parsed = false;
 
-        try (Reader reader = new InputStreamReader(file.getInputStream(), StandardCharsets.UTF_8)) {
+        // Không đóng tee/reader bằng try-with-resources: đóng tee sẽ gửi EOF sang upload trước khi kịp hủy khi parse lỗi
+        try (InputStream raw = file.getInputStream()) {
+            TeeInputStream tee = new TeeInputStream(new DigestInputStream(raw, sha256), uploadOut);
+            Reader reader = new InputStreamReader(tee, StandardCharsets.UTF_8);
             CSVFormat format = CSVFormat.DEFAULT.builder()
                     .setHeader()
                     .setSkipHeaderRecord(true)
@@ -128,11 +195,33 @@ public class EmissionReportServiceImpl implements EmissionReportService {
             String plateHeader = findHeader(headers, "license_plate", "plate", "plate_number",
                     "vehicle_plate", "bien_so", "bien_so_xe");
 
+            List<EmissionReportDetail> chunk = new ArrayList<>(detailBatchSize);
             for (CSVRecord r : parser) {
                 String per = safeGet(r, periodHeader);
-                if (period == null) period = per;
-                else if (!period.equals(per))
+                if (state.period == null) {
+                    state.period = per;
+                    // Kỳ báo cáo đã biết từ dòng đầu: kiểm tra trùng rồi tạo report để ghi detail theo chunk
+                    if (reportRepository.findBySellerIdAndProjectIdAndPeriod(seller.getId(), project.getId(), per).isPresent()) {
+                        throw new AppException(ErrorCode.REPORT_DUPLICATE_PERIOD);
+                    }
+                    report = reportRepository.save(EmissionReport.builder()
+                            .seller(seller)
+                            .project(project)
+                            .period(per)
+                            .totalEnergy(BigDecimal.ZERO)
+                            .totalCo2(BigDecimal.ZERO)
+                            .status(EmissionStatus.SUBMITTED)
+                            .source("CSV")
+                            .vehicleCount(0)
+                            .uploadOriginalFilename(filename)
+                            .uploadMimeType(file.getContentType())
+                            .uploadSizeBytes(file.getSize())
+                            .createdAt(LocalDateTime.now())
+                            .submittedAt(LocalDateTime.now())
+                            .build());
+                } else if (!state.period.equals(per)) {
                     throw new AppException(ErrorCode.CSV_INCONSISTENT_PERIOD);
+                }
 
                 String energyStr = safeGet(r, energyHeader);
                 if (energyStr.isEmpty())
@@ -145,6 +234,8 @@ public class EmissionReportServiceImpl implements EmissionReportService {
                     String c = safeGet(r, co2Header);
                     if (!c.isEmpty()) co2Kg = new BigDecimal(c);
                 }
+                if (co2Kg == null)
+                    co2Kg = energy.multiply(DEFAULT_EF_KG_PER_KWH);
 
                 String licensePlate = null;
                 if (plateHeader != null) {
@@ -152,7 +243,9 @@ public class EmissionReportServiceImpl implements EmissionReportService {
                     if (!p.isBlank()) licensePlate = p.trim();
                 }
 
-                details.add(EmissionReportDetail.builder()
+                state.add(energy, co2Kg, licensePlate);
+                chunk.add(EmissionReportDetail.builder()
+                        .report(report)
                         .period(per)
                         .companyId(seller.getId())
                         .projectId(projectIdParam)
@@ -160,72 +253,203 @@ public class EmissionReportServiceImpl implements EmissionReportService {
                         .totalEnergy(energy)
                         .co2Kg(co2Kg)
                         .build());
-                rows++;
+                if (chunk.size() >= detailBatchSize) {
+                    detailRepository.insertBatch(chunk);
+                    chunk = new ArrayList<>(detailBatchSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                detailRepository.insertBatch(chunk);
             }
+            if (report == null)
+                throw new AppException(ErrorCode.CSV_TOTAL_ENERGY_NOT_FOUND);
+
+            // Phần còn lại (nếu parser dừng sớm) vẫn phải qua hash + upload
+            tee.drain();
+            // Ghi file tạm lỗi (vd: đầy đĩa) thì file upload sau sẽ thiếu byte
+            if (spool != null && tee.isBranchFailed())
+                throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+            // Đóng đầu ghi để upload thấy EOF (chỉ khi đã đọc đủ file)
+            uploadOut.close();
+            parsed = true;
         } catch (AppException e) {
             throw e;
+        } catch (NumberFormatException e) {
+            log.warn("[CSV-UPLOAD] Invalid number: {}", e.getMessage());
+            throw new AppException(ErrorCode.CSV_INVALID_NUMBER_FORMAT);
+        } catch (IllegalArgumentException | IllegalStateException | UncheckedIOException e) {
+            // commons-csv báo dòng/header sai định dạng bằng các exception này
+            log.warn("[CSV-UPLOAD] Parse error: {}", e.getMessage());
+            throw new AppException(ErrorCode.CSV_PARSE_ERROR);
+        } catch (IOException e) {
+            log.error("[CSV-UPLOAD] Read error: {}", e.getMessage(), e);
+            throw new AppException(ErrorCode.CSV_READ_FAILED);
         } catch (Exception e) {
-            log.error("[CSV-UPLOAD] Parse error: {}", e.getMessage(), e);
-            throw new AppException(ErrorCode.CSV_TOTAL_ENERGY_NOT_FOUND);
+            log.error("[CSV-UPLOAD] Unexpected error: {}", e.getMessage(), e);
+            throw new AppException(ErrorCode.CSV_UNEXPECTED_ERROR);
+        } finally {
+            if (!parsed) {
+                discardUpload(pipe, upload, uploadOut, spool);
+            }
         }
 
-        if (details.isEmpty())
-            throw new AppException(ErrorCode.CSV_TOTAL_ENERGY_NOT_FOUND);
+        FileStorageService.PutResult put;
+        try {
+            put = upload != null ? awaitUpload(pipe, upload) : uploadSpool(storageKey, file.getContentType(), file.getSize(), spool);
+        } finally {
+            deleteSpool(spool);
+        }
+        // Transaction rollback sau bước này (vd: lỗi ghi chỉ mục) thì object đã upload thành rác: xóa đi
+        deleteStoredOnRollback(put.key());
+        int vehicleCount = state.plates.isEmpty() ? state.rows : state.plates.size();
+
+        // report đang được quản lý trong transaction, thay đổi được flush khi commit
+        report.setTotalEnergy(state.totalEnergy);
+        report.setTotalCo2(state.totalCo2);
+        report.setVehicleCount(vehicleCount);
+        report.setUploadSha256(HexFormat.of().formatHex(sha256.digest()));
+        report.setUploadStorageKey(put.key());
+        report.setUploadStorageUrl(put.url());
+        report.setUploadRows(state.rows);
+
+        // Chỉ mục biển số chuẩn hóa cho tra trùng giữa các công ty (cùng transaction với detail)
+        plateFingerprintIndex.indexReport(report.getId(), seller.getId(), state.period, state.plates);
+        // Đóng góp theo chủ xe + tổng cho màn chi trả (cùng transaction với detail)
+        ownerContributionIndex.indexReport(report, state.ownerTotals);
+
+        log.info("[CSV-UPLOAD] Report {} uploaded successfully for company '{}' ({}) — period={}, rows={}, vehicles={}",
+                report.getId(), seller.getCompanyName(), seller.getId(), state.period, state.rows, vehicleCount);
+
+        // Chấm rule 1 lần ngay sau khi commit, lưu snapshot theo (report, uploadSha256)
+        analyzeAfterCommit(report.getId());
+
+        return EmissionReportResponse.from(report);
+    }
 
-        if (reportRepository.findBySellerIdAndProjectIdAndPeriod(seller.getId(), project.getId(), period).isPresent()) {
-            throw new AppException(ErrorCode.REPORT_DUPLICATE_PERIOD);
+    private void analyzeAfterCommit(Long reportId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    reportAnalysisService.analyzeAfterUpload(reportId);
+                }
+            });
+        } else {
+            reportAnalysisService.analyzeAfterUpload(reportId);
         }
+    }
 
-        for (EmissionReportDetail d : details) {
-            if (d.getCo2Kg() == null)
-                d.setCo2Kg(d.getTotalEnergy().multiply(DEFAULT_EF_KG_PER_KWH));
+    // Upload đọc từ pipe trên luồng riêng; pool hết luồng (không xếp hàng) thì trả null để caller chép ra file tạm
+    private CompletableFuture<FileStorageService.PutResult> startUpload(String key, String contentType, long size,
+                                                                         InputStream in) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try (in) {
+                    return storage.putObject(key, contentType, size, in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, csvUploadExecutor);
+        } catch (RejectedExecutionException e) {
+            log.warn("[CSV-UPLOAD] Upload executor saturated, spooling to temp file");
+            return null;
         }
+    }
 
-        BigDecimal totalEnergy = details.stream()
-                .map(EmissionReportDetail::getTotalEnergy)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-        BigDecimal totalCo2 = details.stream()
-                .map(EmissionReportDetail::getCo2Kg)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-        long distinctPlates = details.stream()
-                .map(EmissionReportDetail::getVehiclePlate)
-                .filter(p -> p != null && !p.isBlank())
-                .collect(Collectors.toSet())
-                .size();
-
-        int vehicleCount = (distinctPlates > 0) ? (int) distinctPlates : details.size();
-
-        EmissionReport report = EmissionReport.builder()
-                .seller(seller)
-                .project(project)
-                .period(period)
-                .totalEnergy(totalEnergy)
-                .totalCo2(totalCo2)
-                .status(EmissionStatus.SUBMITTED)
-                .source("CSV")
-                .vehicleCount(vehicleCount)
-                .uploadOriginalFilename(filename)
-                .uploadMimeType(file.getContentType())
-                .uploadSizeBytes(file.getSize())
-                .uploadSha256(sha256)
-                .uploadStorageKey(put.key())
-                .uploadStorageUrl(put.url())
-                .uploadRows(rows)
-                .createdAt(LocalDateTime.now())
-                .submittedAt(LocalDateTime.now())
-                .build();
-
-        EmissionReport saved = reportRepository.save(report);
-
-        for (EmissionReportDetail d : details) d.setReport(saved);
-        detailRepository.saveAll(details);
+    private FileStorageService.PutResult awaitUpload(BoundedPipe pipe, CompletableFuture<FileStorageService.PutResult> upload) {
+        try {
+            return upload.get(uploadTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discardUpload(pipe, upload, null, null);
+            throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+        } catch (Exception e) {
+            log.error("[CSV-UPLOAD] Upload storage failed: {}", e.getMessage(), e);
+            discardUpload(pipe, upload, null, null);
+            throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+        }
+    }
 
-        log.info("[CSV-UPLOAD] Report {} uploaded successfully for company '{}' ({}) — period={}, rows={}, vehicles={}",
-                saved.getId(), seller.getCompanyName(), seller.getId(), period, rows, vehicleCount);
+    private FileStorageService.PutResult uploadSpool(String key, String contentType, long size, Path spool) {
+        try (InputStream in = Files.newInputStream(spool)) {
+            return storage.putObject(key, contentType, size, in);
+        } catch (Exception e) {
+            log.error("[CSV-UPLOAD] Upload storage failed: {}", e.getMessage(), e);
+            throw new AppException(ErrorCode.STORAGE_UPLOAD_FAILED);
+        }
+    }
 
-        return EmissionReportResponse.from(saved);
+    // Hủy upload dở: storage nhận lỗi thay vì object thiếu byte; nếu upload vẫn kịp xong thì xóa object
+    private void discardUpload(BoundedPipe pipe, CompletableFuture<FileStorageService.PutResult> upload,
+                               OutputStream uploadOut, Path spool) {
+        if (upload != null) {
+            pipe.abort();
+            upload.thenAccept(put -> deleteStoredQuietly(put.key()));
+            return;
+        }
+        if (uploadOut != null) {
+            try {
+                uploadOut.close();
+            } catch (IOException ignored) {
+                // file tạm sẽ bị xóa ngay sau
+            }
+        }
+        deleteSpool(spool);
+    }
+
+    private void deleteStoredOnRollback(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        deleteStoredQuietly(key);
+                    }
+                }
+            });
+        }
+    }
+
+    private void deleteStoredQuietly(String key) {
+        try {
+            storage.deleteObject(key);
+            log.info("[CSV-UPLOAD] Deleted orphan upload {}", key);
+        } catch (Exception e) {
+            log.warn("[CSV-UPLOAD] Cannot delete orphan upload {}: {}", key, e.getMessage());
+        }
+    }
+
+    private static void deleteSpool(Path spool) {
+        if (spool == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException e) {
+            log.warn("[CSV-UPLOAD] Cannot delete spool file {}: {}", spool, e.getMessage());
+        }
     }
+
+    // Tổng hợp tăng dần trong lúc đọc CSV (không giữ các dòng trong bộ nhớ)
+    private static final class CsvIngestState {
+        private String period;
+        private int rows;
+        private BigDecimal totalEnergy = BigDecimal.ZERO;
+        private BigDecimal totalCo2 = BigDecimal.ZERO;
+        private final Set<String> plates = new HashSet<>();
+        private final OwnerContributionIndex.PlateTotals ownerTotals = new OwnerContributionIndex.PlateTotals();
+
+        private void add(BigDecimal energy, BigDecimal co2Kg, String plate) {
+            rows++;
+            totalEnergy = totalEnergy.add(energy);
+            totalCo2 = totalCo2.add(co2Kg);
+            if (plate != null) {
+                plates.add(plate);
+                ownerTotals.add(plate, energy, co2Kg);
+            }
+        }
+    }
+
     @Override
     public Page<EmissionReportResponse> listReportsForCva(Pageable pageable) {
         // CVA có thể xem cả 3 trạng thái
@@ -393,19 +617,28 @@ public class EmissionReportServiceImpl implements EmissionReportService {
 
 
     @Override
-    public EmissionReportResponse aiSuggestScore(Long reportId) {
-        EmissionReport r = reportRepository.findById(reportId)
-                .orElseThrow(() -> new AppException(ErrorCode.REPORT_NOT_FOUND));
+    public Mono<EmissionReportResponse> aiSuggestScore(Long reportId) {
+        requireCvaOrAdmin();
 
-        // chỉ CVA/ADMIN được phép gợi ý
-        var auth = SecurityContextHolder.getContext().getAuthentication();
-        if (auth == null || auth.getAuthorities().stream().noneMatch(a ->
-                a.getAuthority().equals("ROLE_CVA") || a.getAuthority().equals("ROLE_ADMIN"))) {
-            throw new AppException(ErrorCode.UNAUTHORIZED);
-        }
+        // Chờ Vertex không giữ request thread; lưu kết quả trên boundedElastic (JPA blocking)
+        return aiScoringService.suggestScore(reportId)
+                .publishOn(Schedulers.boundedElastic())
+                .map(rs -> getSelf().saveAiScore(reportId, rs));
+    }
+
+    @Override
+    public Flux<EmissionReportResponse> aiSuggestScores(Collection<Long> reportIds) {
+        requireCvaOrAdmin();
 
-        var details = detailRepository.findByReport(r);
-        AiScoringService.AiScoreResult rs = aiScoringService.suggestScore(r, details);
+        return aiScoringService.suggestScores(reportIds)
+                .publishOn(Schedulers.boundedElastic())
+                .map(s -> getSelf().saveAiScore(s.reportId(), s.result()));
+    }
+
+    @Transactional
+    public EmissionReportResponse saveAiScore(Long reportId, AiScoringService.AiScoreResult rs) {
+        EmissionReport r = reportRepository.findById(reportId)
+                .orElseThrow(() -> new AppException(ErrorCode.REPORT_NOT_FOUND));
 
         r.setAiPreScore(rs.score());
         r.setAiPreNotes(rs.notes());
@@ -416,6 +649,15 @@ public class EmissionReportServiceImpl implements EmissionReportService {
         return EmissionReportResponse.from(r);
     }
 
+    // chỉ CVA/ADMIN được phép gợi ý
+    private void requireCvaOrAdmin() {
+        var auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || auth.getAuthorities().stream().noneMatch(a ->
+                a.getAuthority().equals("ROLE_CVA") || a.getAuthority().equals("ROLE_ADMIN"))) {
+            throw new AppException(ErrorCode.UNAUTHORIZED);
+        }
+    }
+
     @Override
     public EmissionReportResponse verifyReportWithScore(Long reportId, BigDecimal score, boolean approved, String comment) {
         EmissionReport r = reportRepository.findById(reportId)
@@ -443,27 +685,20 @@ public class EmissionReportServiceImpl implements EmissionReportService {
 
     @Override
     public List<EmissionReportResponse> listReportsForCompany(String status, Long projectId) {
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        String email = auth.getName();
-
-        User user = userRepository.findByEmail(email);
-        if (user == null) throw new AppException(ErrorCode.UNAUTHORIZED);
-
-        Company company = companyRepository.findByUserId(user.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
+        Long companyId = currentCompanyId();
 
         List<EmissionReport> reports;
 
         if (projectId != null && status != null && !status.isBlank()) {
             EmissionStatus st = EmissionStatus.valueOf(status.toUpperCase());
-            reports = reportRepository.findBySeller_IdAndProject_IdAndStatus(company.getId(), projectId, st);
+            reports = reportRepository.findBySeller_IdAndProject_IdAndStatus(companyId, projectId, st);
         } else if (projectId != null) {
-            reports = reportRepository.findBySeller_IdAndProject_Id(company.getId(), projectId);
+            reports = reportRepository.findBySeller_IdAndProject_Id(companyId, projectId);
         } else if (status != null && !status.isBlank()) {
             EmissionStatus st = EmissionStatus.valueOf(status.toUpperCase());
-            reports = reportRepository.findBySeller_IdAndStatus(company.getId(), st);
+            reports = reportRepository.findBySeller_IdAndStatus(companyId, st);
         } else {
-            reports = reportRepository.findBySeller_Id(company.getId());
+            reports = reportRepository.findBySeller_Id(companyId);
         }
 
         return reports.stream().map(EmissionReportResponse::from).toList();
@@ -511,17 +746,4 @@ public class EmissionReportServiceImpl implements EmissionReportService {
         if (s.isEmpty()) return null;
         return Long.valueOf(s);
     }
-
-
-    private String computeSha256(MultipartFile file) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] digest = md.digest(file.getBytes());
-            StringBuilder sb = new StringBuilder(digest.length * 2);
-            for (byte b : digest) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (Exception e) {
-            return null;
-        }
-    }
 }
@@ -51,6 +51,12 @@ public class FileStorageServiceImpl implements FileStorageService {
         return putObject(key, file);
     }
 
+    @Override
+    public PutResult putObject(String key, String contentType, long size, InputStream in) {
+        var stored = storageService.upload(key, contentType, size, in);
+        return new PutResult(stored.key(), stored.url());
+    }
+
     @Override
     public byte[] getObject(String key) {
         try {
@@ -62,4 +68,9 @@ public class FileStorageServiceImpl implements FileStorageService {
             throw new RuntimeException("Failed to read object from S3: " + key, e);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void deleteObject(String key) {
+        storageService.delete(key);
+    }
+}
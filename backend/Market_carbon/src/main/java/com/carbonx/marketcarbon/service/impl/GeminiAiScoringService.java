@@ -1,20 +1,29 @@
 package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.config.AiVertexConfig;
+import com.carbonx.marketcarbon.dto.analysis.AnalysisMetrics;
+import com.carbonx.marketcarbon.dto.analysis.AnalysisResult;
+import com.carbonx.marketcarbon.dto.analysis.RuleResult;
 import com.carbonx.marketcarbon.model.EmissionReport;
 import com.carbonx.marketcarbon.model.EmissionReportDetail;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
 import com.carbonx.marketcarbon.repository.EmissionReportRepository;
 import com.carbonx.marketcarbon.service.AiScoringService;
+import com.carbonx.marketcarbon.service.ai.VertexAiGateway;
+import com.carbonx.marketcarbon.service.analysis.ReportAnalysisService;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -34,32 +43,91 @@ import java.util.stream.Collectors;
 public class GeminiAiScoringService implements AiScoringService {
 
     private final AiVertexConfig cfg;
-    private final WebClient vertexWebClient;
+    private final VertexAiGateway vertexAiGateway;
     private final EmissionReportRepository reportRepo;
     private final EmissionReportDetailRepository detailRepo;
+    private final ReportAnalysisService reportAnalysisService;
+    private final PlateFingerprintIndex plateFingerprintIndex;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private GeminiAiScoringService getSelf() {
+        return applicationContext.getBean(GeminiAiScoringService.class);
+    }
 
     // ========= Basic constants (only for parsing / formatting) =========
     private static final Pattern JSON_BLOCK = Pattern.compile("\\{[\\s\\S]*\\}");
     private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final DateTimeFormatter TS_FMT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
 
+    // Upload scope for reports created without a file
+    private static final String NO_UPLOAD_SCOPE = "-";
+
+    // Everything computed from the database before the LLM call (prompt + figures reused by the narrative)
+    record ScoringRequest(
+            EmissionReport report,
+            String prompt,
+            String cacheScope,
+            int rowCount,
+            long zeroEnergyRows,
+            double co2CoverageRatio,
+            double avgEf,
+            double avgCo2,
+            int duplicatePlatesAcrossCompanies,
+            DQMetrics dqMetrics
+    ) {
+    }
+
     // ========= Public API =========
 
-    @Transactional
+    /**
+     * Database work (stats, analysis snapshot, prompt) runs on boundedElastic, the Vertex call goes through
+     * the non-blocking gateway, so no request thread waits for the model.
+     * Model/network errors are reported as an "error" result instead of a failed Mono.
+     */
     @Override
-    public AiScoreResult suggestScore(EmissionReport report, List<EmissionReportDetail> details) {
+    public Mono<AiScoreResult> suggestScore(Long reportId) {
         if (!cfg.isEnabled()) {
-            return new AiScoreResult(BigDecimal.ZERO, "AI scoring is disabled by configuration.", "na");
+            return Mono.just(new AiScoreResult(BigDecimal.ZERO, "AI scoring is disabled by configuration.", "na"));
         }
+        return Mono.fromCallable(() -> getSelf().prepare(reportId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(req -> vertexAiGateway
+                        .generate(req.prompt(), temperature(), maxOutputTokens(), req.cacheScope())
+                        .map(raw -> interpret(req, raw))
+                        .onErrorResume(ex -> {
+                            log.error("[AI] Vertex Gemini analysis failed: {}", ex.getMessage(), ex);
+                            return Mono.just(new AiScoreResult(BigDecimal.ZERO, "AI error: " + ex.getMessage(), "error"));
+                        }));
+    }
+
+    @Override
+    public Flux<BulkScore> suggestScores(Collection<Long> reportIds) {
+        return Flux.fromIterable(new LinkedHashSet<>(reportIds))
+                .flatMap(id -> suggestScore(id)
+                                .map(rs -> new BulkScore(id, rs))
+                                .onErrorResume(ex -> {
+                                    log.warn("[AI] Bulk scoring skipped report {}: {}", id, ex.getMessage());
+                                    return Mono.empty();
+                                }),
+                        Math.max(1, cfg.getBulkParallelism()));
+    }
+
+    @Transactional
+    public ScoringRequest prepare(Long reportId) {
+        EmissionReport report = reportRepo.findById(reportId)
+                .orElseThrow(() -> new AppException(ErrorCode.REPORT_NOT_FOUND));
+        List<EmissionReportDetail> details = detailRepo.findByReport_Id(reportId);
 
         // 1. Basic stats on dataset
-        final int rowCount = details == null ? 0 : details.size();
+        final int rowCount = details.size();
 
-        final long zeroEnergyRows = details == null ? 0 : details.stream()
+        final long zeroEnergyRows = details.stream()
                 .filter(d -> d.getTotalEnergy() == null || d.getTotalEnergy().signum() == 0)
                 .count();
 
-        final double avgEf = details == null ? 0.0 : details.stream()
+        final double avgEf = details.stream()
                 .filter(d -> d.getTotalEnergy() != null
                         && d.getTotalEnergy().signum() > 0
                         && d.getCo2Kg() != null)
@@ -68,16 +136,16 @@ public class GeminiAiScoringService implements AiScoringService {
                 .average()
                 .orElse(0.0);
 
-        final double avgCo2 = details == null ? 0.0 : details.stream()
+        final double avgCo2 = details.stream()
                 .map(EmissionReportDetail::getCo2Kg)
                 .filter(Objects::nonNull)
                 .mapToDouble(BigDecimal::doubleValue)
                 .average()
                 .orElse(0.0);
 
-        final double co2CoverageRatio = (double) (details == null ? 0 : details.stream()
+        final double co2CoverageRatio = (double) details.stream()
                 .filter(d -> d.getCo2Kg() != null)
-                .count()) / Math.max(1, rowCount);
+                .count() / Math.max(1, rowCount);
 
         // 2. Anomaly indicators that do not rely on AI
         int duplicatePlatesAcrossCompanies = 0;
@@ -85,12 +153,11 @@ public class GeminiAiScoringService implements AiScoringService {
         boolean efBelowLowThreshold = false;
 
         try {
-            Long reportId = report != null ? report.getId() : null;
-            Long sellerId = (report != null && report.getSeller() != null) ? report.getSeller().getId() : null;
+            Long sellerId = report.getSeller() != null ? report.getSeller().getId() : null;
 
-            if (reportId != null && sellerId != null) {
+            if (sellerId != null) {
                 duplicatePlatesAcrossCompanies =
-                        detailRepo.countDuplicatePlatesAcrossCompanies(reportId, sellerId);
+                        plateFingerprintIndex.countCrossCompanyReports(reportId, sellerId);
             }
 
             double efHigh = efHighThreshold();
@@ -105,8 +172,9 @@ public class GeminiAiScoringService implements AiScoringService {
         // 3. Log missing context so that project owners know what to improve
         logMissingProjectContext(report);
 
-        // 4. Compute rule-style data quality metrics (used for rule details and fallback narrative)
-        DQMetrics dqMetrics = computeDQMetrics(details);
+        // 4. Rule-engine results and energy metrics come from the cached analysis snapshot of this upload
+        ReportAnalysisService.Snapshot analysis = loadAnalysis(report);
+        DQMetrics dqMetrics = computeDQMetrics(details, analysis);
 
         // 5. Build LLM prompt
         final String projectContext = buildProjectContext(report);
@@ -123,115 +191,76 @@ public class GeminiAiScoringService implements AiScoringService {
                 efAboveHighThreshold,
                 efBelowLowThreshold
         );
-        final String userPrompt = buildPrompt(projectContext, dataContext, anomalyContext);
+        final String ruleContext = buildRuleContext(analysis);
+        final String userPrompt = buildPrompt(projectContext, dataContext, anomalyContext, ruleContext);
 
         if (log.isDebugEnabled()) {
             log.debug("[AI] Prompt sent to Vertex Gemini:\n{}", userPrompt);
         }
         dumpPromptIfEnabled(userPrompt, report);
 
-        // 6. Prepare Vertex request
-        int maxTokens = maxOutputTokens();
-        Map<String, Object> requestBody = Map.of(
-                "contents", List.of(Map.of(
-                        "role", "user",
-                        "parts", List.of(Map.of("text", userPrompt))
-                )),
-                "generationConfig", Map.of(
-                        "temperature", temperature(),
-                        "maxOutputTokens", maxTokens
-                )
-        );
+        // Same prompt on the same upload gives the cached model answer
+        String cacheScope = report.getUploadSha256() != null ? report.getUploadSha256() : NO_UPLOAD_SCOPE;
 
-        final String endpointPath = String.format(
-                "/v1/projects/%s/locations/%s/publishers/google/models/%s:generateContent",
-                cfg.getProjectId(),
-                cfg.getLocation(),
-                cfg.getModel()
-        );
+        return new ScoringRequest(report, userPrompt, cacheScope, rowCount, zeroEnergyRows,
+                co2CoverageRatio, avgEf, avgCo2, duplicatePlatesAcrossCompanies, dqMetrics);
+    }
 
-        try {
-            // 7. Call Vertex
-            @SuppressWarnings("unchecked")
-            Map<String, Object> raw = vertexWebClient.post()
-                    .uri(endpointPath)
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .bodyValue(requestBody)
-                    .retrieve()
-                    .onStatus(HttpStatusCode::isError, resp ->
-                            resp.bodyToMono(String.class).flatMap(body -> {
-                                log.error("[Vertex Gemini] {} body:\n{}", resp.statusCode(), body);
-                                return Mono.error(new RuntimeException("Vertex " + resp.statusCode() + ": " + body));
-                            })
-                    )
-                    .bodyToMono(Map.class)
-                    .block();
-
-            // 8. Extract and parse LLM text
-            String rawText = extractText(raw);
-            log.info("[AI] Vertex Gemini raw output:\n{}", rawText);
-
-            Map<String, Object> parsed = tryParseJson(rawText);
-
-            double scoreNumber = ((Number) parsed.getOrDefault("score", 0)).doubleValue();
-            String version = Objects.toString(parsed.getOrDefault("version", defaultVersion()), defaultVersion());
-            String notesFromModel = Objects.toString(parsed.getOrDefault("notes", ""), "");
-            String riskLevel = Objects.toString(parsed.getOrDefault("riskLevel", "LOW"), "LOW");
-            double fraudLikelihood = ((Number) parsed.getOrDefault("fraudLikelihood", 0)).doubleValue();
-
-            boolean usedFallbackNarrative = false;
-
-            // Nếu notes từ model quá ngắn hoặc trống thì build narrative chuẩn + rule details
-            if (notesFromModel.isBlank()
-                    || notesFromModel.length() < minNotesLength()) {
-
-                notesFromModel = buildRichNotes(
-                        report,
-                        riskLevel,
-                        fraudLikelihood,
-                        scoreNumber,
-                        co2CoverageRatio,
-                        avgEf,
-                        avgCo2,
-                        rowCount,
-                        zeroEnergyRows,
-                        duplicatePlatesAcrossCompanies,
-                        dqMetrics
-                );
-                usedFallbackNarrative = true;
-            }
+    private AiScoreResult interpret(ScoringRequest req, Map<String, Object> raw) {
+        EmissionReport report = req.report();
 
-            if (!usedFallbackNarrative && appendRiskSummaryTail()) {
-                notesFromModel += "\n\n--- Risk summary ---\n"
-                        + "Risk level: " + riskLevel
-                        + "\nFraud likelihood: " + fraudLikelihood;
-            }
+        // Extract and parse LLM text
+        String rawText = extractText(raw);
+        log.info("[AI] Vertex Gemini raw output:\n{}", rawText);
 
-            BigDecimal roundedScore = BigDecimal.valueOf(scoreNumber)
-                    .setScale(scoreScale(), RoundingMode.HALF_UP);
+        Map<String, Object> parsed = tryParseJson(rawText);
 
-            // 9. Persist score and notes into report for later display
-            if (report != null) {
-                report.setAiPreScore(roundedScore);
-                report.setAiPreNotes(notesFromModel);
-                report.setAiVersion(version);
-                reportRepo.save(report);
-            }
+        double scoreNumber = ((Number) parsed.getOrDefault("score", 0)).doubleValue();
+        String version = Objects.toString(parsed.getOrDefault("version", defaultVersion()), defaultVersion());
+        String notesFromModel = Objects.toString(parsed.getOrDefault("notes", ""), "");
+        String riskLevel = Objects.toString(parsed.getOrDefault("riskLevel", "LOW"), "LOW");
+        double fraudLikelihood = ((Number) parsed.getOrDefault("fraudLikelihood", 0)).doubleValue();
+
+        boolean usedFallbackNarrative = false;
 
-            log.info("[AI] EmissionReport#{} updated with AI score={}, risk={}, fraudLikelihood={}",
-                    report != null ? report.getId() : null,
-                    roundedScore,
+        // Nếu notes từ model quá ngắn hoặc trống thì build narrative chuẩn + rule details
+        if (notesFromModel.isBlank()
+                || notesFromModel.length() < minNotesLength()) {
+
+            notesFromModel = buildRichNotes(
+                    report,
                     riskLevel,
-                    fraudLikelihood
+                    fraudLikelihood,
+                    scoreNumber,
+                    req.co2CoverageRatio(),
+                    req.avgEf(),
+                    req.avgCo2(),
+                    req.rowCount(),
+                    req.zeroEnergyRows(),
+                    req.duplicatePlatesAcrossCompanies(),
+                    req.dqMetrics()
             );
+            usedFallbackNarrative = true;
+        }
 
-            return new AiScoreResult(roundedScore, notesFromModel, version);
-
-        } catch (Exception ex) {
-            log.error("[AI] Vertex Gemini analysis failed: {}", ex.getMessage(), ex);
-            return new AiScoreResult(BigDecimal.ZERO, "AI error: " + ex.getMessage(), "error");
+        if (!usedFallbackNarrative && appendRiskSummaryTail()) {
+            notesFromModel += "\n\n--- Risk summary ---\n"
+                    + "Risk level: " + riskLevel
+                    + "\nFraud likelihood: " + fraudLikelihood;
         }
+
+        BigDecimal roundedScore = BigDecimal.valueOf(scoreNumber)
+                .setScale(scoreScale(), RoundingMode.HALF_UP);
+
+        log.info("[AI] EmissionReport#{} scored by AI: score={}, risk={}, fraudLikelihood={}",
+                report.getId(),
+                roundedScore,
+                riskLevel,
+                fraudLikelihood
+        );
+
+        // Persisting the score is left to the caller (EmissionReportService)
+        return new AiScoreResult(roundedScore, notesFromModel, version);
     }
 
     // ========= Prompt builder utilities =========
@@ -316,7 +345,34 @@ public class GeminiAiScoringService implements AiScoringService {
         );
     }
 
-    private String buildPrompt(String projectContext, String dataContext, String anomalyContext) {
+    private String buildRuleContext(ReportAnalysisService.Snapshot analysis) {
+        if (analysis == null) {
+            return "Rule engine results: not available";
+        }
+        AnalysisResult result = analysis.result();
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format(
+                Locale.US,
+                "Rule engine results (%s):%n" +
+                        "- Data quality: %d/%d%n" +
+                        "- Fraud risk: %d/%d",
+                result.getVersion(),
+                result.getDataQualityScore(),
+                result.getDataQualityMax(),
+                result.getFraudRiskScore(),
+                result.getFraudRiskMax()
+        ));
+        for (RuleResult rr : result.getDetails()) {
+            sb.append(String.format(Locale.US, "%n- %s: %d/%d (%s)",
+                    rr.getRuleId(), rr.getScore(), rr.getMaxScore(), rr.getEvidence()));
+        }
+        for (String reason : result.getFraudReasons()) {
+            sb.append("\n- Fraud signal: ").append(reason);
+        }
+        return sb.toString();
+    }
+
+    private String buildPrompt(String projectContext, String dataContext, String anomalyContext, String ruleContext) {
         String header = """
                 You are an auditor of carbon-emission reports.
                 Return ONE JSON object only. No markdown. No prose outside JSON. No code fences.
@@ -334,7 +390,8 @@ public class GeminiAiScoringService implements AiScoringService {
                 Be conservative when uncertain.
                 """.trim();
 
-        return (header + "\n\n" + projectContext + "\n\n" + dataContext + "\n\n" + anomalyContext).trim();
+        return (header + "\n\n" + projectContext + "\n\n" + dataContext + "\n\n" + anomalyContext
+                + "\n\n" + ruleContext).trim();
     }
 
     // ========= LLM output parsing =========
@@ -488,7 +545,7 @@ public class GeminiAiScoringService implements AiScoringService {
 
     // ========= Data quality metrics (for rule-style breakdown) =========
 
-    private record DQMetrics(
+    record DQMetrics(
             long energyNulls,
             long co2Nulls,
             long nonPositiveEnergy,
@@ -503,11 +560,23 @@ public class GeminiAiScoringService implements AiScoringService {
             double stdEnergy,
             double coefficientOfVariation,
             int repeatedRoundedKeys,
-            List<Long> topRepeatedRoundedValues
+            List<String> topRepeatedRoundedValues
     ) {
     }
 
-    private DQMetrics computeDQMetrics(List<EmissionReportDetail> details) {
+    private ReportAnalysisService.Snapshot loadAnalysis(EmissionReport report) {
+        if (report == null || report.getId() == null) {
+            return null;
+        }
+        try {
+            return reportAnalysisService.snapshot(report, true);
+        } catch (Exception e) {
+            log.warn("[AI] Analysis snapshot unavailable for report {}: {}", report.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private DQMetrics computeDQMetrics(List<EmissionReportDetail> details, ReportAnalysisService.Snapshot analysis) {
         if (details == null || details.isEmpty()) {
             return new DQMetrics(
                     0, 0, 0, 0,
@@ -517,128 +586,52 @@ public class GeminiAiScoringService implements AiScoringService {
             );
         }
 
-        long energyNulls = details.stream()
-                .filter(d -> d.getTotalEnergy() == null)
-                .count();
-
-        long co2Nulls = details.stream()
-                .filter(d -> d.getCo2Kg() == null)
-                .count();
-
-        long nonPositive = details.stream()
-                .filter(d -> d.getTotalEnergy() == null || d.getTotalEnergy().signum() <= 0)
-                .count();
-
-        List<Double> energies = details.stream()
-                .map(EmissionReportDetail::getTotalEnergy)
-                .filter(Objects::nonNull)
-                .map(BigDecimal::doubleValue)
-                .filter(v -> v > 0d)
-                .sorted()
-                .collect(Collectors.toList());
-
-        Map<String, Long> rowHistogram = details.stream()
-                .map(d -> {
-                    String e = d.getTotalEnergy() == null
-                            ? "null"
-                            : d.getTotalEnergy().stripTrailingZeros().toPlainString();
-                    String c = d.getCo2Kg() == null
-                            ? "null"
-                            : d.getCo2Kg().stripTrailingZeros().toPlainString();
-                    return e + "|" + c;
-                })
-                .collect(Collectors.groupingBy(s -> s, Collectors.counting()));
+        // CO2-specific checks are not part of the rule engine: one pass over the details
+        long co2Nulls = 0;
+        Map<String, Long> rowHistogram = new HashMap<>();
+        for (EmissionReportDetail d : details) {
+            if (d.getCo2Kg() == null) {
+                co2Nulls++;
+            }
+            String e = d.getTotalEnergy() == null
+                    ? "null"
+                    : d.getTotalEnergy().stripTrailingZeros().toPlainString();
+            String c = d.getCo2Kg() == null
+                    ? "null"
+                    : d.getCo2Kg().stripTrailingZeros().toPlainString();
+            rowHistogram.merge(e + "|" + c, 1L, Long::sum);
+        }
 
         long duplicateRows = rowHistogram.values().stream()
                 .filter(count -> count > 1)
                 .mapToLong(count -> count - 1)
                 .sum();
 
-        double q1 = quantile(energies, 0.25);
-        double q3 = quantile(energies, 0.75);
-        double iqr = q3 - q1;
-        double lower = q1 - 1.5 * iqr;
-        double upper = q3 + 1.5 * iqr;
-
-        long outliers = energies.stream()
-                .filter(v -> v < lower || v > upper)
-                .count();
-
-        double mean = mean(energies);
-        double std = stddev(energies, mean);
-        double cv = mean > 0 ? std / mean : 0d;
-
-        Map<Long, Long> roundedCounts = energies.stream()
-                .map(Math::round)
-                .collect(Collectors.groupingBy(v -> v, Collectors.counting()));
-
-        int repeatedKeys = (int) roundedCounts.entrySet().stream()
-                .filter(e -> e.getValue() > 1)
-                .count();
-
-        List<Long> topRepeated = roundedCounts.entrySet().stream()
-                .filter(e -> e.getValue() > 1)
-                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
-                .limit(3)
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        // Energy statistics are read from the snapshot instead of being recomputed here
+        AnalysisMetrics m = analysis != null ? analysis.metrics() : new AnalysisMetrics();
+        List<String> topRepeated = m.getTopRepeatedRoundedValues() == null
+                ? new ArrayList<>()
+                : m.getTopRepeatedRoundedValues().stream().limit(3).collect(Collectors.toList());
 
         return new DQMetrics(
-                energyNulls,
+                m.getNonNumericEnergy(),
                 co2Nulls,
-                nonPositive,
+                (long) m.getNonNumericEnergy() + m.getNonPositiveEnergy(),
                 duplicateRows,
-                q1,
-                q3,
-                iqr,
-                lower,
-                upper,
-                outliers,
-                mean,
-                std,
-                cv,
-                repeatedKeys,
+                m.getQ1(),
+                m.getQ3(),
+                m.getIqr(),
+                m.getLowerFence(),
+                m.getUpperFence(),
+                m.getOutlierCount(),
+                m.getMeanEnergy(),
+                m.getStdEnergy(),
+                m.getCoefficientOfVariation(),
+                m.getRepeatedRoundedKeys(),
                 topRepeated
         );
     }
 
-    private static double quantile(List<Double> sorted, double p) {
-        if (sorted.isEmpty()) {
-            return 0d;
-        }
-        double pos = p * (sorted.size() - 1);
-        int i = (int) Math.floor(pos);
-        int j = (int) Math.ceil(pos);
-        if (i == j) {
-            return sorted.get(i);
-        }
-        double w = pos - i;
-        return sorted.get(i) * (1 - w) + sorted.get(j) * w;
-    }
-
-    private static double mean(List<Double> xs) {
-        if (xs.isEmpty()) {
-            return 0d;
-        }
-        double sum = 0d;
-        for (double v : xs) {
-            sum += v;
-        }
-        return sum / xs.size();
-    }
-
-    private static double stddev(List<Double> xs, double mean) {
-        if (xs.size() <= 1) {
-            return 0d;
-        }
-        double sumSq = 0d;
-        for (double v : xs) {
-            double diff = v - mean;
-            sumSq += diff * diff;
-        }
-        return Math.sqrt(sumSq / (xs.size() - 1));
-    }
-
     // ========= Narrative builder with configurable thresholds & texts =========
 
     private String buildRichNotes(
@@ -2,8 +2,11 @@ package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.common.MarketplaceSort;
 import com.carbonx.marketcarbon.dto.request.CreditListingRequest;
 import com.carbonx.marketcarbon.dto.request.CreditListingUpdateRequest;
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
 import com.carbonx.marketcarbon.exception.AppException;
 import com.carbonx.marketcarbon.exception.ErrorCode;
@@ -11,20 +14,26 @@ import com.carbonx.marketcarbon.exception.ResourceNotFoundException;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.MarketplaceService;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.dao.DataAccessException;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -32,27 +41,29 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class MarketplaceServiceImpl implements MarketplaceService {
 
+    private static final Set<CreditStatus> LISTABLE_STATUSES = EnumSet.of(CreditStatus.AVAILABLE, CreditStatus.TRADED);
+
     private final CarbonCreditRepository carbonCreditRepository;
     private final CompanyRepository companyRepository;
-    private final UserRepository userRepository;
     private final MarketplaceListingRepository marketplaceListingRepository;
     private final CreditBatchRepository creditBatchRepository;
+    private final MatchingEngine matchingEngine;
+    private final CurrentPrincipalProvider principalProvider;
 
     private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
-
-    private User currentUser() {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        String email = authentication.getName();
-        User user = userRepository.findByEmail(email);
-        if (user == null) {
-            throw new RuntimeException("User not found with email " + email);
+    private static final int DEFAULT_SEARCH_SIZE = 20;
+    private static final int MAX_SEARCH_SIZE = 100;
+
+    // Công ty của user đăng nhập: id lấy từ CurrentPrincipal (không query), entity là reference
+    private Company currentCompany() {
+        CurrentPrincipal principal = principalProvider.current();
+        if (principal == null) {
+            throw new RuntimeException("User not found");
         }
-        return user;
-    }
-
-    private Company currentCompany(User user) {
-        return companyRepository.findByUserId(user.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND));
+        if (principal.companyId() == null) {
+            throw new AppException(ErrorCode.COMPANY_NOT_FOUND);
+        }
+        return companyRepository.getReferenceById(principal.companyId());
     }
 
     @Override
@@ -61,8 +72,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
         log.info("Listing credits for sale: quantity={}, price={}",
                 request.getQuantity(), request.getPricePerCredit());
 
-        User currentUser = currentUser();
-        Company sellerCompany = currentCompany(currentUser);
+        Company sellerCompany = currentCompany();
 
         // B1: Kiểm tra đầu vào
         if (request.getQuantity() == null || request.getQuantity().compareTo(BigDecimal.ZERO) <= 0) {
@@ -96,15 +106,9 @@ public class MarketplaceServiceImpl implements MarketplaceService {
                             targetCredit.getId(), singleCreditAvailable,
                             request.getQuantity(), batch.getId());
 
-                    // Bước 4.1: Tính tổng available của toàn bộ batch
-                    // 2.1  Lọc lấy các credit còn khả dụng và thuộc sở hữu của công ty
-                    List<CarbonCredit> batchCredits = batch.getCarbonCredit().stream()
-                            .filter(c ->
-                                    (c.getStatus() == CreditStatus.AVAILABLE || c.getStatus() == CreditStatus.TRADED)
-                            )
-                            .filter(c -> c.getCompany().getId().equals(sellerCompany.getId()))
-                            .filter(c -> availableOf(c).compareTo(BigDecimal.ZERO) > 0)
-                            .toList();
+                    // Bước 4.1: Tính tổng available của các lô công ty đang giữ trong batch (khóa theo id tăng dần)
+                    List<CarbonCredit> batchCredits = carbonCreditRepository.lockOpenLotsInBatch(
+                            batch.getId(), sellerCompany.getId(), LISTABLE_STATUSES);
 
                     BigDecimal totalBatchAvailable = batchCredits.stream()
                             .map(this::availableOf)
@@ -153,14 +157,10 @@ public class MarketplaceServiceImpl implements MarketplaceService {
             CreditBatch batch = creditBatchRepository.findById(request.getBatchId())
                     .orElseThrow(() -> new AppException(ErrorCode.CREDIT_BATCH_NOT_FOUND));
 
-            // 2.1 Lấy các credit còn AVAILABLE và còn available > 0
-            List<CarbonCredit> credits = batch.getCarbonCredit().stream()
-                    .filter(c ->
-                            (c.getStatus() == CreditStatus.AVAILABLE || c.getStatus() == CreditStatus.TRADED)
-                    )
-                    .filter(c -> c.getCompany().getId().equals(sellerCompany.getId()))
-                    .filter(c -> availableOf(c).compareTo(BigDecimal.ZERO) > 0)
-                    .toList();
+            // 2.1 Khóa các lô AVAILABLE/TRADED còn carbonCredit > 0 của công ty trong batch
+            // (1 truy vấn theo id tăng dần, không nạp lô của mọi công ty trong batch)
+            List<CarbonCredit> credits = carbonCreditRepository.lockOpenLotsInBatch(
+                    batch.getId(), sellerCompany.getId(), LISTABLE_STATUSES);
 
             if (credits.isEmpty()) {
                 throw new AppException(ErrorCode.AMOUNT_IS_NOT_ENOUGH);
@@ -235,6 +235,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
                 existingListing.setStatus(ListingStatus.AVAILABLE);
 
                 MarketPlaceListing updatedListing = marketplaceListingRepository.save(existingListing);
+                matchingEngine.refreshListingAfterCommit(updatedListing.getId());
                 log.info("Updated existing batch listing ID: {} with additional quantity: {}",
                         updatedListing.getId(), request.getQuantity());
 
@@ -255,6 +256,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
                     .build();
 
             MarketPlaceListing saved = marketplaceListingRepository.save(listing);
+            matchingEngine.refreshListingAfterCommit(saved.getId());
             log.info("Listed {} credits across {} CarbonCredit rows in batch {}",
                     request.getQuantity(), credits.size(), batch.getBatchCode());
             return buildListingResponse(saved);
@@ -320,6 +322,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
             existingListing.setStatus(ListingStatus.AVAILABLE);
 
             MarketPlaceListing updatedListing = marketplaceListingRepository.save(existingListing);
+            matchingEngine.refreshListingAfterCommit(updatedListing.getId());
             log.info("Updated existing listing ID: {} with additional quantity: {}",
                     updatedListing.getId(), request.getQuantity());
 
@@ -363,6 +366,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
                 .build();
 
         MarketPlaceListing savedListing = marketplaceListingRepository.save(newListing);
+        matchingEngine.refreshListingAfterCommit(savedListing.getId());
         log.info("Created new listing ID: {}", savedListing.getId());
 
         return buildListingResponse(savedListing);
@@ -387,21 +391,77 @@ public class MarketplaceServiceImpl implements MarketplaceService {
     }
 
 
+    // 1 truy vấn join sẵn credit/project/batch/công ty thay vì nạp lazy từng listing
     @Override
     public List<MarketplaceListingResponse> getActiveListing() {
-        List<MarketPlaceListing> activeListings = marketplaceListingRepository.findByStatusAndExpiresAtAfter(ListingStatus.AVAILABLE, LocalDate.now());
+        return marketplaceListingRepository.searchOpen(new MarketplaceSearchFilter(), LocalDate.now(), null, Integer.MAX_VALUE);
+    }
 
-        return activeListings.stream()
-                .map(this::buildListingResponse)
-                .collect(Collectors.toList());
+    /**
+     * Duyệt sàn theo bộ lọc + sort, phân trang seek: đọc size + 1 dòng sau con trỏ của trang trước,
+     * dòng dư chỉ để biết còn trang sau. Chi phí mỗi trang phụ thuộc size, không phụ thuộc tổng số listing.
+     */
+    @Override
+    public CursorPageResponse<MarketplaceListingResponse> searchListings(MarketplaceSearchFilter filter) {
+        MarketplaceSort sort = Objects.requireNonNullElse(filter.getSort(), MarketplaceSort.NEWEST);
+        filter.setSort(sort);
+        int size = Math.min(Math.max(Objects.requireNonNullElse(filter.getSize(), DEFAULT_SEARCH_SIZE), 1), MAX_SEARCH_SIZE);
+        if (filter.getMinPrice() != null && filter.getMaxPrice() != null
+                && filter.getMinPrice().compareTo(filter.getMaxPrice()) > 0) {
+            throw new AppException(ErrorCode.INVALID_INPUT);
+        }
+
+        MarketplaceListingSearchRepository.Seek after = decodeCursor(filter.getCursor(), sort);
+        List<MarketplaceListingResponse> rows =
+                marketplaceListingRepository.searchOpen(filter, LocalDate.now(), after, size + 1);
+
+        boolean hasMore = rows.size() > size;
+        List<MarketplaceListingResponse> items = hasMore ? rows.subList(0, size) : rows;
+        return CursorPageResponse.<MarketplaceListingResponse>builder()
+                .items(items)
+                .pageSize(size)
+                .hasMore(hasMore)
+                .nextCursor(hasMore ? encodeCursor(items.get(items.size() - 1), sort) : null)
+                .build();
+    }
+
+    // Con trỏ = base64url("SORT|khóa sắp xếp|id") của dòng cuối trang trước
+    private static String encodeCursor(MarketplaceListingResponse last, MarketplaceSort sort) {
+        String key = switch (sort) {
+            case PRICE_ASC, PRICE_DESC -> last.getPricePerCredit().toPlainString();
+            case EXPIRING_SOON -> last.getExpiresAt().toString();
+            case NEWEST -> "";
+        };
+        String raw = sort.name() + "|" + key + "|" + last.getListingId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MarketplaceListingSearchRepository.Seek decodeCursor(String cursor, MarketplaceSort sort) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", -1);
+            // Con trỏ của sort khác không dùng được (khóa sắp xếp khác nhau)
+            if (parts.length != 3 || !parts[0].equals(sort.name())) {
+                throw new AppException(ErrorCode.MARKETPLACE_CURSOR_INVALID);
+            }
+            switch (sort) {
+                case PRICE_ASC, PRICE_DESC -> new BigDecimal(parts[1]);
+                case EXPIRING_SOON -> LocalDate.parse(parts[1]);
+                case NEWEST -> { }
+            }
+            return new MarketplaceListingSearchRepository.Seek(parts[1], Long.parseLong(parts[2]));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new AppException(ErrorCode.MARKETPLACE_CURSOR_INVALID);
+        }
     }
 
 
     @Override
     public List<MarketplaceListingResponse> getALlCreditListingsByCompanyID() {
 
-        User currentUser = currentUser();
-        Company sellerCompany = currentCompany(currentUser);
+        Company sellerCompany = currentCompany();
 
         List<MarketPlaceListing> companyListings = marketplaceListingRepository.findByCompanyId(sellerCompany.getId());
 
@@ -430,8 +490,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
             throw new AppException(ErrorCode.AMOUNT_IS_NOT_VALID);
         }
 
-        User currentUser = currentUser();
-        Company sellerCompany = currentCompany(currentUser);
+        Company sellerCompany = currentCompany();
 
         MarketPlaceListing listing = marketplaceListingRepository.findById(listingId)
                 .orElseThrow(() -> new AppException(ErrorCode.LISTING_IS_NOT_AVAILABLE));
@@ -445,6 +504,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
 
         listing.setPricePerCredit(pricePerCredit);
         MarketPlaceListing savedListing = marketplaceListingRepository.save(listing);
+        matchingEngine.refreshListingAfterCommit(savedListing.getId());
 
         return buildListingResponse(savedListing);
     }
@@ -468,8 +528,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
             throw new AppException(ErrorCode.LISTING_IS_NOT_AVAILABLE);
         }
 
-        User currentUser = currentUser();
-        Company sellerCompany = currentCompany(currentUser);
+        Company sellerCompany = currentCompany();
 
         // 1. Tìm Listing, xác thực
         MarketPlaceListing listing = marketplaceListingRepository.findById(creditListingId)
@@ -535,6 +594,7 @@ public class MarketplaceServiceImpl implements MarketplaceService {
         // Tạo response DTO trước khi xóa
         MarketplaceListingResponse response = buildListingResponse(listing);
         marketplaceListingRepository.delete(listing);
+        matchingEngine.refreshListingAfterCommit(listing.getId());
         log.info("Deleted MarketPlaceListing {}", listing.getId());
 
         return response;
@@ -7,15 +7,13 @@ import com.carbonx.marketcarbon.dto.response.CreditInventorySummaryResponse.Proj
 import com.carbonx.marketcarbon.dto.response.CreditInventorySummaryResponse.VintageCount;
 import com.carbonx.marketcarbon.exception.AppException;
 import com.carbonx.marketcarbon.exception.ErrorCode;
-import com.carbonx.marketcarbon.model.User;
 import com.carbonx.marketcarbon.repository.CarbonCreditRepository;
 import com.carbonx.marketcarbon.repository.CompanyRepository;
-import com.carbonx.marketcarbon.repository.UserRepository;
 import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
 import com.carbonx.marketcarbon.service.MyCreditInventoryService;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import lombok.RequiredArgsConstructor;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -29,18 +27,12 @@ public class MyCreditInventoryServiceImpl implements MyCreditInventoryService {
 
     private final CarbonCreditRepository creditRepo;
     private final CompanyRepository companyRepo;
-    private final UserRepository userRepo;
     private final WalletTransactionRepository walletTransactionRepository;
+    private final CurrentPrincipalProvider principalProvider;
 
     // Lấy companyId của user hiện tại
     private Long currentCompanyId() {
-        String email = SecurityContextHolder.getContext().getAuthentication().getName();
-        User user = userRepo.findByEmail(email);
-        if (user == null) throw new AppException(ErrorCode.UNAUTHORIZED);
-
-        return companyRepo.findByUserId(user.getId())
-                .orElseThrow(() -> new AppException(ErrorCode.COMPANY_NOT_FOUND))
-                .getId();
+        return principalProvider.requireCompanyId();
     }
 
     @Override
@@ -1,7 +1,8 @@
 package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.certificate.CertificateData;
-import com.carbonx.marketcarbon.certificate.CertificatePdfService;
+import com.carbonx.marketcarbon.certificate.CertificateJobService;
+import com.carbonx.marketcarbon.common.CertificateJobType;
 import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.WalletTransactionType;
 import com.carbonx.marketcarbon.dto.request.RetireBatchRequest;
@@ -13,6 +14,8 @@ import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.*;
+import com.carbonx.marketcarbon.service.credit.SerialNumberService;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 
 import jakarta.persistence.criteria.JoinType;
 import jakarta.persistence.criteria.Predicate;
@@ -22,22 +25,20 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 import java.net.URLEncoder;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -48,39 +49,24 @@ import java.util.stream.Collectors;
 @Slf4j
 public class MyCreditServiceImpl implements MyCreditService {
 
+    // Lô còn retire được: mọi trạng thái trừ đã hết hạn / đã retire
+    private static final Set<CreditStatus> RETIRABLE_STATUSES =
+            EnumSet.complementOf(EnumSet.of(CreditStatus.EXPIRED, CreditStatus.RETIRED));
+
     private final CarbonCreditRepository creditRepo;
     private final CreditBatchRepository batchRepo;
     private final CompanyRepository companyRepo;
-    private final UserRepository userRepo;
     private final WalletRepository walletRepo;
     private final CreditCertificateRepository certificateRepo;
-    private final CertificatePdfService certificatePdfService;
-    private final EmailService emailService;
+    private final CertificateJobService certificateJobService;
     private final SseService sseService;
     private final StorageService storageService;
     private final WalletTransactionRepository walletTransactionRepository;
     private final WalletRepository walletRepository;
+    private final CurrentPrincipalProvider principalProvider;
 
     private Long currentCompanyId() {
-        String email = SecurityContextHolder.getContext().getAuthentication().getName();
-        log.info("[DEBUG] Authenticated email = {}", email);
-
-        User user = userRepo.findByEmail(email);
-        if (user == null) {
-            log.error("[DEBUG] User not found for email {}", email);
-            throw new AppException(ErrorCode.UNAUTHORIZED);
-        }
-        log.info("[DEBUG] Found user.id = {}", user.getId());
-
-        var companyOpt = companyRepo.findByUserId(user.getId());
-        if (companyOpt.isEmpty()) {
-            log.error("[DEBUG] No company found for user.id = {}", user.getId());
-            throw new AppException(ErrorCode.COMPANY_NOT_FOUND);
-        }
-
-        var company = companyOpt.get();
-        log.info("[DEBUG] Found company.id = {}, name = {}", company.getId(), company.getCompanyName());
-        return company.getId();
+        return principalProvider.requireCompanyId();
     }
 
     // hàm này giúp hệ thống check xem credit này đã hết hạn chưa
@@ -350,10 +336,11 @@ public class MyCreditServiceImpl implements MyCreditService {
      * - Không cho retire tín chỉ EXPIRED (CREDIT_EXPIRED)
      * - Không cho retire tín chỉ đang niêm yết (listedAmount > 0) (CREDIT_HAS_ACTIVE_LISTING)
      * - Không cho retire vượt quá available (AMOUNT_IS_NOT_ENOUGH)
-     * - Khi remaining == 0, set status = RETIRED và listedAmount = 0 để đóng credit
-     * - Ngược lại, giữ status = AVAILABLE (không chạm tới listedAmount)
-     * đồng bộ: dùng findByIdAndCompanyIdWithLock để khóa hàng, tránh race-condition khi nhiều request tới cùng credit.
-     * Invariant: amount = carbonCredit(available) + listedAmount.
+     * - Lô retire hết thì cả lô thành RETIRED (amount = số đã retire)
+     * - Lô retire 1 phần thì tách phần retire (kèm dải serial đầu) thành lô RETIRED riêng,
+     *   lô cũ giữ status AVAILABLE/LISTED với phần còn lại (không chạm tới listedAmount)
+     * đồng bộ: khóa các lô của công ty trong batch bằng 1 truy vấn (lockOpenLotsInBatch, id tăng dần), tránh race-condition.
+     * Invariant (lô chưa RETIRED): amount = carbonCredit(available) + listedAmount.
      */
     @Override
     @Transactional
@@ -370,36 +357,18 @@ public class MyCreditServiceImpl implements MyCreditService {
         // B1: Chỉ tìm batch bằng batchCode
         CreditBatch batch = batchRepo.findByBatchCode(request.getBatchCode())
                 .orElseThrow(() -> new AppException(ErrorCode.CREDIT_BATCH_NOT_FOUND));
-        // B2: Lấy tất cả credits trong batch
-        List<CarbonCredit> allCreditsInBatch = creditRepo.findByBatch_IdAndCompany_Id(batch.getId(), companyId);
+        // B2: Khóa các lô của công ty trong batch còn phần chưa niêm yết (O(số lô), theo id tăng dần)
+        List<CarbonCredit> lots = creditRepo.lockOpenLotsInBatch(batch.getId(), companyId, RETIRABLE_STATUSES);
 
-        log.info("[RETIRE] Found {} total credits in batch {} owned by company {}",
-                allCreditsInBatch.size(), batch.getId(), companyId);
+        log.info("[RETIRE] Locked {} open lots in batch {} owned by company {}",
+                lots.size(), batch.getId(), companyId);
 
-        // B3: Lọc credits có thể retire (chưa list, chưa expired, chưa retired)
-        List<CarbonCredit> retirableCredits = allCreditsInBatch.stream()
+        // B3: Bỏ lô vừa hết hạn
+        List<CarbonCredit> retirableCredits = lots.stream()
                 .filter(c -> {
                     checkAndMarkExpired(c);
-
-                    if (c.getStatus() == CreditStatus.EXPIRED ||
-                            c.getStatus() == CreditStatus.RETIRED) {
-                        log.debug("[RETIRE-FILTER] Credit {} skipped: status={}",
-                                c.getId(), c.getStatus());
-                        return false;
-                    }
-
-                    // Chỉ lấy credits có free amount > 0
-                    BigDecimal freeQty = getAvailableForRetire(c);
-                    if (freeQty.compareTo(BigDecimal.ZERO) <= 0) {
-                        log.debug("[RETIRE-FILTER] Credit {} skipped: free={}",
-                                c.getId(), freeQty);
-                        return false;
-                    }
-
-                    return true;
+                    return c.getStatus() != CreditStatus.EXPIRED;
                 })
-                .sorted(Comparator.comparing(CarbonCredit::getCreateAt,
-                        Comparator.nullsLast(Comparator.naturalOrder())))
                 .collect(Collectors.toList());
 
         if (retirableCredits.isEmpty()) {
@@ -420,20 +389,17 @@ public class MyCreditServiceImpl implements MyCreditService {
             throw new AppException(ErrorCode.AMOUNT_IS_NOT_ENOUGH);
         }
 
-        // B5: Retire từng credit (FIFO)
+        // B5: Retire từng lô (FIFO), lô đã khóa ở B2
         BigDecimal remainingToRetire = request.getQuantity();
         BigDecimal totalRetiredInTx = BigDecimal.ZERO;
         List<CarbonCredit> modifiedCredits = new ArrayList<>();
+        List<CarbonCredit> retiredParts = new ArrayList<>();
 
-        for (CarbonCredit credit : retirableCredits) {
+        for (CarbonCredit lockedCredit : retirableCredits) {
             if (remainingToRetire.compareTo(BigDecimal.ZERO) <= 0) {
                 break;
             }
 
-            // Lock credit
-            CarbonCredit lockedCredit = creditRepo.findByIdWithPessimisticLock(credit.getId())
-                    .orElse(credit);
-
             // Chỉ retire phần free (chưa list)
             BigDecimal freeAmount = getAvailableForRetire(lockedCredit);
             if (freeAmount.compareTo(BigDecimal.ZERO) <= 0) {
@@ -450,19 +416,21 @@ public class MyCreditServiceImpl implements MyCreditService {
             log.info("[RETIRE] Credit {} - retiring {}: available {} -> {}, listed={}",
                     lockedCredit.getId(), deduct, oldAvailable, newAvailable, listed);
 
-            // Update số lượng
+            // Update số lượng + status
             lockedCredit.setCarbonCredit(newAvailable);  // Trừ available
-            lockedCredit.setAmount(newAvailable.add(listed));  // amount = available + listed
-
-            // Update status
             if (newAvailable.compareTo(BigDecimal.ZERO) == 0 &&
                     listed.compareTo(BigDecimal.ZERO) == 0) {
+                // Retire hết: cả lô (cùng dải serial) thành RETIRED, amount = số đã retire
+                lockedCredit.setAmount(deduct);
                 lockedCredit.setStatus(CreditStatus.RETIRED);
                 log.info("[RETIRE] Credit {} fully retired", lockedCredit.getId());
-            } else if (listed.compareTo(BigDecimal.ZERO) > 0) {
-                lockedCredit.setStatus(CreditStatus.LISTED);
             } else {
-                lockedCredit.setStatus(CreditStatus.AVAILABLE);
+                // Retire 1 phần: tách phần retire (dải serial đầu) thành lô RETIRED riêng
+                retiredParts.add(splitRetiredPart(lockedCredit, deduct));
+                lockedCredit.setAmount(newAvailable.add(listed));  // amount = available + listed
+                lockedCredit.setStatus(listed.compareTo(BigDecimal.ZERO) > 0
+                        ? CreditStatus.LISTED
+                        : CreditStatus.AVAILABLE);
             }
 
             modifiedCredits.add(lockedCredit);
@@ -499,6 +467,9 @@ public class MyCreditServiceImpl implements MyCreditService {
 
         // B6: Save changes
         creditRepo.saveAll(modifiedCredits);
+        if (!retiredParts.isEmpty()) {
+            creditRepo.saveAll(retiredParts);
+        }
 
         // B7: Generate certificate và email
         if (!modifiedCredits.isEmpty()) {
@@ -518,11 +489,46 @@ public class MyCreditServiceImpl implements MyCreditService {
     }
 
 
+    /**
+     * Lô RETIRED tách từ lô đang giữ: mang n serial đầu dải của lô (lô giữ phần còn lại),
+     * cùng batch/công ty/lineage với lô, sourceCredit trỏ về lô để truy vết.
+     */
+    private CarbonCredit splitRetiredPart(CarbonCredit lot, BigDecimal quantity) {
+        SerialNumberService.SerialRange range = SerialNumberService.takeHead(lot, quantity.longValue());
+        String suffix = range != null
+                ? String.format("%06d", range.from())
+                : UUID.randomUUID().toString().substring(0, 8);
+        Long originCreditId = lot.getOriginCreditId() != null ? lot.getOriginCreditId()
+                : (lot.getSourceCredit() == null ? lot.getId() : null);
+
+        return CarbonCredit.builder()
+                .batch(lot.getBatch())
+                .company(lot.getCompany())
+                .project(lot.getProject())
+                .sourceCredit(lot)
+                .originCreditId(originCreditId)
+                .lineageDepth(lot.getLineageDepth())
+                .creditCode(lot.getCreditCode() + "-R" + suffix)
+                .status(CreditStatus.RETIRED)
+                .amount(quantity)
+                .carbonCredit(BigDecimal.ZERO)
+                .listedAmount(BigDecimal.ZERO)
+                .tCo2e(lot.getTCo2e())
+                .serialFrom(range != null ? range.from() : null)
+                .serialTo(range != null ? range.to() : null)
+                .name(lot.getName())
+                .currentPrice(lot.getCurrentPrice())
+                .vintageYear(lot.getVintageYear())
+                .issuedAt(lot.getIssuedAt())
+                .issuedBy(lot.getIssuedBy())
+                .expiryDate(lot.getExpiryDate())
+                .build();
+    }
+
     /**
      * Hậu xử lý sau khi retire thành công:
      * - Đảm bảo/tạo certificate cho batch tương ứng
-     * - Render PDF certificate + upload, lưu URL
-     * - Gửi email xác nhận kèm file PDF
+     * - Đưa job render PDF + upload + gửi email vào hàng đợi (chạy sau khi commit)
      * không roll back giao dịch chính nếu email/PDF fail
      */
     private void handleRetirementSuccess(CarbonCredit credit, Company company, BigDecimal retiredQuantity) {
@@ -579,6 +585,7 @@ public class MyCreditServiceImpl implements MyCreditService {
             // Build payload cho template PDF chứng chỉ retire
             CertificateData data = CertificateData.builder()
                     .creditsCount(retiredCredits)
+                    .retiredQuantity(retiredQuantity)
                     .totalTco2e(totalTco2e)
                     .retired(true)
                     .projectTitle(projectTitle)
@@ -607,41 +614,9 @@ public class MyCreditServiceImpl implements MyCreditService {
                     .perCreditTons(perCreditTons.intValue())
                     .build();
 
-            // Sinh file PDF mới và upload lên dịch vụ lưu trữ
-            StorageService.StoredObject stored = certificatePdfService.generateAndUploadPdf(data);
-            String pdfUrl = stored.url();
-
-            // Lưu URL PDF mới lên bản ghi chứng chỉ
-            cert.setCertificateUrl(pdfUrl);
-            certificateRepo.save(cert);
-
-            // Tải file PDF để đính kèm vào email gửi khách hàng
-            byte[] pdf = downloadPdf(pdfUrl);
-
-            if (company != null && company.getUser() != null) {
-                // Gửi email xác nhận retire kèm chứng chỉ PDF
-                String subject = "Carbon Credit Retirement Confirmation";
-                String projectName = projectTitle != null ? projectTitle : "your project";
-                String retiredAmount = retiredQuantity.stripTrailingZeros().toPlainString();
-                String htmlBody = """
-                        <div style='font-family:Arial,sans-serif;color:#333;'>
-                          <h2 style='color:#16a34a;'>Credits Retired Successfully!</h2>
-                          <p>Your company has retired <b>%s Carbon Credits</b> from project <b>%s</b>.</p>
-                          <p>Certificate Code: <b>%s</b></p>
-                          <p>You can <a href="%s" target="_blank">view/download the retirement certificate here</a>.</p>
-                          <p>Best regards,<br><b>CarbonX Marketplace</b></p>
-                        </div>
-                        """.formatted(retiredAmount, projectName, cert.getCertificateCode(), pdfUrl);
-
-                // Gửi email cùng file PDF đính kèm tới doanh nghiệp
-                emailService.sendEmailWithAttachment(
-                        company.getUser().getEmail(),
-                        subject,
-                        htmlBody,
-                        pdf,
-                        "CarbonX_Retirement_Certificate.pdf"
-                );
-            }
+            // Sinh PDF, upload và gửi email ở worker sau khi transaction retire commit
+            String recipient = company != null && company.getUser() != null ? company.getUser().getEmail() : null;
+            certificateJobService.enqueue(cert, data, CertificateJobType.RETIREMENT, recipient);
         } catch (Exception e) {
             log.error("[RETIRE] Failed to process retirement certificate/email for credit {}: {}",
                     credit.getId(), e.getMessage(), e);
@@ -712,14 +687,5 @@ public class MyCreditServiceImpl implements MyCreditService {
         return new String[]{prefix, from, to};
     }
 
-    // Tải nội dung PDF từ URL công khai để gắn vào email
-    private byte[] downloadPdf(String pdfUrl) {
-        try (InputStream in = new URL(pdfUrl).openStream()) {
-            return in.readAllBytes();
-        } catch (IOException ioEx) {
-            throw new UncheckedIOException("Cannot download PDF from " + pdfUrl, ioEx);
-        }
-    }
-
 
 }
@@ -1,9 +1,10 @@
 package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.common.*;
+import com.carbonx.marketcarbon.dto.request.MarketOrderRequest;
 import com.carbonx.marketcarbon.dto.request.OrderRequest;
-import com.carbonx.marketcarbon.dto.request.WalletTransactionRequest;
 import com.carbonx.marketcarbon.dto.response.CreditTradeResponse;
+import com.carbonx.marketcarbon.dto.response.MarketOrderResponse;
 import com.carbonx.marketcarbon.exception.AppException;
 import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.exception.ResourceNotFoundException;
@@ -11,7 +12,12 @@ import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.CreditIssuanceService;
 import com.carbonx.marketcarbon.service.OrderService;
-import com.carbonx.marketcarbon.service.WalletTransactionService;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.market.PriceCandleEngine;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
+import com.carbonx.marketcarbon.service.wallet.TransferLeg;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -21,11 +27,17 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -34,13 +46,15 @@ import java.util.stream.Collectors;
 public class OrderServiceImpl implements OrderService {
 
     private final OrderRepository orderRepository;
-    private final UserRepository userRepository;
-    private final WalletTransactionService walletTransactionService;
     private final WalletRepository walletRepository;
     private final CompanyRepository companyRepository;
     private final MarketplaceListingRepository marketplaceListingRepository;
     private final CarbonCreditRepository carbonCreditRepository;
     private final CreditIssuanceService creditIssuanceService;
+    private final MatchingEngine matchingEngine;
+    private final PriceCandleEngine priceCandleEngine;
+    private final WalletTransferEngine walletTransferEngine;
+    private final CurrentPrincipalProvider principalProvider;
 
     @Value("${trading_fee}")
     private BigDecimal tradingFee;
@@ -48,31 +62,29 @@ public class OrderServiceImpl implements OrderService {
     // Định nghĩa múi giờ Việt Nam
     private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
 
-    // helper find user login
-    private User currentUser() {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        String email = authentication.getName();
-        User user = userRepository.findByEmail(email);
-        if (user == null) {
-            throw new ResourceNotFoundException("User not found with email: " + email);
+    // helper find user login (id user/công ty/ví đã resolve sẵn, không query)
+    private CurrentPrincipal currentPrincipal() {
+        CurrentPrincipal principal = principalProvider.current();
+        if (principal == null) {
+            throw new ResourceNotFoundException("User not found");
         }
-        return user;
+        return principal;
     }
 
-    // helper find company login
-    private Company currentCompany(User user) {
-        return companyRepository.findByUserId(user.getId())
-                .orElseThrow(
-                        () -> new ResourceNotFoundException("Company not found with userid: " + user.getId()));
+    // helper find company login: reference, chỉ SELECT khi đọc field khác id
+    private Company currentCompany(CurrentPrincipal principal) {
+        if (principal.companyId() == null) {
+            throw new ResourceNotFoundException("Company not found with userid: " + principal.userId());
+        }
+        return companyRepository.getReferenceById(principal.companyId());
     }
 
     @Transactional
     @Override
     public CreditTradeResponse createOrder(OrderRequest request) {
-        User user = currentUser();
         // Lấy thông tin công ty người mua từ user hiện tại
         // Lấy buyerCompany từ request hoặc context thay vì luôn là công ty của user hiện tại nếu cần
-        Company buyerCompany = currentCompany(user);
+        Company buyerCompany = currentCompany(currentPrincipal());
 
         //1 find listing user want to buy
         MarketPlaceListing listing = marketplaceListingRepository.findById(request.getListingId())
@@ -139,7 +151,7 @@ public class OrderServiceImpl implements OrderService {
 
     @Override
     public List<CreditTradeResponse> getUserOrders() {
-        Company company = currentCompany(currentUser());
+        Company company = currentCompany(currentPrincipal());
         List<Order> orders = orderRepository.findByCompany(company);
 
         return orders.stream()
@@ -158,8 +170,7 @@ public class OrderServiceImpl implements OrderService {
     public void cancelOrder(Long orderId) {
         Order order = orderRepository.findById(orderId)
                 .orElseThrow(() -> new ResourceNotFoundException("Order not found with id: " + orderId));
-        User user = currentUser();
-        Company company = currentCompany(user);
+        Company company = currentCompany(currentPrincipal());
 
         // Chỉ công ty tạo đơn hàng mới có quyền hủy
         if (!order.getCompany().getId().equals(company.getId())) {
@@ -210,108 +221,30 @@ public class OrderServiceImpl implements OrderService {
 
         // B4 bắt đầu giao dịch
         try {
-            // B4.1: Lấy ví
-            Wallet buyerWallet = walletRepository.findByUserId(buyerCompany.getUser().getId());
-            if (buyerWallet == null) {
-                throw new ResourceNotFoundException("Buyer wallet not found");
-            }
+            // B4.1: Khóa 2 ví theo thứ tự id (không theo vai trò mua/bán) để tránh deadlock
+            Long buyerWalletId = walletIdOf(buyerCompany, "Buyer wallet not found");
+            Long sellerWalletId = walletIdOf(sellerCompany, "Seller wallet not found");
+            Map<Long, Wallet> wallets = walletTransferEngine.lockInOrder(List.of(buyerWalletId, sellerWalletId));
+            Wallet buyerWallet = wallets.get(buyerWalletId);
+            Wallet sellerWallet = wallets.get(sellerWalletId);
             if (buyerWallet.getBalance().compareTo(totalPrice) < 0) {
                 order.setOrderStatus(OrderStatus.ERROR);
                 orderRepository.save(order);
                 throw new AppException(ErrorCode.WALLET_NOT_ENOUGH_MONEY);
             }
 
-            // tìm ví seller
-            Wallet sellerWallet = walletRepository.findByUserId(sellerCompany.getUser().getId());
-            if (sellerWallet == null) {
-                throw new ResourceNotFoundException("Seller wallet not found");
-            }
-
-            // B4.2: Cập nhật sourceCredit (bên bán)
-            BigDecimal currentListedAmount = sourceCredit.getListedAmount() != null
-                    ? sourceCredit.getListedAmount()
-                    : BigDecimal.ZERO;
-            BigDecimal updatedListedAmount = currentListedAmount.subtract(quantityToBuy);
-            if (updatedListedAmount.compareTo(BigDecimal.ZERO) < 0) {
-                updatedListedAmount = BigDecimal.ZERO;
-            }
-
-            // số tín chỉ carbon đang tồn tại
-            BigDecimal directAvailable = sourceCredit.getCarbonCredit() != null
-                    ? sourceCredit.getCarbonCredit()
-                    : BigDecimal.ZERO;
-
-            // số tín chỉ carbon sau khi bán
-            BigDecimal totalAfterSale = directAvailable.add(updatedListedAmount);
-
-            sourceCredit.setListedAmount(updatedListedAmount);
-            sourceCredit.setAmount(totalAfterSale);
-            sourceCredit.setCarbonCredit(directAvailable);
-
-            if (totalAfterSale.compareTo(BigDecimal.ZERO) <= 0) {
-                sourceCredit.setStatus(CreditStatus.TRADED);
-            }
-            carbonCreditRepository.save(sourceCredit);
-
-            // B4.3: Tạo tín chỉ mới cho người mua
+            // B4.2 -> B7: chuyển tín chỉ, cập nhật ví/listing, ghi giao dịch tài chính
             String issuedBy = Optional.ofNullable(SecurityContextHolder.getContext().getAuthentication())
                     .map(Authentication::getName)
                     .orElse(buyerCompany.getUser() != null
                             ? buyerCompany.getUser().getEmail()
                             : "system@carbon.com");
-            //  Giữ nguyên issueTradeCredit(), tính dựa trên quantity
-            creditIssuanceService.issueTradeCredit(
-                    sourceCredit,
-                    buyerCompany,
-                    quantityToBuy,
-                    listing.getPricePerCredit(),
-                    issuedBy
-            );
-
-            // Số credits thực tế = phần nguyên của quantity (vì mỗi credit = 1 unit)
-            int actualCreditsCreated = quantityToBuy.intValue();
-
-            // B5.1: Cập nhật số dư tín chỉ trong ví
-            BigDecimal currentBuyerCredit = buyerWallet.getCarbonCreditBalance() != null
-                    ? buyerWallet.getCarbonCreditBalance()
-                    : BigDecimal.ZERO;
-
-            // Cộng đúng số lượng credits đã tạo (dưới dạng BigDecimal)
-            buyerWallet.setCarbonCreditBalance(
-                    currentBuyerCredit.add(BigDecimal.valueOf(actualCreditsCreated))
-            );
-            walletRepository.save(buyerWallet);
-
-            // Trừ từ ví seller
-            BigDecimal currentSellerCredit = sellerWallet.getCarbonCreditBalance() != null
-                    ? sellerWallet.getCarbonCreditBalance()
-                    : BigDecimal.ZERO;
-            sellerWallet.setCarbonCreditBalance(
-                    currentSellerCredit.subtract(quantityToBuy).max(BigDecimal.ZERO)
-            );
-            walletRepository.save(sellerWallet);
-
-            // B5.2: Cập nhật listing
-            listing.setQuantity(listing.getQuantity().subtract(quantityToBuy));
-            BigDecimal currentSold = listing.getSoldQuantity() != null
-                    ? listing.getSoldQuantity()
-                    : BigDecimal.ZERO;
-            listing.setSoldQuantity(currentSold.add(quantityToBuy));
-
-            if (listing.getQuantity().compareTo(BigDecimal.ZERO) <= 0) {
-                listing.setStatus(ListingStatus.SOLD);
-            }
-            marketplaceListingRepository.save(listing);
-
-            // B6: Đánh dấu order thành công
-            order.setOrderStatus(OrderStatus.SUCCESS);
-            order.setCompletedAt(LocalDateTime.now(VIETNAM_ZONE));
-            orderRepository.save(order);
-
-            // B7: Xử lý giao dịch tài chính
-            processFinancialTransactions(order, buyerWallet, sellerWallet, totalPrice,
-                    quantityToBuy, listing, sellerCompany, buyerCompany);
+            TransferLeg leg = settleFill(order, listing, sourceCredit, buyerCompany, sellerCompany,
+                    buyerWallet, sellerWallet, issuedBy);
+            processFinancialTransactions(List.of(leg), wallets);
+            matchingEngine.refreshListingAfterCommit(listing.getId());
 
+            int actualCreditsCreated = quantityToBuy.intValue();
             log.info("Order {} completed. Buyer: {}, Seller: {}, Credits created: {}, Price: {}",
                     orderId, buyerCompany.getId(), sellerCompany.getId(),
                     actualCreditsCreated, totalPrice);
@@ -324,38 +257,260 @@ public class OrderServiceImpl implements OrderService {
         }
     }
 
-    // xử lý giao dịch tài chính
-    private void processFinancialTransactions(Order order, Wallet buyerWallet, Wallet sellerWallet,
-                                              BigDecimal totalPrice, BigDecimal quantity,
-                                              MarketPlaceListing listing, Company sellerCompany,
-                                              Company buyerCompany) {
-        try {
-            // Giao dịch trừ tiền người mua
-            WalletTransactionRequest buyerTxn = WalletTransactionRequest.builder()
-                    .wallet(buyerWallet)
-                    .order(order)
-                    .type(WalletTransactionType.BUY_CARBON_CREDIT)
-                    .description("Buy " + quantity + " credits from listing " + listing.getId() +
-                            " (Seller: " + sellerCompany.getCompanyName() + ")")
-                    .amount(totalPrice)
-                    .build();
-
-            walletTransactionService.createTransaction(buyerTxn);
-
-            // Giao dịch cộng tiền người bán
-            WalletTransactionRequest sellerTxn = WalletTransactionRequest.builder()
-                    .wallet(sellerWallet)
-                    .order(order)
-                    .type(WalletTransactionType.SELL_CARBON_CREDIT)
-                    .description("Sell " + quantity + " credits via listing " + listing.getId() +
-                            " (Buyer: " + buyerCompany.getCompanyName() + ")")
-                    .amount(totalPrice)
-                    .build();
-
-            walletTransactionService.createTransaction(sellerTxn);
+    /**
+     * Lệnh mua khớp trên sổ lệnh trong bộ nhớ (market hoặc limit), quét nhiều listing theo giá rồi thời gian.
+     * Tất cả fill của 1 lệnh được settle trong 1 transaction; DB vẫn được khóa/kiểm tra lại từng listing.
+     */
+    @Transactional
+    @Override
+    public MarketOrderResponse placeMarketOrder(MarketOrderRequest request) {
+        CurrentPrincipal principal = currentPrincipal();
+        Company buyerCompany = currentCompany(principal);
 
+        if (request.getQuantity() == null || request.getQuantity().compareTo(BigDecimal.ZERO) <= 0) {
+            throw new AppException(ErrorCode.AMOUNT_IS_NOT_VALID);
+        }
+        if (request.getLimitPrice() != null && request.getLimitPrice().compareTo(BigDecimal.ZERO) <= 0) {
+            throw new AppException(ErrorCode.AMOUNT_IS_NOT_VALID);
+        }
+
+        // B1 khớp lệnh trên book (chỉ giữ chỗ, chưa đụng DB)
+        MatchingEngine.BookKey key = new MatchingEngine.BookKey(request.getProjectId(), request.getVintageYear());
+        List<MatchingEngine.Fill> fills = matchingEngine.match(
+                key, buyerCompany.getId(), request.getQuantity(), request.getLimitPrice());
+        if (fills.isEmpty()) {
+            throw new AppException(ErrorCode.LISTING_IS_NOT_AVAILABLE);
+        }
+        // Commit hay rollback thì book cũng bỏ giữ chỗ và nạp lại listing
+        matchingEngine.bindToTransaction(fills);
+
+        BigDecimal totalPrice = fills.stream()
+                .map(f -> f.price().multiply(f.quantity()))
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        BigDecimal filledQuantity = fills.stream()
+                .map(MatchingEngine.Fill::quantity)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+
+        // B2 khóa listing + source credit theo thứ tự listing id, kiểm tra lại với DB
+        List<MatchingEngine.Fill> ordered = fills.stream()
+                .sorted(Comparator.comparing(MatchingEngine.Fill::listingId))
+                .toList();
+        List<MarketPlaceListing> listings = new ArrayList<>();
+        List<CarbonCredit> sourceCredits = new ArrayList<>();
+        List<Long> sellerWalletIds = new ArrayList<>();
+        Long buyerWalletId = principal.walletId();
+        if (buyerWalletId == null) {
+            throw new ResourceNotFoundException("Buyer wallet not found");
+        }
+        Set<Long> walletIds = new HashSet<>();
+        walletIds.add(buyerWalletId);
+        for (MatchingEngine.Fill fill : ordered) {
+            MarketPlaceListing listing = marketplaceListingRepository
+                    .findByIdWithPessimisticLock(fill.listingId())
+                    .orElseThrow(() -> new AppException(ErrorCode.LISTING_IS_NOT_AVAILABLE));
+
+            // Book có thể trễ so với DB: giá hoặc số lượng đã đổi thì hủy cả lệnh
+            if (listing.getStatus() != ListingStatus.AVAILABLE
+                    || listing.getPricePerCredit().compareTo(fill.price()) != 0) {
+                throw new AppException(ErrorCode.LISTING_IS_NOT_AVAILABLE);
+            }
+            if (listing.getQuantity().compareTo(fill.quantity()) < 0) {
+                throw new AppException(ErrorCode.AMOUNT_IS_NOT_ENOUGH);
+            }
+
+            CarbonCredit sourceCredit = carbonCreditRepository
+                    .findByIdWithPessimisticLock(listing.getCarbonCredit().getId())
+                    .orElseThrow(() -> new ResourceNotFoundException("Credit not found"));
+            listings.add(listing);
+            sourceCredits.add(sourceCredit);
+            sellerWalletIds.add(walletIdOf(listing.getCompany(), "Seller wallet not found"));
+        }
+
+        // B3 khóa tất cả ví (người mua + các người bán) theo thứ tự id, 1 lần cho cả lệnh
+        walletIds.addAll(sellerWalletIds);
+        Map<Long, Wallet> wallets = walletTransferEngine.lockInOrder(walletIds);
+        Wallet buyerWallet = wallets.get(buyerWalletId);
+        if (buyerWallet.getBalance().compareTo(totalPrice) < 0) {
+            throw new AppException(ErrorCode.WALLET_NOT_ENOUGH_MONEY);
+        }
+
+        // B4 settle từng fill, tiền của mọi fill được chuyển trong 1 lần (N leg)
+        List<TransferLeg> legs = new ArrayList<>();
+        List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < ordered.size(); i++) {
+            MatchingEngine.Fill fill = ordered.get(i);
+            MarketPlaceListing listing = listings.get(i);
+            CarbonCredit sourceCredit = sourceCredits.get(i);
+            Company sellerCompany = listing.getCompany();
+            Wallet sellerWallet = wallets.get(sellerWalletIds.get(i));
+
+            BigDecimal fillTotal = fill.price().multiply(fill.quantity());
+            Order order = orderRepository.save(Order.builder()
+                    .company(buyerCompany)
+                    .marketplaceListing(listing)
+                    .carbonCredit(sourceCredit)
+                    .orderType(OrderType.BUY)
+                    .orderStatus(OrderStatus.PENDING)
+                    .quantity(fill.quantity())
+                    .unitPrice(fill.price())
+                    .totalPrice(fillTotal)
+                    .platformFee(tradingFee)
+                    .sellerPayout(fillTotal)
+                    .createdAt(LocalDateTime.now(VIETNAM_ZONE))
+                    .build());
+
+            legs.add(settleFill(order, listing, sourceCredit, buyerCompany, sellerCompany,
+                    buyerWallet, sellerWallet, principal.email()));
+            orders.add(order);
+        }
+        processFinancialTransactions(legs, wallets);
+
+        List<CreditTradeResponse> results = orders.stream()
+                .map(order -> CreditTradeResponse.builder()
+                        .id(order.getId())
+                        .companyId(buyerCompany.getId())
+                        .status(order.getOrderStatus())
+                        .totalAmount(order.getTotalPrice())
+                        .creditAmount(order.getQuantity())
+                        .createAt(order.getCreatedAt())
+                        .build())
+                .toList();
+
+        log.info("Market order by company {} on book {}: filled {}/{} across {} listings, total {}",
+                buyerCompany.getId(), key, filledQuantity, request.getQuantity(), fills.size(), totalPrice);
+
+        return MarketOrderResponse.builder()
+                .status(filledQuantity.compareTo(request.getQuantity()) < 0
+                        ? OrderStatus.PARTIALLY_FILLED
+                        : OrderStatus.SUCCESS)
+                .requestedQuantity(request.getQuantity())
+                .filledQuantity(filledQuantity)
+                .averagePrice(totalPrice.divide(filledQuantity, 2, RoundingMode.HALF_UP))
+                .totalAmount(totalPrice)
+                .fills(results)
+                .build();
+    }
+
+    // Settle 1 order đã khóa listing + source credit + ví: chuyển tín chỉ, cập nhật listing,
+    // trả về leg tiền (buyer -> seller) để chuyển chung với các fill khác
+    private TransferLeg settleFill(Order order, MarketPlaceListing listing, CarbonCredit sourceCredit,
+                            Company buyerCompany, Company sellerCompany,
+                            Wallet buyerWallet, Wallet sellerWallet, String issuedBy) {
+        BigDecimal quantityToBuy = order.getQuantity();
+        BigDecimal totalPrice = order.getTotalPrice();
+
+        // Cập nhật sourceCredit (bên bán)
+        BigDecimal currentListedAmount = sourceCredit.getListedAmount() != null
+                ? sourceCredit.getListedAmount()
+                : BigDecimal.ZERO;
+        BigDecimal updatedListedAmount = currentListedAmount.subtract(quantityToBuy);
+        if (updatedListedAmount.compareTo(BigDecimal.ZERO) < 0) {
+            updatedListedAmount = BigDecimal.ZERO;
+        }
+
+        // số tín chỉ carbon đang tồn tại
+        BigDecimal directAvailable = sourceCredit.getCarbonCredit() != null
+                ? sourceCredit.getCarbonCredit()
+                : BigDecimal.ZERO;
+
+        // số tín chỉ carbon sau khi bán
+        BigDecimal totalAfterSale = directAvailable.add(updatedListedAmount);
+
+        sourceCredit.setListedAmount(updatedListedAmount);
+        sourceCredit.setAmount(totalAfterSale);
+        sourceCredit.setCarbonCredit(directAvailable);
+
+        if (totalAfterSale.compareTo(BigDecimal.ZERO) <= 0) {
+            sourceCredit.setStatus(CreditStatus.TRADED);
+        }
+        carbonCreditRepository.save(sourceCredit);
+
+        // Tạo tín chỉ mới cho người mua, tính dựa trên quantity
+        creditIssuanceService.issueTradeCredit(
+                sourceCredit,
+                buyerCompany,
+                quantityToBuy,
+                listing.getPricePerCredit(),
+                issuedBy
+        );
+
+        // Số credits thực tế = phần nguyên của quantity (vì mỗi credit = 1 unit)
+        int actualCreditsCreated = quantityToBuy.intValue();
+
+        // Cập nhật số dư tín chỉ trong ví
+        BigDecimal currentBuyerCredit = buyerWallet.getCarbonCreditBalance() != null
+                ? buyerWallet.getCarbonCreditBalance()
+                : BigDecimal.ZERO;
+
+        // Cộng đúng số lượng credits đã tạo (dưới dạng BigDecimal)
+        buyerWallet.setCarbonCreditBalance(
+                currentBuyerCredit.add(BigDecimal.valueOf(actualCreditsCreated))
+        );
+        walletRepository.save(buyerWallet);
+
+        // Trừ từ ví seller
+        BigDecimal currentSellerCredit = sellerWallet.getCarbonCreditBalance() != null
+                ? sellerWallet.getCarbonCreditBalance()
+                : BigDecimal.ZERO;
+        sellerWallet.setCarbonCreditBalance(
+                currentSellerCredit.subtract(quantityToBuy).max(BigDecimal.ZERO)
+        );
+        walletRepository.save(sellerWallet);
+
+        // Cập nhật listing
+        listing.setQuantity(listing.getQuantity().subtract(quantityToBuy));
+        BigDecimal currentSold = listing.getSoldQuantity() != null
+                ? listing.getSoldQuantity()
+                : BigDecimal.ZERO;
+        listing.setSoldQuantity(currentSold.add(quantityToBuy));
+
+        if (listing.getQuantity().compareTo(BigDecimal.ZERO) <= 0) {
+            listing.setStatus(ListingStatus.SOLD);
+        }
+        marketplaceListingRepository.save(listing);
+
+        // Đánh dấu order thành công
+        order.setOrderStatus(OrderStatus.SUCCESS);
+        order.setCompletedAt(LocalDateTime.now(VIETNAM_ZONE));
+        orderRepository.save(order);
+
+        // Cộng vào nến giá sau khi commit
+        priceCandleEngine.recordFill(new PriceCandleEngine.Fill(
+                buyerCompany.getId(), sellerCompany.getId(),
+                sourceCredit.getProject() != null ? sourceCredit.getProject().getId() : null,
+                order.getUnitPrice(), quantityToBuy, order.getCompletedAt()));
+
+        return TransferLeg.builder()
+                .fromWalletId(buyerWallet.getId())
+                .toWalletId(sellerWallet.getId())
+                .amount(totalPrice)
+                .debitType(WalletTransactionType.BUY_CARBON_CREDIT)
+                .creditType(WalletTransactionType.SELL_CARBON_CREDIT)
+                .debitDescription("Buy " + quantityToBuy + " credits from listing " + listing.getId() +
+                        " (Seller: " + sellerCompany.getCompanyName() + ")")
+                .creditDescription("Sell " + quantityToBuy + " credits via listing " + listing.getId() +
+                        " (Buyer: " + buyerCompany.getCompanyName() + ")")
+                .order(order)
+                .build();
+    }
+
+    private Long walletIdOf(Company company, String notFoundMessage) {
+        Long walletId = company.getUser() != null ? walletRepository.findIdByUserId(company.getUser().getId()) : null;
+        if (walletId == null) {
+            throw new ResourceNotFoundException(notFoundMessage);
+        }
+        return walletId;
+    }
+
+    // xử lý giao dịch tài chính: debit người mua / credit người bán cho mọi leg trên các ví đã khóa
+    private void processFinancialTransactions(List<TransferLeg> legs, Map<Long, Wallet> lockedWallets) {
+        try {
+            walletTransferEngine.transfer(legs, lockedWallets);
+        } catch (AppException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Error processing financial transactions for order: {}", order.getId(), e);
+            log.error("Error processing financial transactions for orders: {}",
+                    legs.stream().map(l -> l.getOrder().getId()).toList(), e);
             throw new AppException(ErrorCode.TRANSACTION_PROCESSING_ERROR);
         }
     }
@@ -1,7 +1,7 @@
 package com.carbonx.marketcarbon.service.impl;
 
-import com.carbonx.marketcarbon.repository.OrderStatsRepository;
 import com.carbonx.marketcarbon.service.PriceAnalyticsService;
+import com.carbonx.marketcarbon.service.market.PriceCandleEngine;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
@@ -12,27 +12,24 @@ import java.time.LocalDateTime;
 @RequiredArgsConstructor
 public class PriceAnalyticsServiceImpl implements PriceAnalyticsService {
 
-    private final OrderStatsRepository orderStatsRepository;
+    // Đọc từ nến giá đã gộp sẵn thay vì min/max/avg trên bảng orders
+    private final PriceCandleEngine priceCandleEngine;
 
     @Override
     public PriceStats statsForCompany(Long companyId, LocalDateTime from, LocalDateTime to) {
-        BigDecimal min = orderStatsRepository.minPrice(companyId, from, to);
-        BigDecimal max = orderStatsRepository.maxPrice(companyId, from, to);
-        BigDecimal avg = orderStatsRepository.avgPrice(companyId, from, to);
+        PriceCandleEngine.Stats stats = priceCandleEngine.companyStats(companyId, from, to);
 
         return new PriceStats(
-                zeroToNull(avg),
-                zeroToNull(min),
-                zeroToNull(max)
+                zeroToNull(stats.avg()),
+                zeroToNull(stats.min()),
+                zeroToNull(stats.max())
         );
     }
 
     @Override
     public PriceStats statsForMarket(LocalDateTime from, LocalDateTime to) {
-        BigDecimal min = orderStatsRepository.minPriceMarket(from, to);
-        BigDecimal max = orderStatsRepository.maxPriceMarket(from, to);
-        BigDecimal avg = orderStatsRepository.avgPriceMarket(from, to);
-        return new PriceStats(avg, min, max);
+        PriceCandleEngine.Stats stats = priceCandleEngine.marketStats(from, to);
+        return new PriceStats(stats.avg(), stats.min(), stats.max());
     }
 
     private static BigDecimal zeroToNull(BigDecimal v) {
@@ -2,7 +2,6 @@ package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.common.EmissionStatus;
 import com.carbonx.marketcarbon.common.ProfitDistributionStatus;
-import com.carbonx.marketcarbon.common.WalletTransactionType;
 import com.carbonx.marketcarbon.config.ProfitSharingProperties;
 import com.carbonx.marketcarbon.config.ProfitSharingProperties.PricingMode;
 import com.carbonx.marketcarbon.config.ProfitSharingProperties.ResolvedPolicy;
@@ -14,6 +13,8 @@ import com.carbonx.marketcarbon.exception.WalletException;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.*;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
+import com.carbonx.marketcarbon.service.payout.ProfitPayoutEngine;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -29,24 +30,24 @@ import org.springframework.transaction.annotation.Transactional;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * Service chịu trách nhiệm phân chia lợi nhuận (Payout) cho các chủ xe điện (EV Owners).
- * Logic bao gồm: Tính toán đóng góp, trừ tiền ví công ty, cộng tiền ví Owner, và gửi email thông báo.
+ * Logic bao gồm: Tính toán đóng góp và lập kế hoạch chi trả; việc trừ tiền ví công ty, cộng tiền ví Owner
+ * và gửi email thông báo do ProfitPayoutEngine thực hiện theo chunk.
  */
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class ProfitSharingServiceImpl implements ProfitSharingService {
 
-    private static final BigDecimal DEFAULT_EMISSION_FACTOR = new BigDecimal("0.6");
+    private static final BigDecimal KG_PER_CREDIT = new BigDecimal("1000");
 
     private final EmissionReportRepository emissionReportRepository;
-    private final VehicleRepository vehicleRepository;
     private final EVOwnerRepository evOwnerRepository;
     private final UserRepository userRepository;
     private final WalletService walletService;
@@ -56,15 +57,17 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
     private final ProjectRepository projectRepository;
     private final CompanyRepository companyRepository;
     private final ProfitSharingProperties profitSharingProperties;
-    private final EmailService emailService;
     private final DynamicPricingService dynamicPricingService;
+    private final ProfitPayoutEngine profitPayoutEngine;
+    private final ReportOwnerContributionRepository contributionRepository;
+    private final OwnerContributionIndex ownerContributionIndex;
 
     @Autowired
     private ApplicationContext applicationContext;
 
     /**
      * Helper để lấy instance của chính bean này từ ApplicationContext.
-     * Mục đích: Để gọi các method có @Transactional (như processPayoutForOwner) từ bên trong cùng class
+     * Mục đích: Để gọi các method có @Transactional (như createDistributionEvent) từ bên trong cùng class
      * mà vẫn kích hoạt được Spring AOP Proxy (đảm bảo Transaction hoạt động đúng).
      */
     private ProfitSharingServiceImpl getSelf() {
@@ -134,21 +137,25 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
 
         // B2: Lấy cấu hình Policy và Giá thị trường (Dynamic Pricing)
         ResolvedPolicy policy = profitSharingProperties.resolveForCompany(company.getId());
-        BigDecimal marketPricePerCredit = dynamicPricingService.getMarketPricePerCredit();
-        BigDecimal kwhPerCreditFactor = dynamicPricingService.getKwhPerCreditFactor();
+        // Cả đợt dùng 1 version giá (version company đã xem trước nếu có), không đổi giữa chừng khi cron cập nhật giá
+        DynamicPricingService.Snapshot pricing = request.getPricingVersion() != null
+                ? dynamicPricingService.snapshot(request.getPricingVersion())
+                : dynamicPricingService.current();
+        BigDecimal marketPricePerCredit = pricing.marketPricePerCredit();
+        BigDecimal kwhPerCreditFactor = pricing.kwhPerCreditFactor();
 
         // Tính giá payout thực tế cho Owner (Giá thị trường * % chia sẻ)
         BigDecimal actualPayoutPricePerCredit = marketPricePerCredit
                 .multiply(policy.getOwnerSharePct())
                 .setScale(2, RoundingMode.HALF_UP);
 
-        log.info("Execution Policy for companyId={}: source={}, pricingMode={}, ownerSharePct={}",
-                company.getId(), policy.getSource(), policy.getPricingMode(), policy.getOwnerSharePct());
+        log.info("Execution Policy for companyId={}: source={}, pricingMode={}, ownerSharePct={}, pricingVersion={}",
+                company.getId(), policy.getSource(), policy.getPricingMode(), policy.getOwnerSharePct(), pricing.version());
 
         log.info("Processing to share profit by company : {}", companyUser.getEmail());
 
         // B3: Tạo bản ghi theo dõi đợt phân phối (Status: PROCESSING)
-        ProfitDistribution distributionEvent = getSelf().createDistributionEvent(request, companyUser);
+        ProfitDistribution distributionEvent = getSelf().createDistributionEvent(request, companyUser, pricing.version());
 
         try {
             Wallet companyWallet = walletService.findWalletByUser(companyUser);
@@ -159,8 +166,8 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
 
             // B4: Validate và Load Emission Report
             if (request.getEmissionReportId() != null) {
-                // Dùng findByIdWithDetails để fetch EAGER các data cần thiết
-                report = emissionReportRepository.findByIdWithDetails(request.getEmissionReportId())
+                // Đóng góp đọc từ bảng report_owner_contributions nên không cần nạp detail
+                report = emissionReportRepository.findById(request.getEmissionReportId())
                         .orElseThrow(() -> new BadRequestException("No find emission report with id : " + request.getEmissionReportId()));
 
                 // Chỉ xử lý report đã được cấp tín chỉ (CREDIT_ISSUED)
@@ -182,36 +189,16 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
                 return;
             }
 
-            // B5: Chuẩn bị Map mapping từ Biển số xe -> Vehicle Entity để tra cứu nhanh
-            Map<String, Vehicle> vehicleByPlate = buildCompanyVehicleMap(company.getId());
-            if (vehicleByPlate.isEmpty()) {
-                markDistributionCompleted(distributionEvent);
-                return;
-            }
-
-            // B6: Vòng lặp tổng hợp dữ liệu (Aggregation)
-            Map<Long, ContributionData> evOwnerContributions = new HashMap<>();
-
+            // B5-B6: Đóng góp theo Owner lấy từ bảng report_owner_contributions, cùng nguồn với màn xem trước
+            // (cùng chuẩn hóa biển số, cùng quy tắc từng dòng; report bị đánh dấu do đổi xe thì dựng lại trước)
+            Map<Long, ContributionData> evOwnerContributions = new LinkedHashMap<>();
             for (EmissionReport r : reportsToProcess) {
-                for (EmissionReportDetail detail : r.getDetails()) {
-                    // Bỏ qua nếu detail không thuộc company này
-                    if (!Objects.equals(detail.getCompanyId(), company.getId())) {
-                        continue;
-                    }
-                    BigDecimal energy = normalizeAmount(detail.getTotalEnergy(), 6);
-                    if (energy.compareTo(BigDecimal.ZERO) <= 0) continue;
-
-                    // Tìm xe và Owner dựa trên biển số
-                    Vehicle vehicle = vehicleByPlate.get(normalizePlate(detail.getVehiclePlate()));
-                    if (vehicle == null || vehicle.getEvOwner() == null) continue;
-
-                    // Tính lượng Credit đóng góp
-                    BigDecimal creditContributionKg = resolveCreditContribution(detail, energy);
-
-                    // Cộng dồn vào Map
+                ownerContributionIndex.ensureAggregated(r);
+                for (ReportOwnerContribution row : contributionRepository.findByReportIdOrderByIdAsc(r.getId())) {
                     ContributionData contribution = evOwnerContributions.computeIfAbsent(
-                            vehicle.getEvOwner().getId(), ContributionData::new);
-                    contribution.addContribution(energy, creditContributionKg);
+                            row.getEvOwnerId(), ContributionData::new);
+                    // Bảng lưu tCO2e, kế hoạch chi trả lưu kg
+                    contribution.addContribution(row.getEnergyKwh(), row.getCreditsTco2e().multiply(KG_PER_CREDIT));
                 }
             }
 
@@ -272,177 +259,36 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
             // Update thông tin tổng vào sự kiện phân phối
             distributionEvent.setTotalMoneyDistributed(finalTotal);
             distributionEvent.setTotalCreditsDistributed(totalCreditsKgForDistribution.setScale(6, RoundingMode.HALF_UP));
+            distributionEvent.setEmissionReport(report);
             profitDistributionRepository.save(distributionEvent);
 
-            log.info("Starting sequential payout for {} owners...", payoutPlan.size());
-
-            // B9: Thực hiện chuyển tiền tuần tự cho từng Owner
-            // Gọi qua getSelf() để đảm bảo Transactional (REQUIRES_NEW) hoạt động
+            // B9: Ghi kế hoạch chi trả (PENDING) và trả song song theo chunk.
+            // Cập nhật report -> PAID_OUT và email tổng kết được engine thực hiện khi chunk cuối xong.
+            List<ProfitDistributionDetail> plan = new ArrayList<>(payoutPlan.size());
             for (OwnerPayoutData payout : payoutPlan) {
-                getSelf().processPayoutForOwner(
-                        distributionEvent,
-                        payout,
-                        companyWallet,
-                        report.getId(), // Chỉ truyền ID để load lại trong transaction con
-                        policy,
-                        company
-                );
+                ProfitDistributionDetail detail = new ProfitDistributionDetail();
+                detail.setDistribution(distributionEvent);
+                detail.setEvOwner(evOwnerRepository.getReferenceById(payout.getEvOwnerId()));
+                detail.setMoneyAmount(payout.getPayoutAmount());
+                detail.setCreditAmount(payout.getCreditContribution());
+                detail.setEnergyAmount(payout.getEnergyContribution());
+                plan.add(detail);
             }
 
-            log.info("All sequential payouts processed.");
-
-            // B10: Cập nhật trạng thái Report -> PAID_OUT
-            getSelf().updateReportsToPaidOut(reportsToProcess);
-
-            // B11: Gửi email tổng kết cho Công ty
-            try {
-                BigDecimal totalCreditsTCO2e = totalCreditsKgForDistribution.divide(new BigDecimal("1000"), 4, RoundingMode.HALF_UP);
-                String period = report.getPeriod(); // Safe access vì report đã load EAGER ở trên
-
-                emailService.sendDistributionSummaryToCompany(
-                        companyUser.getEmail(),
-                        company.getCompanyName(),
-                        period,
-                        payoutPlan.size(),
-                        totalEnergyForDistribution,
-                        totalCreditsTCO2e,
-                        finalTotal,
-                        false,
-                        company.getId(),
-                        String.valueOf(distributionEvent.getId())
-                );
-            } catch (Exception e) {
-                log.warn("Failed to send payout summary email: {}", e.getMessage());
-            }
-
-            // Hoàn tất quy trình
-            markDistributionCompleted(distributionEvent);
+            log.info("Starting chunked payout for {} owners...", plan.size());
+            profitPayoutEngine.start(distributionEvent.getId(), plan);
 
         } catch (Exception e) {
+            // Lỗi tới đây thì kế hoạch chưa được ghi, ví công ty chưa bị trừ (start không ném lỗi sau khi đã ghi)
             log.error("System Error: {}", e.getMessage(), e);
             distributionEvent.setStatus(ProfitDistributionStatus.FAILED);
             profitDistributionRepository.save(distributionEvent);
         }
     }
 
-    /**
-     * Xử lý chuyển tiền cho MỘT Owner cụ thể.
-     * IMPORTANT: Sử dụng Propagation.REQUIRES_NEW để tạo một transaction hoàn toàn mới.
-     * Nếu transaction này fail (ví dụ lỗi mạng, lỗi ví), nó chỉ rollback cho Owner này,
-     * KHÔNG ảnh hưởng đến các Owner khác đã được trả tiền.
-     */
-    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
-    public void processPayoutForOwner(
-            ProfitDistribution event,
-            OwnerPayoutData payout,
-            Wallet companyWallet,
-            Long reportId,
-            ResolvedPolicy policy,
-            Company company
-    ) {
-        // Load lại Report trong session mới để tránh LazyInitializationException
-        EmissionReport report = emissionReportRepository.findByIdWithDetails(reportId).orElse(null);
-
-        String projectName = "N/A";
-        String reportPeriod = "N/A";
-        String reportIdStr = String.valueOf(reportId);
-
-        if (report != null) {
-            try {
-                if (report.getProject() != null) projectName = report.getProject().getTitle();
-                reportPeriod = report.getPeriod();
-            } catch (Exception e) {
-                log.warn("Could not eager fetch report data: {}", e.getMessage());
-            }
-        }
-
-        // Load lại ví Company để đảm bảo thread-safe và số dư mới nhất
-        Wallet threadSafeCompanyWallet = walletRepository.findById(companyWallet.getId()).orElse(null);
-        if (threadSafeCompanyWallet == null) {
-            getSelf().saveFailedDetail(event, payout, "Company wallet not found");
-            return;
-        }
-
-        EVOwner owner = evOwnerRepository.findById(payout.getEvOwnerId()).orElse(null);
-        if (owner == null || owner.getUser() == null) {
-            getSelf().saveFailedDetail(event, payout, "EVOwner not found");
-            return;
-        }
-
-        // Tìm hoặc Tự động tạo ví cho Owner nếu chưa có
-        Wallet ownerWallet = walletService.findWalletByUser(owner.getUser());
-        if (ownerWallet == null) {
-            try {
-                ownerWallet = ((WalletServiceImpl) walletService).generateWallet(owner.getUser());
-                log.info("Generated new wallet for EVOwner ID {}", payout.getEvOwnerId());
-            } catch (Exception e) {
-                getSelf().saveFailedDetail(event, payout, "Failed to create wallet: " + e.getMessage());
-                return;
-            }
-        }
-
-        ProfitDistributionDetail detail = new ProfitDistributionDetail();
-        detail.setDistribution(event);
-        detail.setEvOwner(owner);
-        detail.setMoneyAmount(payout.getPayoutAmount());
-        detail.setCreditAmount(payout.getCreditContribution());
-        detail.setEnergyAmount(payout.getEnergyContribution());
-
-        try {
-            // 1. Thực hiện chuyển tiền (Core Logic)
-            if (payout.getPayoutAmount().compareTo(BigDecimal.ZERO) > 0) {
-                walletService.transferFunds(
-                        threadSafeCompanyWallet,
-                        ownerWallet,
-                        payout.getPayoutAmount(),
-                        WalletTransactionType.PROFIT_SHARING.name(),
-                        String.format("Sharing profit to EV owner %s (distribution #%d)", owner.getName(), event.getId()),
-                        String.format("Profit-sharing from distribution #%d", event.getId()),
-                        event
-                );
-            }
-
-            // 2. Gửi email thông báo tiền về (Non-blocking logic ideally, but here it's sequential)
-            try {
-                String reportReference = "Report #" + reportIdStr + " (" + projectName + ")";
-                BigDecimal creditsAsTCO2e = payout.getCreditContribution().divide(new BigDecimal("1000"), 4, RoundingMode.HALF_UP);
-
-                emailService.sendPayoutSuccessToOwner(
-                        owner.getUser().getEmail(),
-                        owner.getName(),
-                        company.getCompanyName(),
-                        reportPeriod,
-                        payout.getEnergyContribution(),
-                        creditsAsTCO2e,
-                        payout.getPayoutAmount(),
-                        java.util.Collections.emptyList(),
-                        String.valueOf(event.getId()),
-                        company.getId(),
-                        reportReference,
-                        policy.getMinPayout()
-                );
-            } catch (Exception e) {
-                // Email lỗi không nên làm rollback việc chuyển tiền
-                log.warn("Failed to send payout success email to owner {}: {}", owner.getId(), e.getMessage());
-            }
-
-            detail.setStatus("SUCCESS");
-
-        } catch (Exception e) {
-            // Nếu chuyển tiền lỗi -> Save trạng thái FAILED
-            log.error("Exception during payout for EVOwner ID {}: {}", payout.getEvOwnerId(), e.getMessage());
-            String errorMessage = e.getMessage() != null ? e.getMessage() : "Unknown error";
-            detail.setStatus("FAILED");
-            detail.setErrorMessage(errorMessage.substring(0, Math.min(errorMessage.length(), 250)));
-        } finally {
-            // Luôn lưu log chi tiết giao dịch
-            profitDistributionDetailRepository.save(detail);
-        }
-    }
-
     // Tạo bản ghi sự kiện phân phối trong transaction riêng
     @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
-    public ProfitDistribution createDistributionEvent(ProfitSharingRequest request, User companyUser) {
+    public ProfitDistribution createDistributionEvent(ProfitSharingRequest request, User companyUser, long pricingVersion) {
         ProfitDistribution event = new ProfitDistribution();
         event.setCompanyUser(companyUser);
         if (request.getProjectId() != null) {
@@ -453,54 +299,10 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
         event.setTotalMoneyDistributed(BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP));
         event.setTotalCreditsDistributed(BigDecimal.ZERO.setScale(6, RoundingMode.HALF_UP));
         event.setStatus(ProfitDistributionStatus.PROCESSING);
+        event.setPricingVersion(pricingVersion);
         return profitDistributionRepository.save(event);
     }
 
-    // Lưu log lỗi khi không thể bắt đầu process payout (vd: ko tìm thấy user)
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public void saveFailedDetail(ProfitDistribution event, OwnerPayoutData payout, String errorMessage) {
-        try {
-            EVOwner ownerRef = evOwnerRepository.getReferenceById(payout.getEvOwnerId());
-            ProfitDistributionDetail detail = new ProfitDistributionDetail();
-            detail.setDistribution(event);
-            detail.setEvOwner(ownerRef);
-            detail.setMoneyAmount(payout.getPayoutAmount());
-            detail.setCreditAmount(payout.getCreditContribution());
-            detail.setEnergyAmount(payout.getEnergyContribution());
-            detail.setStatus("FAILED");
-            detail.setErrorMessage(errorMessage.substring(0, Math.min(errorMessage.length(), 254)));
-            profitDistributionDetailRepository.save(detail);
-        } catch (Exception e) {
-            log.error("CRITICAL: Failed to save failure detail for owner {}: {}", payout.getEvOwnerId(), e.getMessage());
-        }
-    }
-
-    // Helper map biển số xe
-    private Map<String, Vehicle> buildCompanyVehicleMap(Long companyId) {
-        List<Vehicle> vehicles = vehicleRepository.findByCompanyId(companyId);
-        Map<String, Vehicle> vehicleMap = new HashMap<>();
-        for (Vehicle vehicle : vehicles) {
-            if (vehicle.getEvOwner() == null) continue;
-            String normalizedPlate = normalizePlate(vehicle.getPlateNumber());
-            if (normalizedPlate != null && !normalizedPlate.isEmpty()) {
-                vehicleMap.put(normalizedPlate, vehicle);
-            }
-        }
-        return vehicleMap;
-    }
-
-    // Update status report trong transaction riêng
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public void updateReportsToPaidOut(List<EmissionReport> reports) {
-        if (reports == null || reports.isEmpty()) return;
-        List<Long> reportIds = reports.stream().map(EmissionReport::getId).toList();
-        List<EmissionReport> freshReports = emissionReportRepository.findAllById(reportIds);
-        for (EmissionReport report : freshReports) {
-            report.setStatus(EmissionStatus.PAID_OUT);
-        }
-        emissionReportRepository.saveAll(freshReports);
-    }
-
     private void markDistributionCompleted(ProfitDistribution event) {
         event.setStatus(ProfitDistributionStatus.COMPLETED);
         profitDistributionRepository.save(event);
@@ -540,10 +342,6 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
                 .setScale(scale, RoundingMode.HALF_UP);
     }
 
-    private String normalizePlate(String plate) {
-        return plate == null ? null : plate.replaceAll("\\s+", "").toUpperCase();
-    }
-
     // Kiểm tra số dư ví trước khi chạy job
     private void validateCompanyBalance(Wallet companyWallet, BigDecimal requiredAmount) throws WalletException {
         if (requiredAmount == null) return;
@@ -557,18 +355,4 @@ public class ProfitSharingServiceImpl implements ProfitSharingService {
             throw new AppException(ErrorCode.WALLET_INSUFFICIENT_FUNDS);
         }
     }
-
-    private BigDecimal resolveCreditContribution(EmissionReportDetail detail, BigDecimal fallbackEnergy) {
-        if (detail == null) return BigDecimal.ZERO;
-        // Ưu tiên lấy CO2 tính sẵn
-        BigDecimal co2Kg = detail.getCo2Kg();
-        if (co2Kg != null && co2Kg.compareTo(BigDecimal.ZERO) > 0) {
-            return co2Kg.setScale(6, RoundingMode.HALF_UP);
-        }
-        // Fallback: Tính từ Energy * Hệ số mặc định
-        if (fallbackEnergy != null && fallbackEnergy.compareTo(BigDecimal.ZERO) > 0) {
-            return fallbackEnergy.multiply(DEFAULT_EMISSION_FACTOR).setScale(6, RoundingMode.HALF_UP);
-        }
-        return BigDecimal.ZERO.setScale(6, RoundingMode.HALF_UP);
-    }
 }
@@ -1,42 +1,35 @@
 package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.exception.ResourceNotFoundException;
-import com.carbonx.marketcarbon.model.User;
-import com.carbonx.marketcarbon.repository.UserRepository;
 import com.carbonx.marketcarbon.service.SseService;
+import com.carbonx.marketcarbon.service.notification.SseFanout;
+import com.carbonx.marketcarbon.service.notification.SseHub;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import lombok.RequiredArgsConstructor;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 @Service
 @RequiredArgsConstructor
 public class SseServiceImpl implements SseService {
 
-    private final UserRepository  userRepository;
-
-    // Sử dụng ConcurrentHashMap để map userId (dưới dạng String) với kết nối SseEmitter
-    private final Map<Long, SseEmitter> emitters = new ConcurrentHashMap<>();
+    private static final String NOTIFICATION_EVENT = "notification";
 
-    private User currentUser(){
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    private final CurrentPrincipalProvider principalProvider;
+    // Kết nối SSE trên node này (nhiều kết nối / user, hàng đợi riêng từng kết nối)
+    private final SseHub sseHub;
+    // Giao cho node này + publish sang node khác
+    private final SseFanout sseFanout;
 
-        if (authentication == null || !authentication.isAuthenticated() ||
-                "anonymousUser".equalsIgnoreCase(authentication.getName())) {
+    private Long currentUserId(){
+        CurrentPrincipal principal = principalProvider.current();
+        if (principal == null) {
             throw new ResourceNotFoundException("User not authenticated for SSE subscription");
         }
-
-        String email = authentication.getName();
-        User user = userRepository.findByEmail(email);
-        if(user == null){
-            throw new ResourceNotFoundException("User not found with email: " + email);
-        }
-        return user;
+        return principal.userId();
     }
 
     /**
@@ -45,49 +38,16 @@ public class SseServiceImpl implements SseService {
      */
     @Override
     public SseEmitter subscribe() {
-        // Tạo emitter với thời gian timeout dài
-        SseEmitter emitter = new SseEmitter(30 * 60 * 1000L); // timeout 30 phút
-
-        User currentUser = currentUser();
-        Long userId = currentUser.getId();
-
-        // Xóa emitter khỏi map khi hoàn thành, hết hạn hoặc lỗi
-        emitter.onCompletion(() -> emitters.remove(userId, emitter));
-        emitter.onTimeout(() -> emitters.remove(userId, emitter));
-        emitter.onError((e) -> emitters.remove(userId, emitter));
-
-
-        // Lưu emitter vào map với key là userId
-        SseEmitter previous = emitters.put(userId, emitter);
-        if (previous != null) {
-            previous.complete();
-        }
-
-        // Gửi một sự kiện "init" để xác nhận kết nối
-        try{
-            emitter.send(SseEmitter.event().name("init").data("Connection established for user " + userId));
-        }catch (IOException e){
-            // Lỗi thì xóa emitter
-            emitters.remove(userId, emitter);
-        }
-        return emitter;
+        return sseHub.connect(currentUserId());
     }
 
     /**
-     * Gửi thông báo đến một người dùng cụ thể.
+     * Gửi thông báo đến một người dùng cụ thể (mọi kết nối của user trên mọi node).
+     * Trong transaction thì chỉ gửi sau khi commit.
      * @param message Nội dung thông báo (có thể là JSON string).
      */
     public void sendNotificationToUser(Long userId,String message) {
-        // Lấy emitter của người dùng từ map
-        SseEmitter emitter = emitters.get(userId);
-        if (emitter == null) {
-            return;
-        }
-        try {
-            emitter.send(SseEmitter.event().name("notification").data(message));
-        } catch (IOException e) {
-            emitters.remove(userId, emitter);
-        }
+        afterCommit(() -> sseFanout.publishToUser(userId, NOTIFICATION_EVENT, message));
     }
 
     /**
@@ -95,12 +55,19 @@ public class SseServiceImpl implements SseService {
      * @param message Nội dung thông báo.
      */
     public void sendNotificationToAll(String message) {
-        emitters.forEach((userId, emitter) -> {
-            try {
-                emitter.send(SseEmitter.event().name("notification").data(message));
-            } catch (IOException e) {
-                emitters.remove(userId, emitter);
-            }
-        });
+        afterCommit(() -> sseFanout.publishToAll(NOTIFICATION_EVENT, message));
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 }
@@ -15,6 +15,7 @@ import com.carbonx.marketcarbon.repository.EVOwnerRepository;
 import com.carbonx.marketcarbon.repository.VehicleRepository;
 import com.carbonx.marketcarbon.service.S3Service;
 import com.carbonx.marketcarbon.service.VehicleService;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +35,7 @@ public class VehicleServiceImpl implements VehicleService {
     private final CompanyRepository companyRepository;
     private final EVOwnerRepository evOwnerRepository;
     private final S3Service s3Service;
+    private final OwnerContributionIndex ownerContributionIndex;
 
     @Override
     public VehicleResponse create(VehicleCreateRequest req) {
@@ -71,6 +73,8 @@ public class VehicleServiceImpl implements VehicleService {
 
         vehicleRepository.save(vehicle);
         log.info(" Vehicle created with S3 document: {}", documentUrl);
+        // Report đã upload có biển số này cần map lại về owner mới
+        ownerContributionIndex.onVehicleChanged(company.getId(), vehicle.getPlateNumber());
 
         return VehicleResponse.builder()
                 .id(vehicle.getId())
@@ -128,6 +132,9 @@ public class VehicleServiceImpl implements VehicleService {
         Company company = companyRepository.findById(req.getCompanyId())
                 .orElseThrow(() -> new ResourceNotFoundException("Company not found: id = " + req.getCompanyId()));
 
+        Long previousCompanyId = vehicle.getCompany() != null ? vehicle.getCompany().getId() : null;
+        String previousPlate = vehicle.getPlateNumber();
+
         vehicle.setPlateNumber(req.getPlateNumber());
         vehicle.setBrand(req.getBrand());
         vehicle.setModel(req.getModel());
@@ -140,6 +147,9 @@ public class VehicleServiceImpl implements VehicleService {
 
         vehicleRepository.save(vehicle);
         log.info(" Vehicle updated successfully");
+        // Biển số/chủ/công ty có thể đổi: đánh dấu report theo cả mapping cũ và mới
+        ownerContributionIndex.onVehicleChanged(previousCompanyId, previousPlate);
+        ownerContributionIndex.onVehicleChanged(company.getId(), vehicle.getPlateNumber());
 
         return VehicleResponse.builder()
                 .id(vehicle.getId())
@@ -155,8 +165,10 @@ public class VehicleServiceImpl implements VehicleService {
     public void delete(Long id) {
         Vehicle vehicle = vehicleRepository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("Vehicle not found"));
+        Long companyId = vehicle.getCompany() != null ? vehicle.getCompany().getId() : null;
         vehicleRepository.delete(vehicle);
         log.info(" Vehicle deleted successfully");
+        ownerContributionIndex.onVehicleChanged(companyId, vehicle.getPlateNumber());
     }
 
     @Override
@@ -1,5 +1,6 @@
 package com.carbonx.marketcarbon.service.impl;
 
+import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.WalletTransactionType;
 import com.carbonx.marketcarbon.dto.request.WalletTransactionRequest;
 import com.carbonx.marketcarbon.dto.response.WalletCarbonCreditResponse;
@@ -13,21 +14,21 @@ import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.WalletService;
 import com.carbonx.marketcarbon.service.WalletTransactionService;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
+import com.carbonx.marketcarbon.service.wallet.TransferLeg;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
 import com.carbonx.marketcarbon.utils.CurrencyConverter;
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.LockModeType;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 
@@ -42,17 +43,24 @@ public class WalletServiceImpl implements WalletService {
     private final WalletTransactionRepository walletTransactionRepository;
     private final CarbonCreditRepository carbonCreditRepository;
     private final CompanyRepository companyRepository;
-    // Thêm EntityManager để quản lý locking
-    private final EntityManager entityManager;
-
-    private User currentUser(){
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        String email = authentication.getName();
-        User user = userRepository.findByEmail(email);
-        if(user == null){
-            throw new ResourceNotFoundException("User not found with email: " + email);
+    private final WalletTransferEngine walletTransferEngine;
+    private final CurrentPrincipalProvider principalProvider;
+
+    private CurrentPrincipal currentPrincipal(){
+        CurrentPrincipal principal = principalProvider.current();
+        if(principal == null){
+            throw new ResourceNotFoundException("User not found");
+        }
+        return principal;
+    }
+
+    // Ví của user đăng nhập theo walletId đã resolve (findById lặp lại trong cùng transaction không query lại)
+    private Wallet currentWallet(CurrentPrincipal principal){
+        if (principal.walletId() != null) {
+            return walletRepository.findById(principal.walletId()).orElse(null);
         }
-        return user;
+        // chưa có ví trong cache: kiểm tra lại DB trước khi tạo ví mới
+        return walletRepository.findByUserId(principal.userId());
     }
 
 
@@ -73,11 +81,11 @@ public class WalletServiceImpl implements WalletService {
     @Transactional
     public WalletResponse getUserWallet() throws WalletException {
         // B1 Tim wallet
-        User user = currentUser();
-        Wallet wallet = walletRepository.findByUserId(user.getId());
+        CurrentPrincipal principal = currentPrincipal();
+        Wallet wallet = currentWallet(principal);
         //B2 nếu không có ví thì sẽ tự gen ra ví
         if (wallet == null) {
-            wallet = generateWallet(user);
+            wallet = generateWallet(userRepository.getReferenceById(principal.userId()));
         }
         //B3 khong co thi gen wallet
         // Fetch updated transactions DTOs
@@ -90,12 +98,11 @@ public class WalletServiceImpl implements WalletService {
     @Transactional
     public WalletResponse addBalanceToWallet( Long money) throws WalletException {
         // 1lấy số tiền hiện tại đang có trong ví
-        User user = currentUser();
-        Long id = user.getId();
+        CurrentPrincipal principal = currentPrincipal();
 
-        Wallet wallet = walletRepository.findByUserId(id);
+        Wallet wallet = currentWallet(principal);
         if(wallet == null){
-            wallet = generateWallet(user);
+            wallet = generateWallet(userRepository.getReferenceById(principal.userId()));
         }
 
         BigDecimal amountUsd = BigDecimal.valueOf(money)
@@ -150,10 +157,7 @@ public class WalletServiceImpl implements WalletService {
 
     // Helper method to map Wallet entity to WalletResponse DTO
     private WalletResponse mapToWalletResponse( List<WalletTransactionResponse> transactions) {
-        User user = currentUser();
-        Long id = user.getId();
-
-        Wallet wallet = walletRepository.findByUserId(id);
+        Wallet wallet = currentWallet(currentPrincipal());
 
         if (wallet == null) {
             return null;
@@ -171,142 +175,78 @@ public class WalletServiceImpl implements WalletService {
     }
 
     private List<WalletCarbonCreditResponse> resolveCarbonCreditSummaries() {
-        User user = currentUser();
-        Long id = user.getId();
+        return resolveCarbonCreditSummaries(Pageable.unpaged()).getContent();
+    }
 
-        Wallet wallet = walletRepository.findByUserId(id);
+    @Override
+    @Transactional
+    public Page<WalletCarbonCreditResponse> getWalletCredits(Pageable pageable) {
+        return resolveCarbonCreditSummaries(pageable);
+    }
+
+    // 1 query join sẵn nguồn, lô gốc (origin_credit_id), batch và công ty; không đi ngược chuỗi sourceCredit
+    private Page<WalletCarbonCreditResponse> resolveCarbonCreditSummaries(Pageable pageable) {
+        CurrentPrincipal principal = currentPrincipal();
+
+        Wallet wallet = currentWallet(principal);
         if (wallet == null) {
-            return Collections.emptyList();
+            return Page.empty(pageable);
         }
 
         Company company = wallet.getCompany();
         if (company == null) {
-            company = companyRepository.findByUserId(id).orElse(null);
-            if (company == null) {
-                return Collections.emptyList();
+            if (principal.companyId() == null) {
+                return Page.empty(pageable);
             }
+            company = companyRepository.getReferenceById(principal.companyId());
             wallet.setCompany(company);
             walletRepository.save(wallet);
         }
 
-        List<CarbonCredit> credits = carbonCreditRepository.findByCompanyId(company.getId());
-
-        List<WalletCarbonCreditResponse> response = new ArrayList<>();
-
-        for(CarbonCredit credit : credits) {
-            CarbonCredit sourceCredit = credit.getSourceCredit();
-            Company seller = sourceCredit != null ? sourceCredit.getCompany() : null;
-
-            CarbonCredit originCredit = resolveRootCredit(credit);
-            Company originCompany = null;
-
-            if (originCredit != null) {
-                originCompany = originCredit.getCompany();
-            }
-            if (originCompany == null && credit.getBatch() != null) {
-                originCompany = credit.getBatch().getCompany();
-            }
-
-            // Ưu tiên lấy batch trực tiếp, nếu thiếu thì truy ngược theo chuỗi nguồn để tránh null
-            CreditBatch batch = resolveEffectiveBatch(credit,sourceCredit,originCredit);
-            Company batchCompany = null;
-            if(batch != null) {
-                batchCompany = batch.getCompany();
-            }
-            if(batchCompany == null && originCompany != null) {
-                // fallback cuối cùng: dùng công ty gốc nếu batch không có thông tin
-                batchCompany = originCompany;
-            }
-
-            // Số lượng tín chỉ thực sự thuộc về ví (đã mua + tự phát hành)
-            BigDecimal ownedQuantity = credit.getAmount() != null
-                    ? credit.getAmount()
-                    : BigDecimal.ZERO;
-
-            // Số lượng đang được niêm yết trên sàn bởi chính doanh nghiệp này
-            BigDecimal listedQuantity = credit.getListedAmount() != null
-                    ? credit.getListedAmount()
-                    : BigDecimal.ZERO;
-
-            // Lượng tín chỉ còn lại có thể sử dụng/niêm yết (không bao gồm phần đã list)
-            BigDecimal availableQuantity = ownedQuantity.subtract(listedQuantity);
-            if (availableQuantity.compareTo(BigDecimal.ZERO) < 0) {
-                availableQuantity = BigDecimal.ZERO;
-            }
-
-
-            response.add(WalletCarbonCreditResponse.builder()
-                    .creditId(credit.getId())
-                    .creditCode(credit.getCreditCode())
-                    .ownedQuantity(ownedQuantity)
-                    .availableQuantity(availableQuantity)
-                    .listedQuantity(listedQuantity)
-                    .status(credit.getStatus())
-                    .sellerCompanyId(seller != null ? seller.getId() : null)
-                    .sellerCompanyName(seller != null ? seller.getCompanyName() : null)
-                    .sourceCreditId(sourceCredit != null ? sourceCredit.getId() : null)
-                    .sourceCreditCode(sourceCredit != null ? sourceCredit.getCreditCode() : null)
-                    .originCreditId(originCredit != null ? originCredit.getId() : null)
-                    .originCreditCode(originCredit != null ? originCredit.getCreditCode() : null)
-                    .originCompanyId(originCompany != null ? originCompany.getId() : null)
-                    .originCompanyName(originCompany != null ? originCompany.getCompanyName() : null)
-                    .expirationDate(credit.getExpiryDate())
-                    .batchId(batch != null ? batch.getId() : null)
-                    .batchCode(batch != null ? batch.getBatchCode() : null)
-                    .batchCompanyId(batch != null ? batch.getCompany().getId() : null)
-                    .batchCompanyName(batch != null ? batch.getCompany().getCompanyName() : null)
-                    .build());
-        }
-        return response;
+        return carbonCreditRepository.findWalletCredits(company.getId(), pageable).map(this::toCreditSummary);
     }
 
-    /**
-     * Lấy ra batch phù hợp nhất để giảm thiểu tình trạng dữ liệu null trả về cho FE.
-     * Ưu tiên batch hiện tại, nếu không có thì dùng batch của credit nguồn hoặc credit gốc.
-     */
-    private CreditBatch resolveEffectiveBatch(CarbonCredit credit, CarbonCredit sourceCredit, CarbonCredit originCredit) {
-        // batch trực tiếp
-        CreditBatch batch = credit.getBatch();
-        if (batch != null) {
-            return batch;
-        }
-
-        // nếu credit phát sinh từ giao dịch, sử dụng batch của credit nguồn
-        if (sourceCredit != null && sourceCredit.getBatch() != null) {
-            return sourceCredit.getBatch();
-        }
-
-        // truy ngược tới credit gốc (trường hợp chuỗi nhiều cấp)
-        if (originCredit != null && originCredit.getBatch() != null) {
-            return originCredit.getBatch();
-        }
+    private WalletCarbonCreditResponse toCreditSummary(CarbonCreditRepository.WalletCreditRow row) {
+        // Số lượng tín chỉ thực sự thuộc về ví (đã mua + tự phát hành)
+        BigDecimal ownedQuantity = row.getAmount() != null ? row.getAmount() : BigDecimal.ZERO;
 
-        return null;
-    }
+        // Số lượng đang được niêm yết trên sàn bởi chính doanh nghiệp này
+        BigDecimal listedQuantity = row.getListedAmount() != null ? row.getListedAmount() : BigDecimal.ZERO;
 
-    private CarbonCredit resolveRootCredit(CarbonCredit credit) {
-        if (credit == null) {
-            return null;
+        // Lượng tín chỉ còn lại có thể sử dụng/niêm yết (không bao gồm phần đã list)
+        BigDecimal availableQuantity = ownedQuantity.subtract(listedQuantity);
+        if (availableQuantity.compareTo(BigDecimal.ZERO) < 0) {
+            availableQuantity = BigDecimal.ZERO;
         }
 
-        CarbonCredit current = credit;
-        int depth = 0;
-
-        while (current.getSourceCredit() != null) {
-            current = current.getSourceCredit();
-            depth++;
-            if (depth > 20) {
-                log.warn("Detected unusually deep carbon credit chain starting from credit {}",credit.getId());
-                break;
-            }
-        }
-        return current;
+        return WalletCarbonCreditResponse.builder()
+                .creditId(row.getCreditId())
+                .creditCode(row.getCreditCode())
+                .ownedQuantity(ownedQuantity)
+                .availableQuantity(availableQuantity)
+                .listedQuantity(listedQuantity)
+                .status(row.getStatus() != null ? CreditStatus.valueOf(row.getStatus()) : null)
+                .sellerCompanyId(row.getSellerCompanyId())
+                .sellerCompanyName(row.getSellerCompanyName())
+                .sourceCreditId(row.getSourceCreditId())
+                .sourceCreditCode(row.getSourceCreditCode())
+                .originCreditId(row.getOriginCreditId())
+                .originCreditCode(row.getOriginCreditCode())
+                .originCompanyId(row.getOriginCompanyId())
+                .originCompanyName(row.getOriginCompanyName())
+                .expirationDate(row.getExpiryDate())
+                .batchId(row.getBatchId())
+                .batchCode(row.getBatchCode())
+                .batchCompanyId(row.getBatchCompanyId())
+                .batchCompanyName(row.getBatchCompanyName())
+                .build();
     }
 
     /**
      * Chuyển tiền (VND) giữa hai ví một cách an toàn (banking-grade).
-     * Hàm này sử dụng PESSIMISTIC_WRITE (Khóa bi quan) để khóa cả hai ví
-     * trong suốt quá trình giao dịch, ngăn chặn tuyệt đối lỗi race condition.
+     * Hàm này sử dụng PESSIMISTIC_WRITE (Khóa bi quan) để khóa cả hai ví theo thứ tự id
+     * (WalletTransferEngine), ngăn race condition và deadlock khi chuyển ngược chiều.
+     * Gọi trong transaction thì chạy chung transaction đó, gọi riêng lẻ thì engine tự mở transaction và retry.
      *
      * @param fromWallet  Ví nguồn (chỉ dùng để lấy ID)
      * @param toWallet    Ví đích (chỉ dùng để lấy ID)
@@ -315,7 +255,6 @@ public class WalletServiceImpl implements WalletService {
      * @throws WalletException Nếu có lỗi (VD: không đủ tiền, khóa thất bại)
      */
     @Override
-    @Transactional(rollbackOn = WalletException.class)
     public void transferFunds(
             Wallet fromWallet,
             Wallet toWallet,
@@ -331,79 +270,30 @@ public class WalletServiceImpl implements WalletService {
         }
 
         try {
-            // 1. Khóa và Tải ví nguồn (Sử dụng PESSIMISTIC_WRITE lock)
-            // Tương đương "SELECT ... FOR UPDATE" trong SQL.
-            // Luồng khác sẽ phải đợi nếu muốn tác động vào ví này.
-            Wallet lockedFromWallet = entityManager.find(Wallet.class, fromWallet.getId(), LockModeType.PESSIMISTIC_WRITE);
-            if (lockedFromWallet == null) {
-                throw new AppException(ErrorCode.WALLET_NOT_FOUND);
-            }
-
-            // 2. Khóa và Tải ví đích
-            Wallet lockedToWallet = entityManager.find(Wallet.class, toWallet.getId(), LockModeType.PESSIMISTIC_WRITE);
-            if (lockedToWallet == null) {
-                throw new AppException(ErrorCode.WALLET_NOT_FOUND);
-            }
-
-            BigDecimal fromBefore = lockedFromWallet.getBalance();
-            BigDecimal toBefore = lockedToWallet.getBalance();
-
-            // 3. Kiểm tra số dư trên ví đã bị khóa
-            if (fromBefore.compareTo(amount) < 0) {
-                log.warn("Insufficient funds for transfer. Wallet {} has {}, but {} is required.",
-                        lockedFromWallet.getId(), fromBefore, amount);
-                throw new AppException(ErrorCode.WALLET_INSUFFICIENT_FUNDS);
-            }
-
-            // 4. Trừ tiền ví nguồn (Debit)
-            lockedFromWallet.setBalance(fromBefore.subtract(amount));
-
-            // 5. Cộng tiền ví đích (Credit)
-            lockedToWallet.setBalance(toBefore.add(amount));
-
-            BigDecimal fromAfter = lockedFromWallet.getBalance();
-            BigDecimal toAfter = lockedToWallet.getBalance();
-
-            // 6. Ghi log giao dịch (ví nguồn) - Tạo 2 bản ghi cho 2 bên
-            WalletTransaction fromTransaction = WalletTransaction.builder()
-                    .wallet(lockedFromWallet)
-                    .amount(amount.negate()) // Ghi số âm cho giao dịch rút
-                    // .currency(lockedFromWallet.getCurrency()) // Bỏ qua nếu entity WalletTransaction không có
-                    .transactionType(WalletTransactionType.valueOf(type)) // Chuyển String sang Enum
-                    .description(debitDescription)
-                    .balanceBefore(fromBefore)
-                    .balanceAfter(fromAfter)
+            // Khóa 2 ví theo thứ tự id (không theo thứ tự tham số) rồi debit/credit + ghi 2 bản ghi giao dịch
+            WalletTransactionType txType = WalletTransactionType.valueOf(type); // Chuyển String sang Enum
+            walletTransferEngine.transfer(List.of(TransferLeg.builder()
+                    .fromWalletId(fromWallet.getId())
+                    .toWalletId(toWallet.getId())
+                    .amount(amount)
+                    .debitType(txType)
+                    .creditType(txType)
+                    .debitDescription(debitDescription)
+                    .creditDescription(creditDescription)
                     .distribution(distribution)
-                    .createdAt(LocalDateTime.now()) // Dùng createdAt nếu entity có
-                    .build();
-            walletTransactionRepository.save(fromTransaction);
-
-            // 7. Ghi log giao dịch (ví đích)
-            WalletTransaction toTransaction = WalletTransaction.builder()
-                    .wallet(lockedToWallet)
-                    .amount(amount) // Ghi số dương cho giao dịch nạp
-                    // .currency(lockedToWallet.getCurrency())
-                    .transactionType(WalletTransactionType.valueOf(type))
-                    .description(creditDescription)
-                    .balanceBefore(fromBefore)
-                    .balanceAfter(fromAfter)
-                    // .status("COMPLETED")
-                    .distribution(distribution)
-                    .createdAt(LocalDateTime.now())
-                    .build();
-            walletTransactionRepository.save(toTransaction);
+                    .build()));
 
-            // 8. Tự động commit
-            // Khi phương thức kết thúc, @Transactional sẽ tự động commit các thay đổi
-            // (save `lockedFromWallet`, `lockedToWallet`, và 2 transaction)
-            // và giải phóng lock.
-            log.info("Successfully transferred {} from wallet {} to wallet {}", amount, lockedFromWallet.getId(), lockedToWallet.getId());
+            log.info("Successfully transferred {} from wallet {} to wallet {}", amount, fromWallet.getId(), toWallet.getId());
 
-        } catch (jakarta.persistence.PersistenceException e) {
+        } catch (jakarta.persistence.PersistenceException
+                 | org.springframework.dao.PessimisticLockingFailureException e) {
             log.error("Database lock or persistence error during transfer: {}", e.getMessage(), e);
             throw new WalletException("Failed to acquire lock or persist transaction, transfer rolled back. " + e.getMessage());
         } catch (AppException e) {
             // Đẩy AppException (ví dụ: WALLET_INSUFFICIENT_FUNDS) ra ngoài
+            if (e.getErrorCode() == ErrorCode.WALLET_NOT_ENOUGH_MONEY) {
+                throw new AppException(ErrorCode.WALLET_INSUFFICIENT_FUNDS);
+            }
             throw e;
         } catch (Exception e) {
             // Bắt các lỗi khác (ví dụ: `WalletTransactionType.valueOf(type)` thất bại)
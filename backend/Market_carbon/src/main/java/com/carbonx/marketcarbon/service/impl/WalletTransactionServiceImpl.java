@@ -2,7 +2,10 @@ package com.carbonx.marketcarbon.service.impl;
 
 import com.carbonx.marketcarbon.common.WalletTransactionType;
 import com.carbonx.marketcarbon.dto.request.WalletTransactionRequest;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.WalletTransactionResponse;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.exception.ResourceNotFoundException;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.UserRepository;
@@ -11,14 +14,19 @@ import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
 import com.carbonx.marketcarbon.service.WalletTransactionService;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
@@ -29,6 +37,9 @@ public class WalletTransactionServiceImpl implements WalletTransactionService {
     private final WalletRepository walletRepository;
     private final UserRepository userRepository;
 
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+    private static final int MAX_HISTORY_SIZE = 100;
+
     private User currentUser(){
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         String email = authentication.getName();
@@ -134,83 +145,99 @@ public class WalletTransactionServiceImpl implements WalletTransactionService {
             // Nếu user chưa có ví, trả về danh sách rỗng
             return List.of();
         }
+        // Gộp khoản chi PROFIT_SHARING theo đợt đã làm trong SQL (xem getTransactionHistory)
+        return toHistory(wallet.getId(), walletTransactionRepository.findHistory(wallet.getId(), Pageable.unpaged()));
+    }
 
-        // Gọi query đã được tối ưu (từ Bước 1)
-        List<WalletTransaction> transactions = walletTransactionRepository.findByWalletOrderByCreatedAtDesc(wallet);
-
-        // === LOGIC GỘP GIAO DỊCH (MỚI) ===
-
-        // 1. Phân loại giao dịch: Gộp các khoản chi PROFIT_SHARING, giữ nguyên các giao dịch khác
-        Map<Long, List<WalletTransaction>> groupedProfitSharing = new LinkedHashMap<>();
-        List<WalletTransaction> otherTransactions = new ArrayList<>();
-
-        for (WalletTransaction tx : transactions) {
-            // Chỉ gộp các giao dịch CHI TIỀN (amount < 0) và có cùng distributionId
-            if (tx.getTransactionType() == WalletTransactionType.PROFIT_SHARING &&
-                    tx.getDistribution() != null &&
-                    tx.getAmount() != null &&
-                    tx.getAmount().compareTo(BigDecimal.ZERO) < 0) {
-
-                groupedProfitSharing.computeIfAbsent(
-                        tx.getDistribution().getId(),
-                        k -> new ArrayList<>()
-                ).add(tx);
-            } else {
-                otherTransactions.add(tx);
-            }
+    /**
+     * Lịch sử ví phân trang seek theo (createdAt, id): đọc size + 1 dòng đại diện sau con trỏ,
+     * rồi 1 query gộp tổng các đợt chia lợi nhuận có mặt trong trang. Chi phí mỗi trang phụ thuộc size.
+     */
+    @Override
+    @Transactional
+    public CursorPageResponse<WalletTransactionResponse> getTransactionHistory(String cursor, Integer size) {
+        int pageSize = Math.min(Math.max(Objects.requireNonNullElse(size, DEFAULT_HISTORY_SIZE), 1), MAX_HISTORY_SIZE);
+        User user = currentUser();
+        Wallet wallet = walletRepository.findByUserId(user.getId());
+        if (wallet == null) {
+            return CursorPageResponse.<WalletTransactionResponse>builder()
+                    .items(List.of()).pageSize(pageSize).hasMore(false).build();
         }
 
-        // 2. Xử lý các nhóm đã gộp
-        List<WalletTransaction> mergedTransactions = new ArrayList<>();
-        for (List<WalletTransaction> group : groupedProfitSharing.values()) {
-            if (group.isEmpty()) continue;
-
-            if (group.size() == 1) {
-                // Nếu nhóm chỉ có 1, giữ nguyên
-                mergedTransactions.add(group.get(0));
-            } else {
-                // Nếu nhóm có > 1, tạo giao dịch ảo (virtual transaction)
-                WalletTransaction newestTx = group.get(0); // Giao dịch mới nhất (vì list đã sắp xếp DESC)
-                WalletTransaction oldestTx = group.get(group.size() - 1); // Giao dịch cũ nhất
-
-                // Tính tổng số tiền
-                BigDecimal totalAmount = group.stream()
-                        .map(WalletTransaction::getAmount)
-                        .filter(Objects::nonNull)
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-                // Lấy số dư ĐẦU của giao dịch CŨ NHẤT
-                BigDecimal balanceBefore = oldestTx.getBalanceBefore();
-                // Lấy số dư SAU của giao dịch MỚI NHẤT
-                BigDecimal balanceAfter = newestTx.getBalanceAfter();
-
-                // Tạo một thực thể WalletTransaction "ảo" để gộp
-                WalletTransaction mergedTx = new WalletTransaction();
-                mergedTx.setId(newestTx.getId()); // Dùng ID của giao dịch mới nhất làm đại diện
-                mergedTx.setWallet(newestTx.getWallet());
-                mergedTx.setTransactionType(WalletTransactionType.PROFIT_SHARING);
-                mergedTx.setDescription(String.format("Payout for distribution #%d (%d owners)",
-                        newestTx.getDistribution().getId(), group.size()));
-                mergedTx.setBalanceBefore(balanceBefore);
-                mergedTx.setBalanceAfter(balanceAfter);
-                mergedTx.setAmount(totalAmount); // Tổng số tiền (âm)
-                mergedTx.setCreatedAt(newestTx.getCreatedAt()); // Dùng thời gian mới nhất
-                mergedTx.setDistribution(newestTx.getDistribution());
-
-                mergedTransactions.add(mergedTx);
+        Pageable limit = PageRequest.of(0, pageSize + 1);
+        Seek before = decodeCursor(cursor);
+        List<WalletTransaction> rows = before == null
+                ? walletTransactionRepository.findHistory(wallet.getId(), limit)
+                : walletTransactionRepository.findHistoryBefore(wallet.getId(), before.createdAt(), before.id(), limit);
+
+        boolean hasMore = rows.size() > pageSize;
+        List<WalletTransaction> page = hasMore ? rows.subList(0, pageSize) : rows;
+        WalletTransaction last = page.isEmpty() ? null : page.get(page.size() - 1);
+        return CursorPageResponse.<WalletTransactionResponse>builder()
+                .items(toHistory(wallet.getId(), page))
+                .pageSize(pageSize)
+                .hasMore(hasMore)
+                .nextCursor(hasMore ? encodeCursor(last) : null)
+                .build();
+    }
+
+    // Dòng đại diện của đợt chia lợi nhuận có nhiều khoản chi: thay bằng tổng cả đợt
+    private List<WalletTransactionResponse> toHistory(Long walletId, List<WalletTransaction> rows) {
+        Set<Long> distributionIds = rows.stream()
+                .filter(WalletTransactionServiceImpl::isProfitSharingDebit)
+                .map(tx -> tx.getDistribution().getId())
+                .collect(Collectors.toSet());
+        Map<Long, WalletTransactionRepository.DistributionTotal> totals = distributionIds.isEmpty()
+                ? Map.of()
+                : walletTransactionRepository.findDistributionTotals(walletId, distributionIds).stream()
+                    .collect(Collectors.toMap(WalletTransactionRepository.DistributionTotal::getDistributionId,
+                            Function.identity()));
+
+        List<WalletTransactionResponse> responses = new ArrayList<>(rows.size());
+        for (WalletTransaction tx : rows) {
+            WalletTransactionResponse response = mapToTransactionResponse(tx);
+            WalletTransactionRepository.DistributionTotal total =
+                    isProfitSharingDebit(tx) ? totals.get(tx.getDistribution().getId()) : null;
+            if (total != null && total.getMembers() > 1) {
+                response.setDescription(String.format("Payout for distribution #%d (%d owners)",
+                        total.getDistributionId(), total.getMembers()));
+                response.setAmount(total.getTotal()); // Tổng số tiền (âm)
+                response.setBalanceBefore(total.getBalanceBefore()); // số dư đầu của khoản chi cũ nhất
             }
+            responses.add(response);
         }
+        return responses;
+    }
 
-        // 3. Thêm lại các giao dịch khác
-        mergedTransactions.addAll(otherTransactions);
+    // Chỉ gộp các giao dịch CHI TIỀN (amount < 0) có distribution
+    private static boolean isProfitSharingDebit(WalletTransaction tx) {
+        return tx.getTransactionType() == WalletTransactionType.PROFIT_SHARING
+                && tx.getDistribution() != null
+                && tx.getAmount() != null
+                && tx.getAmount().signum() < 0;
+    }
 
-        // 4. Sắp xếp lại list tổng
-        mergedTransactions.sort(Comparator.comparing(WalletTransaction::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder())));
+    private record Seek(LocalDateTime createdAt, long id) {}
 
-        // Map entities (đã gộp) to DTOs
-        return mergedTransactions.stream()
-                .map(this::mapToTransactionResponse) // sử dụng stream map
-                .collect(Collectors.toList());
+    // Con trỏ = base64url("createdAt|id") của dòng cuối trang trước
+    private static String encodeCursor(WalletTransaction last) {
+        String raw = last.getCreatedAt() + "|" + last.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Seek decodeCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", -1);
+            if (parts.length != 2) {
+                throw new AppException(ErrorCode.WALLET_HISTORY_CURSOR_INVALID);
+            }
+            return new Seek(LocalDateTime.parse(parts[0]), Long.parseLong(parts[1]));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new AppException(ErrorCode.WALLET_HISTORY_CURSOR_INVALID);
+        }
     }
 
     @Override
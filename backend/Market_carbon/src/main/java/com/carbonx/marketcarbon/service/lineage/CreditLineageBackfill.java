@@ -0,0 +1,71 @@
+package com.carbonx.marketcarbon.service.lineage;
+
+import com.carbonx.marketcarbon.repository.CarbonCreditRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+/**
+ * Điền origin_credit_id/lineage_depth cho tín chỉ tạo trước khi có lineage.
+ * - Đi theo cửa sổ id tăng dần: lô nguồn luôn có id nhỏ hơn lô nhận, nên cửa sổ trước đã xong thì
+ *   cửa sổ sau chỉ cần lặp "thêm 1 cấp" đến khi không còn dòng nào đổi.
+ * - Mỗi câu UPDATE 1 transaction ngắn; chạy lại được nhiều lần (chỉ đụng dòng còn NULL).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CreditLineageBackfill {
+
+    private final CarbonCreditRepository creditRepository;
+
+    @Value("${app.lineage.backfill-on-startup:true}")
+    private boolean backfillOnStartup = true;
+
+    @Value("${app.lineage.chunk-size:5000}")
+    private int chunkSize = 5000;
+
+    @Value("${app.lineage.max-depth:64}")
+    private int maxDepth = 64;
+
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!backfillOnStartup) {
+            return;
+        }
+        try {
+            long updated = backfill();
+            if (updated > 0) {
+                log.info("[LINEAGE] Backfilled lineage for {} credits", updated);
+            }
+        } catch (Exception e) {
+            log.warn("[LINEAGE] Backfill failed, wallet summary falls back to direct source: {}", e.getMessage());
+        }
+    }
+
+    public long backfill() {
+        Long fromId = creditRepository.findMinIdWithoutLineage();
+        Long maxId = creditRepository.findMaxId();
+        if (fromId == null || maxId == null) {
+            return 0;
+        }
+        long updated = 0;
+        int step = Math.max(1, chunkSize);
+        for (long from = fromId; from <= maxId; from += step) {
+            long to = from + step - 1;
+            updated += creditRepository.backfillRootLineage(from, to);
+            for (int level = 0; level < maxDepth; level++) {
+                int rows = creditRepository.backfillLineageLevel(from, to);
+                updated += rows;
+                if (rows == 0) {
+                    break;
+                }
+            }
+        }
+        return updated;
+    }
+}
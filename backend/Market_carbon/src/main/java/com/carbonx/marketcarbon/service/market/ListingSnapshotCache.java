@@ -0,0 +1,214 @@
+package com.carbonx.marketcarbon.service.market;
+
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Snapshot trong bộ nhớ các niêm yết đang mở cho trang sàn (đọc nhiều nhất).
+ * - Nạp toàn bộ 1 lần (hoặc khi sang ngày mới), sau đó cập nhật từng dòng khi listing đổi:
+ *   MatchingEngine.refreshListing gọi onListingChanged sau commit của đăng bán/sửa/hủy/mua/khớp lệnh/hết hạn.
+ * - Mỗi thay đổi tăng version; JSON + ETag chỉ render lại khi version đổi, trang search cache theo version (LRU).
+ * - Node khác nhận listingId qua Redis pub/sub và nạp lại đúng dòng đó; nạp lại toàn bộ định kỳ phòng lỡ thông báo.
+ * - ETag là hash nội dung nên giống nhau giữa các node.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ListingSnapshotCache implements MessageListener {
+
+    public record Rendered(long version, String etag, String json) {}
+
+    private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+
+    private final MarketplaceListingRepository listingRepository;
+    private final StringRedisTemplate redis;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.listing-cache.channel:carbonx:listings}")
+    private String channel = "carbonx:listings";
+
+    @Value("${app.listing-cache.max-pages:256}")
+    private int maxPages = 256;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    // Mới nhất trước (cùng thứ tự NEWEST của trang sàn)
+    private final Map<Long, MarketplaceListingResponse> listings = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+    private final AtomicLong version = new AtomicLong();
+    private volatile LocalDate loadedFor;
+    private volatile Rendered active;
+
+    // Trang search đã render, hết hiệu lực khi version đổi
+    private final Map<String, Rendered> pages = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Rendered> eldest) {
+            return size() > maxPages;
+        }
+    });
+
+    /** Toàn bộ niêm yết đang mở, JSON dựng sẵn. */
+    public Rendered active() {
+        ensureLoaded();
+        Rendered rendered = active;
+        if (rendered != null && rendered.version() == version.get()) {
+            return rendered;
+        }
+        synchronized (this) {
+            long current = version.get();
+            if (active == null || active.version() != current) {
+                active = render(current, new ArrayList<>(listings.values()));
+            }
+            return active;
+        }
+    }
+
+    /** Trang search theo bộ lọc, chỉ gọi loader khi chưa có trang ứng với version hiện tại. */
+    public Rendered searchPage(MarketplaceSearchFilter filter, Supplier<?> loader) {
+        ensureLoaded();
+        long current = version.get();
+        String key = pageKey(filter);
+        Rendered cached = pages.get(key);
+        if (cached != null && cached.version() == current) {
+            return cached;
+        }
+        // Đọc version trước khi nạp: thay đổi xen giữa làm trang này hết hiệu lực ở lần sau
+        Rendered rendered = render(current, loader.get());
+        pages.put(key, rendered);
+        return rendered;
+    }
+
+    /** Listing vừa đổi ở node này: cập nhật dòng rồi báo các node khác. */
+    public void onListingChanged(Long listingId) {
+        apply(listingId);
+        try {
+            redis.convertAndSend(channel, nodeId + "|" + listingId);
+        } catch (RuntimeException e) {
+            log.warn("Cannot notify listing {} change (other nodes pick it up on rebuild): {}", listingId, e.getMessage());
+        }
+    }
+
+    // Node khác vừa đổi listing
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).trim().split("\\|", 2);
+            if (parts.length == 2 && !nodeId.equals(parts[0])) {
+                apply(Long.parseLong(parts[1]));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot apply listing notification: {}", e.getMessage());
+        }
+    }
+
+    public String channel() {
+        return channel;
+    }
+
+    /** If-None-Match khớp ETag (chấp nhận danh sách, W/ và *). */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Scheduled(fixedDelayString = "${app.listing-cache.rebuild-ms:300000}", initialDelayString = "${app.listing-cache.rebuild-ms:300000}")
+    public void rebuild() {
+        if (loadedFor == null) {
+            return;
+        }
+        try {
+            reload(LocalDate.now(VIETNAM_ZONE));
+        } catch (RuntimeException e) {
+            log.warn("Cannot rebuild listing snapshot, keeping v{}: {}", version.get(), e.getMessage());
+        }
+    }
+
+    private void ensureLoaded() {
+        LocalDate today = LocalDate.now(VIETNAM_ZONE);
+        if (!today.equals(loadedFor)) {
+            synchronized (this) {
+                if (!today.equals(loadedFor)) {
+                    reload(today);
+                }
+            }
+        }
+    }
+
+    private synchronized void reload(LocalDate today) {
+        List<MarketplaceListingResponse> rows =
+                listingRepository.searchOpen(new MarketplaceSearchFilter(), today, null, Integer.MAX_VALUE);
+        listings.clear();
+        rows.forEach(row -> listings.put(row.getListingId(), row));
+        loadedFor = today;
+        version.incrementAndGet();
+        log.info("Listing snapshot v{} loaded: {} open listings", version.get(), rows.size());
+    }
+
+    private synchronized void apply(Long listingId) {
+        LocalDate today = loadedFor;
+        if (today == null) {
+            return; // chưa nạp, lần đọc đầu sẽ nạp toàn bộ
+        }
+        try {
+            listingRepository.findOpenById(listingId, today).ifPresentOrElse(
+                    row -> listings.put(listingId, row),
+                    () -> listings.remove(listingId));
+            version.incrementAndGet();
+        } catch (RuntimeException e) {
+            // Không chắc dòng này còn đúng: lần đọc sau nạp lại toàn bộ
+            loadedFor = null;
+            log.warn("Cannot refresh listing {} in snapshot, full reload on next read: {}", listingId, e.getMessage());
+        }
+    }
+
+    private Rendered render(long ver, Object data) {
+        try {
+            String json = objectMapper.writeValueAsString(data);
+            String etag = "\"" + DigestUtils.md5DigestAsHex(json.getBytes(StandardCharsets.UTF_8)) + "\"";
+            return new Rendered(ver, etag, json);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize listings", e);
+        }
+    }
+
+    private static String pageKey(MarketplaceSearchFilter f) {
+        return f.getProjectId() + "|" + f.getVintageYear() + "|" + f.getMinPrice() + "|" + f.getMaxPrice() + "|"
+                + f.getSellerCompanyId() + "|" + f.getSort() + "|" + f.getCursor() + "|" + f.getSize();
+    }
+}
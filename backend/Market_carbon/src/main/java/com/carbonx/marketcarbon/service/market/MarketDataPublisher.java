@@ -0,0 +1,159 @@
+package com.carbonx.marketcarbon.service.market;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dữ liệu thị trường real-time qua STOMP broker (/topic), nguồn là các OrderBook của MatchingEngine:
+ * - /topic/market/{projectId}/listings: listing thay đổi (giá, số lượng còn lại, đóng/mở), kèm seq;
+ * - /topic/market/{projectId}/ticker: giá chào bán tốt nhất, khối lượng ở mức giá đó, tổng còn bán, giá khớp gần nhất.
+ * Thay đổi trong 1 cửa sổ conflation-ms được gộp: mỗi listing/ticker chỉ gửi trạng thái cuối, mỗi project 1 message / cửa sổ.
+ * seq tăng liên tục theo project; client subscribe trước, lấy snapshot (/app/market/{projectId}/snapshot),
+ * bỏ delta có seq <= seq của snapshot, thấy hụt seq thì lấy lại snapshot.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MarketDataPublisher {
+
+    public static final String TOPIC_PREFIX = "/topic/market/";
+
+    private final SimpMessageSendingOperations messagingTemplate;
+
+    public record ListingState(Long listingId, Integer vintageYear, BigDecimal price, BigDecimal quantity, boolean open) {}
+
+    public record Ticker(Long projectId, Integer vintageYear, BigDecimal bestAsk, BigDecimal bestAskQuantity,
+                         BigDecimal available, int listings, BigDecimal lastPrice, BigDecimal lastQuantity,
+                         long updatedAt) {}
+
+    public record ListingDelta(Long projectId, long seq, List<ListingState> listings) {}
+
+    public record TickerUpdate(Long projectId, long seq, List<Ticker> tickers) {}
+
+    public record Snapshot(Long projectId, long seq, List<ListingState> listings, List<Ticker> tickers) {}
+
+    // Trạng thái đã gửi (cho snapshot) + phần đang chờ gộp của 1 project; truy cập trong synchronized(view)
+    private static final class ProjectView {
+        private long seq;
+        private final Map<Long, ListingState> listings = new HashMap<>();
+        private final Map<Integer, Ticker> tickers = new HashMap<>();
+        private final Map<Long, ListingState> pendingListings = new LinkedHashMap<>();
+        private final Map<Integer, Ticker> pendingTickers = new LinkedHashMap<>();
+    }
+
+    private final Map<Long, ProjectView> views = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Book vừa đổi (listing được nạp lại/xóa). Gọi khi đang giữ khóa của book.
+     * @param listing trạng thái mới của listing vừa đổi (null nếu chỉ đổi phần giữ chỗ)
+     */
+    public void onBookChanged(MatchingEngine.BookKey key, OrderBook book, ListingState listing) {
+        if (key.projectId() == null) {
+            return;
+        }
+        ProjectView view = views.computeIfAbsent(key.projectId(), id -> new ProjectView());
+        synchronized (view) {
+            Ticker previous = latestTicker(view, key.vintageYear());
+            view.pendingTickers.put(key.vintageYear(), new Ticker(key.projectId(), key.vintageYear(),
+                    book.bestAsk(), book.bestAskQuantity(), book.totalAvailable(), book.size(),
+                    previous != null ? previous.lastPrice() : null,
+                    previous != null ? previous.lastQuantity() : null,
+                    System.currentTimeMillis()));
+            if (listing != null) {
+                view.pendingListings.put(listing.listingId(), listing);
+            }
+        }
+        dirty.add(key.projectId());
+    }
+
+    // Lệnh khớp đã commit: cập nhật giá khớp gần nhất trên ticker
+    public void onTrade(MatchingEngine.BookKey key, BigDecimal price, BigDecimal quantity) {
+        if (key.projectId() == null) {
+            return;
+        }
+        ProjectView view = views.computeIfAbsent(key.projectId(), id -> new ProjectView());
+        synchronized (view) {
+            Ticker previous = latestTicker(view, key.vintageYear());
+            view.pendingTickers.put(key.vintageYear(), previous != null
+                    ? new Ticker(key.projectId(), key.vintageYear(), previous.bestAsk(), previous.bestAskQuantity(),
+                    previous.available(), previous.listings(), price, quantity, System.currentTimeMillis())
+                    : new Ticker(key.projectId(), key.vintageYear(), null, BigDecimal.ZERO, BigDecimal.ZERO, 0,
+                    price, quantity, System.currentTimeMillis()));
+        }
+        dirty.add(key.projectId());
+    }
+
+    public Snapshot snapshot(Long projectId) {
+        ProjectView view = views.get(projectId);
+        if (view == null) {
+            return new Snapshot(projectId, 0, List.of(), List.of());
+        }
+        synchronized (view) {
+            return new Snapshot(projectId, view.seq, List.copyOf(view.listings.values()),
+                    List.copyOf(view.tickers.values()));
+        }
+    }
+
+    /**
+     * Hết mỗi cửa sổ conflation: mỗi project có thay đổi nhận đúng 1 seq mới,
+     * 1 message listing (nếu có listing đổi) và 1 message ticker.
+     */
+    @Scheduled(fixedDelayString = "${app.market-data.conflation-ms:250}")
+    public void flush() {
+        for (Iterator<Long> it = dirty.iterator(); it.hasNext(); ) {
+            Long projectId = it.next();
+            it.remove();
+            ProjectView view = views.get(projectId);
+            ListingDelta listingDelta;
+            TickerUpdate tickerUpdate;
+            synchronized (view) {
+                if (view.pendingListings.isEmpty() && view.pendingTickers.isEmpty()) {
+                    continue;
+                }
+                long seq = ++view.seq;
+                List<ListingState> listings = new ArrayList<>(view.pendingListings.values());
+                List<Ticker> tickers = new ArrayList<>(view.pendingTickers.values());
+                for (ListingState listing : listings) {
+                    if (listing.open()) {
+                        view.listings.put(listing.listingId(), listing);
+                    } else {
+                        view.listings.remove(listing.listingId());
+                    }
+                }
+                view.tickers.putAll(view.pendingTickers);
+                view.pendingListings.clear();
+                view.pendingTickers.clear();
+                listingDelta = listings.isEmpty() ? null : new ListingDelta(projectId, seq, listings);
+                tickerUpdate = new TickerUpdate(projectId, seq, tickers);
+            }
+            try {
+                if (listingDelta != null) {
+                    messagingTemplate.convertAndSend(TOPIC_PREFIX + projectId + "/listings", listingDelta);
+                }
+                messagingTemplate.convertAndSend(TOPIC_PREFIX + projectId + "/ticker", tickerUpdate);
+            } catch (RuntimeException e) {
+                // Client thấy hụt seq sẽ tự lấy lại snapshot
+                log.warn("[MARKET-DATA] Cannot publish project {}: {}", projectId, e.getMessage());
+            }
+        }
+    }
+
+    private static Ticker latestTicker(ProjectView view, Integer vintageYear) {
+        Ticker pending = view.pendingTickers.get(vintageYear);
+        return pending != null ? pending : view.tickers.get(vintageYear);
+    }
+}
@@ -0,0 +1,232 @@
+package com.carbonx.marketcarbon.service.market;
+
+import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import com.carbonx.marketcarbon.model.MarketPlaceListing;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Sổ lệnh trong bộ nhớ cho marketplace, mỗi (project, vintage) một OrderBook.
+ * - Mỗi book có khóa riêng (synchronized trên book): thao tác trên book chỉ vài micro giây nên luồng request
+ *   khớp trực tiếp, không chuyển sang thread khác rồi chờ kết quả; 2 book khác nhau không chặn nhau.
+ * - Khớp lệnh chỉ "giữ chỗ" trên book; settle vẫn khóa và kiểm tra lại listing trong DB (DB là nguồn đúng).
+ * - Sau mỗi commit, listing liên quan được nạp lại từ DB để book bám theo trạng thái thật.
+ */
+@Slf4j
+@Service
+public class MatchingEngine {
+
+    private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+
+    private final MarketplaceListingRepository listingRepository;
+    // Phát ticker/listing delta sau mỗi thay đổi của book
+    private final MarketDataPublisher marketData;
+    // Snapshot niêm yết cho trang sàn, cập nhật cùng lúc với book
+    private final ListingSnapshotCache listingCache;
+    private final Map<BookKey, OrderBook> books = new ConcurrentHashMap<>();
+    private final Map<Long, BookKey> listingIndex = new ConcurrentHashMap<>();
+    // Nạp lại listing từ DB tuần tự, ngoài luồng request và ngoài transaction vừa kết thúc
+    private final ExecutorService refresher;
+
+    public MatchingEngine(MarketplaceListingRepository listingRepository,
+                          MarketDataPublisher marketData,
+                          ListingSnapshotCache listingCache) {
+        this.listingRepository = listingRepository;
+        this.marketData = marketData;
+        this.listingCache = listingCache;
+        this.refresher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Matching-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        LocalDate today = LocalDate.now(VIETNAM_ZONE);
+        List<MarketPlaceListing> open = listingRepository.findOpenForOrderBook(ListingStatus.AVAILABLE, today);
+        for (MarketPlaceListing listing : open) {
+            ListingSnapshot snap = snapshot(listing, today);
+            onBook(snap.key(), book -> apply(book, snap));
+        }
+        log.info("[MATCHING] Order books rebuilt: {} listings in {} books", open.size(), books.size());
+    }
+
+    /**
+     * Khớp lệnh mua (limitPrice null = market) trên book của (project, vintage).
+     * Phần đã khớp được giữ chỗ cho tới khi transaction settle kết thúc (xem bindToTransaction).
+     */
+    public List<Fill> match(BookKey key, Long buyerCompanyId, BigDecimal quantity, BigDecimal limitPrice) {
+        LocalDate today = LocalDate.now(VIETNAM_ZONE);
+        OrderBook book = bookOf(key);
+        List<OrderBook.Match> matches;
+        synchronized (book) {
+            matches = book.match(buyerCompanyId, quantity, limitPrice, today);
+        }
+        return matches.stream()
+                .map(m -> new Fill(key, m.listingId(), m.sellerCompanyId(), m.price(), m.quantity()))
+                .toList();
+    }
+
+    // Khi transaction settle kết thúc (commit hay rollback): nạp lại các listing đã khớp rồi bỏ giữ chỗ
+    // cùng lúc áp số lượng mới, để book không lộ ra số lượng trước giao dịch như thể còn trống
+    public void bindToTransaction(List<Fill> fills) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Fills must be settled inside a transaction");
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                refresher.execute(() -> fills.forEach(fill -> {
+                    refreshListing(fill.listingId(), fill);
+                    if (status == STATUS_COMMITTED) {
+                        marketData.onTrade(fill.key(), fill.price(), fill.quantity());
+                    }
+                }));
+            }
+        });
+    }
+
+    // Listing được tạo/sửa/xóa ngoài engine: nạp lại sau khi commit
+    public void refreshListingAfterCommit(Long listingId) {
+        if (listingId == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    refresher.execute(() -> refreshListing(listingId, null));
+                }
+            });
+        } else {
+            refresher.execute(() -> refreshListing(listingId, null));
+        }
+    }
+
+    public BigDecimal bestAsk(BookKey key) {
+        OrderBook book = bookOf(key);
+        synchronized (book) {
+            return book.bestAsk();
+        }
+    }
+
+    /**
+     * Nạp listing từ DB (ngoài khóa book), rồi áp vào book. settled != null: bỏ giữ chỗ của fill
+     * trong cùng đoạn giữ khóa với lúc áp số lượng mới.
+     */
+    private void refreshListing(Long listingId, Fill settled) {
+        ListingSnapshot snap;
+        try {
+            LocalDate today = LocalDate.now(VIETNAM_ZONE);
+            snap = listingRepository.findWithCreditById(listingId)
+                    .map(listing -> snapshot(listing, today))
+                    .orElse(null);
+        } catch (Exception e) {
+            log.error("[MATCHING] Cannot refresh listing {}: {}", listingId, e.getMessage(), e);
+            // Không nạp được thì vẫn phải trả chỗ, settle đã kiểm tra lại DB nên chỉ có thể khớp hụt
+            if (settled != null) {
+                onBook(settled.key(), book -> book.unreserve(listingId, settled.quantity()));
+            }
+            return;
+        }
+
+        try {
+            BookKey previous = listingIndex.get(listingId);
+            boolean moved = previous != null && (snap == null || !previous.equals(snap.key()));
+            BookKey reservedOn = settled != null ? settled.key() : null;
+            if (moved) {
+                listingIndex.remove(listingId);
+                onBook(previous, book -> {
+                    if (previous.equals(reservedOn)) book.unreserve(listingId, settled.quantity());
+                    book.remove(listingId);
+                    marketData.onBookChanged(previous, book,
+                            new MarketDataPublisher.ListingState(listingId, previous.vintageYear(), null, BigDecimal.ZERO, false));
+                });
+            }
+            if (snap != null) {
+                onBook(snap.key(), book -> {
+                    if (snap.key().equals(reservedOn)) book.unreserve(listingId, settled.quantity());
+                    apply(book, snap);
+                });
+            }
+            if (reservedOn != null && !(moved && previous.equals(reservedOn))
+                    && !(snap != null && snap.key().equals(reservedOn))) {
+                onBook(reservedOn, book -> book.unreserve(listingId, settled.quantity()));
+            }
+            listingCache.onListingChanged(listingId);
+        } catch (Exception e) {
+            log.error("[MATCHING] Cannot apply listing {}: {}", listingId, e.getMessage(), e);
+        }
+    }
+
+    // Gọi khi đang giữ khóa của book
+    private void apply(OrderBook book, ListingSnapshot snap) {
+        if (snap.open()) {
+            listingIndex.put(snap.listingId(), snap.key());
+            book.upsert(snap.listingId(), snap.sellerCompanyId(), snap.price(), snap.quantity(), snap.expiresAt());
+        } else {
+            listingIndex.remove(snap.listingId());
+            book.remove(snap.listingId());
+        }
+        marketData.onBookChanged(snap.key(), book, new MarketDataPublisher.ListingState(
+                snap.listingId(), snap.key().vintageYear(), snap.price(), snap.quantity(), snap.open()));
+    }
+
+    private ListingSnapshot snapshot(MarketPlaceListing listing, LocalDate today) {
+        CarbonCredit credit = listing.getCarbonCredit();
+        Long projectId = credit.getProject() != null ? credit.getProject().getId() : null;
+        BigDecimal quantity = listing.getQuantity() != null ? listing.getQuantity() : BigDecimal.ZERO;
+        boolean open = listing.getStatus() == ListingStatus.AVAILABLE
+                && quantity.signum() > 0
+                && (listing.getExpiresAt() == null || listing.getExpiresAt().isAfter(today));
+        return new ListingSnapshot(
+                listing.getId(),
+                new BookKey(projectId, credit.getVintageYear()),
+                listing.getCompany().getId(),
+                listing.getPricePerCredit(),
+                quantity,
+                listing.getExpiresAt(),
+                open);
+    }
+
+    private void onBook(BookKey key, Consumer<OrderBook> action) {
+        OrderBook book = bookOf(key);
+        synchronized (book) {
+            action.accept(book);
+        }
+    }
+
+    private OrderBook bookOf(BookKey key) {
+        return books.computeIfAbsent(key, k -> new OrderBook());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdown();
+    }
+
+    public record BookKey(Long projectId, Integer vintageYear) {}
+
+    public record Fill(BookKey key, Long listingId, Long sellerCompanyId, BigDecimal price, BigDecimal quantity) {}
+
+    private record ListingSnapshot(Long listingId, BookKey key, Long sellerCompanyId, BigDecimal price,
+                                   BigDecimal quantity, LocalDate expiresAt, boolean open) {}
+}
@@ -0,0 +1,184 @@
+package com.carbonx.marketcarbon.service.market;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Sổ lệnh bán (ask) của một (project, vintage), ưu tiên giá rồi thời gian.
+ * Không thread-safe: MatchingEngine chỉ truy cập khi giữ khóa của book (synchronized trên book).
+ * - dbQuantity: số lượng còn lại của listing theo DB (lần nạp gần nhất)
+ * - reserved: phần đã khớp nhưng chưa settle xong, không được khớp lại
+ */
+public class OrderBook {
+
+    private final NavigableMap<BigDecimal, Deque<Entry>> asks = new TreeMap<>();
+    private final Map<Long, Entry> byListing = new HashMap<>();
+
+    public void upsert(Long listingId, Long sellerCompanyId, BigDecimal price, BigDecimal quantity, LocalDate expiresAt) {
+        Entry entry = byListing.get(listingId);
+        if (entry == null) {
+            entry = new Entry(listingId, sellerCompanyId);
+            byListing.put(listingId, entry);
+        } else if (entry.price.compareTo(price) != 0) {
+            // Đổi giá thì mất ưu tiên thời gian, xếp cuối mức giá mới
+            unlink(entry);
+        } else {
+            entry.dbQuantity = quantity;
+            entry.expiresAt = expiresAt;
+            return;
+        }
+        entry.price = price;
+        entry.dbQuantity = quantity;
+        entry.expiresAt = expiresAt;
+        asks.computeIfAbsent(price, p -> new ArrayDeque<>()).addLast(entry);
+    }
+
+    public void remove(Long listingId) {
+        Entry entry = byListing.get(listingId);
+        if (entry == null) {
+            return;
+        }
+        entry.dbQuantity = BigDecimal.ZERO;
+        // Còn phần đang settle thì giữ lại để unreserve tìm thấy, dọn sau
+        if (entry.reserved.signum() == 0) {
+            unlink(entry);
+            byListing.remove(listingId);
+        }
+    }
+
+    /**
+     * Quét các mức giá từ thấp đến cao cho tới khi đủ quantity hoặc vượt limitPrice (null = lệnh market).
+     * Chỉ khớp phần nguyên (mỗi tín chỉ là 1 serial), bỏ qua listing của chính người mua và listing đã hết hạn.
+     */
+    public List<Match> match(Long buyerCompanyId, BigDecimal quantity, BigDecimal limitPrice, LocalDate today) {
+        List<Match> matches = new ArrayList<>();
+        BigDecimal remaining = quantity;
+
+        for (Map.Entry<BigDecimal, Deque<Entry>> level : asks.entrySet()) {
+            if (remaining.signum() <= 0) {
+                break;
+            }
+            if (limitPrice != null && level.getKey().compareTo(limitPrice) > 0) {
+                break;
+            }
+            for (Entry entry : level.getValue()) {
+                if (remaining.signum() <= 0) {
+                    break;
+                }
+                if (entry.sellerCompanyId.equals(buyerCompanyId)
+                        || (entry.expiresAt != null && !entry.expiresAt.isAfter(today))) {
+                    continue;
+                }
+                BigDecimal take = entry.available().min(remaining).setScale(0, RoundingMode.DOWN);
+                if (take.signum() <= 0) {
+                    continue;
+                }
+                entry.reserved = entry.reserved.add(take);
+                remaining = remaining.subtract(take);
+                matches.add(new Match(entry.listingId, entry.sellerCompanyId, entry.price, take));
+            }
+        }
+        return matches;
+    }
+
+    // Bỏ phần đã giữ sau khi settle xong (commit hoặc rollback); số lượng thật được nạp lại từ DB ngay sau đó
+    public void unreserve(Long listingId, BigDecimal quantity) {
+        Entry entry = byListing.get(listingId);
+        if (entry == null) {
+            return;
+        }
+        entry.reserved = entry.reserved.subtract(quantity).max(BigDecimal.ZERO);
+        cleanup(entry);
+    }
+
+    public BigDecimal bestAsk() {
+        for (Map.Entry<BigDecimal, Deque<Entry>> level : asks.entrySet()) {
+            for (Entry entry : level.getValue()) {
+                if (entry.available().signum() > 0) {
+                    return level.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    // Số lượng còn khớp được ở mức giá tốt nhất (0 nếu book trống)
+    public BigDecimal bestAskQuantity() {
+        for (Deque<Entry> level : asks.values()) {
+            BigDecimal total = BigDecimal.ZERO;
+            for (Entry entry : level) {
+                total = total.add(entry.available());
+            }
+            if (total.signum() > 0) {
+                return total;
+            }
+        }
+        return BigDecimal.ZERO;
+    }
+
+    public BigDecimal totalAvailable() {
+        BigDecimal total = BigDecimal.ZERO;
+        for (Entry entry : byListing.values()) {
+            total = total.add(entry.available());
+        }
+        return total;
+    }
+
+    public int size() {
+        return byListing.size();
+    }
+
+    private void cleanup(Entry entry) {
+        if (entry.dbQuantity.signum() <= 0 && entry.reserved.signum() == 0) {
+            unlink(entry);
+            byListing.remove(entry.listingId);
+        }
+    }
+
+    private void unlink(Entry entry) {
+        Deque<Entry> level = asks.get(entry.price);
+        if (level == null) {
+            return;
+        }
+        Iterator<Entry> it = level.iterator();
+        while (it.hasNext()) {
+            if (it.next() == entry) {
+                it.remove();
+                break;
+            }
+        }
+        if (level.isEmpty()) {
+            asks.remove(entry.price);
+        }
+    }
+
+    public record Match(Long listingId, Long sellerCompanyId, BigDecimal price, BigDecimal quantity) {}
+
+    private static final class Entry {
+        private final Long listingId;
+        private final Long sellerCompanyId;
+        private BigDecimal price;
+        private BigDecimal dbQuantity = BigDecimal.ZERO;
+        private BigDecimal reserved = BigDecimal.ZERO;
+        private LocalDate expiresAt;
+
+        private Entry(Long listingId, Long sellerCompanyId) {
+            this.listingId = listingId;
+            this.sellerCompanyId = sellerCompanyId;
+        }
+
+        private BigDecimal available() {
+            return dbQuantity.subtract(reserved).max(BigDecimal.ZERO);
+        }
+    }
+}
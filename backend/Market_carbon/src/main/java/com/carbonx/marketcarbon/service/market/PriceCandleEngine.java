@@ -0,0 +1,356 @@
+package com.carbonx.marketcarbon.service.market;
+
+import com.carbonx.marketcarbon.model.PriceCandle;
+import com.carbonx.marketcarbon.model.PriceCandleBackfill;
+import com.carbonx.marketcarbon.repository.OrderStatsRepository;
+import com.carbonx.marketcarbon.repository.PriceCandleBackfillRepository;
+import com.carbonx.marketcarbon.repository.PriceCandleRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nến giá OHLC/VWAP 1 phút, 1 giờ, 1 ngày cho toàn sàn, từng project và từng công ty (mua hoặc bán).
+ * - Mỗi fill đã commit được cộng vào nến đang mở trong bộ nhớ (12 nến / fill), không truy vấn gì.
+ * - Mỗi flush-ms phần cộng dồn được upsert vào price_candles trong 1 transaction (cộng vào dòng đã có, an toàn khi nhiều node;
+ *   lỗi thì rollback cả batch và giữ lại phần cộng dồn cho lần flush sau).
+ * - Thống kê 1 khoảng thời gian ghép nến thô ở 2 đầu với nến giờ/ngày ở giữa: tối đa 5 truy vấn theo unique key,
+ *   số dòng đọc phụ thuộc độ dài khoảng chứ không phụ thuộc số lệnh đã có. Fill chưa flush chưa được tính.
+ * - Lệnh khớp trước khi có engine được dựng 1 lần theo mốc trong price_candle_backfills (xem warmUp).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PriceCandleEngine {
+
+    private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+    private static final Long MARKET_SCOPE_ID = 0L;
+    private static final Long BACKFILL_ID = 1L;
+
+    private final PriceCandleRepository candleRepository;
+    private final OrderStatsRepository orderStatsRepository;
+    private final PriceCandleBackfillRepository backfillRepository;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private PriceCandleEngine getSelf() {
+        return applicationContext.getBean(PriceCandleEngine.class);
+    }
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${app.price-engine.vwap-window-hours:24}")
+    private int vwapWindowHours = 24;
+
+    @Value("${app.price-engine.backfill-on-startup:true}")
+    private boolean backfillOnStartup = true;
+
+    @Value("${app.price-engine.page-size:5000}")
+    private int pageSize = 5000;
+
+    @Value("${app.price-engine.backfill-lease-ms:60000}")
+    private long backfillLeaseMs = 60000;
+
+    public record Fill(Long buyerCompanyId, Long sellerCompanyId, Long projectId,
+                       BigDecimal price, BigDecimal quantity, LocalDateTime at) {}
+
+    public record Stats(BigDecimal vwap, BigDecimal avg, BigDecimal min, BigDecimal max,
+                        BigDecimal volume, long trades) {
+        static final Stats EMPTY = new Stats(null, null, null, null, BigDecimal.ZERO, 0);
+    }
+
+    private record Key(PriceCandle.Scope scope, Long scopeId, PriceCandle.Resolution resolution,
+                       LocalDateTime bucketStart) {}
+
+    private record Segment(PriceCandle.Resolution resolution, LocalDateTime from, LocalDateTime to) {}
+
+    // Phần cộng dồn chưa ghi DB, mỗi nến 1 entry (compute/remove nguyên tử theo key)
+    private final Map<Key, PriceCandle> pending = new ConcurrentHashMap<>();
+
+    // Gọi trong transaction settle: chỉ cộng vào nến khi commit thành công
+    public void recordFill(Fill fill) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    fold(fill);
+                }
+            });
+        } else {
+            fold(fill);
+        }
+    }
+
+    public Stats marketStats(LocalDateTime from, LocalDateTime to) {
+        return stats(PriceCandle.Scope.MARKET, MARKET_SCOPE_ID, from, to);
+    }
+
+    public Stats companyStats(Long companyId, LocalDateTime from, LocalDateTime to) {
+        return stats(PriceCandle.Scope.COMPANY, companyId, from, to);
+    }
+
+    /**
+     * VWAP toàn sàn trong vwap-window-hours gần nhất; không có giao dịch thì lấy giá đóng cửa của ngày gần nhất.
+     * null nếu chưa có nến nào.
+     */
+    public BigDecimal marketVwap() {
+        LocalDateTime now = LocalDateTime.now(VIETNAM_ZONE);
+        Stats stats = marketStats(now.minusHours(vwapWindowHours), now);
+        if (stats.vwap() != null) {
+            return stats.vwap();
+        }
+        return candleRepository.findTopByScopeAndScopeIdAndResolutionOrderByBucketStartDesc(
+                        PriceCandle.Scope.MARKET, MARKET_SCOPE_ID, PriceCandle.Resolution.D1)
+                .map(PriceCandle::getClosePrice)
+                .orElse(null);
+    }
+
+    public Stats stats(PriceCandle.Scope scope, Long scopeId, LocalDateTime from, LocalDateTime to) {
+        if (scopeId == null || from == null || to == null || !from.isBefore(to)) {
+            return Stats.EMPTY;
+        }
+        BigDecimal volume = BigDecimal.ZERO;
+        BigDecimal notional = BigDecimal.ZERO;
+        BigDecimal priceSum = BigDecimal.ZERO;
+        long trades = 0;
+        BigDecimal min = null;
+        BigDecimal max = null;
+        for (Segment segment : segments(from, to)) {
+            PriceCandleRepository.Aggregate agg = candleRepository.aggregate(
+                    scope, scopeId, segment.resolution(), segment.from(), segment.to());
+            if (agg == null || agg.getTradeCount() == null || agg.getTradeCount() == 0) {
+                continue;
+            }
+            volume = volume.add(agg.getVolume());
+            notional = notional.add(agg.getNotional());
+            priceSum = priceSum.add(agg.getPriceSum());
+            trades += agg.getTradeCount();
+            min = min == null || agg.getLow().compareTo(min) < 0 ? agg.getLow() : min;
+            max = max == null || agg.getHigh().compareTo(max) > 0 ? agg.getHigh() : max;
+        }
+        if (trades == 0) {
+            return Stats.EMPTY;
+        }
+        BigDecimal vwap = volume.signum() > 0 ? notional.divide(volume, 2, RoundingMode.HALF_UP) : null;
+        BigDecimal avg = priceSum.divide(BigDecimal.valueOf(trades), 2, RoundingMode.HALF_UP);
+        return new Stats(vwap, avg, min, max, volume, trades);
+    }
+
+    /**
+     * Chia [from, to] theo biên phút: nến phút tới mốc giờ, nến giờ tới mốc ngày, nến ngày ở giữa,
+     * rồi ngược lại ở đầu cuối. Mỗi đoạn là [from, to) trên bucket_start của 1 độ phân giải.
+     */
+    private static List<Segment> segments(LocalDateTime from, LocalDateTime to) {
+        LocalDateTime end = to.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        LocalDateTime endHour = end.truncatedTo(ChronoUnit.HOURS);
+        LocalDateTime endDay = end.truncatedTo(ChronoUnit.DAYS);
+        List<Segment> segments = new ArrayList<>(5);
+
+        LocalDateTime a = from.truncatedTo(ChronoUnit.MINUTES);
+        LocalDateTime b = min(ceil(a, ChronoUnit.HOURS), end);
+        a = add(segments, PriceCandle.Resolution.M1, a, b);
+        b = max(a, min(ceil(a, ChronoUnit.DAYS), endHour));
+        a = add(segments, PriceCandle.Resolution.H1, a, b);
+        b = max(a, endDay);
+        a = add(segments, PriceCandle.Resolution.D1, a, b);
+        b = max(a, endHour);
+        a = add(segments, PriceCandle.Resolution.H1, a, b);
+        add(segments, PriceCandle.Resolution.M1, a, end);
+        return segments;
+    }
+
+    @Scheduled(fixedDelayString = "${app.price-engine.flush-ms:5000}")
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<PriceCandle> deltas = new ArrayList<>(pending.size());
+        for (Key key : List.copyOf(pending.keySet())) {
+            PriceCandle delta = pending.remove(key);
+            if (delta != null) {
+                deltas.add(delta);
+            }
+        }
+        try {
+            candleRepository.upsertBatch(deltas);
+        } catch (RuntimeException e) {
+            // Batch đã rollback cả (upsertBatch chạy trong 1 transaction): trả lại toàn bộ để lần sau ghi tiếp
+            // (cũ hơn fill mới đến trong lúc flush)
+            deltas.forEach(this::restore);
+            log.warn("[PRICE-ENGINE] Cannot flush {} candles, will retry: {}", deltas.size(), e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Dựng nến từ các lệnh đã khớp trước khi engine cộng fill trực tiếp.
+     * Node đầu tiên tạo mốc (id lệnh lớn nhất + thời điểm hiện tại), node giữ lease dựng theo trang; nến của trang
+     * và last_order_id ghi cùng transaction nên node chết giữa chừng thì lần sau (node nào cũng được) chạy tiếp
+     * từ last_order_id, nhiều node khởi động cùng lúc cũng không cộng trùng.
+     */
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!backfillOnStartup) {
+            return;
+        }
+        try {
+            Long maxId = orderStatsRepository.findMaxSuccessfulOrderId();
+            backfillRepository.insertIgnore(BACKFILL_ID, maxId != null ? maxId : 0L, LocalDateTime.now(VIETNAM_ZONE));
+            LocalDateTime now = LocalDateTime.now(VIETNAM_ZONE);
+            if (backfillRepository.claim(BACKFILL_ID, nodeId, now, leaseUntil()) == 0) {
+                // Đã dựng xong hoặc node khác đang giữ lease
+                return;
+            }
+            PriceCandleBackfill watermark = backfillRepository.findById(BACKFILL_ID).orElseThrow();
+            long afterId = watermark.getLastOrderId();
+            int folded = 0;
+            boolean done = false;
+            while (!done) {
+                List<OrderStatsRepository.FillRow> rows = orderStatsRepository.findFillsAfter(
+                        afterId, watermark.getUpToOrderId(), watermark.getCutoffAt(), PageRequest.of(0, pageSize));
+                Map<Key, PriceCandle> page = new HashMap<>();
+                for (OrderStatsRepository.FillRow row : rows) {
+                    fold(page, new Fill(row.getBuyerCompanyId(), row.getSellerCompanyId(), row.getProjectId(),
+                            row.getUnitPrice(), row.getQuantity(), row.getCompletedAt()));
+                    afterId = row.getId();
+                }
+                done = rows.size() < pageSize;
+                getSelf().writeBackfillPage(page.values(), afterId, done);
+                folded += rows.size();
+            }
+            log.info("[PRICE-ENGINE] Backfilled candles from {} orders (up to order {})",
+                    folded, watermark.getUpToOrderId());
+        } catch (Exception e) {
+            log.warn("[PRICE-ENGINE] Backfill stopped, will resume from watermark: {}", e.getMessage());
+        }
+    }
+
+    // Nến của 1 trang + tiến độ trong cùng transaction; mất lease thì rollback để node đang giữ làm tiếp
+    @Transactional
+    public void writeBackfillPage(Collection<PriceCandle> candles, long lastOrderId, boolean completed) {
+        candleRepository.upsertBatch(candles);
+        if (backfillRepository.advance(BACKFILL_ID, nodeId, lastOrderId, completed, leaseUntil()) == 0) {
+            throw new IllegalStateException("Backfill lease taken by another node");
+        }
+    }
+
+    private LocalDateTime leaseUntil() {
+        return LocalDateTime.now(VIETNAM_ZONE).plus(backfillLeaseMs, ChronoUnit.MILLIS);
+    }
+
+    private void fold(Fill fill) {
+        fold(pending, fill);
+    }
+
+    private void fold(Map<Key, PriceCandle> into, Fill fill) {
+        if (fill.price() == null || fill.quantity() == null || fill.quantity().signum() <= 0) {
+            return;
+        }
+        LocalDateTime at = fill.at() != null ? fill.at() : LocalDateTime.now(VIETNAM_ZONE);
+        fold(into, PriceCandle.Scope.MARKET, MARKET_SCOPE_ID, fill, at);
+        if (fill.projectId() != null) {
+            fold(into, PriceCandle.Scope.PROJECT, fill.projectId(), fill, at);
+        }
+        if (fill.buyerCompanyId() != null) {
+            fold(into, PriceCandle.Scope.COMPANY, fill.buyerCompanyId(), fill, at);
+        }
+        if (fill.sellerCompanyId() != null && !fill.sellerCompanyId().equals(fill.buyerCompanyId())) {
+            fold(into, PriceCandle.Scope.COMPANY, fill.sellerCompanyId(), fill, at);
+        }
+    }
+
+    private void fold(Map<Key, PriceCandle> into, PriceCandle.Scope scope, Long scopeId, Fill fill, LocalDateTime at) {
+        for (PriceCandle.Resolution resolution : PriceCandle.Resolution.values()) {
+            Key key = new Key(scope, scopeId, resolution, resolution.bucketOf(at));
+            merge(into, key, PriceCandle.builder()
+                    .scope(scope)
+                    .scopeId(scopeId)
+                    .resolution(resolution)
+                    .bucketStart(key.bucketStart())
+                    .openPrice(fill.price())
+                    .highPrice(fill.price())
+                    .lowPrice(fill.price())
+                    .closePrice(fill.price())
+                    .volume(fill.quantity())
+                    .notional(fill.price().multiply(fill.quantity()))
+                    .priceSum(fill.price())
+                    .tradeCount(1)
+                    .build());
+        }
+    }
+
+    // delta mới hơn phần đang chờ: giữ open cũ, lấy close mới
+    private static void merge(Map<Key, PriceCandle> into, Key key, PriceCandle delta) {
+        into.merge(key, delta, (current, next) -> combine(current, next));
+    }
+
+    // delta cũ hơn phần đang chờ: lấy open của delta, giữ close đang chờ
+    private void restore(PriceCandle delta) {
+        Key key = new Key(delta.getScope(), delta.getScopeId(), delta.getResolution(), delta.getBucketStart());
+        pending.merge(key, delta, (current, older) -> combine(older, current));
+    }
+
+    private static PriceCandle combine(PriceCandle earlier, PriceCandle later) {
+        earlier.setHighPrice(earlier.getHighPrice().max(later.getHighPrice()));
+        earlier.setLowPrice(earlier.getLowPrice().min(later.getLowPrice()));
+        earlier.setClosePrice(later.getClosePrice());
+        earlier.setVolume(earlier.getVolume().add(later.getVolume()));
+        earlier.setNotional(earlier.getNotional().add(later.getNotional()));
+        earlier.setPriceSum(earlier.getPriceSum().add(later.getPriceSum()));
+        earlier.setTradeCount(earlier.getTradeCount() + later.getTradeCount());
+        return earlier;
+    }
+
+    private static LocalDateTime add(List<Segment> segments, PriceCandle.Resolution resolution,
+                                     LocalDateTime from, LocalDateTime to) {
+        if (from.isBefore(to)) {
+            segments.add(new Segment(resolution, from, to));
+            return to;
+        }
+        return from;
+    }
+
+    private static LocalDateTime ceil(LocalDateTime time, ChronoUnit unit) {
+        LocalDateTime floor = time.truncatedTo(unit);
+        return floor.equals(time) ? time : floor.plus(1, unit);
+    }
+
+    private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static LocalDateTime max(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+}
@@ -0,0 +1,109 @@
+package com.carbonx.marketcarbon.service.notification;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Phát thông báo tới mọi node: giao ngay cho kết nối trên node này, đồng thời publish lên kênh Redis
+ * để node khác giao cho kết nối của họ (bỏ qua message do chính node này gửi).
+ * Publish chạy trên pool sseFanoutExecutor, Redis chậm/lỗi không chặn luồng nghiệp vụ; lỗi thì tạm chỉ giao cục bộ
+ * trong redis-retry-ms.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SseFanout implements MessageListener {
+
+    private final SseHub hub;
+    private final StringRedisTemplate redis;
+    private final ObjectMapper objectMapper;
+
+    @Qualifier("sseFanoutExecutor")
+    private final TaskExecutor fanoutExecutor;
+
+    @Value("${app.sse.redis-enabled:true}")
+    private boolean redisEnabled = true;
+
+    @Value("${app.sse.channel:carbonx:sse}")
+    private String channel = "carbonx:sse";
+
+    @Value("${app.sse.redis-retry-ms:5000}")
+    private long redisRetryMs = 5000;
+
+    // userId null = gửi cho tất cả
+    record Envelope(String origin, Long userId, String name, String data) {
+    }
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private volatile long redisRetryAt;
+
+    public void publishToUser(Long userId, String name, String data) {
+        hub.sendToUser(userId, name, data);
+        publishRemote(new Envelope(nodeId, userId, name, data));
+    }
+
+    public void publishToAll(String name, String data) {
+        hub.sendToAll(name, data);
+        publishRemote(new Envelope(nodeId, null, name, data));
+    }
+
+    public String channel() {
+        return channel;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Envelope envelope = objectMapper.readValue(message.getBody(), Envelope.class);
+            if (nodeId.equals(envelope.origin())) {
+                return;
+            }
+            if (envelope.userId() == null) {
+                hub.sendToAll(envelope.name(), envelope.data());
+            } else {
+                hub.sendToUser(envelope.userId(), envelope.name(), envelope.data());
+            }
+        } catch (Exception e) {
+            log.warn("[SSE] Invalid fan-out message: {}", new String(message.getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private void publishRemote(Envelope envelope) {
+        if (!redisEnabled || System.currentTimeMillis() < redisRetryAt) {
+            return;
+        }
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(envelope);
+        } catch (JsonProcessingException e) {
+            log.warn("[SSE] Cannot serialize notification: {}", e.getMessage());
+            return;
+        }
+        try {
+            fanoutExecutor.execute(() -> {
+                try {
+                    redis.convertAndSend(channel, json);
+                } catch (RuntimeException e) {
+                    redisRetryAt = System.currentTimeMillis() + redisRetryMs;
+                    log.warn("[SSE] Redis unavailable, delivering locally only for {} ms: {}",
+                            redisRetryMs, e.getMessage());
+                }
+            });
+        } catch (TaskRejectedException e) {
+            log.warn("[SSE] Fan-out pool full, notification not fanned out to other nodes");
+        }
+    }
+}
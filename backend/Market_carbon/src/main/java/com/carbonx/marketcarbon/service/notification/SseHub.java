@@ -0,0 +1,222 @@
+package com.carbonx.marketcarbon.service.notification;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Các kết nối SSE trên node này: 1 user có thể mở nhiều tab/thiết bị (tối đa max-connections-per-user).
+ * Mỗi kết nối có hàng đợi riêng giới hạn queue-capacity; luồng gọi chỉ offer vào hàng đợi,
+ * việc ghi ra socket do pool sseWriterExecutor làm (mỗi kết nối tối đa 1 task ghi cùng lúc, pool chỉ dùng để ghi).
+ * Client chậm (hàng đợi đầy hoặc 1 lần ghi kẹt quá write-stall-ms) bị đóng để không giữ bộ nhớ/luồng ghi.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SseHub {
+
+    // Số event tối đa ghi trong 1 lượt rồi nhường luồng cho kết nối khác
+    private static final int DRAIN_BATCH = 64;
+
+    @Qualifier("sseWriterExecutor")
+    private final TaskExecutor writerExecutor;
+
+    @Value("${app.sse.timeout-ms:1800000}")
+    private long timeoutMs = 1_800_000;
+
+    @Value("${app.sse.queue-capacity:256}")
+    private int queueCapacity = 256;
+
+    @Value("${app.sse.max-connections-per-user:5}")
+    private int maxConnectionsPerUser = 5;
+
+    @Value("${app.sse.write-stall-ms:30000}")
+    private long writeStallMs = 30_000;
+
+    private record Event(String name, String data, boolean heartbeat) {
+        SseEmitter.SseEventBuilder toBuilder() {
+            return heartbeat ? SseEmitter.event().comment(data) : SseEmitter.event().name(name).data(data);
+        }
+    }
+
+    private static final class Connection {
+        final long seq;
+        final Long userId;
+        final SseEmitter emitter;
+        final BlockingQueue<Event> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // Thời điểm bắt đầu lần ghi đang chạy (0 = không ghi)
+        volatile long sendingSince;
+        volatile boolean closed;
+
+        Connection(long seq, Long userId, SseEmitter emitter, int capacity) {
+            this.seq = seq;
+            this.userId = userId;
+            this.emitter = emitter;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    private final Map<Long, Set<Connection>> connections = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public SseEmitter connect(Long userId) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Connection connection = new Connection(sequence.incrementAndGet(), userId, emitter, queueCapacity);
+
+        // Xóa kết nối khi hoàn thành, hết hạn hoặc lỗi
+        emitter.onCompletion(() -> remove(connection));
+        emitter.onTimeout(() -> remove(connection));
+        emitter.onError(e -> remove(connection));
+
+        // Thêm trong compute: remove() của kết nối cuối cùng không thể xóa Set giữa lúc lấy Set và add
+        List<Connection> evicted = new ArrayList<>();
+        connections.compute(userId, (id, userConnections) -> {
+            if (userConnections == null) {
+                userConnections = ConcurrentHashMap.newKeySet();
+            }
+            userConnections.add(connection);
+            // Quá số kết nối cho phép thì bỏ kết nối cũ nhất (đóng emitter sau, ngoài compute)
+            while (userConnections.size() > maxConnectionsPerUser) {
+                Connection oldest = userConnections.stream().min(Comparator.comparingLong(c -> c.seq)).orElseThrow();
+                userConnections.remove(oldest);
+                evicted.add(oldest);
+            }
+            return userConnections;
+        });
+        evicted.forEach(this::close);
+
+        // Gửi một sự kiện "init" để xác nhận kết nối
+        enqueue(connection, new Event("init", "Connection established for user " + userId, false));
+        return emitter;
+    }
+
+    public void sendToUser(Long userId, String name, String data) {
+        Set<Connection> userConnections = connections.get(userId);
+        if (userConnections == null) {
+            return;
+        }
+        Event event = new Event(name, data, false);
+        userConnections.forEach(connection -> enqueue(connection, event));
+    }
+
+    public void sendToAll(String name, String data) {
+        Event event = new Event(name, data, false);
+        connections.values().forEach(userConnections -> userConnections.forEach(c -> enqueue(c, event)));
+    }
+
+    public int connectionCount(Long userId) {
+        Set<Connection> userConnections = connections.get(userId);
+        return userConnections == null ? 0 : userConnections.size();
+    }
+
+    public int connectionCount() {
+        return connections.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * Heartbeat cho kết nối đang rảnh (giữ proxy/LB không cắt kết nối), đóng kết nối ghi bị kẹt
+     * và lên lịch lại các kết nối còn event mà task ghi bị pool từ chối.
+     */
+    @Scheduled(fixedDelayString = "${app.sse.heartbeat-ms:15000}")
+    public void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (Set<Connection> userConnections : connections.values()) {
+            for (Connection connection : userConnections) {
+                long since = connection.sendingSince;
+                if (since > 0 && now - since > writeStallMs) {
+                    log.warn("[SSE] Evicting stalled connection of user {} (write blocked {} ms)",
+                            connection.userId, now - since);
+                    close(connection);
+                } else if (connection.queue.isEmpty()) {
+                    enqueue(connection, new Event(null, "heartbeat", true));
+                } else {
+                    schedule(connection);
+                }
+            }
+        }
+    }
+
+    private void enqueue(Connection connection, Event event) {
+        if (connection.closed) {
+            return;
+        }
+        if (!connection.queue.offer(event)) {
+            log.warn("[SSE] Evicting slow consumer of user {} (queue full, {} events)",
+                    connection.userId, queueCapacity);
+            close(connection);
+            return;
+        }
+        schedule(connection);
+    }
+
+    private void schedule(Connection connection) {
+        if (!connection.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writerExecutor.execute(() -> drain(connection));
+        } catch (TaskRejectedException e) {
+            // Pool đầy: event vẫn nằm trong hàng đợi, heartbeat sẽ lên lịch lại
+            connection.scheduled.set(false);
+        }
+    }
+
+    private void drain(Connection connection) {
+        try {
+            Event event;
+            int written = 0;
+            while (!connection.closed && written < DRAIN_BATCH && (event = connection.queue.poll()) != null) {
+                connection.sendingSince = System.currentTimeMillis();
+                connection.emitter.send(event.toBuilder());
+                written++;
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Client đã ngắt
+            remove(connection);
+        } finally {
+            connection.sendingSince = 0;
+            connection.scheduled.set(false);
+        }
+        if (!connection.closed && !connection.queue.isEmpty()) {
+            schedule(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        remove(connection);
+        try {
+            connection.emitter.complete();
+        } catch (RuntimeException e) {
+            log.debug("[SSE] Complete emitter failed: {}", e.getMessage());
+        }
+    }
+
+    private void remove(Connection connection) {
+        connection.closed = true;
+        connection.queue.clear();
+        // Xóa trong computeIfPresent: connect() cùng user không thể add vào Set đang bị bỏ khỏi map
+        connections.computeIfPresent(connection.userId, (userId, userConnections) -> {
+            userConnections.remove(connection);
+            return userConnections.isEmpty() ? null : userConnections;
+        });
+    }
+}
@@ -0,0 +1,245 @@
+package com.carbonx.marketcarbon.service.payout;
+
+import com.carbonx.marketcarbon.model.EmissionReport;
+import com.carbonx.marketcarbon.model.ReportOwnerContribution;
+import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
+import com.carbonx.marketcarbon.repository.PlateFingerprintRepository;
+import com.carbonx.marketcarbon.repository.ReportOwnerContributionRepository;
+import com.carbonx.marketcarbon.repository.VehicleRepository;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bảng đóng góp theo chủ xe (report_owner_contributions) + tổng của report (emission_reports.payout_*).
+ * Nguồn duy nhất cho cả màn xem trước chi trả lẫn đợt chi trả thật (ProfitSharingServiceImpl).
+ * - Ghi lúc upload CSV, cùng transaction với detail: tổng theo biển số cộng dần khi đọc file,
+ *   cuối cùng map biển số -> owner 1 lần và insert mỗi owner có đóng góp 1 dòng.
+ * - Quy tắc từng dòng (bỏ energy <= 0, CO2 hoặc energy * hệ số) giống nhau khi upload và khi dựng lại từ detail.
+ * - Xe thêm/sửa/xóa thì report có biển số đó bị đánh dấu (payout_owners NULL) và dựng lại với mapping mới ở lần đọc sau.
+ * - Report cũ (payout_owners NULL) được dựng lại từ detail khi khởi động, hoặc ngay lúc được đọc lần đầu.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class OwnerContributionIndex {
+
+    // Quy đổi: 1000 kg CO2 = 1 tín chỉ; hệ số mặc định khi dòng không có CO2
+    private static final BigDecimal KG_PER_CREDIT = new BigDecimal("1000");
+    private static final BigDecimal DEFAULT_EMISSION_FACTOR = new BigDecimal("0.4");
+
+    public record Summary(int owners, BigDecimal energyKwh, BigDecimal creditsTco2e) {}
+
+    /** Tổng energy/CO2 (kg) theo biển số đã chuẩn hóa, cộng dần trong lúc đọc CSV. */
+    public static final class PlateTotals {
+        private final Map<String, BigDecimal[]> byPlate = new HashMap<>();
+
+        // 1 dòng CSV; dòng energy <= 0 không tính (giống đợt chi trả trước đây)
+        public void add(String plate, BigDecimal energy, BigDecimal co2Kg) {
+            if (energy == null || energy.signum() <= 0) return;
+            addResolved(plate, energy, creditKg(energy, co2Kg));
+        }
+
+        // Tổng đã áp quy tắc từng dòng (SQL khi dựng lại từ detail)
+        private void addResolved(String plate, BigDecimal energy, BigDecimal creditKg) {
+            String normalized = PlateFingerprintIndex.normalize(plate);
+            if (normalized == null) return;
+            BigDecimal[] totals = byPlate.computeIfAbsent(normalized, p -> new BigDecimal[]{BigDecimal.ZERO, BigDecimal.ZERO});
+            totals[0] = totals[0].add(energy);
+            totals[1] = totals[1].add(creditKg);
+        }
+    }
+
+    private final ReportOwnerContributionRepository contributionRepository;
+    private final EmissionReportDetailRepository detailRepository;
+    private final VehicleRepository vehicleRepository;
+    private final PlateFingerprintRepository fingerprintRepository;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${app.owner-contribution.batch-size:1000}")
+    private int batchSize = 1000;
+
+    @Value("${app.owner-contribution.backfill-on-startup:true}")
+    private boolean backfillOnStartup = true;
+
+    private OwnerContributionIndex getSelf() {
+        return applicationContext.getBean(OwnerContributionIndex.class);
+    }
+
+    // CO2 (kg) của 1 dòng: ưu tiên CO2 của dòng, không có thì energy * hệ số mặc định (không làm tròn)
+    static BigDecimal creditKg(BigDecimal energyKwh, BigDecimal co2Kg) {
+        if (co2Kg != null && co2Kg.signum() > 0) {
+            return co2Kg;
+        }
+        return energyKwh.multiply(DEFAULT_EMISSION_FACTOR);
+    }
+
+    /**
+     * Ghi đóng góp của report và tổng lên entity report, chạy trong transaction của caller (vd: upload CSV).
+     * Biển số không thuộc xe nào của công ty bị bỏ qua; credit = tổng kg của owner / 1000 (làm tròn 1 lần).
+     */
+    public Summary indexReport(EmissionReport report, PlateTotals totals) {
+        Long companyId = report.getSeller().getId();
+        Map<String, Long> ownerByPlate = new HashMap<>();
+        for (VehicleRepository.PlateOwner vehicle : vehicleRepository.findPlateOwnersByCompanyId(companyId)) {
+            String normalized = PlateFingerprintIndex.normalize(vehicle.getPlateNumber());
+            if (normalized != null && vehicle.getOwnerId() != null) {
+                ownerByPlate.put(normalized, vehicle.getOwnerId());
+            }
+        }
+
+        Map<Long, ReportOwnerContribution> byOwner = new LinkedHashMap<>();
+        totals.byPlate.forEach((plate, sums) -> {
+            Long ownerId = ownerByPlate.get(plate);
+            if (ownerId == null) return;
+            ReportOwnerContribution row = byOwner.computeIfAbsent(ownerId, id -> ReportOwnerContribution.builder()
+                    .reportId(report.getId())
+                    .companyId(companyId)
+                    .period(report.getPeriod())
+                    .evOwnerId(id)
+                    .vehiclesCount(0)
+                    .energyKwh(BigDecimal.ZERO)
+                    .creditsTco2e(BigDecimal.ZERO)
+                    .build());
+            row.setVehiclesCount(row.getVehiclesCount() + 1);
+            // creditsTco2e giữ tổng kg cho đến khi quy đổi bên dưới
+            row.setEnergyKwh(row.getEnergyKwh().add(sums[0]));
+            row.setCreditsTco2e(row.getCreditsTco2e().add(sums[1]));
+        });
+
+        List<ReportOwnerContribution> rows = new ArrayList<>();
+        BigDecimal energy = BigDecimal.ZERO;
+        BigDecimal credits = BigDecimal.ZERO;
+        for (ReportOwnerContribution row : byOwner.values()) {
+            row.setEnergyKwh(row.getEnergyKwh().setScale(6, RoundingMode.HALF_UP));
+            row.setCreditsTco2e(row.getCreditsTco2e().divide(KG_PER_CREDIT, 6, RoundingMode.HALF_UP));
+            energy = energy.add(row.getEnergyKwh());
+            credits = credits.add(row.getCreditsTco2e());
+            rows.add(row);
+        }
+        for (int from = 0; from < rows.size(); from += batchSize) {
+            contributionRepository.insertBatch(rows.subList(from, Math.min(rows.size(), from + batchSize)));
+        }
+
+        // report được quản lý trong transaction của caller, flush khi commit
+        report.setPayoutOwners(rows.size());
+        report.setPayoutEnergyKwh(energy);
+        report.setPayoutCreditsTco2e(credits);
+        return new Summary(rows.size(), energy, credits);
+    }
+
+    /**
+     * Dựng lại đóng góp của 1 report từ detail đã lưu (report cũ, hoặc bị đánh dấu sau khi đổi xe).
+     * Khóa dòng report trước mọi lệnh đọc: lần dựng sau chờ lần trước và thấy bảng xe đã commit mới nhất.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public Summary rebuild(Long reportId) {
+        EmissionReport report = contributionRepository.lockReport(reportId).orElse(null);
+        if (report == null) {
+            return new Summary(0, BigDecimal.ZERO, BigDecimal.ZERO);
+        }
+        if (report.getPayoutOwners() != null) {
+            // Request khác vừa dựng xong trong lúc chờ khóa
+            return new Summary(report.getPayoutOwners(), report.getPayoutEnergyKwh(), report.getPayoutCreditsTco2e());
+        }
+        contributionRepository.deleteByReportId(reportId);
+        PlateTotals totals = new PlateTotals();
+        for (EmissionReportDetailRepository.PlateTotal plate : detailRepository.sumByPlateForReport(reportId, DEFAULT_EMISSION_FACTOR)) {
+            totals.addResolved(plate.getPlate(), plate.getEnergy(), plate.getCreditKg());
+        }
+        return indexReport(report, totals);
+    }
+
+    /**
+     * Xe của công ty vừa thêm/đổi/xóa biển số hoặc chủ: đánh dấu các report có biển số đó để dựng lại.
+     * Gọi với cả biển số/công ty cũ và mới; trong transaction thì chạy sau commit.
+     */
+    public void onVehicleChanged(Long companyId, String plate) {
+        String normalized = PlateFingerprintIndex.normalize(plate);
+        if (companyId == null || normalized == null) {
+            return;
+        }
+        Runnable invalidate = () -> {
+            List<Long> reportIds = fingerprintRepository.findReportIdsByPlate(PlateFingerprintIndex.hash(normalized), companyId);
+            if (!reportIds.isEmpty()) {
+                int marked = contributionRepository.invalidate(reportIds);
+                log.debug("[OWNER-CONTRIBUTION] Plate {} of company {} changed, {} reports marked for rebuild",
+                        normalized, companyId, marked);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate.run();
+                }
+            });
+        } else {
+            invalidate.run();
+        }
+    }
+
+    /** Tổng đã lưu của report; chưa có thì dựng ngay (lần đọc đầu của report cũ). */
+    public Summary ensureAggregated(EmissionReport report) {
+        if (report.getPayoutOwners() != null) {
+            return new Summary(report.getPayoutOwners(), report.getPayoutEnergyKwh(), report.getPayoutCreditsTco2e());
+        }
+        return getSelf().rebuild(report.getId());
+    }
+
+    /** Dựng các report chưa tổng hợp của công ty trong kỳ trước khi cộng đóng góp theo kỳ. */
+    public void ensureAggregated(Long companyId, String period) {
+        for (Long reportId : contributionRepository.findUnaggregatedReportIds(companyId, period)) {
+            getSelf().rebuild(reportId);
+        }
+    }
+
+    // Dựng đóng góp cho report cũ khi ứng dụng sẵn sàng, không chặn startup
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!backfillOnStartup) {
+            return;
+        }
+        try {
+            long afterId = 0;
+            int rebuilt = 0;
+            while (true) {
+                List<Long> ids = contributionRepository.findUnaggregatedReportIds(afterId, PageRequest.of(0, 100));
+                for (Long id : ids) {
+                    getSelf().rebuild(id);
+                    rebuilt++;
+                    afterId = id;
+                }
+                if (ids.size() < 100) break;
+            }
+            if (rebuilt > 0) {
+                log.info("[OWNER-CONTRIBUTION] Backfilled owner contributions for {} reports", rebuilt);
+            }
+        } catch (Exception e) {
+            log.warn("[OWNER-CONTRIBUTION] Backfill failed, reports aggregate lazily on first read: {}", e.getMessage());
+        }
+    }
+}
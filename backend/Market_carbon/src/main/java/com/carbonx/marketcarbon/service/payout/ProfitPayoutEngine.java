@@ -0,0 +1,474 @@
+package com.carbonx.marketcarbon.service.payout;
+
+import com.carbonx.marketcarbon.common.EmissionStatus;
+import com.carbonx.marketcarbon.common.ProfitDistributionStatus;
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.config.ProfitSharingProperties;
+import com.carbonx.marketcarbon.model.*;
+import com.carbonx.marketcarbon.repository.*;
+import com.carbonx.marketcarbon.service.EmailService;
+import com.carbonx.marketcarbon.service.impl.WalletServiceImpl;
+import com.carbonx.marketcarbon.service.wallet.WalletPosting;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Chi trả lợi nhuận cho EV owner theo chunk, các chunk chạy song song trên profitSharingTaskExecutor.
+ * - Kế hoạch chi trả được ghi trước vào ProfitDistributionDetail (status PENDING + chunkNo) làm checkpoint,
+ *   cùng transaction với việc trừ ví công ty 1 lần cho cả đợt (giữ trước tổng tiền).
+ * - Chunk chỉ cộng ví owner (khóa ví owner, không khóa ví công ty) nên các chunk thật sự chạy song song;
+ *   bút toán owner ghi bằng JDBC batch. Mỗi chunk chuyển PENDING -> SUCCESS/FAILED cùng transaction với việc
+ *   cộng tiền, nên chạy lại (retry, restart, node khác) chỉ trả các dòng còn PENDING.
+ * - Chunk lỗi (không phải lock) thì trả lại từng owner: chỉ owner lỗi bị FAILED.
+ * - Kết thúc đợt: tiền của các owner FAILED được hoàn lại ví công ty cùng transaction với COMPLETED.
+ * - Email cho owner chỉ gửi sau khi chunk commit.
+ */
+@Slf4j
+@Service
+public class ProfitPayoutEngine {
+
+    private static final ZoneId VIETNAM_ZONE = ZoneId.of("Asia/Ho_Chi_Minh");
+    private static final BigDecimal KG_PER_TONNE = new BigDecimal("1000");
+
+    private final ProfitDistributionRepository distributionRepository;
+    private final ProfitDistributionDetailRepository detailRepository;
+    private final EmissionReportRepository emissionReportRepository;
+    private final EVOwnerRepository evOwnerRepository;
+    private final WalletRepository walletRepository;
+    private final CompanyRepository companyRepository;
+    private final WalletServiceImpl walletService;
+    private final WalletTransferEngine walletTransferEngine;
+    private final ProfitSharingProperties profitSharingProperties;
+    private final EmailService emailService;
+    private final TaskExecutor executor;
+
+    // Các đợt đang chạy trên node này, tránh resume trùng
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${app.profit-payout.chunk-size:500}")
+    private int chunkSize = 500;
+
+    @Value("${app.profit-payout.max-attempts:3}")
+    private int maxAttempts = 3;
+
+    @Value("${app.profit-payout.backoff-ms:200}")
+    private long backoffMs = 200;
+
+    public ProfitPayoutEngine(ProfitDistributionRepository distributionRepository,
+                              ProfitDistributionDetailRepository detailRepository,
+                              EmissionReportRepository emissionReportRepository,
+                              EVOwnerRepository evOwnerRepository,
+                              WalletRepository walletRepository,
+                              CompanyRepository companyRepository,
+                              WalletServiceImpl walletService,
+                              WalletTransferEngine walletTransferEngine,
+                              ProfitSharingProperties profitSharingProperties,
+                              EmailService emailService,
+                              @Qualifier("profitSharingTaskExecutor") TaskExecutor executor) {
+        this.distributionRepository = distributionRepository;
+        this.detailRepository = detailRepository;
+        this.emissionReportRepository = emissionReportRepository;
+        this.evOwnerRepository = evOwnerRepository;
+        this.walletRepository = walletRepository;
+        this.companyRepository = companyRepository;
+        this.walletService = walletService;
+        this.walletTransferEngine = walletTransferEngine;
+        this.profitSharingProperties = profitSharingProperties;
+        this.emailService = emailService;
+        this.executor = executor;
+    }
+
+    private ProfitPayoutEngine getSelf() {
+        return applicationContext.getBean(ProfitPayoutEngine.class);
+    }
+
+    /**
+     * Ghi kế hoạch chi trả (các detail PENDING) rồi chạy các chunk song song.
+     * Không chờ: khi chunk cuối xong thì đợt được đánh dấu COMPLETED và gửi email tổng kết.
+     * Chỉ ném lỗi khi kế hoạch chưa được ghi (ví công ty chưa bị trừ). Kế hoạch đã commit mà chưa chạy được
+     * thì đợt vẫn PROCESSING để retryUnfinished chạy tiếp, người gọi không được đánh dấu FAILED.
+     */
+    public void start(Long distributionId, List<ProfitDistributionDetail> plan) {
+        getSelf().persistPlan(distributionId, plan);
+        try {
+            resume(distributionId);
+        } catch (RuntimeException e) {
+            log.error("[PAYOUT] Distribution {} planned but not started, left for resume: {}",
+                    distributionId, e.getMessage(), e);
+        }
+    }
+
+    // Chạy tiếp các chunk còn PENDING của 1 đợt (sau lỗi hoặc restart)
+    public void resume(Long distributionId) {
+        if (!running.add(distributionId)) {
+            log.info("[PAYOUT] Distribution {} is already running on this node", distributionId);
+            return;
+        }
+        try {
+            PayoutContext ctx = getSelf().loadContext(distributionId);
+            List<Integer> chunks = detailRepository.findPendingChunks(distributionId);
+            log.info("[PAYOUT] Distribution {}: {} pending chunks", distributionId, chunks.size());
+
+            CompletableFuture<?>[] futures = chunks.stream()
+                    .map(chunkNo -> CompletableFuture.runAsync(() -> runChunk(ctx, chunkNo), executor))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(futures).whenComplete((ignored, error) -> finish(ctx));
+        } catch (RuntimeException e) {
+            running.remove(distributionId);
+            throw e;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        retryUnfinished();
+    }
+
+    // Đợt đã ghi kế hoạch nhưng chưa chạy được (lỗi lúc start/resume) không phải chờ restart
+    @Scheduled(fixedDelayString = "${app.profit-payout.resume-ms:300000}",
+            initialDelayString = "${app.profit-payout.resume-ms:300000}")
+    public void retryUnfinished() {
+        for (Long distributionId : detailRepository.findProcessingDistributionIdsWithPending()) {
+            try {
+                resume(distributionId);
+            } catch (Exception e) {
+                log.error("[PAYOUT] Cannot resume distribution {}: {}", distributionId, e.getMessage(), e);
+            }
+        }
+    }
+
+    // Ghi kế hoạch và trừ ví công ty 1 lần cho cả đợt trong cùng transaction (không đủ tiền thì không ghi gì)
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public void persistPlan(Long distributionId, List<ProfitDistributionDetail> plan) {
+        BigDecimal total = BigDecimal.ZERO;
+        for (int i = 0; i < plan.size(); i++) {
+            ProfitDistributionDetail detail = plan.get(i);
+            detail.setChunkNo(i / chunkSize);
+            detail.setStatus("PENDING");
+            if (detail.getMoneyAmount().signum() > 0) {
+                total = total.add(detail.getMoneyAmount());
+            }
+        }
+        detailRepository.saveAll(plan);
+        if (total.signum() <= 0) {
+            return;
+        }
+
+        ProfitDistribution distribution = distributionRepository.findById(distributionId)
+                .orElseThrow(() -> new IllegalStateException("Distribution not found: " + distributionId));
+        Long companyWalletId = walletRepository.findIdByUserId(distribution.getCompanyUser().getId());
+        if (companyWalletId == null) {
+            throw new IllegalStateException("Company wallet not found for distribution " + distributionId);
+        }
+        walletTransferEngine.debit(WalletPosting.builder()
+                .walletId(companyWalletId)
+                .amount(total)
+                .type(WalletTransactionType.PROFIT_SHARING)
+                .description(String.format("Sharing profit to %d EV owners (distribution #%d)", plan.size(), distributionId))
+                .distribution(distribution)
+                .build());
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+    public PayoutContext loadContext(Long distributionId) {
+        ProfitDistribution distribution = distributionRepository.findById(distributionId)
+                .orElseThrow(() -> new IllegalStateException("Distribution not found: " + distributionId));
+        User companyUser = distribution.getCompanyUser();
+        Company company = companyRepository.findByUserId(companyUser.getId())
+                .orElseThrow(() -> new IllegalStateException("Company not found for distribution " + distributionId));
+        Long companyWalletId = walletRepository.findIdByUserId(companyUser.getId());
+        if (companyWalletId == null) {
+            throw new IllegalStateException("Company wallet not found for distribution " + distributionId);
+        }
+
+        EmissionReport report = distribution.getEmissionReport();
+        Long reportId = report != null ? report.getId() : null;
+        String period = report != null ? report.getPeriod() : "N/A";
+        String projectName = report != null && report.getProject() != null ? report.getProject().getTitle() : "N/A";
+
+        return new PayoutContext(distributionId, company.getId(), company.getCompanyName(), companyUser.getEmail(),
+                companyWalletId, reportId, period, projectName,
+                profitSharingProperties.resolveForCompany(company.getId()).getMinPayout());
+    }
+
+    private void runChunk(PayoutContext ctx, Integer chunkNo) {
+        ensureOwnerWallets(detailRepository.findPendingOwnerIds(ctx.distributionId(), chunkNo));
+        try {
+            withLockRetry(() -> getSelf().payChunk(ctx, chunkNo), ctx.distributionId(), "chunk " + chunkNo);
+        } catch (Exception e) {
+            // 1 owner lỗi không kéo theo cả chunk: trả lại từng owner, chỉ owner lỗi bị FAILED
+            log.warn("[PAYOUT] Distribution {} chunk {} failed as a whole ({}), paying owners one by one",
+                    ctx.distributionId(), chunkNo, e.getMessage());
+            payOneByOne(ctx, chunkNo);
+        }
+    }
+
+    private void payOneByOne(PayoutContext ctx, Integer chunkNo) {
+        for (Long detailId : detailRepository.findPendingIdsInChunk(ctx.distributionId(), chunkNo)) {
+            try {
+                if (!withLockRetry(() -> getSelf().payDetail(ctx, detailId), ctx.distributionId(), "detail " + detailId)) {
+                    return; // bị ngắt: các dòng còn lại vẫn PENDING, lần resume sau chạy tiếp
+                }
+            } catch (Exception e) {
+                failDetail(ctx, detailId, e);
+            }
+        }
+    }
+
+    // Thử lại khi lock timeout/deadlock; false nếu bị ngắt khi chờ, lỗi khác (hoặc hết lượt) thì ném ra
+    private boolean withLockRetry(Runnable action, Long distributionId, String target) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                action.run();
+                return true;
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                log.warn("[PAYOUT] Lock conflict on distribution {} {} (attempt {}), retrying",
+                        distributionId, target, attempt);
+                if (!sleep(backoffMs * attempt)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Trả 1 chunk trong 1 transaction: khóa các detail PENDING, cộng ví owner, đánh dấu SUCCESS/FAILED.
+     * Lỗi ở bất kỳ bước nào thì rollback cả chunk (detail vẫn PENDING).
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public void payChunk(PayoutContext ctx, Integer chunkNo) {
+        pay(ctx, detailRepository.lockPendingChunk(ctx.distributionId(), chunkNo), "chunk " + chunkNo);
+    }
+
+    // Trả 1 owner trong transaction riêng (khi cả chunk lỗi)
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public void payDetail(PayoutContext ctx, Long detailId) {
+        pay(ctx, detailRepository.lockPendingById(detailId), "detail " + detailId);
+    }
+
+    private void pay(PayoutContext ctx, List<ProfitDistributionDetail> details, String target) {
+        if (details.isEmpty()) {
+            return; // đã được trả ở lần chạy trước hoặc bởi node khác
+        }
+
+        Map<Long, EVOwner> owners = evOwnerRepository.findAllWithUserByIdIn(
+                        details.stream().map(d -> d.getEvOwner().getId()).toList())
+                .stream()
+                .collect(Collectors.toMap(EVOwner::getId, Function.identity()));
+        Map<Long, Long> walletByUser = walletRepository.findWalletIdsByUserIds(
+                        owners.values().stream().map(o -> o.getUser().getId()).toList())
+                .stream()
+                .collect(Collectors.toMap(WalletRepository.UserWalletId::getUserId,
+                        WalletRepository.UserWalletId::getWalletId));
+
+        ProfitDistribution distributionRef = distributionRepository.getReferenceById(ctx.distributionId());
+        List<WalletPosting> credits = new ArrayList<>();
+        List<OwnerNotice> notices = new ArrayList<>();
+        for (ProfitDistributionDetail detail : details) {
+            EVOwner owner = owners.get(detail.getEvOwner().getId());
+            Long walletId = owner != null ? walletByUser.get(owner.getUser().getId()) : null;
+            if (owner == null || walletId == null) {
+                detail.setStatus("FAILED");
+                detail.setErrorMessage(owner == null ? "EVOwner not found" : "Owner wallet not found");
+                continue;
+            }
+            if (detail.getMoneyAmount().signum() > 0) {
+                credits.add(WalletPosting.builder()
+                        .walletId(walletId)
+                        .amount(detail.getMoneyAmount())
+                        .type(WalletTransactionType.PROFIT_SHARING)
+                        .description(String.format("Profit-sharing from distribution #%d", ctx.distributionId()))
+                        .distribution(distributionRef)
+                        .build());
+            }
+            detail.setStatus("SUCCESS");
+            detail.setErrorMessage(null);
+            notices.add(new OwnerNotice(owner.getUser().getEmail(), owner.getName(),
+                    detail.getEnergyAmount(), detail.getCreditAmount(), detail.getMoneyAmount()));
+        }
+
+        if (!credits.isEmpty()) {
+            walletTransferEngine.credit(credits);
+        }
+        detailRepository.saveAll(details);
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                notifyOwners(ctx, notices);
+            }
+        });
+        log.info("[PAYOUT] Distribution {} {}: paid {} owners", ctx.distributionId(), target, notices.size());
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void markDetailFailed(Long detailId, String error) {
+        detailRepository.failPendingDetail(detailId, error, OffsetDateTime.now(VIETNAM_ZONE));
+    }
+
+    /**
+     * Kết thúc đợt 1 lần (khóa dòng đợt): hoàn tiền đã giữ của các owner FAILED về ví công ty,
+     * đánh dấu COMPLETED và report PAID_OUT. false nếu đợt đã được kết thúc trước đó.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public boolean completeDistribution(PayoutContext ctx) {
+        ProfitDistribution distribution = distributionRepository.lockById(ctx.distributionId()).orElse(null);
+        if (distribution == null || distribution.getStatus() != ProfitDistributionStatus.PROCESSING) {
+            return false;
+        }
+        BigDecimal refund = detailRepository.sumFailedMoney(ctx.distributionId());
+        if (refund.signum() > 0) {
+            walletTransferEngine.credit(List.of(WalletPosting.builder()
+                    .walletId(ctx.companyWalletId())
+                    .amount(refund)
+                    .type(WalletTransactionType.PROFIT_SHARING)
+                    .description(String.format("Refund unpaid profit-sharing (distribution #%d)", ctx.distributionId()))
+                    .distribution(distribution)
+                    .build()));
+        }
+        if (ctx.reportId() != null) {
+            emissionReportRepository.findById(ctx.reportId()).ifPresent(report -> {
+                report.setStatus(EmissionStatus.PAID_OUT);
+                emissionReportRepository.save(report);
+            });
+        }
+        distribution.setStatus(ProfitDistributionStatus.COMPLETED);
+        distributionRepository.save(distribution);
+        return true;
+    }
+    // Tạo ví cho owner chưa có ví, ngoài transaction của chunk (lỗi thì detail FAILED khi trả chunk)
+    private void ensureOwnerWallets(List<Long> ownerIds) {
+        if (ownerIds.isEmpty()) {
+            return;
+        }
+        List<EVOwner> owners = evOwnerRepository.findAllWithUserByIdIn(ownerIds);
+        Set<Long> withWallet = walletRepository.findWalletIdsByUserIds(
+                        owners.stream().map(o -> o.getUser().getId()).toList())
+                .stream()
+                .map(WalletRepository.UserWalletId::getUserId)
+                .collect(Collectors.toSet());
+        for (EVOwner owner : owners) {
+            if (withWallet.contains(owner.getUser().getId())) {
+                continue;
+            }
+            try {
+                walletService.generateWallet(owner.getUser());
+                log.info("Generated new wallet for EVOwner ID {}", owner.getId());
+            } catch (Exception e) {
+                log.warn("Failed to create wallet for EVOwner ID {}: {}", owner.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private void failDetail(PayoutContext ctx, Long detailId, Exception e) {
+        log.error("[PAYOUT] Distribution {} detail {} failed: {}", ctx.distributionId(), detailId, e.getMessage(), e);
+        String message = e.getMessage() != null ? e.getMessage() : "Unknown error";
+        try {
+            getSelf().markDetailFailed(detailId, message.substring(0, Math.min(message.length(), 250)));
+        } catch (Exception ex) {
+            log.error("CRITICAL: Failed to save failure for distribution {} detail {}: {}",
+                    ctx.distributionId(), detailId, ex.getMessage());
+        }
+    }
+
+    private void finish(PayoutContext ctx) {
+        try {
+            if (!detailRepository.findPendingChunks(ctx.distributionId()).isEmpty()) {
+                log.warn("[PAYOUT] Distribution {} still has pending chunks, left for resume", ctx.distributionId());
+                return;
+            }
+            if (!getSelf().completeDistribution(ctx)) {
+                return; // node khác đã kết thúc đợt
+            }
+
+            ProfitDistributionDetailRepository.PaidTotals totals = detailRepository.sumPaid(ctx.distributionId());
+            emailService.sendDistributionSummaryToCompany(
+                    ctx.companyEmail(),
+                    ctx.companyName(),
+                    ctx.reportPeriod(),
+                    totals.getOwners().intValue(),
+                    totals.getEnergy(),
+                    totals.getCredits().divide(KG_PER_TONNE, 4, RoundingMode.HALF_UP),
+                    totals.getMoney(),
+                    false,
+                    ctx.companyId(),
+                    String.valueOf(ctx.distributionId()));
+            log.info("[PAYOUT] Distribution {} completed: {} owners paid, total {}",
+                    ctx.distributionId(), totals.getOwners(), totals.getMoney());
+        } catch (Exception e) {
+            log.error("[PAYOUT] Cannot finish distribution {}: {}", ctx.distributionId(), e.getMessage(), e);
+        } finally {
+            running.remove(ctx.distributionId());
+        }
+    }
+
+    private void notifyOwners(PayoutContext ctx, List<OwnerNotice> notices) {
+        String reportReference = "Report #" + ctx.reportId() + " (" + ctx.projectName() + ")";
+        for (OwnerNotice notice : notices) {
+            try {
+                emailService.sendPayoutSuccessToOwner(
+                        notice.email(),
+                        notice.name(),
+                        ctx.companyName(),
+                        ctx.reportPeriod(),
+                        notice.energy(),
+                        notice.credits().divide(KG_PER_TONNE, 4, RoundingMode.HALF_UP),
+                        notice.money(),
+                        Collections.emptyList(),
+                        String.valueOf(ctx.distributionId()),
+                        ctx.companyId(),
+                        reportReference,
+                        ctx.minPayout());
+            } catch (Exception e) {
+                // Email lỗi không ảnh hưởng tiền đã chuyển
+                log.warn("Failed to send payout success email to {}: {}", notice.email(), e.getMessage());
+            }
+        }
+    }
+
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public record PayoutContext(Long distributionId, Long companyId, String companyName, String companyEmail,
+                                Long companyWalletId, Long reportId, String reportPeriod, String projectName,
+                                BigDecimal minPayout) {}
+
+    private record OwnerNotice(String email, String name, BigDecimal energy, BigDecimal credits, BigDecimal money) {}
+}
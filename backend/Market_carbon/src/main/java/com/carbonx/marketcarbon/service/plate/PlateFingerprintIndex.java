@@ -0,0 +1,305 @@
+package com.carbonx.marketcarbon.service.plate;
+
+import com.carbonx.marketcarbon.model.EmissionReport;
+import com.carbonx.marketcarbon.model.PlateFingerprint;
+import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
+import com.carbonx.marketcarbon.repository.EmissionReportRepository;
+import com.carbonx.marketcarbon.repository.PlateFingerprintRepository;
+import com.carbonx.marketcarbon.utils.BloomFilter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Chỉ mục biển số đã chuẩn hóa (bảng plate_fingerprints) + 1 Bloom filter chung trong bộ nhớ.
+ * - Ghi lúc upload: mỗi biển số khác nhau của report 1 dòng (hash, company, report, period).
+ * - Bloom chỉ chứa biển số đã xuất hiện ở từ 2 công ty trở lên (cột shared tính lúc nạp theo index),
+ *   nên tra trùng là 1 lần hỏi Bloom cho mỗi biển số của report, không phụ thuộc số công ty;
+ *   chỉ những hash "có thể trùng" mới tra DB theo index (plate_hash, company_id), loại công ty của report.
+ * - Bloom nạp tăng dần theo keyset id trước mỗi lần tra, nên thấy cả dữ liệu do node khác ghi.
+ *   Id bị nhảy cóc (transaction chưa commit lúc nạp) được ghi nhớ và nạp lại ở lần sau, nhưng chỉ
+ *   khoảng trống <= max-tracked-gap id và trong gap-retry-ms; cờ shared của dòng nạp trước cũng có thể
+ *   tính lúc dòng kia chưa commit.
+ * - Vì vậy Bloom được dựng lại toàn bộ mỗi rescan-ms (cờ shared tính lại từ DB): biển số bị bỏ sót
+ *   bởi đường nạp tăng dần chỉ bị bỏ sót tối đa 1 chu kỳ rescan.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PlateFingerprintIndex {
+
+    private final PlateFingerprintRepository fingerprintRepository;
+    private final EmissionReportDetailRepository detailRepository;
+    private final EmissionReportRepository reportRepository;
+
+    @Value("${app.plate-index.bloom-capacity:100000}")
+    private long bloomCapacity = 100_000;
+
+    @Value("${app.plate-index.bloom-fpp:0.01}")
+    private double bloomFpp = 0.01;
+
+    @Value("${app.plate-index.page-size:5000}")
+    private int pageSize = 5000;
+
+    @Value("${app.plate-index.gap-retry-ms:600000}")
+    private long gapRetryMs = 600_000;
+
+    @Value("${app.plate-index.max-tracked-gap:1000}")
+    private int maxTrackedGap = 1000;
+
+    @Value("${app.plate-index.backfill-on-startup:true}")
+    private boolean backfillOnStartup = true;
+
+    // Chuỗi Bloom của các biển số dùng chung giữa các công ty (filter đầy thì nối filter mới gấp đôi).
+    // Rescan dựng chuỗi mới rồi thay cả tham chiếu, người đọc không thấy chuỗi rỗng giữa chừng
+    private volatile List<BloomFilter> sharedFilters = new CopyOnWriteArrayList<>();
+
+    // id còn thiếu khi nạp keyset -> thời điểm phát hiện (ms)
+    private Map<Long, Long> pendingGaps = new LinkedHashMap<>();
+    private long lastLoadedId = 0;
+
+    // Chuẩn hóa: in hoa, chỉ giữ chữ và số ("51a-123.45" -> "51A12345"); rỗng -> null
+    public static String normalize(String plate) {
+        if (plate == null) return null;
+        StringBuilder sb = new StringBuilder(plate.length());
+        for (int i = 0; i < plate.length(); i++) {
+            char c = plate.charAt(i);
+            if (Character.isLetterOrDigit(c)) sb.append(Character.toUpperCase(c));
+        }
+        return sb.isEmpty() ? null : sb.toString();
+    }
+
+    // 8 byte đầu SHA-256, ổn định giữa các node/JVM
+    public static long hash(String normalizedPlate) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(normalizedPlate.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Ghi chỉ mục cho các biển số của 1 report, chạy trong transaction của caller (vd: upload CSV).
+     * Bloom được cập nhật ở lần tra kế tiếp (sau khi dòng đã commit).
+     */
+    public int indexReport(Long reportId, Long companyId, String period, Collection<String> plates) {
+        Map<Long, PlateFingerprint> byHash = new LinkedHashMap<>();
+        for (String plate : plates) {
+            String normalized = normalize(plate);
+            if (normalized == null) continue;
+            long h = hash(normalized);
+            byHash.putIfAbsent(h, PlateFingerprint.builder()
+                    .plateHash(h)
+                    .normalizedPlate(normalized.length() > 50 ? normalized.substring(0, 50) : normalized)
+                    .companyId(companyId)
+                    .reportId(reportId)
+                    .period(period)
+                    .build());
+        }
+        List<PlateFingerprint> rows = new ArrayList<>(byHash.values());
+        for (int from = 0; from < rows.size(); from += pageSize) {
+            fingerprintRepository.insertIgnoreBatch(rows.subList(from, Math.min(rows.size(), from + pageSize)));
+        }
+        return rows.size();
+    }
+
+    /**
+     * Số report (khác) của công ty khác có chung ít nhất 1 biển số với report này.
+     * Chi phí O(số biển số của report) lần hỏi Bloom + 1 truy vấn index cho các hash nghi ngờ.
+     * Biển số dùng chung giữa 2 công ty khác vẫn là ứng viên; DB (company_id <> công ty của report) lọc lại.
+     */
+    public int countCrossCompanyReports(Long reportId, Long companyId) {
+        List<Long> hashes = fingerprintRepository.findPlateHashesByReportId(reportId);
+        if (hashes.isEmpty()) {
+            hashes = indexFromDetails(reportId);
+        }
+        if (hashes.isEmpty()) {
+            return 0;
+        }
+
+        refresh();
+
+        List<Long> candidates = new ArrayList<>();
+        for (Long h : hashes) {
+            if (mightBeShared(h)) candidates.add(h);
+        }
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+
+        Set<Long> reports = new HashSet<>();
+        for (int from = 0; from < candidates.size(); from += pageSize) {
+            reports.addAll(fingerprintRepository.findReportIdsSharingPlates(
+                    candidates.subList(from, Math.min(candidates.size(), from + pageSize)), companyId));
+        }
+        reports.remove(reportId);
+        log.debug("[PLATE-INDEX] Report {}: {} plates, {} bloom candidates, {} cross-company reports",
+                reportId, hashes.size(), candidates.size(), reports.size());
+        return reports.size();
+    }
+
+    /**
+     * Nạp các dòng mới (id > lastLoadedId) và các id nhảy cóc còn chờ vào Bloom.
+     */
+    public synchronized void refresh() {
+        long now = System.currentTimeMillis();
+
+        if (!pendingGaps.isEmpty()) {
+            List<Long> ids = new ArrayList<>(pendingGaps.keySet());
+            for (int from = 0; from < ids.size(); from += pageSize) {
+                for (var key : fingerprintRepository.findKeysByIdIn(ids.subList(from, Math.min(ids.size(), from + pageSize)))) {
+                    add(sharedFilters, key);
+                    pendingGaps.remove(key.getId());
+                }
+            }
+            // Id không bao giờ xuất hiện (rollback, INSERT IGNORE trùng) thì bỏ sau gapRetryMs
+            Iterator<Map.Entry<Long, Long>> it = pendingGaps.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getValue() > gapRetryMs) it.remove();
+            }
+        }
+
+        lastLoadedId = loadAfter(lastLoadedId, sharedFilters, pendingGaps, now);
+    }
+
+    /**
+     * Dựng lại toàn bộ Bloom từ DB (cờ shared tính lại), bắt các biển số mà đường nạp tăng dần bỏ sót:
+     * khoảng trống quá max-tracked-gap, id chờ quá gap-retry-ms, cờ shared tính lúc dòng kia chưa commit.
+     * Quét ngoài khóa; chỉ bước thay chuỗi filter là synchronized, các dòng mới hơn nạp lại ở refresh sau.
+     */
+    @Scheduled(fixedDelayString = "${app.plate-index.rescan-ms:3600000}",
+            initialDelayString = "${app.plate-index.rescan-ms:3600000}")
+    public void rescan() {
+        try {
+            long now = System.currentTimeMillis();
+            List<BloomFilter> filters = new CopyOnWriteArrayList<>();
+            Map<Long, Long> gaps = new LinkedHashMap<>();
+            long last = loadAfter(0, filters, gaps, now);
+
+            synchronized (this) {
+                // Id chờ phía trên mốc quét vẫn giữ; phía dưới đã được quét lại
+                pendingGaps.forEach((id, seenAt) -> {
+                    if (id > last) gaps.putIfAbsent(id, seenAt);
+                });
+                sharedFilters = filters;
+                pendingGaps = gaps;
+                lastLoadedId = last;
+            }
+            log.info("[PLATE-INDEX] Shared-plate Bloom filter rebuilt (last id {}, {} filters)", last, filters.size());
+        } catch (Exception e) {
+            log.warn("[PLATE-INDEX] Rescan failed, keeping current filters: {}", e.getMessage());
+        }
+    }
+
+    // Nạp keyset id > afterId vào filters, ghi nhớ id nhảy cóc; trả về id lớn nhất đã nạp
+    private long loadAfter(long afterId, List<BloomFilter> filters, Map<Long, Long> gaps, long now) {
+        long last = afterId;
+        while (true) {
+            var page = fingerprintRepository.findKeysAfter(last, pageSize);
+            for (var key : page) {
+                long id = key.getId();
+                if (id - last > 1 && id - last <= maxTrackedGap) {
+                    for (long gap = last + 1; gap < id; gap++) gaps.put(gap, now);
+                }
+                add(filters, key);
+                last = id;
+            }
+            if (page.size() < pageSize) break;
+        }
+        return last;
+    }
+
+    // Nạp Bloom (và backfill chỉ mục cho report cũ) khi ứng dụng sẵn sàng, không chặn startup
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        try {
+            if (backfillOnStartup) {
+                backfill();
+            }
+            refresh();
+            log.info("[PLATE-INDEX] Shared-plate Bloom filter loaded (last id {})", lastLoadedId);
+        } catch (Exception e) {
+            log.warn("[PLATE-INDEX] Warm-up failed, filters load lazily on first lookup: {}", e.getMessage());
+        }
+    }
+
+    private void backfill() {
+        long afterId = 0;
+        int indexed = 0;
+        while (true) {
+            List<Long> ids = fingerprintRepository.findUnindexedReportIds(afterId, PageRequest.of(0, 100));
+            for (Long id : ids) {
+                indexFromDetails(id);
+                indexed++;
+                afterId = id;
+            }
+            if (ids.size() < 100) break;
+        }
+        if (indexed > 0) {
+            log.info("[PLATE-INDEX] Backfilled plate fingerprints for {} reports", indexed);
+        }
+    }
+
+    private List<Long> indexFromDetails(Long reportId) {
+        EmissionReport report = reportRepository.findById(reportId).orElse(null);
+        if (report == null) {
+            return List.of();
+        }
+        List<String> plates = detailRepository.findDistinctPlatesByReportId(reportId);
+        if (plates.isEmpty()) {
+            return List.of();
+        }
+        indexReport(reportId, report.getSeller().getId(), report.getPeriod(), plates);
+        return fingerprintRepository.findPlateHashesByReportId(reportId);
+    }
+
+    private boolean mightBeShared(long plateHash) {
+        return mightBeShared(sharedFilters, plateHash);
+    }
+
+    private static boolean mightBeShared(List<BloomFilter> filters, long plateHash) {
+        for (BloomFilter filter : filters) {
+            if (filter.mightContain(plateHash)) return true;
+        }
+        return false;
+    }
+
+    // Chỉ gọi trong refresh() (synchronized) hoặc trên chuỗi filter mới chưa công bố của rescan()
+    private void add(List<BloomFilter> filters, PlateFingerprintRepository.FingerprintKey key) {
+        if (key.getShared() == null || key.getShared() == 0 || mightBeShared(filters, key.getPlateHash())) {
+            return;
+        }
+        BloomFilter last = filters.isEmpty() ? null : filters.get(filters.size() - 1);
+        if (last == null || last.isFull()) {
+            last = new BloomFilter(last == null ? bloomCapacity : last.capacity() * 2, bloomFpp);
+            filters.add(last);
+        }
+        last.put(key.getPlateHash());
+    }
+}
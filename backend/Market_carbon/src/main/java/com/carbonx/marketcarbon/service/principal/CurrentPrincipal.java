@@ -0,0 +1,14 @@
+package com.carbonx.marketcarbon.service.principal;
+
+import java.util.Set;
+
+/**
+ * Người dùng đang đăng nhập đã resolve sẵn: email + roles lấy từ JWT,
+ * id user/công ty/ví lấy từ cache (companyId/walletId null nếu chưa KYC/chưa có ví).
+ */
+public record CurrentPrincipal(Long userId, String email, Long companyId, Long walletId, Set<String> roles) {
+
+    public boolean hasRole(String role) {
+        return roles.contains(role);
+    }
+}
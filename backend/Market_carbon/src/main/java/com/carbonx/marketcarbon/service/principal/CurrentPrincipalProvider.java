@@ -0,0 +1,151 @@
+package com.carbonx.marketcarbon.service.principal;
+
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import com.carbonx.marketcarbon.repository.UserRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Resolve người dùng đang đăng nhập thành CurrentPrincipal, thay cho các helper
+ * currentUser()/currentCompany() gọi findByEmail + findByUserId ở từng service.
+ * - email + roles lấy từ Authentication do JwtTokenValidator dựng từ claims;
+ * - id user/công ty/ví: cache TTL theo email (miss thì 1 câu SELECT), xóa khi User/Company/Wallet đổi
+ *   (PrincipalChangeListener: KYC tạo/sửa công ty, tạo ví, đổi hồ sơ);
+ * - trong 1 request chỉ resolve 1 lần (lưu ở request attribute).
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CurrentPrincipalProvider {
+
+    private static final String REQUEST_ATTRIBUTE = CurrentPrincipal.class.getName();
+    private static final String ROLE_PREFIX = "ROLE_";
+
+    private final UserRepository userRepository;
+
+    @Value("${app.principal-cache.ttl-seconds:300}")
+    private long ttlSeconds = 300;
+
+    @Value("${app.principal-cache.max-entries:10000}")
+    private int maxEntries = 10000;
+
+    private record Ids(Long userId, Long companyId, Long walletId, long expiresAt) {
+        boolean expired() {
+            return expiresAt < System.currentTimeMillis();
+        }
+    }
+
+    private final Map<String, Ids> cache = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Người dùng hiện tại, null nếu chưa đăng nhập hoặc email trong token không còn user.
+     */
+    public CurrentPrincipal current() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || !auth.isAuthenticated() || auth instanceof AnonymousAuthenticationToken) {
+            return null;
+        }
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request != null
+                && request.getAttribute(REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) instanceof CurrentPrincipal memo
+                && memo.email().equals(auth.getName())) {
+            return memo;
+        }
+
+        Ids ids = ids(auth.getName());
+        if (ids == null) return null;
+
+        Set<String> roles = auth.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority)
+                .map(a -> a.startsWith(ROLE_PREFIX) ? a.substring(ROLE_PREFIX.length()) : a)
+                .collect(Collectors.toUnmodifiableSet());
+        CurrentPrincipal principal = new CurrentPrincipal(ids.userId(), auth.getName(), ids.companyId(), ids.walletId(), roles);
+        if (request != null) {
+            request.setAttribute(REQUEST_ATTRIBUTE, principal, RequestAttributes.SCOPE_REQUEST);
+        }
+        return principal;
+    }
+
+    /**
+     * companyId của user đăng nhập: chưa đăng nhập thì UNAUTHORIZED, chưa KYC thì COMPANY_NOT_FOUND.
+     */
+    public Long requireCompanyId() {
+        CurrentPrincipal principal = current();
+        if (principal == null) throw new AppException(ErrorCode.UNAUTHORIZED);
+        if (principal.companyId() == null) throw new AppException(ErrorCode.COMPANY_NOT_FOUND);
+        return principal.companyId();
+    }
+
+    /**
+     * Xóa cache của user ngay và sau khi transaction hiện tại kết thúc
+     * (request khác có thể đã đọc id cũ trước khi commit).
+     */
+    public void invalidateUser(Long userId) {
+        if (userId == null) return;
+        evict(userId);
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request != null) {
+            request.removeAttribute(REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(userId);
+                }
+            });
+        }
+    }
+
+    private Ids ids(String email) {
+        Ids cached = cache.get(email);
+        if (cached != null && !cached.expired()) {
+            return cached;
+        }
+        long seen = version.get();
+        List<UserRepository.PrincipalIds> rows = userRepository.findPrincipalIdsByEmail(email);
+        if (rows.isEmpty()) {
+            cache.remove(email);
+            return null;
+        }
+        UserRepository.PrincipalIds row = rows.get(0);
+        Ids ids = new Ids(row.getUserId(), row.getCompanyId(), row.getWalletId(),
+                System.currentTimeMillis() + ttlSeconds * 1000);
+        synchronized (this) {
+            // Bị invalidate trong lúc đọc DB thì không lưu (có thể là id cũ)
+            if (seen == version.get()) {
+                if (cache.size() >= maxEntries) {
+                    cache.values().removeIf(Ids::expired);
+                    if (cache.size() >= maxEntries) cache.clear();
+                }
+                cache.put(email, ids);
+            }
+        }
+        return ids;
+    }
+
+    private synchronized void evict(Long userId) {
+        version.incrementAndGet();
+        cache.values().removeIf(ids -> userId.equals(ids.userId()));
+        log.debug("[PRINCIPAL] Evicted userId={}", userId);
+    }
+}
@@ -0,0 +1,49 @@
+package com.carbonx.marketcarbon.service.principal;
+
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.User;
+import com.carbonx.marketcarbon.model.Wallet;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Entity listener của User/Company/Wallet: xóa CurrentPrincipal đã cache của user liên quan
+ * khi hồ sơ đổi, công ty được tạo/sửa qua KYC, ví được tạo/xóa.
+ * Provider lấy lúc callback: Hibernate dựng listener khi EntityManagerFactory chưa xong,
+ * còn provider lại cần UserRepository.
+ */
+@Component
+public class PrincipalChangeListener {
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private CurrentPrincipalProvider principalProvider() {
+        return applicationContext.getBean(CurrentPrincipalProvider.class);
+    }
+
+    @PostPersist
+    @PostRemove
+    public void onCreatedOrRemoved(Object entity) {
+        principalProvider().invalidateUser(userId(entity));
+    }
+
+    // Ví cập nhật số dư liên tục, không làm đổi id nào nên bỏ qua
+    @PostUpdate
+    public void onUpdated(Object entity) {
+        if (entity instanceof Wallet) return;
+        principalProvider().invalidateUser(userId(entity));
+    }
+
+    // getId() trên proxy lazy không nạp User
+    private static Long userId(Object entity) {
+        if (entity instanceof User user) return user.getId();
+        if (entity instanceof Company company && company.getUser() != null) return company.getUser().getId();
+        if (entity instanceof Wallet wallet && wallet.getUser() != null) return wallet.getUser().getId();
+        return null;
+    }
+}
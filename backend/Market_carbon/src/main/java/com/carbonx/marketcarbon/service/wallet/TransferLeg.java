@@ -0,0 +1,26 @@
+package com.carbonx.marketcarbon.service.wallet;
+
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.model.Order;
+import com.carbonx.marketcarbon.model.ProfitDistribution;
+import lombok.Builder;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * Một cặp debit/credit (VND) giữa 2 ví, sinh ra 2 WalletTransaction.
+ */
+@Value
+@Builder
+public class TransferLeg {
+    Long fromWalletId;
+    Long toWalletId;
+    BigDecimal amount;
+    WalletTransactionType debitType;
+    WalletTransactionType creditType;
+    String debitDescription;
+    String creditDescription;
+    Order order;
+    ProfitDistribution distribution;
+}
@@ -0,0 +1,22 @@
+package com.carbonx.marketcarbon.service.wallet;
+
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.model.ProfitDistribution;
+import lombok.Builder;
+import lombok.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * Một bút toán 1 phía (chỉ trừ hoặc chỉ cộng) trên 1 ví, sinh ra 1 WalletTransaction.
+ * Dùng khi tiền đã được giữ trước ở ví nguồn (vd: chia lợi nhuận trừ ví công ty 1 lần cho cả đợt).
+ */
+@Value
+@Builder
+public class WalletPosting {
+    Long walletId;
+    BigDecimal amount;
+    WalletTransactionType type;
+    String description;
+    ProfitDistribution distribution;
+}
@@ -0,0 +1,292 @@
+package com.carbonx.marketcarbon.service.wallet;
+
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import com.carbonx.marketcarbon.model.Order;
+import com.carbonx.marketcarbon.model.ProfitDistribution;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.model.WalletTransaction;
+import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chuyển tiền nhiều chặng (N leg) giữa các ví, không deadlock.
+ * - Mọi ví liên quan được khóa theo thứ tự id tăng dần (thứ tự cố định cho mọi luồng),
+ *   nên 2 giao dịch ngược chiều A->B và B->A không thể giữ khóa chéo nhau.
+ * - Số dư được cập nhật trên entity đã khóa (Hibernate gom các UPDATE theo batch khi flush),
+ *   các WalletTransaction ghi bằng JDBC batch (id IDENTITY làm Hibernate insert từng dòng).
+ * - Gọi ngoài transaction: tự mở transaction riêng và thử lại khi gặp lock timeout/deadlock.
+ *   Gọi trong transaction của caller: chạy luôn trong đó (MySQL đã rollback cả transaction nên không retry được).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class WalletTransferEngine {
+
+    private final WalletTransactionRepository walletTransactionRepository;
+    private final EntityManager entityManager;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${app.wallet-transfer.max-attempts:3}")
+    private int maxAttempts = 3;
+
+    @Value("${app.wallet-transfer.backoff-ms:50}")
+    private long backoffMs = 50;
+
+    private WalletTransferEngine getSelf() {
+        return applicationContext.getBean(WalletTransferEngine.class);
+    }
+
+    // Bút toán trả về đã ghi bằng JDBC batch nên không phải entity managed (không có id)
+    public List<WalletTransaction> transfer(List<TransferLeg> legs) {
+        validate(legs);
+
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return apply(legs);
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return getSelf().applyInNewTransaction(legs);
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= maxAttempts) {
+                    log.error("[WALLET-TRANSFER] Giving up after {} attempts on wallets {}: {}",
+                            attempt, lockOrder(legs), e.getMessage());
+                    throw e;
+                }
+                long delay = backoffMs * (1L << (attempt - 1)) + ThreadLocalRandom.current().nextLong(backoffMs + 1);
+                log.warn("[WALLET-TRANSFER] Lock conflict on wallets {} (attempt {}), retrying in {} ms",
+                        lockOrder(legs), attempt, delay);
+                sleep(delay);
+            }
+        }
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public List<WalletTransaction> applyInNewTransaction(List<TransferLeg> legs) {
+        return apply(legs);
+    }
+
+    // Thứ tự khóa: id ví tăng dần, không trùng
+    public static List<Long> lockOrder(Collection<TransferLeg> legs) {
+        TreeSet<Long> ids = new TreeSet<>();
+        for (TransferLeg leg : legs) {
+            ids.add(leg.getFromWalletId());
+            ids.add(leg.getToWalletId());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Khóa các ví theo id tăng dần và refresh để số dư đọc ra là bản mới nhất dưới khóa
+     * (ví thường đã nằm trong persistence context qua User/Company nên có thể cũ).
+     * Phải gọi trước khi sửa ví trong transaction vì refresh bỏ các thay đổi chưa flush.
+     */
+    public Map<Long, Wallet> lockInOrder(Collection<Long> walletIds) {
+        Map<Long, Wallet> locked = new LinkedHashMap<>();
+        for (Long id : new TreeSet<>(walletIds)) {
+            Wallet wallet = entityManager.find(Wallet.class, id);
+            if (wallet == null) {
+                throw new AppException(ErrorCode.WALLET_NOT_FOUND);
+            }
+            entityManager.refresh(wallet, LockModeType.PESSIMISTIC_WRITE);
+            locked.put(id, wallet);
+        }
+        return locked;
+    }
+
+    /**
+     * Dùng khi caller đã khóa ví bằng lockInOrder trong cùng transaction (vd: settle đơn hàng
+     * cần sửa cả carbonCreditBalance), không khóa/refresh lại để giữ các thay đổi đang chờ flush.
+     */
+    public List<WalletTransaction> transfer(List<TransferLeg> legs, Map<Long, Wallet> lockedWallets) {
+        validate(legs);
+        for (Long id : lockOrder(legs)) {
+            if (!lockedWallets.containsKey(id)) {
+                throw new IllegalStateException("Wallet " + id + " must be locked before transfer");
+            }
+        }
+        return apply(legs, lockedWallets);
+    }
+
+    /**
+     * Trừ 1 ví bằng 1 bút toán (vd: giữ trước toàn bộ tiền của 1 đợt chia lợi nhuận).
+     * Chạy trong transaction của caller (không retry), số dư không đủ thì báo WALLET_NOT_ENOUGH_MONEY.
+     */
+    public WalletTransaction debit(WalletPosting posting) {
+        validate(posting);
+        Wallet wallet = lockInOrder(List.of(posting.getWalletId())).get(posting.getWalletId());
+        BigDecimal before = safe(wallet.getBalance());
+        if (before.compareTo(posting.getAmount()) < 0) {
+            log.warn("Insufficient funds for debit. Wallet {} has {}, but {} is required.",
+                    wallet.getId(), before, posting.getAmount());
+            throw new AppException(ErrorCode.WALLET_NOT_ENOUGH_MONEY);
+        }
+        BigDecimal after = before.subtract(posting.getAmount());
+        wallet.setBalance(after);
+        WalletTransaction entry = entry(wallet, null, posting.getDistribution(), posting.getType(),
+                debitAmount(posting.getType(), posting.getAmount()), posting.getDescription(),
+                before, after, LocalDateTime.now());
+        return walletTransactionRepository.save(entry);
+    }
+
+    /**
+     * Cộng tiền cho nhiều ví khi ví nguồn đã bị trừ trước (vd: chi trả lợi nhuận theo chunk):
+     * chỉ khóa các ví nhận theo id tăng dần nên các chunk chạy song song không tranh nhau ví nguồn.
+     * Bút toán ghi bằng JDBC batch (id IDENTITY làm Hibernate insert từng dòng), số dư ví cập nhật theo batch khi flush.
+     * Chạy trong transaction của caller (không retry).
+     */
+    public void credit(List<WalletPosting> postings) {
+        if (postings == null || postings.isEmpty()) {
+            throw new IllegalArgumentException("Credit requires at least one posting");
+        }
+        postings.forEach(this::validate);
+        Map<Long, Wallet> locked = lockInOrder(postings.stream().map(WalletPosting::getWalletId).toList());
+
+        LocalDateTime now = LocalDateTime.now();
+        List<WalletTransaction> entries = new ArrayList<>(postings.size());
+        for (WalletPosting posting : postings) {
+            Wallet wallet = locked.get(posting.getWalletId());
+            BigDecimal before = safe(wallet.getBalance());
+            BigDecimal after = before.add(posting.getAmount());
+            wallet.setBalance(after);
+            entries.add(entry(wallet, null, posting.getDistribution(), posting.getType(), posting.getAmount(),
+                    posting.getDescription(), before, after, now));
+        }
+        walletTransactionRepository.insertBatch(entries);
+        log.info("[WALLET-TRANSFER] Credited {} postings across wallets {}", postings.size(), locked.keySet());
+    }
+
+    private List<WalletTransaction> apply(List<TransferLeg> legs) {
+        return apply(legs, lockInOrder(lockOrder(legs)));
+    }
+
+    private List<WalletTransaction> apply(List<TransferLeg> legs, Map<Long, Wallet> locked) {
+        LocalDateTime now = LocalDateTime.now();
+        List<WalletTransaction> entries = new ArrayList<>(legs.size() * 2);
+        for (TransferLeg leg : legs) {
+            Wallet from = locked.get(leg.getFromWalletId());
+            Wallet to = locked.get(leg.getToWalletId());
+            BigDecimal amount = leg.getAmount();
+
+            BigDecimal fromBefore = safe(from.getBalance());
+            if (fromBefore.compareTo(amount) < 0) {
+                log.warn("Insufficient funds for transfer. Wallet {} has {}, but {} is required.",
+                        from.getId(), fromBefore, amount);
+                throw new AppException(ErrorCode.WALLET_NOT_ENOUGH_MONEY);
+            }
+            BigDecimal fromAfter = fromBefore.subtract(amount);
+            from.setBalance(fromAfter);
+
+            BigDecimal toBefore = safe(to.getBalance());
+            BigDecimal toAfter = toBefore.add(amount);
+            to.setBalance(toAfter);
+
+            entries.add(entry(from, leg, leg.getDebitType(), debitAmount(leg.getDebitType(), amount),
+                    leg.getDebitDescription(), fromBefore, fromAfter, now));
+            entries.add(entry(to, leg, leg.getCreditType(), amount,
+                    leg.getCreditDescription(), toBefore, toAfter, now));
+        }
+
+        walletTransactionRepository.insertBatch(entries);
+        log.info("[WALLET-TRANSFER] Applied {} legs across wallets {}", legs.size(), locked.keySet());
+        return entries;
+    }
+
+    // Loại giao dịch đã mang nghĩa "trừ tiền" thì ghi số dương (như WalletTransactionService), còn lại ghi số âm
+    private BigDecimal debitAmount(WalletTransactionType type, BigDecimal amount) {
+        return type == WalletTransactionType.BUY_CARBON_CREDIT || type == WalletTransactionType.WITHDRAWAL
+                ? amount
+                : amount.negate();
+    }
+
+    private WalletTransaction entry(Wallet wallet, TransferLeg leg, WalletTransactionType type, BigDecimal amount,
+                                    String description, BigDecimal before, BigDecimal after, LocalDateTime now) {
+        return entry(wallet, leg.getOrder(), leg.getDistribution(), type, amount, description, before, after, now);
+    }
+
+    private WalletTransaction entry(Wallet wallet, Order order, ProfitDistribution distribution,
+                                    WalletTransactionType type, BigDecimal amount, String description,
+                                    BigDecimal before, BigDecimal after, LocalDateTime now) {
+        CarbonCredit walletCredit = wallet.getCarbonCredit();
+        return WalletTransaction.builder()
+                .wallet(wallet)
+                .order(order)
+                .distribution(distribution)
+                .transactionType(type)
+                .amount(amount)
+                .description(description)
+                .balanceBefore(before)
+                .balanceAfter(after)
+                .creditBatch(walletCredit != null ? walletCredit.getBatch() : null)
+                .createdAt(now)
+                .build();
+    }
+
+    private void validate(List<TransferLeg> legs) {
+        if (legs == null || legs.isEmpty()) {
+            throw new IllegalArgumentException("Transfer requires at least one leg");
+        }
+        for (TransferLeg leg : legs) {
+            if (leg.getAmount() == null || leg.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+                throw new AppException(ErrorCode.MONEY_MUST_POSITIVE);
+            }
+            if (leg.getFromWalletId() == null || leg.getToWalletId() == null) {
+                throw new AppException(ErrorCode.WALLET_NOT_FOUND);
+            }
+            if (leg.getDebitType() == null || leg.getCreditType() == null) {
+                throw new IllegalArgumentException("Transaction type cannot be null in TransferLeg");
+            }
+        }
+    }
+
+    private void validate(WalletPosting posting) {
+        if (posting.getAmount() == null || posting.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            throw new AppException(ErrorCode.MONEY_MUST_POSITIVE);
+        }
+        if (posting.getWalletId() == null) {
+            throw new AppException(ErrorCode.WALLET_NOT_FOUND);
+        }
+        if (posting.getType() == null) {
+            throw new IllegalArgumentException("Transaction type cannot be null in WalletPosting");
+        }
+    }
+
+    private BigDecimal safe(BigDecimal v) {
+        return v == null ? BigDecimal.ZERO : v;
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry wallet transfer", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.carbonx.marketcarbon.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter kích thước cố định cho khóa long (vd: hash biển số).
+ * Không có false negative; false positive ~fpp khi số phần tử <= expectedInsertions.
+ * put/mightContain dùng được từ nhiều luồng (AtomicLongArray).
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashFunctions;
+    private final long capacity;
+    private final AtomicLong insertions = new AtomicLong();
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("Invalid bloom filter sizing: n=" + expectedInsertions + ", fpp=" + fpp);
+        }
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (ln2 * ln2));
+        // index() dùng 31 bit nên tối đa 2^31 bit (256MB)
+        int words = (int) Math.min(1L << 25, Math.max(1, (bits + 63) >>> 6));
+        this.words = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * ln2));
+        this.capacity = expectedInsertions;
+    }
+
+    public void put(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashFunctions; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = words.get(word);
+                if ((current & mask) != 0) break;
+            } while (!words.compareAndSet(word, current, current | mask));
+        }
+        insertions.incrementAndGet();
+    }
+
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashFunctions; i++) {
+            long bit = index(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Đã đạt số phần tử dự kiến: thêm nữa thì tỉ lệ false positive tăng
+    public boolean isFull() {
+        return insertions.get() >= capacity;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    private long index(int combined) {
+        // Double hashing (Kirsch–Mitzenmacher), bỏ bit dấu
+        return (combined & Integer.MAX_VALUE) % bitSize;
+    }
+
+    // SplitMix64 finalizer: trộn đều các bit trước khi tách h1/h2
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
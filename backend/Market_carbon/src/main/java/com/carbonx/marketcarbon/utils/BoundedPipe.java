@@ -0,0 +1,163 @@
+package com.carbonx.marketcarbon.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipe một chiều giữa 2 luồng (ghi: luồng request, đọc: luồng upload storage) có giới hạn số chunk đang chờ.
+ * Khác PipedInputStream: ghi quá thời gian chờ (phía đọc không chạy/treo) thì ném IOException thay vì treo mãi,
+ * và abort() làm phía đọc ném IOException để storage không lưu object thiếu byte.
+ */
+public class BoundedPipe {
+
+    private static final byte[] EOF = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks;
+    private final long writeTimeoutMs;
+    private volatile boolean aborted;
+    private volatile boolean readerClosed;
+
+    private final InputStream source = new Source();
+    private final OutputStream sink = new Sink();
+
+    public BoundedPipe(int capacityChunks, long writeTimeoutMs) {
+        this.chunks = new ArrayBlockingQueue<>(capacityChunks);
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+
+    // Đầu đọc: đưa cho luồng upload
+    public InputStream source() {
+        return source;
+    }
+
+    // Đầu ghi: luồng request ghi vào (qua TeeInputStream)
+    public OutputStream sink() {
+        return sink;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    // Hủy pipe: phía đọc nhận IOException ở lần đọc kế tiếp, phía ghi ngừng ghi
+    public void abort() {
+        aborted = true;
+        chunks.clear();
+        chunks.offer(ABORT);
+    }
+
+    private final class Sink extends OutputStream {
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            put(Arrays.copyOfRange(buf, off, off + len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!aborted && !readerClosed) {
+                put(EOF);
+            }
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            if (aborted) {
+                throw new IOException("Pipe aborted");
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe reader closed");
+            }
+            boolean accepted;
+            try {
+                accepted = chunks.offer(chunk, writeTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new IOException("Interrupted while writing to pipe", e);
+            }
+            if (!accepted) {
+                // Phía đọc không theo kịp: hủy luôn để upload lỗi rõ ràng thay vì nhận thiếu byte
+                abort();
+                throw new IOException("Pipe write timed out after " + writeTimeoutMs + " ms");
+            }
+        }
+    }
+
+    private final class Source extends InputStream {
+        private byte[] current;
+        private int pos;
+        private boolean eof;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, buf, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            // Giải phóng chỗ cho phía ghi đang chờ; lần ghi sau sẽ thấy readerClosed
+            chunks.clear();
+        }
+
+        private boolean fill() throws IOException {
+            while (current == null || pos >= current.length) {
+                if (eof) {
+                    return false;
+                }
+                byte[] next;
+                try {
+                    next = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading from pipe", e);
+                }
+                if (next == ABORT || aborted) {
+                    throw new IOException("Pipe aborted");
+                }
+                if (next == EOF) {
+                    eof = true;
+                    return false;
+                }
+                current = next;
+                pos = 0;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.carbonx.marketcarbon.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Đọc từ stream gốc và chép mọi byte đã đọc sang một OutputStream (vd: pipe upload lên storage),
+ * để 1 lần đọc file phục vụ được nhiều nơi.
+ * Nếu phía nhận lỗi/đóng sớm thì ngừng chép nhưng vẫn cho đọc tiếp; caller tự kiểm tra kết quả phía nhận.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream branch;
+    private boolean branchFailed;
+
+    public TeeInputStream(InputStream in, OutputStream branch) {
+        super(in);
+        this.branch = branch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            copy(new byte[]{(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        int n = super.read(buf, off, len);
+        if (n > 0) {
+            copy(buf, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Byte bị bỏ qua vẫn phải sang nhánh, nên đọc thay vì skip
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // true nếu đã có byte không chép được sang nhánh (nhánh nhận thiếu dữ liệu)
+    public boolean isBranchFailed() {
+        return branchFailed;
+    }
+
+    // Đọc hết phần còn lại để nhánh nhận đủ byte
+    public void drain() throws IOException {
+        byte[] buf = new byte[8192];
+        while (read(buf, 0, buf.length) >= 0) {
+            // bỏ qua
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            closeBranch();
+        }
+    }
+
+    private void copy(byte[] buf, int off, int len) {
+        if (branchFailed) {
+            return;
+        }
+        try {
+            branch.write(buf, off, len);
+        } catch (IOException e) {
+            branchFailed = true;
+        }
+    }
+
+    private void closeBranch() {
+        try {
+            branch.close();
+        } catch (IOException ignored) {
+            // phía nhận đã đóng
+        }
+    }
+}
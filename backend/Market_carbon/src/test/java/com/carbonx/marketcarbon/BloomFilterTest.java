@@ -0,0 +1,68 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.utils.BloomFilter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Bloom filter biển số: không false negative, false positive quanh fpp, báo đầy đúng lúc.
+ */
+class BloomFilterTest {
+
+    @Test
+    @DisplayName("Mọi khóa đã put đều mightContain = true")
+    void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        Random random = new Random(42);
+        long[] keys = new long[10_000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+            filter.put(keys[i]);
+        }
+
+        for (long key : keys) {
+            assertThat(filter.mightContain(key)).isTrue();
+        }
+    }
+
+    @Test
+    @DisplayName("Đủ capacity: tỉ lệ false positive không vượt xa fpp")
+    void falsePositiveRateNearFpp() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (long i = 0; i < 10_000; i++) {
+            filter.put(i);
+        }
+
+        int falsePositives = 0;
+        int probes = 100_000;
+        for (long i = 1_000_000; i < 1_000_000 + probes; i++) {
+            if (filter.mightContain(i)) falsePositives++;
+        }
+        assertThat((double) falsePositives / probes).isLessThan(0.02);
+    }
+
+    @Test
+    @DisplayName("isFull khi số phần tử đạt capacity")
+    void fullAtCapacity() {
+        BloomFilter filter = new BloomFilter(3, 0.01);
+        filter.put(1);
+        filter.put(2);
+        assertThat(filter.isFull()).isFalse();
+
+        filter.put(3);
+        assertThat(filter.isFull()).isTrue();
+        assertThat(filter.capacity()).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Tham số kích thước sai thì ném IllegalArgumentException")
+    void rejectsInvalidSizing() {
+        assertThatThrownBy(() -> new BloomFilter(0, 0.01)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new BloomFilter(100, 1.0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,71 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.utils.BoundedPipe;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Pipe upload CSV: chuyển đủ byte, ghi không treo khi phía đọc không chạy, abort làm phía đọc lỗi.
+ */
+class BoundedPipeTest {
+
+    @Test
+    @DisplayName("Chuyển đủ byte qua luồng khác rồi EOF khi đóng đầu ghi")
+    void transfersAllBytesThenEof() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(2, 5_000);
+        CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+            try (InputStream in = pipe.source()) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        try (OutputStream out = pipe.sink()) {
+            for (int off = 0; off < data.length; off += 8192) {
+                out.write(data, off, Math.min(8192, data.length - off));
+            }
+        }
+
+        assertThat(read.get(10, TimeUnit.SECONDS)).isEqualTo(data);
+    }
+
+    @Test
+    @DisplayName("Không ai đọc: ghi hết thời gian chờ thì ném IOException và hủy pipe")
+    void writeTimesOutWhenNobodyReads() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(1, 50);
+        OutputStream out = pipe.sink();
+        out.write(new byte[]{1});
+
+        assertThatThrownBy(() -> out.write(new byte[]{2}))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("timed out");
+        assertThat(pipe.isAborted()).isTrue();
+        // Phía đọc (vd: storage chạy muộn) không được nhận object thiếu byte
+        assertThatThrownBy(() -> pipe.source().read()).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    @DisplayName("abort: phía đọc ném IOException thay vì thấy EOF")
+    void abortFailsReaderInsteadOfEof() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(4, 5_000);
+        pipe.sink().write(new byte[]{1, 2, 3});
+        pipe.abort();
+        pipe.sink().close();
+
+        assertThatThrownBy(() -> pipe.source().readAllBytes()).isInstanceOf(IOException.class);
+    }
+}
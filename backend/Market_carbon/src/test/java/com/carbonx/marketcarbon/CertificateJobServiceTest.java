@@ -0,0 +1,208 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.certificate.CertificateData;
+import com.carbonx.marketcarbon.certificate.CertificateJobService;
+import com.carbonx.marketcarbon.certificate.CertificatePdfService;
+import com.carbonx.marketcarbon.common.CertificateJobStatus;
+import com.carbonx.marketcarbon.common.CertificateJobType;
+import com.carbonx.marketcarbon.model.CertificateJob;
+import com.carbonx.marketcarbon.model.CreditCertificate;
+import com.carbonx.marketcarbon.repository.CertificateJobRepository;
+import com.carbonx.marketcarbon.repository.CreditCertificateRepository;
+import com.carbonx.marketcarbon.service.EmailService;
+import com.carbonx.marketcarbon.service.StorageService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Hàng đợi job chứng chỉ: ghi job trong transaction và chạy sau commit, retry với backoff, bỏ cuộc sau max-attempts.
+ * Repository là bản giả lưu trong Map (claim là compare-and-set như câu UPDATE thật).
+ */
+class CertificateJobServiceTest {
+
+    private final Map<Long, CertificateJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    private CertificateJobRepository jobRepository;
+    private CreditCertificateRepository certificateRepository;
+    private CertificatePdfService pdfService;
+    private EmailService emailService;
+    private CertificateJobService service;
+    private CreditCertificate certificate;
+
+    @BeforeEach
+    void setUp() {
+        jobRepository = mock(CertificateJobRepository.class);
+        certificateRepository = mock(CreditCertificateRepository.class);
+        pdfService = mock(CertificatePdfService.class);
+        emailService = mock(EmailService.class);
+
+        when(jobRepository.save(any(CertificateJob.class))).thenAnswer(inv -> {
+            CertificateJob job = inv.getArgument(0);
+            if (job.getId() == null) {
+                job.setId(ids.incrementAndGet());
+            }
+            jobs.put(job.getId(), job);
+            return job;
+        });
+        when(jobRepository.findById(anyLong())).thenAnswer(inv -> Optional.ofNullable(jobs.get(inv.<Long>getArgument(0))));
+        when(jobRepository.findWithCertificateById(anyLong()))
+                .thenAnswer(inv -> Optional.ofNullable(jobs.get(inv.<Long>getArgument(0))));
+        when(jobRepository.claim(anyLong(), any())).thenAnswer(inv -> {
+            CertificateJob job = jobs.get(inv.<Long>getArgument(0));
+            if (job == null || job.getStatus() != CertificateJobStatus.PENDING) {
+                return 0;
+            }
+            job.setStatus(CertificateJobStatus.RUNNING);
+            job.setAttempts(job.getAttempts() + 1);
+            return 1;
+        });
+        when(jobRepository.findDueJobIds(any(), any())).thenAnswer(inv -> {
+            LocalDateTime now = inv.getArgument(0);
+            return jobs.values().stream()
+                    .filter(j -> j.getStatus() == CertificateJobStatus.PENDING && !j.getNextAttemptAt().isAfter(now))
+                    .map(CertificateJob::getId)
+                    .toList();
+        });
+
+        certificate = CreditCertificate.builder().id(5L).build();
+        when(certificateRepository.findById(5L)).thenReturn(Optional.of(certificate));
+        when(pdfService.renderPdf(any())).thenReturn(new byte[]{1, 2, 3});
+        when(pdfService.uploadPdf(any(), any()))
+                .thenReturn(new StorageService.StoredObject("certs/c.pdf", "etag", "https://cdn/certs/c.pdf"));
+
+        // Worker chạy ngay trên luồng gọi
+        service = new CertificateJobService(jobRepository, certificateRepository, pdfService, emailService, Runnable::run);
+        ApplicationContext context = mock(ApplicationContext.class);
+        when(context.getBean(CertificateJobService.class)).thenReturn(service);
+        ReflectionTestUtils.setField(service, "applicationContext", context);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static CertificateData retirement() {
+        return CertificateData.builder()
+                .creditsCount(2)
+                .retiredQuantity(new BigDecimal("2.50"))
+                .projectTitle("EV Project")
+                .certificateCode("RET-001")
+                .build();
+    }
+
+    @Test
+    @DisplayName("Job ghi trong transaction, chỉ chạy sau commit: render, gắn URL, gửi email, DONE")
+    void persistsThenRunsAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        CertificateJob job = service.enqueue(certificate, retirement(), CertificateJobType.RETIREMENT, "buyer@test.com");
+
+        assertThat(jobs.get(job.getId()).getStatus()).isEqualTo(CertificateJobStatus.PENDING);
+        verify(pdfService, never()).renderPdf(any());
+
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCommit();
+        }
+
+        assertThat(jobs.get(job.getId()).getStatus()).isEqualTo(CertificateJobStatus.DONE);
+        assertThat(jobs.get(job.getId()).getAttempts()).isEqualTo(1);
+        assertThat(certificate.getCertificateUrl()).isEqualTo("https://cdn/certs/c.pdf");
+        ArgumentCaptor<String> body = ArgumentCaptor.forClass(String.class);
+        verify(emailService).sendEmailWithAttachment(eq("buyer@test.com"), anyString(), body.capture(),
+                eq(new byte[]{1, 2, 3}), anyString());
+        // Số lượng lẻ giữ nguyên, không làm tròn xuống
+        assertThat(body.getValue()).contains("<b>2.5 Carbon Credits</b>");
+    }
+
+    @Test
+    @DisplayName("Lỗi thì PENDING với backoff, poller chạy lại khi đến hạn")
+    void failedJobIsRetriedByPoller() {
+        doThrow(new RuntimeException("SMTP down")).doNothing()
+                .when(emailService).sendEmailWithAttachment(anyString(), anyString(), anyString(), any(), anyString());
+
+        CertificateJob job = service.enqueue(certificate, retirement(), CertificateJobType.RETIREMENT, "buyer@test.com");
+
+        CertificateJob stored = jobs.get(job.getId());
+        assertThat(stored.getStatus()).isEqualTo(CertificateJobStatus.PENDING);
+        assertThat(stored.getLastError()).isEqualTo("SMTP down");
+        // Lần 1 lỗi: chờ backoff-seconds (30s)
+        assertThat(stored.getNextAttemptAt()).isAfter(LocalDateTime.now(ZoneId.of("Asia/Ho_Chi_Minh")).plusSeconds(20));
+
+        // Chưa đến hạn: poller không chạy
+        service.pollDueJobs();
+        verify(pdfService, times(1)).renderPdf(any());
+
+        stored.setNextAttemptAt(LocalDateTime.now().minusDays(1));
+        service.pollDueJobs();
+
+        assertThat(stored.getStatus()).isEqualTo(CertificateJobStatus.DONE);
+        assertThat(stored.getAttempts()).isEqualTo(2);
+        assertThat(stored.getLastError()).isNull();
+    }
+
+    @Test
+    @DisplayName("Hết max-attempts thì FAILED và không được nhặt lại")
+    void givesUpAfterMaxAttempts() {
+        ReflectionTestUtils.setField(service, "maxAttempts", 2);
+        when(pdfService.renderPdf(any())).thenThrow(new IllegalStateException("template broken"));
+
+        CertificateJob job = service.enqueue(certificate, retirement(), CertificateJobType.RETIREMENT, null);
+        CertificateJob stored = jobs.get(job.getId());
+        stored.setNextAttemptAt(LocalDateTime.now().minusDays(1));
+        service.pollDueJobs();
+        service.pollDueJobs();
+
+        assertThat(stored.getStatus()).isEqualTo(CertificateJobStatus.FAILED);
+        assertThat(stored.getAttempts()).isEqualTo(2);
+        verify(pdfService, times(2)).renderPdf(any());
+    }
+
+    @Test
+    @DisplayName("Job đang RUNNING ở worker khác thì không xử lý trùng")
+    void claimedJobIsNotProcessedTwice() {
+        CertificateJob job = CertificateJob.builder()
+                .certificate(certificate)
+                .jobType(CertificateJobType.ISSUANCE)
+                .payload("{}")
+                .status(CertificateJobStatus.RUNNING)
+                .nextAttemptAt(LocalDateTime.now().minusDays(1))
+                .build();
+        jobRepository.save(job);
+
+        service.pollDueJobs();
+
+        verify(pdfService, never()).renderPdf(any());
+        assertThat(job.getStatus()).isEqualTo(CertificateJobStatus.RUNNING);
+    }
+}
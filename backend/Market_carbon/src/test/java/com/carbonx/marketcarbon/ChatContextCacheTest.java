@@ -0,0 +1,81 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.service.ai.ChatContextCache;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * ChatContextCache: giới hạn số key (LRU), bỏ entry hết hạn khi đọc lại, xóa theo công ty.
+ */
+class ChatContextCacheTest {
+
+    private static ChatContextCache cache(int maxEntries) {
+        ChatContextCache cache = new ChatContextCache();
+        ReflectionTestUtils.setField(cache, "maxEntries", maxEntries);
+        return cache;
+    }
+
+    @Test
+    @DisplayName("Nhiều key khác nhau không đọc lại: số entry không vượt max-entries")
+    void boundedByMaxEntries() {
+        ChatContextCache cache = cache(100);
+
+        for (int i = 0; i < 10_000; i++) {
+            int n = i;
+            cache.sharedAnswer("price:" + n, () -> n);
+        }
+
+        assertThat(cache.size()).isEqualTo(100);
+    }
+
+    @Test
+    @DisplayName("Key vừa dùng được giữ lại, key lâu nhất không dùng bị bỏ")
+    void evictsLeastRecentlyUsed() {
+        ChatContextCache cache = cache(2);
+        AtomicInteger builds = new AtomicInteger();
+
+        cache.sharedAnswer("a", () -> builds.incrementAndGet());
+        cache.sharedAnswer("b", () -> builds.incrementAndGet());
+        cache.sharedAnswer("a", () -> builds.incrementAndGet());  // hit, "a" thành mới nhất
+        cache.sharedAnswer("c", () -> builds.incrementAndGet());  // bỏ "b"
+        cache.sharedAnswer("a", () -> builds.incrementAndGet());  // vẫn hit
+
+        assertThat(builds.get()).isEqualTo(3);
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Entry hết hạn bị dựng lại và thay thế")
+    void rebuildsExpiredEntry() {
+        ChatContextCache cache = cache(100);
+        ReflectionTestUtils.setField(cache, "answerTtlSeconds", -1L);
+        AtomicInteger builds = new AtomicInteger();
+
+        cache.sharedAnswer("a", () -> builds.incrementAndGet());
+        cache.sharedAnswer("a", () -> builds.incrementAndGet());
+
+        assertThat(builds.get()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("invalidateCompany chỉ xóa key của công ty đó")
+    void invalidateCompanyDropsOnlyItsKeys() {
+        ChatContextCache cache = cache(100);
+        cache.companyContext(1L, () -> "ctx-1");
+        cache.companyAnswer(1L, "formula", () -> "f-1");
+        cache.companyContext(2L, () -> "ctx-2");
+        cache.sharedAnswer("price", () -> "p");
+
+        cache.invalidateCompany(1L);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.companyContext(2L, () -> "rebuilt")).isEqualTo("ctx-2");
+        assertThat(cache.companyContext(1L, () -> "rebuilt")).isEqualTo("rebuilt");
+    }
+}
@@ -0,0 +1,119 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.common.CreditStatus;
+import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.MarketPlaceListing;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.model.WalletTransaction;
+import com.carbonx.marketcarbon.repository.CarbonCreditRepository;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import com.carbonx.marketcarbon.repository.WalletRepository;
+import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
+import com.carbonx.marketcarbon.service.ai.ChatContextCache;
+import com.carbonx.marketcarbon.service.expiry.CreditExpirySweeper;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * CreditExpirySweeper: chunk credit quá hạn hủy niêm yết, trả số lượng, trừ ví; dòng đã xử lý (node khác) bị bỏ qua.
+ */
+@ExtendWith(MockitoExtension.class)
+class CreditExpirySweeperTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2025, 6, 1);
+
+    @Mock private CarbonCreditRepository creditRepository;
+    @Mock private MarketplaceListingRepository listingRepository;
+    @Mock private WalletRepository walletRepository;
+    @Mock private WalletTransactionRepository walletTransactionRepository;
+    @Mock private WalletTransferEngine walletTransferEngine;
+    @Mock private MatchingEngine matchingEngine;
+    @Mock private ChatContextCache chatContextCache;
+    @InjectMocks private CreditExpirySweeper sweeper;
+
+    private record CompanyWallet(Long getCompanyId, Long getWalletId) implements WalletRepository.CompanyWalletId {}
+
+    @Test
+    @DisplayName("Credit quá hạn: listing CANCELLED, phần niêm yết trả về credit, ví trừ toàn bộ số còn lại")
+    @SuppressWarnings("unchecked")
+    void expiresCreditsWithListingsAndWallet() {
+        Company company = Company.builder().id(3L).build();
+        CarbonCredit listed = CarbonCredit.builder().id(10L).company(company).status(CreditStatus.LISTED)
+                .expiryDate(TODAY.minusDays(1)).carbonCredit(new BigDecimal("4")).listedAmount(new BigDecimal("6"))
+                .amount(new BigDecimal("10")).build();
+        // Node khác đã xử lý trước khi chunk này lấy được khóa
+        CarbonCredit alreadyExpired = CarbonCredit.builder().id(11L).company(company).status(CreditStatus.EXPIRED)
+                .expiryDate(TODAY.minusDays(1)).amount(new BigDecimal("5")).build();
+        MarketPlaceListing listing = MarketPlaceListing.builder().id(100L).carbonCredit(listed)
+                .quantity(new BigDecimal("6")).status(ListingStatus.AVAILABLE).build();
+        Wallet wallet = Wallet.builder().id(50L).carbonCreditBalance(new BigDecimal("15")).build();
+
+        when(creditRepository.findAllByIdInForUpdate(anyCollection())).thenReturn(List.of(listed, alreadyExpired));
+        when(listingRepository.findByCreditIdInAndStatusForUpdate(anyCollection(), eq(ListingStatus.AVAILABLE)))
+                .thenReturn(List.of(listing));
+        when(walletRepository.findWalletIdsByCompanyIds(anyCollection())).thenReturn(List.of(new CompanyWallet(3L, 50L)));
+        when(walletTransferEngine.lockInOrder(anyCollection())).thenReturn(Map.of(50L, wallet));
+
+        CreditExpirySweeper.ChunkResult result = sweeper.expireCreditChunk(List.of(10L, 11L), TODAY);
+
+        assertThat(result).isEqualTo(new CreditExpirySweeper.ChunkResult(1, 1, 1));
+        assertThat(listing.getStatus()).isEqualTo(ListingStatus.CANCELLED);
+        assertThat(listed.getStatus()).isEqualTo(CreditStatus.EXPIRED);
+        assertThat(listed.getListedAmount()).isEqualByComparingTo("0");
+        assertThat(listed.getCarbonCredit()).isEqualByComparingTo("10");
+        assertThat(wallet.getCarbonCreditBalance()).isEqualByComparingTo("5");
+        verify(matchingEngine).refreshListingAfterCommit(100L);
+
+        ArgumentCaptor<List<WalletTransaction>> captor = ArgumentCaptor.forClass(List.class);
+        verify(walletTransactionRepository).insertBatch(captor.capture());
+        assertThat(captor.getValue()).singleElement().satisfies(tx -> {
+            assertThat(tx.getTransactionType()).isEqualTo(WalletTransactionType.EXPIRE_CREDIT);
+            assertThat(tx.getAmount()).isEqualByComparingTo("10");
+            assertThat(tx.getBalanceAfter()).isEqualByComparingTo("5");
+        });
+    }
+
+    @Test
+    @DisplayName("Listing quá hạn: EXPIRED, số lượng còn lại trả về credit, không đụng tới ví")
+    void expiresListingsAndRestoresCredit() {
+        CarbonCredit credit = CarbonCredit.builder().id(10L).status(CreditStatus.LISTED)
+                .expiryDate(TODAY.plusYears(1)).carbonCredit(BigDecimal.ZERO).listedAmount(new BigDecimal("3"))
+                .amount(new BigDecimal("3")).build();
+        MarketPlaceListing listing = MarketPlaceListing.builder().id(100L).carbonCredit(credit)
+                .quantity(new BigDecimal("3")).status(ListingStatus.AVAILABLE).expiresAt(TODAY.minusDays(2)).build();
+        when(listingRepository.findByIdInAndStatusForUpdate(anyCollection(), eq(ListingStatus.AVAILABLE)))
+                .thenReturn(List.of(listing));
+        when(creditRepository.findAllByIdInForUpdate(anyCollection())).thenReturn(List.of(credit));
+
+        CreditExpirySweeper.ChunkResult result = sweeper.expireListingChunk(List.of(100L), TODAY);
+
+        assertThat(result.listingsClosed()).isEqualTo(1);
+        assertThat(listing.getStatus()).isEqualTo(ListingStatus.EXPIRED);
+        assertThat(credit.getStatus()).isEqualTo(CreditStatus.AVAILABLE);
+        assertThat(credit.getCarbonCredit()).isEqualByComparingTo("3");
+        verify(walletTransferEngine, never()).lockInOrder(any());
+    }
+}
@@ -1,7 +1,8 @@
 package com.carbonx.marketcarbon;
 
 import com.carbonx.marketcarbon.certificate.CertificateData;
-import com.carbonx.marketcarbon.certificate.CertificatePdfService;
+import com.carbonx.marketcarbon.certificate.CertificateJobService;
+import com.carbonx.marketcarbon.common.CertificateJobType;
 import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.EmissionStatus;
 import com.carbonx.marketcarbon.common.WalletTransactionType;
@@ -10,10 +11,8 @@ import com.carbonx.marketcarbon.exception.AppException;
 import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
-import com.carbonx.marketcarbon.service.EmailService;
 import com.carbonx.marketcarbon.service.SseService;
-import com.carbonx.marketcarbon.service.StorageService;
-import com.carbonx.marketcarbon.service.FileStorageService; // SỬA: Import FileStorageService
+import com.carbonx.marketcarbon.service.credit.SerialBlockAllocator;
 import com.carbonx.marketcarbon.service.credit.SerialNumberService;
 import com.carbonx.marketcarbon.service.credit.formula.CreditComputationResult;
 import com.carbonx.marketcarbon.service.credit.formula.CreditFormula;
@@ -57,17 +56,14 @@ class CreditIssuanceServiceImplTest {
     @Mock private CompanyRepository companyRepository;
     @Mock private ProjectRepository projectRepository;
     @Mock private CreditCertificateRepository certificateRepo;
-    @Mock private CertificatePdfService certificatePdfService;
-    @Mock private EmailService emailService;
+    @Mock private CertificateJobService certificateJobService;
     @Mock private CreditFormula creditFormula;
     @Mock private SerialNumberService serialSvc;
+    @Mock private SerialBlockAllocator serialBlockAllocator;
     @Mock private WalletRepository walletRepository;
     @Mock private WalletTransactionRepository walletTransactionRepository;
     @Mock private SseService sseService;
 
-    // SỬA: Mock FileStorageService
-    @Mock private FileStorageService fileStorageService;
-
     @Mock private SecurityContext securityContext;
     @Mock private Authentication authentication;
 
@@ -109,8 +105,6 @@ class CreditIssuanceServiceImplTest {
         CreditComputationResult formulaResult = new CreditComputationResult(new BigDecimal("100.000"), CREDIT_COUNT, BigDecimal.ZERO);
         SerialNumberService.SerialRange serialRange = new SerialNumberService.SerialRange(1L, 100L);
         CreditCertificate savedCert = CreditCertificate.builder().id(1L).certificateCode("CERT-001").build();
-        // SỬA: StoredObject đến từ StorageService (interface cha của FileStorageService)
-        StorageService.StoredObject storedPdf = new StorageService.StoredObject("key", "etag", "http://pdf.url");
 
         // Mock các lệnh find
         when(reportRepo.findById(1L)).thenReturn(Optional.of(adminApprovedReport));
@@ -119,10 +113,8 @@ class CreditIssuanceServiceImplTest {
         when(projectRepository.findById(project.getId())).thenReturn(Optional.of(project));
         when(creditFormula.compute(any(), any())).thenReturn(formulaResult);
         when(serialSvc.allocate(any(), any(), anyInt(), eq(CREDIT_COUNT))).thenReturn(serialRange);
-        when(serialSvc.buildCode(anyInt(), anyString(), anyString(), anyLong())).thenReturn("CODE-000001");
         when(walletRepository.findByCompany(company)).thenReturn(Optional.of(wallet));
         when(certificateRepo.save(any(CreditCertificate.class))).thenReturn(savedCert);
-        when(certificatePdfService.generateAndUploadPdf(any(CertificateData.class))).thenReturn(storedPdf);
 
         // SỬA LỖI NPE: Mock `save` trả về đối tượng đã được build (có issuedAt)
         when(batchRepo.save(any(CreditBatch.class))).thenAnswer(inv -> {
@@ -131,12 +123,7 @@ class CreditIssuanceServiceImplTest {
             return batchToSave;
         });
 
-        // SỬA LỖI NETWORK: Mock `fileStorageService.getObject()`
-        byte[] fakePdfBytes = "fake-pdf-content".getBytes();
-        when(fileStorageService.getObject(eq(storedPdf.key()))).thenReturn(fakePdfBytes);
-
         // Mock các service void
-        doNothing().when(emailService).sendEmailWithAttachment(anyString(), anyString(), anyString(), any(), anyString());
         doNothing().when(sseService).sendNotificationToUser(anyLong(), anyString());
 
         // Act
@@ -151,15 +138,17 @@ class CreditIssuanceServiceImplTest {
         // 2. Verify CreditBatch (đã được gọi)
         verify(batchRepo, times(2)).save(any(CreditBatch.class)); // 1 lần tạo, 1 lần cập nhật cert
 
-        // 3. Verify CarbonCredits (100 cái)
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<List<CarbonCredit>> creditsCaptor = ArgumentCaptor.forClass(List.class);
-        verify(creditRepo, times(2)).saveAll(creditsCaptor.capture()); // 1 lần ISSUED, 1 lần AVAILABLE
-        List<CarbonCredit> savedCredits = creditsCaptor.getValue(); // Lấy lần gọi cuối (AVAILABLE)
-        assertThat(savedCredits).hasSize(CREDIT_COUNT);
-        assertThat(savedCredits.get(0).getStatus()).isEqualTo(CreditStatus.AVAILABLE);
-        assertThat(savedCredits.get(0).getAmount()).isEqualByComparingTo(BigDecimal.ONE);
-        assertThat(savedCredits.get(0).getCarbonCredit()).isEqualByComparingTo(BigDecimal.ONE); // Available = 1
+        // 3. Verify CarbonCredit: 1 lô duy nhất chứa 100 tín chỉ, ghi 1 lần ở trạng thái AVAILABLE
+        ArgumentCaptor<CarbonCredit> lotCaptor = ArgumentCaptor.forClass(CarbonCredit.class);
+        verify(creditRepo).save(lotCaptor.capture());
+        verify(creditRepo, never()).saveAll(any());
+        CarbonCredit lot = lotCaptor.getValue();
+        assertThat(lot.getStatus()).isEqualTo(CreditStatus.AVAILABLE);
+        assertThat(lot.getAmount()).isEqualByComparingTo(new BigDecimal(CREDIT_COUNT));
+        assertThat(lot.getCarbonCredit()).isEqualByComparingTo(new BigDecimal(CREDIT_COUNT)); // Available = 100
+        assertThat(lot.getSerialFrom()).isEqualTo(1L);
+        assertThat(lot.getSerialTo()).isEqualTo(100L);
+        assertThat(lot.getSerialCount()).isEqualTo(CREDIT_COUNT);
 
         // 4. Verify Wallet update
         ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
@@ -169,18 +158,15 @@ class CreditIssuanceServiceImplTest {
         // 5. Verify WalletTransaction
         verify(walletTransactionRepository).save(any(WalletTransaction.class));
 
-        // 6. Verify Certificate
-        verify(certificatePdfService).generateAndUploadPdf(any(CertificateData.class));
-        verify(fileStorageService).getObject("key"); // Verify đã gọi mock storage
-
-        // 7. Verify Email (kiểm tra byte[] đã được mock)
-        verify(emailService).sendEmailWithAttachment(
-                eq(companyUser.getEmail()),
-                anyString(),
-                anyString(),
-                eq(fakePdfBytes), // Đảm bảo đúng byte[]
-                anyString()
-        );
+        // 6. Verify Certificate: PDF + email được đưa vào hàng đợi, không render/gửi trong transaction cấp phát
+        ArgumentCaptor<CertificateData> dataCaptor = ArgumentCaptor.forClass(CertificateData.class);
+        verify(certificateJobService).enqueue(eq(savedCert), dataCaptor.capture(),
+                eq(CertificateJobType.ISSUANCE), eq(companyUser.getEmail()));
+        assertThat(dataCaptor.getValue().getCreditsCount()).isEqualTo(CREDIT_COUNT);
+        assertThat(dataCaptor.getValue().getSerialFrom()).isEqualTo("000001");
+
+        // 7. Verify response chưa có URL chứng chỉ (job cập nhật sau)
+        assertThat(response.getCertificateUrl()).isNull();
 
         // 8. Verify SSE
         verify(sseService).sendNotificationToUser(eq(companyUser.getId()), anyString());
@@ -293,37 +279,43 @@ class CreditIssuanceServiceImplTest {
                 .batch(CreditBatch.builder().id(1L).expiresAt(LocalDate.now().plusYears(1)).build())
                 .name("Source Credit").tCo2e(BigDecimal.ONE)
                 .vintageYear(2024)
+                .serialFrom(501L).serialTo(600L) // lô bán giữ 100 serial
                 .build();
 
         BigDecimal quantityToBuy = new BigDecimal("10");
         String issuer = "system@test.com";
 
-        // Mock SerialNumberService
-        when(serialSvc.allocate(any(), any(), anyInt(), eq(1)))
-                .thenReturn(new SerialNumberService.SerialRange(1L, 1L)); // Giả lập cấp 1 serial mỗi lần
-        when(serialSvc.buildCode(anyInt(), anyString(), anyString(), anyLong()))
-                .thenReturn("NEW-CODE-000001"); // Giả sử mã mới
+        // Mock SerialBlockAllocator: cấp cả dải 10 serial trong 1 lần
+        SerialNumberService.SerialRange range = new SerialNumberService.SerialRange(1L, 10L);
+        when(serialBlockAllocator.allocate(any(), any(), anyInt(), eq(10))).thenReturn(range);
+        when(serialSvc.buildRangeCode(anyInt(), anyString(), anyString(), eq(range)))
+                .thenReturn("NEW-CODE-000001_000010"); // Giả sử mã mới
+        when(creditRepo.save(any(CarbonCredit.class))).thenAnswer(inv -> inv.getArgument(0));
 
         // Act
-        creditIssuanceService.issueTradeCredit(sourceCredit, buyerCompany, quantityToBuy, BigDecimal.TEN, issuer);
+        CarbonCredit lot = creditIssuanceService.issueTradeCredit(sourceCredit, buyerCompany, quantityToBuy, BigDecimal.TEN, issuer);
 
         // Assert
-        // Verify 10 credits mới được tạo
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<List<CarbonCredit>> captor = ArgumentCaptor.forClass(List.class);
-        verify(creditRepo).saveAll(captor.capture());
-
-        List<CarbonCredit> newCredits = captor.getValue();
-        assertThat(newCredits).hasSize(10);
-
-        // Kiểm tra chi tiết credit đầu tiên
-        CarbonCredit firstNewCredit = newCredits.get(0);
-        assertThat(firstNewCredit.getCompany()).isEqualTo(buyerCompany);
-        assertThat(firstNewCredit.getSourceCredit()).isEqualTo(sourceCredit);
-        assertThat(firstNewCredit.getStatus()).isEqualTo(CreditStatus.TRADED);
-        assertThat(firstNewCredit.getAmount()).isEqualByComparingTo(BigDecimal.ONE); // 1 credit
-        assertThat(firstNewCredit.getCarbonCredit()).isEqualByComparingTo(BigDecimal.ONE); // 1 available
-        assertThat(firstNewCredit.getCreditCode()).isEqualTo("NEW-CODE-000001");
-        assertThat(firstNewCredit.getVintageYear()).isEqualTo(2024);
+        // Verify 1 lô mới chứa 10 tín chỉ được tạo
+        verify(creditRepo).save(any(CarbonCredit.class));
+        verify(serialBlockAllocator, times(1)).allocate(any(), any(), anyInt(), anyInt());
+        verify(serialSvc, never()).allocate(any(), any(), anyInt(), anyInt());
+
+        assertThat(lot.getCompany()).isEqualTo(buyerCompany);
+        assertThat(lot.getSourceCredit()).isEqualTo(sourceCredit);
+        assertThat(lot.getStatus()).isEqualTo(CreditStatus.AVAILABLE);
+        assertThat(lot.getAmount()).isEqualByComparingTo(quantityToBuy); // 10 credits
+        assertThat(lot.getCarbonCredit()).isEqualByComparingTo(quantityToBuy); // 10 available
+        assertThat(lot.getCreditCode()).isEqualTo("NEW-CODE-000001_000010");
+        assertThat(lot.getSerialCount()).isEqualTo(10L);
+        // Người mua nhận đúng 10 serial đầu của lô bán, lô bán giữ phần còn lại
+        assertThat(lot.getSerialFrom()).isEqualTo(501L);
+        assertThat(lot.getSerialTo()).isEqualTo(510L);
+        assertThat(sourceCredit.getSerialFrom()).isEqualTo(511L);
+        assertThat(sourceCredit.getSerialTo()).isEqualTo(600L);
+        assertThat(lot.getVintageYear()).isEqualTo(2024);
+        // Nguồn là lô gốc: lineage trỏ về nguồn, cách 1 cấp
+        assertThat(lot.getOriginCreditId()).isEqualTo(101L);
+        assertThat(lot.getLineageDepth()).isEqualTo(1);
     }
 }
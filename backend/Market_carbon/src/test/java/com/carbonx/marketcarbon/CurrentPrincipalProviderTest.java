@@ -0,0 +1,157 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.User;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.repository.UserRepository;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
+import com.carbonx.marketcarbon.service.principal.PrincipalChangeListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * CurrentPrincipalProvider: cache id theo email có TTL, bị xóa khi User/Company/Wallet đổi (PrincipalChangeListener).
+ */
+class CurrentPrincipalProviderTest {
+
+    private static final String EMAIL = "seller@carbonx.vn";
+
+    private UserRepository userRepository;
+    private CurrentPrincipalProvider provider;
+    private PrincipalChangeListener listener;
+    private User user;
+
+    private static UserRepository.PrincipalIds row(Long userId, Long companyId, Long walletId) {
+        return new UserRepository.PrincipalIds() {
+            @Override
+            public Long getUserId() {
+                return userId;
+            }
+
+            @Override
+            public Long getCompanyId() {
+                return companyId;
+            }
+
+            @Override
+            public Long getWalletId() {
+                return walletId;
+            }
+        };
+    }
+
+    @BeforeEach
+    void setUp() {
+        userRepository = mock(UserRepository.class);
+        provider = new CurrentPrincipalProvider(userRepository);
+
+        ApplicationContext context = mock(ApplicationContext.class);
+        when(context.getBean(CurrentPrincipalProvider.class)).thenReturn(provider);
+        listener = new PrincipalChangeListener();
+        ReflectionTestUtils.setField(listener, "applicationContext", context);
+
+        user = User.builder().id(1L).email(EMAIL).build();
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                EMAIL, null, List.of(new SimpleGrantedAuthority("ROLE_COMPANY"))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    @DisplayName("Trong TTL: resolve nhiều lần chỉ 1 câu SELECT")
+    void servesFromCacheWithinTtl() {
+        when(userRepository.findPrincipalIdsByEmail(EMAIL)).thenReturn(List.of(row(1L, 10L, 100L)));
+
+        CurrentPrincipal first = provider.current();
+        CurrentPrincipal second = provider.current();
+
+        assertThat(first.companyId()).isEqualTo(10L);
+        assertThat(second.walletId()).isEqualTo(100L);
+        assertThat(second.hasRole("COMPANY")).isTrue();
+        verify(userRepository, times(1)).findPrincipalIdsByEmail(EMAIL);
+    }
+
+    @Test
+    @DisplayName("Hết TTL: đọc lại DB và thấy id mới")
+    void reloadsAfterTtlExpires() {
+        ReflectionTestUtils.setField(provider, "ttlSeconds", -1L);
+        when(userRepository.findPrincipalIdsByEmail(EMAIL))
+                .thenReturn(List.of(row(1L, null, null)))
+                .thenReturn(List.of(row(1L, 10L, 100L)));
+
+        assertThat(provider.current().companyId()).isNull();
+        assertThat(provider.current().companyId()).isEqualTo(10L);
+        verify(userRepository, times(2)).findPrincipalIdsByEmail(EMAIL);
+    }
+
+    @Test
+    @DisplayName("Công ty được tạo qua KYC: listener xóa cache, lần sau thấy companyId")
+    void companyPersistEvictsCachedIds() {
+        when(userRepository.findPrincipalIdsByEmail(EMAIL))
+                .thenReturn(List.of(row(1L, null, null)))
+                .thenReturn(List.of(row(1L, 10L, null)));
+        assertThat(provider.current().companyId()).isNull();
+
+        listener.onCreatedOrRemoved(Company.builder().user(user).build());
+
+        assertThat(provider.current().companyId()).isEqualTo(10L);
+        verify(userRepository, times(2)).findPrincipalIdsByEmail(EMAIL);
+    }
+
+    @Test
+    @DisplayName("Ví cập nhật số dư không xóa cache; ví mới tạo thì xóa")
+    void walletUpdateKeepsCacheButWalletCreateEvicts() {
+        when(userRepository.findPrincipalIdsByEmail(EMAIL))
+                .thenReturn(List.of(row(1L, 10L, null)))
+                .thenReturn(List.of(row(1L, 10L, 100L)));
+        provider.current();
+
+        Wallet wallet = Wallet.builder().user(user).build();
+        listener.onUpdated(wallet);
+        assertThat(provider.current().walletId()).isNull();
+
+        listener.onCreatedOrRemoved(wallet);
+        assertThat(provider.current().walletId()).isEqualTo(100L);
+        verify(userRepository, times(2)).findPrincipalIdsByEmail(EMAIL);
+    }
+
+    @Test
+    @DisplayName("Đổi trong transaction: id cũ đọc trước khi commit bị xóa lại sau khi transaction kết thúc")
+    void evictsAgainAfterTransactionCompletes() {
+        TransactionSynchronizationManager.initSynchronization();
+        when(userRepository.findPrincipalIdsByEmail(EMAIL))
+                .thenReturn(List.of(row(1L, null, null)))
+                .thenReturn(List.of(row(1L, 10L, null)));
+
+        listener.onUpdated(user);
+        // Request khác đọc trước khi commit: vẫn thấy dữ liệu cũ và cache lại
+        assertThat(provider.current().companyId()).isNull();
+
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+
+        assertThat(provider.current().companyId()).isEqualTo(10L);
+    }
+}
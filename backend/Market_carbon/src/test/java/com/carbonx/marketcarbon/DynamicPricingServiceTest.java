@@ -0,0 +1,113 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.model.PricingSnapshot;
+import com.carbonx.marketcarbon.repository.PricingSnapshotRepository;
+import com.carbonx.marketcarbon.service.DynamicPricingService;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * DynamicPricingService: version chỉ tiến lên, đợt chi trả lấy đúng version đã chỉ định, không ghi version trùng giá.
+ */
+@ExtendWith(MockitoExtension.class)
+class DynamicPricingServiceTest {
+
+    @Mock private PricingSnapshotRepository snapshotRepository;
+    @Mock private StringRedisTemplate redis;
+    @InjectMocks private DynamicPricingService pricingService;
+
+    private static PricingSnapshot row(long id, String price) {
+        return row(id, price, "2500");
+    }
+
+    private static PricingSnapshot row(long id, String price, String kwhFactor) {
+        return new PricingSnapshot(id, new BigDecimal(price), new BigDecimal(kwhFactor), null, LocalDateTime.now());
+    }
+
+    private static DefaultMessage message(long version) {
+        return new DefaultMessage("carbonx:pricing".getBytes(StandardCharsets.UTF_8),
+                String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Thông báo version mới thì nạp lại; version cũ đến trễ không kéo giá về")
+    void reloadsOnlyForwards() {
+        when(snapshotRepository.findTopByOrderByIdDesc()).thenReturn(Optional.of(row(5, "120.00")));
+        pricingService.onMessage(message(5), null);
+        assertThat(pricingService.current().version()).isEqualTo(5);
+        assertThat(pricingService.getMarketPricePerCredit()).isEqualByComparingTo("120");
+
+        // Refresh đọc phải replica trễ trả về version cũ hơn
+        when(snapshotRepository.findTopByOrderByIdDesc()).thenReturn(Optional.of(row(4, "90.00")));
+        pricingService.refresh();
+        pricingService.onMessage(message(3), null);
+        assertThat(pricingService.current().version()).isEqualTo(5);
+        assertThat(pricingService.getMarketPricePerCredit()).isEqualByComparingTo("120");
+    }
+
+    @Test
+    @DisplayName("Chỉ định version: lấy từ cache/DB, version không tồn tại thì báo lỗi")
+    void pinsRequestedVersion() {
+        when(snapshotRepository.findById(2L)).thenReturn(Optional.of(row(2, "80.00")));
+        when(snapshotRepository.findById(9L)).thenReturn(Optional.empty());
+
+        assertThat(pricingService.snapshot(2L).marketPricePerCredit()).isEqualByComparingTo("80");
+        assertThat(pricingService.snapshot(2L).version()).isEqualTo(2);
+        verify(snapshotRepository).findById(2L);
+        assertThatThrownBy(() -> pricingService.snapshot(9L)).isInstanceOf(AppException.class);
+    }
+
+    @Test
+    @DisplayName("Giá không đổi so với version mới nhất: không ghi dòng mới, không báo node khác")
+    void skipsUnchangedPublish() {
+        when(snapshotRepository.findTopByOrderByIdDesc()).thenReturn(Optional.of(row(7, "100.00")));
+
+        DynamicPricingService.Snapshot result = pricingService.publish(new BigDecimal("100"), new BigDecimal("2500"), "cron:x");
+
+        assertThat(result.version()).isEqualTo(7);
+        verify(snapshotRepository, never()).insertIgnore(any(), any(), any());
+        verify(redis, never()).convertAndSend(anyString(), anyString());
+    }
+
+    @Test
+    @DisplayName("Đổi giá: hệ số kWh lấy từ version mới nhất trong DB; version bị node khác ghi trước thì áp lại lên version mới")
+    void updateKeepsOtherValueFromLatestVersion() {
+        when(snapshotRepository.findTopByOrderByIdDesc()).thenReturn(Optional.of(row(5, "120.00")));
+        pricingService.refresh();
+
+        // Node khác đã đổi hệ số (v6) mà node này lỡ thông báo; trong lúc ghi lại có node khác ghi v7 trước
+        when(snapshotRepository.findTopByOrderByIdDesc()).thenReturn(
+                Optional.of(row(6, "120.00", "3000")),
+                Optional.of(row(7, "120.00", "3500")),
+                Optional.of(row(7, "120.00", "3500")),
+                Optional.of(row(8, "130.00", "3500")));
+        when(snapshotRepository.insertIgnore(new BigDecimal("130"), new BigDecimal("3000"), "after:v6")).thenReturn(0);
+        when(snapshotRepository.insertIgnore(new BigDecimal("130"), new BigDecimal("3500"), "after:v7")).thenReturn(1);
+
+        pricingService.updateMarketPrice(new BigDecimal("130"));
+
+        assertThat(pricingService.current().version()).isEqualTo(8);
+        assertThat(pricingService.getKwhPerCreditFactor()).isEqualByComparingTo("3500");
+        verify(redis).convertAndSend("carbonx:pricing", "8");
+    }
+}
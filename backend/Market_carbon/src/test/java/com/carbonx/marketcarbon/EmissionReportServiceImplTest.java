@@ -9,7 +9,12 @@ import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.AiScoringService;
 import com.carbonx.marketcarbon.service.FileStorageService;
+import com.carbonx.marketcarbon.service.analysis.ReportAnalysisService;
 import com.carbonx.marketcarbon.service.impl.EmissionReportServiceImpl;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -17,19 +22,26 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -45,9 +57,15 @@ class EmissionReportServiceImplTest {
     @Mock private EmissionReportDetailRepository detailRepository;
     @Mock private UserRepository userRepository;
     @Mock private FileStorageService storage;
+    @Mock private ReportAnalysisService reportAnalysisService;
+    @Mock private PlateFingerprintIndex plateFingerprintIndex;
+    @Mock private OwnerContributionIndex ownerContributionIndex;
+    @Mock private CurrentPrincipalProvider principalProvider;
     @Mock private AiScoringService aiScoringService;
     @Mock private CvaRepository cvaRepository;
     @Mock private ReportNotificationService notificationService;
+    // Chạy upload ngay trên luồng test (mock storage không đọc pipe)
+    @Spy private TaskExecutor csvUploadExecutor = new SyncTaskExecutor();
 
     @Mock private SecurityContext securityContext;
     @Mock private Authentication authentication;
@@ -83,6 +101,12 @@ class EmissionReportServiceImplTest {
         SecurityContextHolder.setContext(securityContext);
     }
 
+    private void mockCompanyPrincipal() {
+        when(principalProvider.current()).thenReturn(new CurrentPrincipal(
+                companyUser.getId(), companyUser.getEmail(), company.getId(), null, Set.of("COMPANY")));
+        when(companyRepository.getReferenceById(company.getId())).thenReturn(company);
+    }
+
     private void mockSecurityContext(User user) {
         when(authentication.getName()).thenReturn(user.getEmail());
         lenient().when(userRepository.findByEmail(user.getEmail())).thenReturn(user);
@@ -92,10 +116,9 @@ class EmissionReportServiceImplTest {
     @DisplayName("[Luồng 2 - Upload] Upload CSV thành công")
     void uploadCsvAsReport_Success() {
         // Arrange
-        mockSecurityContext(companyUser);
-        when(companyRepository.findByUserId(companyUser.getId())).thenReturn(Optional.of(company));
+        mockCompanyPrincipal();
         when(projectRepository.findById(project.getId())).thenReturn(Optional.of(project));
-        when(storage.putObject(anyString(), anyString(), any())).thenReturn(new FileStorageService.PutResult("key", "url"));
+        when(storage.putObject(anyString(), any(), anyLong(), any())).thenReturn(new FileStorageService.PutResult("key", "url"));
         when(reportRepository.findBySellerIdAndProjectIdAndPeriod(company.getId(), project.getId(), "2025-10")).thenReturn(Optional.empty());
 
         // Mock save để trả về report có ID (cho details)
@@ -118,7 +141,8 @@ class EmissionReportServiceImplTest {
 
         // Assert
         verify(reportRepository).save(reportCaptor.capture());
-        verify(detailRepository).saveAll(detailsCaptor.capture());
+        verify(detailRepository).insertBatch(detailsCaptor.capture());
+        verify(ownerContributionIndex).indexReport(any(EmissionReport.class), any());
 
         EmissionReport savedReport = reportCaptor.getValue();
         List<EmissionReportDetail> savedDetails = detailsCaptor.getValue();
@@ -140,10 +164,9 @@ class EmissionReportServiceImplTest {
     @DisplayName("[Luồng 2 - Upload] Thất bại khi thiếu cột total_energy")
     void uploadCsvAsReport_Fail_MissingEnergyColumn() {
         // Arrange
-        mockSecurityContext(companyUser);
-        when(companyRepository.findByUserId(companyUser.getId())).thenReturn(Optional.of(company));
+        mockCompanyPrincipal();
         when(projectRepository.findById(project.getId())).thenReturn(Optional.of(project));
-        when(storage.putObject(anyString(), anyString(), any())).thenReturn(new FileStorageService.PutResult("key", "url"));
+        when(storage.putObject(anyString(), any(), anyLong(), any())).thenReturn(new FileStorageService.PutResult("key", "url"));
 
         String csvData = "period,license_plate\n2025-10,51A-12345";
         MockMultipartFile file = new MockMultipartFile("file", "report.csv", "text/csv", csvData.getBytes());
@@ -154,6 +177,53 @@ class EmissionReportServiceImplTest {
                 .hasFieldOrPropertyWithValue("errorCode", ErrorCode.CSV_MISSING_TOTAL_ENERGY_OR_CHARGING);
     }
 
+    @Test
+    @DisplayName("[Luồng 2 - Upload] Số sai định dạng: báo lỗi số và xóa object đã upload")
+    void uploadCsvAsReport_Fail_InvalidNumber_DeletesUpload() {
+        mockCompanyPrincipal();
+        when(projectRepository.findById(project.getId())).thenReturn(Optional.of(project));
+        when(storage.putObject(anyString(), any(), anyLong(), any())).thenReturn(new FileStorageService.PutResult("key", "url"));
+        when(reportRepository.findBySellerIdAndProjectIdAndPeriod(company.getId(), project.getId(), "2025-10")).thenReturn(Optional.empty());
+        when(reportRepository.save(any(EmissionReport.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        String csvData = "period,total_energy,license_plate\n2025-10,abc,51A-12345";
+        MockMultipartFile file = new MockMultipartFile("file", "report.csv", "text/csv", csvData.getBytes());
+
+        assertThatThrownBy(() -> emissionReportService.uploadCsvAsReport(file, project.getId()))
+                .isInstanceOf(AppException.class)
+                .hasFieldOrPropertyWithValue("errorCode", ErrorCode.CSV_INVALID_NUMBER_FORMAT);
+        verify(storage).deleteObject("key");
+    }
+
+    @Test
+    @DisplayName("[Luồng 2 - Upload] Pool upload hết luồng: chép ra file tạm rồi upload đủ byte")
+    void uploadCsvAsReport_ExecutorSaturated_SpoolsToTempFile() {
+        mockCompanyPrincipal();
+        when(projectRepository.findById(project.getId())).thenReturn(Optional.of(project));
+        doThrow(new TaskRejectedException("full")).when(csvUploadExecutor).execute(any(Runnable.class));
+        String csvData = "period,total_energy,license_plate\n2025-10,150.5,51A-12345";
+        byte[] uploaded = new byte[csvData.length()];
+        when(storage.putObject(anyString(), any(), anyLong(), any())).thenAnswer(inv -> {
+            InputStream in = inv.getArgument(3);
+            assertThat(in.readNBytes(uploaded, 0, uploaded.length)).isEqualTo(uploaded.length);
+            assertThat(in.read()).isEqualTo(-1);
+            return new FileStorageService.PutResult("key", "url");
+        });
+        when(reportRepository.findBySellerIdAndProjectIdAndPeriod(company.getId(), project.getId(), "2025-10")).thenReturn(Optional.empty());
+        when(reportRepository.save(any(EmissionReport.class))).thenAnswer(inv -> {
+            EmissionReport r = inv.getArgument(0);
+            r.setId(1L);
+            return r;
+        });
+        MockMultipartFile file = new MockMultipartFile("file", "report.csv", "text/csv", csvData.getBytes());
+
+        EmissionReportResponse response = emissionReportService.uploadCsvAsReport(file, project.getId());
+
+        assertThat(response).isNotNull();
+        assertThat(new String(uploaded)).isEqualTo(csvData);
+        verify(storage, never()).deleteObject(anyString());
+    }
+
     @Test
     @DisplayName("[Luồng 2 - Verify] CVA duyệt báo cáo thành công (verifyReport)")
     void verifyReport_Success_Approve() {
@@ -0,0 +1,97 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import com.carbonx.marketcarbon.service.market.ListingSnapshotCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * ListingSnapshotCache: nạp 1 lần, không đổi thì cùng JSON/ETag, listing đổi thì cập nhật dòng và báo node khác.
+ */
+@ExtendWith(MockitoExtension.class)
+class ListingSnapshotCacheTest {
+
+    @Mock private MarketplaceListingRepository listingRepository;
+    @Mock private StringRedisTemplate redis;
+    private ListingSnapshotCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new ListingSnapshotCache(listingRepository, redis, new ObjectMapper().findAndRegisterModules());
+    }
+
+    private static MarketplaceListingResponse listing(long id, String price) {
+        return MarketplaceListingResponse.builder().listingId(id).pricePerCredit(new BigDecimal(price)).build();
+    }
+
+    @Test
+    @DisplayName("Đọc lại không đổi: không hỏi DB, cùng ETag; listing đổi: ETag mới, báo Redis")
+    void servesSnapshotUntilListingChanges() {
+        when(listingRepository.searchOpen(any(), any(), isNull(), eq(Integer.MAX_VALUE)))
+                .thenReturn(List.of(listing(2, "10.00"), listing(1, "12.00")));
+        ListingSnapshotCache.Rendered first = cache.active();
+        ListingSnapshotCache.Rendered second = cache.active();
+
+        assertThat(second).isSameAs(first);
+        assertThat(ListingSnapshotCache.matches("W/" + first.etag(), first.etag())).isTrue();
+        verify(listingRepository, times(1)).searchOpen(any(), any(), any(), anyInt());
+
+        when(listingRepository.findOpenById(eq(3L), any())).thenReturn(Optional.of(listing(3, "9.00")));
+        cache.onListingChanged(3L);
+        ListingSnapshotCache.Rendered changed = cache.active();
+
+        assertThat(changed.etag()).isNotEqualTo(first.etag());
+        assertThat(changed.json().indexOf("\"listingId\":3")).isLessThan(changed.json().indexOf("\"listingId\":2"));
+        verify(redis).convertAndSend(eq("carbonx:listings"), anyString());
+        verify(listingRepository, times(1)).searchOpen(any(), any(), any(), anyInt());
+    }
+
+    @Test
+    @DisplayName("Trang search: cache theo bộ lọc đến khi có listing đổi từ node khác")
+    void searchPagesExpireOnRemoteChange() {
+        when(listingRepository.searchOpen(any(), any(), isNull(), eq(Integer.MAX_VALUE)))
+                .thenReturn(List.of(listing(1, "12.00")));
+        AtomicInteger loads = new AtomicInteger();
+        MarketplaceSearchFilter filter = MarketplaceSearchFilter.builder().projectId(5L).build();
+
+        cache.searchPage(filter, () -> List.of(loads.incrementAndGet()));
+        cache.searchPage(MarketplaceSearchFilter.builder().projectId(5L).build(), () -> List.of(loads.incrementAndGet()));
+        assertThat(loads).hasValue(1);
+
+        when(listingRepository.findOpenById(eq(1L), any())).thenReturn(Optional.empty());
+        cache.onMessage(new DefaultMessage("carbonx:listings".getBytes(StandardCharsets.UTF_8),
+                "other-node|1".getBytes(StandardCharsets.UTF_8)), null);
+        ListingSnapshotCache.Rendered page = cache.searchPage(filter, () -> List.of(loads.incrementAndGet()));
+
+        assertThat(loads).hasValue(2);
+        assertThat(page.json()).isEqualTo("[2]");
+        assertThat(cache.active().json()).isEqualTo("[]");
+        verify(redis, never()).convertAndSend(anyString(), anyString());
+    }
+}
@@ -0,0 +1,174 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.service.market.MarketDataPublisher;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.market.OrderBook;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * MarketDataPublisher: gộp thay đổi trong 1 cửa sổ, seq liên tục theo project, snapshot khớp seq.
+ * Benchmark fan-out qua SimpleBroker: mvn test -Dtest=MarketDataPublisherTest -Dbenchmark=true
+ */
+class MarketDataPublisherTest {
+
+    private static final MatchingEngine.BookKey KEY = new MatchingEngine.BookKey(7L, 2024);
+
+    private static class CapturingChannel implements MessageChannel {
+        final List<Message<?>> sent = new ArrayList<>();
+
+        @Override
+        public boolean send(Message<?> message, long timeout) {
+            sent.add(message);
+            return true;
+        }
+    }
+
+    private static String destination(Message<?> message) {
+        return SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+    }
+
+    @Test
+    @DisplayName("1000 lần đổi cùng listing trong 1 cửa sổ chỉ ra 1 delta + 1 ticker, snapshot cùng seq")
+    void conflatesChangesWithinWindow() {
+        CapturingChannel channel = new CapturingChannel();
+        MarketDataPublisher publisher = new MarketDataPublisher(new SimpMessagingTemplate(channel));
+        OrderBook book = new OrderBook();
+
+        for (int i = 1; i <= 1000; i++) {
+            BigDecimal quantity = BigDecimal.valueOf(i);
+            book.upsert(1L, 99L, new BigDecimal("12.50"), quantity, null);
+            publisher.onBookChanged(KEY, book,
+                    new MarketDataPublisher.ListingState(1L, 2024, new BigDecimal("12.50"), quantity, true));
+        }
+        publisher.flush();
+
+        assertThat(channel.sent).extracting(MarketDataPublisherTest::destination)
+                .containsExactly("/topic/market/7/listings", "/topic/market/7/ticker");
+        MarketDataPublisher.ListingDelta delta = (MarketDataPublisher.ListingDelta) channel.sent.get(0).getPayload();
+        assertThat(delta.seq()).isEqualTo(1);
+        assertThat(delta.listings()).singleElement()
+                .satisfies(l -> assertThat(l.quantity()).isEqualByComparingTo("1000"));
+
+        MarketDataPublisher.Snapshot snapshot = publisher.snapshot(7L);
+        assertThat(snapshot.seq()).isEqualTo(1);
+        assertThat(snapshot.tickers()).singleElement()
+                .satisfies(t -> assertThat(t.bestAsk()).isEqualByComparingTo("12.50"));
+    }
+
+    @Test
+    @DisplayName("Listing đóng bị bỏ khỏi snapshot, seq tăng mỗi cửa sổ có thay đổi, lần khớp cập nhật lastPrice")
+    void sequencesDeltasAcrossWindows() {
+        CapturingChannel channel = new CapturingChannel();
+        MarketDataPublisher publisher = new MarketDataPublisher(new SimpMessagingTemplate(channel));
+        OrderBook book = new OrderBook();
+
+        book.upsert(1L, 99L, BigDecimal.TEN, BigDecimal.ONE, null);
+        publisher.onBookChanged(KEY, book, new MarketDataPublisher.ListingState(1L, 2024, BigDecimal.TEN, BigDecimal.ONE, true));
+        publisher.flush();
+        // Cửa sổ không có thay đổi: không gửi gì, seq giữ nguyên
+        publisher.flush();
+
+        book.remove(1L);
+        publisher.onBookChanged(KEY, book, new MarketDataPublisher.ListingState(1L, 2024, null, BigDecimal.ZERO, false));
+        publisher.onTrade(KEY, BigDecimal.TEN, BigDecimal.ONE);
+        publisher.flush();
+
+        assertThat(channel.sent).hasSize(4);
+        MarketDataPublisher.TickerUpdate last = (MarketDataPublisher.TickerUpdate) channel.sent.get(3).getPayload();
+        assertThat(last.seq()).isEqualTo(2);
+        assertThat(last.tickers()).singleElement().satisfies(t -> {
+            assertThat(t.bestAsk()).isNull();
+            assertThat(t.lastPrice()).isEqualByComparingTo("10");
+        });
+        MarketDataPublisher.Snapshot snapshot = publisher.snapshot(7L);
+        assertThat(snapshot.seq()).isEqualTo(2);
+        assertThat(snapshot.listings()).isEmpty();
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @DisplayName("Benchmark: fan-out ticker qua SimpleBroker tới hàng nghìn subscriber, có/không conflation")
+    void benchmarkSubscriberFanOut() {
+        for (int subscribers : new int[]{1_000, 5_000, 10_000}) {
+            AtomicLong delivered = new AtomicLong();
+            // Outbound đồng bộ, chỉ đếm: đo chi phí của broker (match subscription + dựng message), không tính socket
+            MessageChannel outbound = (message, timeout) -> {
+                delivered.incrementAndGet();
+                return true;
+            };
+            ExecutorSubscribableChannel inbound = new ExecutorSubscribableChannel();
+            ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+            SimpleBrokerMessageHandler broker =
+                    new SimpleBrokerMessageHandler(inbound, outbound, brokerChannel, List.of("/topic"));
+            broker.start();
+            for (int i = 0; i < subscribers; i++) {
+                // Broker chỉ giao cho session đã CONNECT
+                SimpMessageHeaderAccessor connect = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+                connect.setSessionId("s" + i);
+                broker.handleMessage(MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders()));
+                SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+                subscribe.setSessionId("s" + i);
+                subscribe.setSubscriptionId("sub0");
+                // 90% xem 1 project nóng, còn lại rải trên 100 project
+                subscribe.setDestination("/topic/market/" + (i % 10 == 0 ? 100 + i % 100 : 7) + "/ticker");
+                broker.handleMessage(MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders()));
+            }
+
+            CapturingChannel captured = new CapturingChannel();
+            MarketDataPublisher publisher = new MarketDataPublisher(new SimpMessagingTemplate(captured));
+            OrderBook book = new OrderBook();
+            int updates = 2_000;
+            for (int i = 1; i <= updates; i++) {
+                book.upsert((long) (i % 50), 99L, BigDecimal.valueOf(10 + i % 5), BigDecimal.valueOf(i), null);
+                publisher.onBookChanged(KEY, book, new MarketDataPublisher.ListingState(
+                        (long) (i % 50), 2024, BigDecimal.valueOf(10 + i % 5), BigDecimal.valueOf(i), true));
+                // Cửa sổ conflation ~ mỗi 200 thay đổi
+                if (i % 200 == 0) publisher.flush();
+            }
+            List<Message<?>> tickers = captured.sent.stream()
+                    .filter(m -> destination(m).endsWith("/ticker")).toList();
+
+            delivered.set(0);
+            long start = System.nanoTime();
+            for (Message<?> ticker : tickers) {
+                broker.handleMessage(ticker);
+            }
+            long conflatedNs = System.nanoTime() - start;
+            long conflatedDelivered = delivered.get();
+
+            // Không conflation: mỗi thay đổi book là 1 message tới mọi subscriber
+            delivered.set(0);
+            start = System.nanoTime();
+            Message<?> sample = tickers.get(0);
+            for (int i = 0; i < updates; i++) {
+                broker.handleMessage(sample);
+            }
+            long rawNs = System.nanoTime() - start;
+
+            System.out.printf("subscribers=%5d conflated: %d msgs -> %d deliveries in %d ms (%.0f ns/delivery) | "
+                            + "raw: %d msgs -> %d deliveries in %d ms (%.0f ns/delivery)%n",
+                    subscribers, tickers.size(), conflatedDelivered, conflatedNs / 1_000_000,
+                    (double) conflatedNs / Math.max(1, conflatedDelivered),
+                    updates, delivered.get(), rawNs / 1_000_000, (double) rawNs / Math.max(1, delivered.get()));
+            broker.stop();
+            assertThat(conflatedDelivered).isLessThan(delivered.get());
+        }
+    }
+}
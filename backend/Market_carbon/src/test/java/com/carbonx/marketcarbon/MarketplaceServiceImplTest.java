@@ -2,14 +2,20 @@ package com.carbonx.marketcarbon;
 
 import com.carbonx.marketcarbon.common.CreditStatus;
 import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.common.MarketplaceSort;
 import com.carbonx.marketcarbon.dto.request.CreditListingRequest;
 import com.carbonx.marketcarbon.dto.request.CreditListingUpdateRequest;
+import com.carbonx.marketcarbon.dto.request.MarketplaceSearchFilter;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
 import com.carbonx.marketcarbon.dto.response.MarketplaceListingResponse;
 import com.carbonx.marketcarbon.exception.AppException;
 import com.carbonx.marketcarbon.exception.ErrorCode;
 import com.carbonx.marketcarbon.model.*;
 import com.carbonx.marketcarbon.repository.*;
 import com.carbonx.marketcarbon.service.impl.MarketplaceServiceImpl;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipal;
+import com.carbonx.marketcarbon.service.principal.CurrentPrincipalProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -28,12 +34,15 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.*;
 
 /**
@@ -44,9 +53,10 @@ class MarketplaceServiceImplTest {
 
 	@Mock private CarbonCreditRepository carbonCreditRepository;
 	@Mock private CompanyRepository companyRepository;
-	@Mock private UserRepository userRepository;
+	@Mock private CurrentPrincipalProvider principalProvider;
 	@Mock private MarketplaceListingRepository marketplaceListingRepository;
 	@Mock private CreditBatchRepository creditBatchRepository;
+	@Mock private MatchingEngine matchingEngine;
 
 	@Mock private SecurityContext securityContext;
 	@Mock private Authentication authentication;
@@ -93,8 +103,9 @@ class MarketplaceServiceImplTest {
 		lenient().when(securityContext.getAuthentication()).thenReturn(authentication);
 		SecurityContextHolder.setContext(securityContext);
 		lenient().when(authentication.getName()).thenReturn(sellerUser.getEmail());
-		lenient().when(userRepository.findByEmail(sellerUser.getEmail())).thenReturn(sellerUser);
-		lenient().when(companyRepository.findByUserId(sellerUser.getId())).thenReturn(Optional.of(sellerCompany));
+		lenient().when(principalProvider.current()).thenReturn(new CurrentPrincipal(
+				sellerUser.getId(), sellerUser.getEmail(), sellerCompany.getId(), null, Set.of("COMPANY")));
+		lenient().when(companyRepository.getReferenceById(sellerCompany.getId())).thenReturn(sellerCompany);
 	}
 
 	@Test
@@ -102,6 +113,7 @@ class MarketplaceServiceImplTest {
 	void listCreditsForSale_Success_FromBatch() {
 		// Arrange
 		when(creditBatchRepository.findById(1L)).thenReturn(Optional.of(batch));
+		when(carbonCreditRepository.lockOpenLotsInBatch(eq(1L), eq(10L), any())).thenReturn(List.of(credit1, credit2));
 		when(marketplaceListingRepository.findByCompanyIdAndCarbonCredit_Batch_IdAndStatus(anyLong(), anyLong(), any()))
 				.thenReturn(Collections.emptyList());
 
@@ -242,6 +254,7 @@ class MarketplaceServiceImplTest {
 	void listCreditsForSale_Fail_InsufficientInBatch() {
 		// Arrange
 		when(creditBatchRepository.findById(1L)).thenReturn(Optional.of(batch)); // Tổng available là 150
+		when(carbonCreditRepository.lockOpenLotsInBatch(eq(1L), eq(10L), any())).thenReturn(List.of(credit1, credit2));
 
 		CreditListingRequest request = CreditListingRequest.builder()
 				.batchId(1L)
@@ -356,4 +369,38 @@ class MarketplaceServiceImplTest {
 				.isInstanceOf(AppException.class)
 				.hasFieldOrPropertyWithValue("errorCode", ErrorCode.LISTING_IS_NOT_AVAILABLE);
 	}
+
+	@Test
+	@DisplayName("[Luồng 4 - Search] Trang đủ size + 1 dòng trả nextCursor, trang sau seek từ dòng cuối; cursor của sort khác bị từ chối")
+	void searchListings_SeekPagination() {
+		// Cùng giá thì repository trả theo m.id ASC (3 trước 7)
+		MarketplaceListingResponse first = MarketplaceListingResponse.builder()
+				.listingId(3L).pricePerCredit(new BigDecimal("12.50")).build();
+		MarketplaceListingResponse second = MarketplaceListingResponse.builder()
+				.listingId(7L).pricePerCredit(new BigDecimal("12.50")).build();
+		MarketplaceListingResponse extra = MarketplaceListingResponse.builder()
+				.listingId(9L).pricePerCredit(new BigDecimal("13.00")).build();
+		when(marketplaceListingRepository.searchOpen(any(), any(), isNull(), eq(3)))
+				.thenReturn(List.of(first, second, extra));
+
+		MarketplaceSearchFilter filter = MarketplaceSearchFilter.builder().sort(MarketplaceSort.PRICE_ASC).size(2).build();
+		CursorPageResponse<MarketplaceListingResponse> page = marketplaceService.searchListings(filter);
+
+		assertThat(page.getItems()).extracting(MarketplaceListingResponse::getListingId).containsExactly(3L, 7L);
+		assertThat(page.isHasMore()).isTrue();
+
+		when(marketplaceListingRepository.searchOpen(any(), any(), any(), eq(3))).thenReturn(List.of(extra));
+		filter.setCursor(page.getNextCursor());
+		CursorPageResponse<MarketplaceListingResponse> next = marketplaceService.searchListings(filter);
+
+		verify(marketplaceListingRepository).searchOpen(any(), any(),
+				eq(new MarketplaceListingSearchRepository.Seek("12.50", 7L)), eq(3));
+		assertThat(next.isHasMore()).isFalse();
+		assertThat(next.getNextCursor()).isNull();
+
+		filter.setSort(MarketplaceSort.NEWEST);
+		assertThatThrownBy(() -> marketplaceService.searchListings(filter))
+				.isInstanceOf(AppException.class)
+				.hasFieldOrPropertyWithValue("errorCode", ErrorCode.MARKETPLACE_CURSOR_INVALID);
+	}
 }
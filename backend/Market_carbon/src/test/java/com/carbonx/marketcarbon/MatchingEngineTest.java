@@ -0,0 +1,183 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.common.ListingStatus;
+import com.carbonx.marketcarbon.model.CarbonCredit;
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.MarketPlaceListing;
+import com.carbonx.marketcarbon.model.Project;
+import com.carbonx.marketcarbon.repository.MarketplaceListingRepository;
+import com.carbonx.marketcarbon.service.market.ListingSnapshotCache;
+import com.carbonx.marketcarbon.service.market.MarketDataPublisher;
+import com.carbonx.marketcarbon.service.market.MatchingEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * MatchingEngine: khớp trực tiếp trên luồng gọi (khóa theo book), không khớp vượt số lượng khi nhiều
+ * lệnh chạy song song, và trả chỗ đã giữ khi transaction settle kết thúc.
+ */
+class MatchingEngineTest {
+
+    private static final MatchingEngine.BookKey KEY = new MatchingEngine.BookKey(7L, 2024);
+
+    private MarketplaceListingRepository listingRepository;
+    private ListingSnapshotCache listingCache;
+    private MatchingEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        listingRepository = mock(MarketplaceListingRepository.class);
+        listingCache = mock(ListingSnapshotCache.class);
+        engine = new MatchingEngine(listingRepository, mock(MarketDataPublisher.class), listingCache);
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.shutdown();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static MarketPlaceListing listing(Long id, Long sellerId, String price, String quantity, int vintage) {
+        CarbonCredit credit = CarbonCredit.builder()
+                .project(Project.builder().id(KEY.projectId()).build())
+                .vintageYear(vintage)
+                .build();
+        return MarketPlaceListing.builder()
+                .id(id)
+                .company(Company.builder().id(sellerId).build())
+                .carbonCredit(credit)
+                .pricePerCredit(new BigDecimal(price))
+                .quantity(new BigDecimal(quantity))
+                .status(ListingStatus.AVAILABLE)
+                .build();
+    }
+
+    @Test
+    @DisplayName("Rebuild từ DB rồi khớp theo giá, chỉ trong đúng vintage")
+    void rebuildThenMatchWithinVintage() {
+        when(listingRepository.findOpenForOrderBook(eq(ListingStatus.AVAILABLE), any())).thenReturn(List.of(
+                listing(10L, 2L, "12", "5", 2024),
+                listing(11L, 3L, "10", "2", 2024),
+                listing(12L, 4L, "5", "9", 2023)));
+        engine.rebuild();
+
+        List<MatchingEngine.Fill> fills = engine.match(KEY, 1L, new BigDecimal("4"), null);
+
+        assertThat(fills).extracting(MatchingEngine.Fill::listingId).containsExactly(11L, 10L);
+        assertThat(engine.bestAsk(KEY)).isEqualByComparingTo("12");
+        assertThat(engine.bestAsk(new MatchingEngine.BookKey(7L, 2023))).isEqualByComparingTo("5");
+    }
+
+    @Test
+    @DisplayName("Nhiều lệnh song song trên 1 book: tổng khớp không vượt số lượng niêm yết")
+    void concurrentMatchesNeverOverfill() throws Exception {
+        when(listingRepository.findOpenForOrderBook(eq(ListingStatus.AVAILABLE), any()))
+                .thenReturn(List.of(listing(10L, 2L, "10", "100", 2024)));
+        engine.rebuild();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<BigDecimal>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < 8; t++) {
+                long buyer = 100L + t;
+                results.add(pool.submit(() -> {
+                    BigDecimal filled = BigDecimal.ZERO;
+                    for (int i = 0; i < 20; i++) {
+                        for (MatchingEngine.Fill fill : engine.match(KEY, buyer, BigDecimal.ONE, null)) {
+                            filled = filled.add(fill.quantity());
+                        }
+                    }
+                    return filled;
+                }));
+            }
+            BigDecimal total = BigDecimal.ZERO;
+            for (Future<BigDecimal> result : results) {
+                total = total.add(result.get(10, TimeUnit.SECONDS));
+            }
+            assertThat(total).isEqualByComparingTo("100");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Settle rollback: chỗ đã giữ được trả lại sau khi transaction kết thúc")
+    void rollbackReleasesReservation() {
+        MarketPlaceListing open = listing(10L, 2L, "10", "3", 2024);
+        when(listingRepository.findOpenForOrderBook(eq(ListingStatus.AVAILABLE), any())).thenReturn(List.of(open));
+        when(listingRepository.findWithCreditById(10L)).thenReturn(Optional.of(open));
+        engine.rebuild();
+
+        TransactionSynchronizationManager.initSynchronization();
+        List<MatchingEngine.Fill> fills = engine.match(KEY, 1L, new BigDecimal("3"), null);
+        engine.bindToTransaction(fills);
+        assertThat(engine.match(KEY, 1L, BigDecimal.ONE, null)).isEmpty();
+
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        verify(listingCache, timeout(5_000)).onListingChanged(10L);
+
+        assertThat(engine.match(KEY, 1L, new BigDecimal("3"), null))
+                .extracting(MatchingEngine.Fill::quantity)
+                .usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(new BigDecimal("3"));
+    }
+
+    @Test
+    @DisplayName("Settle commit: trong lúc nạp lại listing từ DB, phần đã bán vẫn bị giữ, không khớp lại được")
+    void commitKeepsReservationUntilReloaded() throws Exception {
+        MarketPlaceListing open = listing(10L, 2L, "10", "3", 2024);
+        MarketPlaceListing sold = listing(10L, 2L, "10", "0", 2024);
+        sold.setStatus(ListingStatus.SOLD);
+        when(listingRepository.findOpenForOrderBook(eq(ListingStatus.AVAILABLE), any())).thenReturn(List.of(open));
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(listingRepository.findWithCreditById(10L)).thenAnswer(inv -> {
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Optional.of(sold);
+        });
+        engine.rebuild();
+
+        TransactionSynchronizationManager.initSynchronization();
+        List<MatchingEngine.Fill> fills = engine.match(KEY, 1L, new BigDecimal("3"), null);
+        engine.bindToTransaction(fills);
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+
+        assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+        // Listing đang được nạp lại: số lượng trước giao dịch không được coi là còn trống
+        assertThat(engine.match(KEY, 9L, BigDecimal.ONE, null)).isEmpty();
+
+        release.countDown();
+        verify(listingCache, timeout(5_000)).onListingChanged(10L);
+        assertThat(engine.match(KEY, 9L, BigDecimal.ONE, null)).isEmpty();
+        assertThat(engine.bestAsk(KEY)).isNull();
+    }
+}
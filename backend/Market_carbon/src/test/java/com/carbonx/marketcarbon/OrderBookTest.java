@@ -0,0 +1,111 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.service.market.OrderBook;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * OrderBook: ưu tiên giá rồi thời gian, limit, bỏ listing của người mua/hết hạn, giữ chỗ tới khi settle.
+ */
+class OrderBookTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2026, 1, 15);
+    private static final Long BUYER = 1L;
+
+    private static BigDecimal bd(String v) {
+        return new BigDecimal(v);
+    }
+
+    @Test
+    @DisplayName("Quét từ giá thấp lên, cùng giá thì listing vào trước khớp trước")
+    void priceThenTimePriority() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, 2L, bd("12"), bd("5"), null);
+        book.upsert(11L, 3L, bd("10"), bd("3"), null);
+        book.upsert(12L, 4L, bd("10"), bd("3"), null);
+
+        List<OrderBook.Match> matches = book.match(BUYER, bd("7"), null, TODAY);
+
+        assertThat(matches).extracting(OrderBook.Match::listingId).containsExactly(11L, 12L, 10L);
+        assertThat(matches).extracting(OrderBook.Match::quantity)
+                .usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(bd("3"), bd("3"), bd("1"));
+    }
+
+    @Test
+    @DisplayName("Lệnh limit dừng ở mức giá vượt limitPrice")
+    void limitStopsAtPrice() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, 2L, bd("10"), bd("2"), null);
+        book.upsert(11L, 3L, bd("11"), bd("5"), null);
+
+        List<OrderBook.Match> matches = book.match(BUYER, bd("5"), bd("10.5"), TODAY);
+
+        assertThat(matches).extracting(OrderBook.Match::listingId).containsExactly(10L);
+    }
+
+    @Test
+    @DisplayName("Bỏ qua listing của chính người mua và listing đã hết hạn, chỉ khớp phần nguyên")
+    void skipsOwnAndExpiredListings() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, BUYER, bd("9"), bd("5"), null);
+        book.upsert(11L, 2L, bd("9"), bd("5"), TODAY);
+        book.upsert(12L, 3L, bd("10"), bd("2.5"), TODAY.plusDays(1));
+
+        List<OrderBook.Match> matches = book.match(BUYER, bd("4"), null, TODAY);
+
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0).listingId()).isEqualTo(12L);
+        assertThat(matches.get(0).quantity()).isEqualByComparingTo("2");
+    }
+
+    @Test
+    @DisplayName("Phần đã giữ chỗ không khớp lại; unreserve trả lại chỗ")
+    void reservedQuantityIsNotMatchedTwice() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, 2L, bd("10"), bd("3"), null);
+
+        assertThat(book.match(BUYER, bd("3"), null, TODAY)).hasSize(1);
+        assertThat(book.match(BUYER, bd("1"), null, TODAY)).isEmpty();
+        assertThat(book.bestAsk()).isNull();
+
+        book.unreserve(10L, bd("3"));
+        assertThat(book.bestAsk()).isEqualByComparingTo("10");
+        assertThat(book.totalAvailable()).isEqualByComparingTo("3");
+    }
+
+    @Test
+    @DisplayName("Xóa listing đang settle: giữ tới khi unreserve rồi mới dọn")
+    void removeWaitsForReservation() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, 2L, bd("10"), bd("3"), null);
+        book.match(BUYER, bd("2"), null, TODAY);
+
+        book.remove(10L);
+        assertThat(book.size()).isEqualTo(1);
+        assertThat(book.totalAvailable()).isEqualByComparingTo("0");
+
+        book.unreserve(10L, bd("2"));
+        assertThat(book.size()).isZero();
+    }
+
+    @Test
+    @DisplayName("Đổi giá thì mất ưu tiên thời gian")
+    void priceChangeLosesTimePriority() {
+        OrderBook book = new OrderBook();
+        book.upsert(10L, 2L, bd("10"), bd("1"), null);
+        book.upsert(11L, 3L, bd("10"), bd("1"), null);
+        book.upsert(10L, 2L, bd("11"), bd("1"), null);
+        book.upsert(10L, 2L, bd("10"), bd("1"), null);
+
+        List<OrderBook.Match> matches = book.match(BUYER, bd("1"), null, TODAY);
+
+        assertThat(matches).extracting(OrderBook.Match::listingId).containsExactly(11L);
+    }
+}
@@ -0,0 +1,151 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.EmissionReport;
+import com.carbonx.marketcarbon.model.ReportOwnerContribution;
+import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
+import com.carbonx.marketcarbon.repository.PlateFingerprintRepository;
+import com.carbonx.marketcarbon.repository.ReportOwnerContributionRepository;
+import com.carbonx.marketcarbon.repository.VehicleRepository;
+import com.carbonx.marketcarbon.service.payout.OwnerContributionIndex;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * OwnerContributionIndex: biển số CSV map về owner theo công ty, mỗi owner có đóng góp 1 dòng, tổng ghi lên report;
+ * dựng lại từ detail cho cùng kết quả với lúc upload; đổi xe thì đánh dấu report có biển số đó.
+ */
+@ExtendWith(MockitoExtension.class)
+class OwnerContributionIndexTest {
+
+    @Mock private ReportOwnerContributionRepository contributionRepository;
+    @Mock private EmissionReportDetailRepository detailRepository;
+    @Mock private VehicleRepository vehicleRepository;
+    @Mock private PlateFingerprintRepository fingerprintRepository;
+    @InjectMocks private OwnerContributionIndex index;
+
+    private record PlateOwner(String getPlateNumber, Long getOwnerId) implements VehicleRepository.PlateOwner {}
+
+    private record PlateTotal(String getPlate, BigDecimal getEnergy, BigDecimal getCreditKg)
+            implements EmissionReportDetailRepository.PlateTotal {}
+
+    private EmissionReport report;
+
+    @BeforeEach
+    void setUp() {
+        report = EmissionReport.builder().id(5L).period("2025-10")
+                .seller(Company.builder().id(3L).build()).build();
+    }
+
+    private void companyVehicles() {
+        when(vehicleRepository.findPlateOwnersByCompanyId(3L)).thenReturn(List.of(
+                new PlateOwner("51A-123.45", 10L),
+                new PlateOwner("51A-67890", 10L),
+                new PlateOwner("30B-11111", 20L),
+                new PlateOwner("29C-00000", 30L)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ReportOwnerContribution> insertedRows() {
+        ArgumentCaptor<List<ReportOwnerContribution>> captor = ArgumentCaptor.forClass(List.class);
+        verify(contributionRepository).insertBatch(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    @DisplayName("Gộp theo owner: biển số chuẩn hóa, bỏ xe lạ và dòng energy <= 0, tổng lưu trên report")
+    void aggregatesPerOwnerAndStoresSummary() {
+        companyVehicles();
+        OwnerContributionIndex.PlateTotals totals = new OwnerContributionIndex.PlateTotals();
+        totals.add("51a 12345", new BigDecimal("100"), new BigDecimal("50"));
+        totals.add("51A12345", new BigDecimal("20"), null);
+        totals.add("51A-67890", new BigDecimal("30"), new BigDecimal("12"));
+        totals.add("51A-67890", BigDecimal.ZERO, new BigDecimal("999"));
+        totals.add("30B-11111", new BigDecimal("10"), new BigDecimal("4"));
+        totals.add("29C-00000", BigDecimal.ZERO, BigDecimal.ZERO);
+        totals.add("99Z-99999", new BigDecimal("500"), new BigDecimal("200"));
+
+        OwnerContributionIndex.Summary summary = index.indexReport(report, totals);
+
+        List<ReportOwnerContribution> rows = insertedRows();
+        assertThat(rows).extracting(ReportOwnerContribution::getEvOwnerId).containsExactlyInAnyOrder(10L, 20L);
+        ReportOwnerContribution first = rows.stream().filter(r -> r.getEvOwnerId() == 10L).findFirst().orElseThrow();
+        assertThat(first.getVehiclesCount()).isEqualTo(2);
+        assertThat(first.getEnergyKwh()).isEqualByComparingTo("150");
+        // 50kg + 20kWh * 0.4 + 12kg = 70kg (dòng energy = 0 của 51A-67890 không tính)
+        assertThat(first.getCreditsTco2e()).isEqualByComparingTo("0.070");
+        assertThat(first.getReportId()).isEqualTo(5L);
+        assertThat(first.getCompanyId()).isEqualTo(3L);
+
+        assertThat(summary.owners()).isEqualTo(2);
+        assertThat(report.getPayoutOwners()).isEqualTo(2);
+        assertThat(report.getPayoutEnergyKwh()).isEqualByComparingTo("160");
+        assertThat(report.getPayoutCreditsTco2e()).isEqualByComparingTo("0.074");
+    }
+
+    @Test
+    @DisplayName("Dựng lại từ tổng SQL theo biển số cho đúng credit như lúc upload (dòng có và không có CO2 lẫn nhau)")
+    void rebuildMatchesUploadTotals() {
+        companyVehicles();
+        OwnerContributionIndex.PlateTotals upload = new OwnerContributionIndex.PlateTotals();
+        upload.add("51A-123.45", new BigDecimal("100"), new BigDecimal("50"));
+        upload.add("51A-123.45", new BigDecimal("20"), null);
+        index.indexReport(report, upload);
+        BigDecimal uploadCredits = report.getPayoutCreditsTco2e();
+
+        // SQL áp quy tắc từng dòng: 50 + 20 * 0.4 = 58kg
+        EmissionReport stale = EmissionReport.builder().id(5L).period("2025-10")
+                .seller(Company.builder().id(3L).build()).build();
+        when(contributionRepository.lockReport(5L)).thenReturn(Optional.of(stale));
+        when(detailRepository.sumByPlateForReport(eq(5L), any()))
+                .thenReturn(List.of(new PlateTotal("51A-123.45", new BigDecimal("120"), new BigDecimal("58.0"))));
+
+        OwnerContributionIndex.Summary rebuilt = index.rebuild(5L);
+
+        assertThat(uploadCredits).isEqualByComparingTo("0.058");
+        assertThat(rebuilt.creditsTco2e()).isEqualByComparingTo(uploadCredits);
+        assertThat(rebuilt.energyKwh()).isEqualByComparingTo(report.getPayoutEnergyKwh());
+        verify(contributionRepository).deleteByReportId(5L);
+    }
+
+    @Test
+    @DisplayName("Report đã được request khác dựng xong trong lúc chờ khóa: không dựng lại")
+    void rebuildSkipsAggregatedReport() {
+        report.setPayoutOwners(1);
+        report.setPayoutEnergyKwh(BigDecimal.TEN);
+        report.setPayoutCreditsTco2e(BigDecimal.ONE);
+        when(contributionRepository.lockReport(5L)).thenReturn(Optional.of(report));
+
+        assertThat(index.rebuild(5L).owners()).isEqualTo(1);
+        verify(contributionRepository, never()).deleteByReportId(any());
+    }
+
+    @Test
+    @DisplayName("Đổi xe: report của công ty có biển số (đã chuẩn hóa) bị đánh dấu dựng lại")
+    void vehicleChangeInvalidatesReportsWithPlate() {
+        long hash = PlateFingerprintIndex.hash("51A12345");
+        when(fingerprintRepository.findReportIdsByPlate(hash, 3L)).thenReturn(List.of(5L, 6L));
+
+        index.onVehicleChanged(3L, "51a-123.45");
+
+        verify(contributionRepository).invalidate(List.of(5L, 6L));
+    }
+}
@@ -0,0 +1,135 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.repository.EmissionReportDetailRepository;
+import com.carbonx.marketcarbon.repository.EmissionReportRepository;
+import com.carbonx.marketcarbon.repository.PlateFingerprintRepository;
+import com.carbonx.marketcarbon.service.plate.PlateFingerprintIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collection;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tra trùng biển số giữa các công ty: 1 Bloom chung cho biển số dùng chung,
+ * DB vẫn loại công ty của report, id nhảy cóc được nạp lại.
+ */
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class PlateFingerprintIndexTest {
+
+    @Mock private PlateFingerprintRepository fingerprintRepository;
+    @Mock private EmissionReportDetailRepository detailRepository;
+    @Mock private EmissionReportRepository reportRepository;
+
+    @InjectMocks private PlateFingerprintIndex index;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(index, "bloomCapacity", 1_000L);
+        ReflectionTestUtils.setField(index, "pageSize", 100);
+        when(fingerprintRepository.findKeysAfter(anyLong(), anyInt())).thenReturn(List.of());
+    }
+
+    @Test
+    @DisplayName("Biển số đã có ở công ty khác: là ứng viên, DB tra với company_id của report để loại trừ")
+    void sharedPlateIsCandidate() {
+        long shared = PlateFingerprintIndex.hash("51A12345");
+        long own = PlateFingerprintIndex.hash("30B99999");
+        when(fingerprintRepository.findKeysAfter(eq(0L), anyInt()))
+                .thenReturn(List.of(key(1L, shared, true), key(2L, own, false), key(3L, shared, true)));
+        when(fingerprintRepository.findPlateHashesByReportId(10L)).thenReturn(List.of(shared, own));
+        when(fingerprintRepository.findReportIdsSharingPlates(anyCollection(), eq(7L))).thenReturn(List.of(20L, 10L));
+
+        int count = index.countCrossCompanyReports(10L, 7L);
+
+        assertThat(count).isEqualTo(1);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<Long>> hashes = ArgumentCaptor.forClass(Collection.class);
+        verify(fingerprintRepository).findReportIdsSharingPlates(hashes.capture(), eq(7L));
+        assertThat(hashes.getValue()).contains(shared);
+    }
+
+    @Test
+    @DisplayName("Biển số chỉ thuộc 1 công ty: không tra DB")
+    void ownPlatesOnlySkipDb() {
+        long a = PlateFingerprintIndex.hash("51A12345");
+        long b = PlateFingerprintIndex.hash("30B99999");
+        when(fingerprintRepository.findKeysAfter(eq(0L), anyInt()))
+                .thenReturn(List.of(key(1L, a, false), key(2L, b, false)));
+        when(fingerprintRepository.findPlateHashesByReportId(10L)).thenReturn(List.of(a, b));
+
+        int count = index.countCrossCompanyReports(10L, 7L);
+
+        assertThat(count).isZero();
+        verify(fingerprintRepository, never()).findReportIdsSharingPlates(anyCollection(), any());
+    }
+
+    @Test
+    @DisplayName("Id nhảy cóc lúc nạp được nạp lại ở lần tra sau")
+    void gapIsReloaded() {
+        long shared = PlateFingerprintIndex.hash("51A12345");
+        long other = PlateFingerprintIndex.hash("30B99999");
+        // Dòng id 2 chưa commit lúc nạp lần đầu
+        when(fingerprintRepository.findKeysAfter(eq(0L), anyInt()))
+                .thenReturn(List.of(key(1L, other, false), key(3L, shared, false)));
+        when(fingerprintRepository.findKeysByIdIn(List.of(2L))).thenReturn(List.of(key(2L, shared, true)));
+        when(fingerprintRepository.findPlateHashesByReportId(10L)).thenReturn(List.of(shared));
+        when(fingerprintRepository.findReportIdsSharingPlates(anyCollection(), eq(7L))).thenReturn(List.of(20L));
+
+        index.refresh();
+        int count = index.countCrossCompanyReports(10L, 7L);
+
+        assertThat(count).isEqualTo(1);
+        verify(fingerprintRepository).findKeysByIdIn(List.of(2L));
+    }
+
+    @Test
+    @DisplayName("Khoảng trống quá max-tracked-gap bị bỏ qua khi nạp tăng dần, rescan dựng lại Bloom và bắt được")
+    void rescanCatchesUntrackedGap() {
+        ReflectionTestUtils.setField(index, "maxTrackedGap", 10);
+        long shared = PlateFingerprintIndex.hash("51A12345");
+        long other = PlateFingerprintIndex.hash("30B99999");
+        // Lần nạp đầu: id 5..1999 chưa commit (khoảng trống > 10 nên không ghi nhớ);
+        // lúc rescan dòng id 5 đã commit và cờ shared tính lại
+        when(fingerprintRepository.findKeysAfter(eq(0L), anyInt()))
+                .thenReturn(List.of(key(1L, other, false), key(2000L, shared, false)))
+                .thenReturn(List.of(key(1L, other, false), key(5L, shared, true), key(2000L, shared, true)));
+        when(fingerprintRepository.findPlateHashesByReportId(10L)).thenReturn(List.of(shared));
+        when(fingerprintRepository.findReportIdsSharingPlates(anyCollection(), eq(7L))).thenReturn(List.of(20L));
+
+        assertThat(index.countCrossCompanyReports(10L, 7L)).isZero();
+        verify(fingerprintRepository, never()).findKeysByIdIn(any());
+
+        index.rescan();
+
+        assertThat(index.countCrossCompanyReports(10L, 7L)).isEqualTo(1);
+    }
+
+    private static PlateFingerprintRepository.FingerprintKey key(Long id, long plateHash, boolean shared) {
+        return new PlateFingerprintRepository.FingerprintKey() {
+            @Override public Long getId() { return id; }
+            @Override public Long getPlateHash() { return plateHash; }
+            @Override public Long getShared() { return shared ? 1L : 0L; }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.model.PriceCandle;
+import com.carbonx.marketcarbon.model.PriceCandleBackfill;
+import com.carbonx.marketcarbon.repository.OrderStatsRepository;
+import com.carbonx.marketcarbon.repository.PriceCandleBackfillRepository;
+import com.carbonx.marketcarbon.repository.PriceCandleRepository;
+import com.carbonx.marketcarbon.service.market.PriceCandleEngine;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * PriceCandleEngine: gộp fill vào nến 1m/1h/1d, chia khoảng thống kê theo biên phút/giờ/ngày.
+ */
+@ExtendWith(MockitoExtension.class)
+class PriceCandleEngineTest {
+
+    @Mock private PriceCandleRepository candleRepository;
+    @Mock private OrderStatsRepository orderStatsRepository;
+    @Mock private PriceCandleBackfillRepository backfillRepository;
+    @Mock private ApplicationContext applicationContext;
+    @InjectMocks private PriceCandleEngine engine;
+
+    private record Row(Long getId, Long getBuyerCompanyId, Long getSellerCompanyId, Long getProjectId,
+                       BigDecimal getUnitPrice, BigDecimal getQuantity, LocalDateTime getCompletedAt)
+            implements OrderStatsRepository.FillRow {}
+
+    private record Agg(BigDecimal getVolume, BigDecimal getNotional, BigDecimal getPriceSum, Long getTradeCount,
+                       BigDecimal getLow, BigDecimal getHigh) implements PriceCandleRepository.Aggregate {}
+
+    @Test
+    @DisplayName("3 fill cùng phút: 12 nến (sàn, project, 2 công ty x 3 độ phân giải), OHLC/VWAP đúng")
+    @SuppressWarnings("unchecked")
+    void foldsFillsIntoCandles() {
+        LocalDateTime at = LocalDateTime.of(2025, 3, 10, 9, 15, 20);
+        engine.recordFill(new PriceCandleEngine.Fill(1L, 2L, 5L, new BigDecimal("10.00"), new BigDecimal("2"), at));
+        engine.recordFill(new PriceCandleEngine.Fill(1L, 2L, 5L, new BigDecimal("14.00"), new BigDecimal("1"), at.plusSeconds(10)));
+        engine.recordFill(new PriceCandleEngine.Fill(3L, 2L, 5L, new BigDecimal("8.00"), new BigDecimal("1"), at.plusSeconds(20)));
+        engine.flush();
+
+        ArgumentCaptor<Collection<PriceCandle>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(candleRepository).upsertBatch(captor.capture());
+        List<PriceCandle> candles = new ArrayList<>(captor.getValue());
+        // sàn + project + công ty 1, 2, 3
+        assertThat(candles).hasSize(15);
+
+        PriceCandle market = candles.stream()
+                .filter(c -> c.getScope() == PriceCandle.Scope.MARKET && c.getResolution() == PriceCandle.Resolution.M1)
+                .findFirst().orElseThrow();
+        assertThat(market.getBucketStart()).isEqualTo(LocalDateTime.of(2025, 3, 10, 9, 15));
+        assertThat(market.getOpenPrice()).isEqualByComparingTo("10");
+        assertThat(market.getHighPrice()).isEqualByComparingTo("14");
+        assertThat(market.getLowPrice()).isEqualByComparingTo("8");
+        assertThat(market.getClosePrice()).isEqualByComparingTo("8");
+        assertThat(market.getVolume()).isEqualByComparingTo("4");
+        assertThat(market.getNotional()).isEqualByComparingTo("42");
+        assertThat(market.getTradeCount()).isEqualTo(3);
+
+        PriceCandle seller = candles.stream()
+                .filter(c -> c.getScope() == PriceCandle.Scope.COMPANY && c.getScopeId() == 2L
+                        && c.getResolution() == PriceCandle.Resolution.D1)
+                .findFirst().orElseThrow();
+        assertThat(seller.getBucketStart()).isEqualTo(LocalDateTime.of(2025, 3, 10, 0, 0));
+        assertThat(seller.getTradeCount()).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Khoảng nhiều ngày đọc 5 đoạn: phút, giờ, ngày, giờ, phút; gộp min/max/avg/VWAP")
+    void readsRangeFromCoarsestAlignedCandles() {
+        LocalDateTime from = LocalDateTime.of(2025, 3, 1, 10, 15, 30);
+        LocalDateTime to = LocalDateTime.of(2025, 3, 4, 9, 20, 10);
+        when(candleRepository.aggregate(eq(PriceCandle.Scope.COMPANY), eq(7L), any(), any(), any()))
+                .thenReturn(new Agg(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, 0L, null, null));
+        when(candleRepository.aggregate(PriceCandle.Scope.COMPANY, 7L, PriceCandle.Resolution.D1,
+                LocalDateTime.of(2025, 3, 2, 0, 0), LocalDateTime.of(2025, 3, 4, 0, 0)))
+                .thenReturn(new Agg(new BigDecimal("10"), new BigDecimal("120"), new BigDecimal("36"), 3L,
+                        new BigDecimal("9"), new BigDecimal("15")));
+        when(candleRepository.aggregate(PriceCandle.Scope.COMPANY, 7L, PriceCandle.Resolution.M1,
+                LocalDateTime.of(2025, 3, 4, 9, 0), LocalDateTime.of(2025, 3, 4, 9, 21)))
+                .thenReturn(new Agg(new BigDecimal("2"), new BigDecimal("40"), new BigDecimal("20"), 1L,
+                        new BigDecimal("20"), new BigDecimal("20")));
+
+        PriceCandleEngine.Stats stats = engine.companyStats(7L, from, to);
+
+        verify(candleRepository).aggregate(PriceCandle.Scope.COMPANY, 7L, PriceCandle.Resolution.M1,
+                LocalDateTime.of(2025, 3, 1, 10, 15), LocalDateTime.of(2025, 3, 1, 11, 0));
+        verify(candleRepository).aggregate(PriceCandle.Scope.COMPANY, 7L, PriceCandle.Resolution.H1,
+                LocalDateTime.of(2025, 3, 1, 11, 0), LocalDateTime.of(2025, 3, 2, 0, 0));
+        verify(candleRepository).aggregate(PriceCandle.Scope.COMPANY, 7L, PriceCandle.Resolution.H1,
+                LocalDateTime.of(2025, 3, 4, 0, 0), LocalDateTime.of(2025, 3, 4, 9, 0));
+        assertThat(stats.trades()).isEqualTo(4);
+        assertThat(stats.min()).isEqualByComparingTo("9");
+        assertThat(stats.max()).isEqualByComparingTo("20");
+        assertThat(stats.avg()).isEqualByComparingTo("14");
+        assertThat(stats.vwap()).isEqualByComparingTo("13.33");
+    }
+
+    @Test
+    @DisplayName("Backfill chạy tiếp từ last_order_id, nến của trang và mốc mới ghi cùng lúc")
+    @SuppressWarnings("unchecked")
+    void backfillResumesFromWatermark() {
+        ReflectionTestUtils.setField(engine, "applicationContext", applicationContext);
+        when(applicationContext.getBean(PriceCandleEngine.class)).thenReturn(engine);
+        LocalDateTime cutoff = LocalDateTime.of(2025, 3, 10, 8, 0);
+        when(orderStatsRepository.findMaxSuccessfulOrderId()).thenReturn(99L);
+        when(backfillRepository.claim(eq(1L), anyString(), any(), any())).thenReturn(1);
+        // Lần chạy trước đã dựng tới lệnh 40 (mốc tạo lúc đó: tới lệnh 50)
+        when(backfillRepository.findById(1L)).thenReturn(Optional.of(PriceCandleBackfill.builder()
+                .id(1L).upToOrderId(50L).cutoffAt(cutoff).lastOrderId(40L).build()));
+        when(orderStatsRepository.findFillsAfter(eq(40L), eq(50L), eq(cutoff), any(Pageable.class)))
+                .thenReturn(List.of(new Row(45L, 1L, 2L, 5L, new BigDecimal("10.00"), new BigDecimal("2"),
+                        cutoff.minusHours(1))));
+        when(backfillRepository.advance(eq(1L), anyString(), eq(45L), eq(true), any())).thenReturn(1);
+
+        engine.warmUp();
+
+        verify(orderStatsRepository, never()).findFillsAfter(eq(0L), anyLong(), any(), any(Pageable.class));
+        ArgumentCaptor<Collection<PriceCandle>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(candleRepository).upsertBatch(captor.capture());
+        assertThat(captor.getValue()).hasSize(12);
+        verify(backfillRepository).advance(eq(1L), anyString(), eq(45L), eq(true), any());
+        // Nến dựng lại không lẫn vào phần cộng dồn của fill trực tiếp
+        engine.flush();
+        verify(candleRepository).upsertBatch(any());
+    }
+
+    @Test
+    @DisplayName("Node khác giữ lease hoặc đã dựng xong: không đọc lệnh, không ghi nến")
+    void backfillSkipsWhenNotClaimed() {
+        when(orderStatsRepository.findMaxSuccessfulOrderId()).thenReturn(99L);
+        when(backfillRepository.claim(eq(1L), anyString(), any(), any())).thenReturn(0);
+
+        engine.warmUp();
+
+        verify(backfillRepository).insertIgnore(eq(1L), eq(99L), any());
+        verify(orderStatsRepository, never()).findFillsAfter(anyLong(), anyLong(), any(), any(Pageable.class));
+        verify(candleRepository, never()).upsertBatch(any());
+    }
+
+    @Test
+    @DisplayName("Mất lease giữa chừng: trang đang ghi báo lỗi (rollback), không chạy thêm trang")
+    void backfillStopsWhenLeaseLost() {
+        ReflectionTestUtils.setField(engine, "applicationContext", applicationContext);
+        ReflectionTestUtils.setField(engine, "pageSize", 1);
+        when(applicationContext.getBean(PriceCandleEngine.class)).thenReturn(engine);
+        LocalDateTime cutoff = LocalDateTime.of(2025, 3, 10, 8, 0);
+        when(backfillRepository.claim(eq(1L), anyString(), any(), any())).thenReturn(1);
+        when(backfillRepository.findById(1L)).thenReturn(Optional.of(PriceCandleBackfill.builder()
+                .id(1L).upToOrderId(50L).cutoffAt(cutoff).lastOrderId(0L).build()));
+        when(orderStatsRepository.findFillsAfter(eq(0L), eq(50L), eq(cutoff), any(Pageable.class)))
+                .thenReturn(List.of(new Row(3L, 1L, 2L, 5L, new BigDecimal("10.00"), new BigDecimal("1"),
+                        cutoff.minusHours(2))));
+        when(backfillRepository.advance(eq(1L), anyString(), eq(3L), anyBoolean(), any())).thenReturn(0);
+
+        engine.warmUp();
+
+        verify(orderStatsRepository, never()).findFillsAfter(eq(3L), anyLong(), any(), any(Pageable.class));
+    }
+}
@@ -0,0 +1,252 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.common.ProfitDistributionStatus;
+import com.carbonx.marketcarbon.config.ProfitSharingProperties;
+import com.carbonx.marketcarbon.model.*;
+import com.carbonx.marketcarbon.repository.*;
+import com.carbonx.marketcarbon.service.EmailService;
+import com.carbonx.marketcarbon.service.impl.WalletServiceImpl;
+import com.carbonx.marketcarbon.service.payout.ProfitPayoutEngine;
+import com.carbonx.marketcarbon.service.wallet.WalletPosting;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * ProfitPayoutEngine: trừ ví công ty 1 lần cho cả đợt, chunk chỉ cộng ví owner; chạy tiếp chunk còn PENDING,
+ * thử lại khi lock conflict, chunk lỗi thì trả từng owner và hoàn tiền owner lỗi khi kết thúc đợt.
+ */
+@ExtendWith(MockitoExtension.class)
+class ProfitPayoutEngineTest {
+
+    private static final Long DISTRIBUTION_ID = 1L;
+    private static final Long COMPANY_WALLET_ID = 900L;
+
+    @Mock private ProfitDistributionRepository distributionRepository;
+    @Mock private ProfitDistributionDetailRepository detailRepository;
+    @Mock private EmissionReportRepository emissionReportRepository;
+    @Mock private EVOwnerRepository evOwnerRepository;
+    @Mock private WalletRepository walletRepository;
+    @Mock private CompanyRepository companyRepository;
+    @Mock private WalletServiceImpl walletService;
+    @Mock private WalletTransferEngine walletTransferEngine;
+    @Mock private ProfitSharingProperties profitSharingProperties;
+    @Mock private ProfitSharingProperties.ResolvedPolicy policy;
+    @Mock private EmailService emailService;
+    @Mock private ApplicationContext applicationContext;
+
+    private ProfitPayoutEngine engine;
+    private ProfitDistribution distribution;
+    private final Map<Long, EVOwner> owners = Map.of(
+            11L, owner(11L, 101L),
+            12L, owner(12L, 102L));
+
+    private record UserWallet(Long getUserId, Long getWalletId) implements WalletRepository.UserWalletId {}
+
+    private record Totals(Long getOwners, BigDecimal getMoney, BigDecimal getEnergy, BigDecimal getCredits)
+            implements ProfitDistributionDetailRepository.PaidTotals {}
+
+    @BeforeEach
+    void setUp() {
+        engine = new ProfitPayoutEngine(distributionRepository, detailRepository, emissionReportRepository,
+                evOwnerRepository, walletRepository, companyRepository, walletService, walletTransferEngine,
+                profitSharingProperties, emailService, new SyncTaskExecutor());
+        ReflectionTestUtils.setField(engine, "applicationContext", applicationContext);
+        ReflectionTestUtils.setField(engine, "backoffMs", 1L);
+        lenient().when(applicationContext.getBean(ProfitPayoutEngine.class)).thenReturn(engine);
+
+        User companyUser = User.builder().id(50L).email("company@test.com").build();
+        distribution = new ProfitDistribution();
+        distribution.setId(DISTRIBUTION_ID);
+        distribution.setCompanyUser(companyUser);
+        distribution.setStatus(ProfitDistributionStatus.PROCESSING);
+        lenient().when(distributionRepository.findById(DISTRIBUTION_ID)).thenReturn(Optional.of(distribution));
+        lenient().when(distributionRepository.lockById(DISTRIBUTION_ID)).thenReturn(Optional.of(distribution));
+        lenient().when(companyRepository.findByUserId(50L))
+                .thenReturn(Optional.of(Company.builder().id(3L).companyName("Company").build()));
+        lenient().when(walletRepository.findIdByUserId(50L)).thenReturn(COMPANY_WALLET_ID);
+        lenient().when(profitSharingProperties.resolveForCompany(3L)).thenReturn(policy);
+
+        lenient().when(evOwnerRepository.findAllWithUserByIdIn(anyCollection())).thenAnswer(inv ->
+                ((Collection<Long>) inv.getArgument(0)).stream().map(owners::get).toList());
+        lenient().when(walletRepository.findWalletIdsByUserIds(anyCollection())).thenAnswer(inv ->
+                ((Collection<Long>) inv.getArgument(0)).stream()
+                        .map(userId -> (WalletRepository.UserWalletId) new UserWallet(userId, userId + 100))
+                        .toList());
+        lenient().when(detailRepository.sumPaid(DISTRIBUTION_ID))
+                .thenReturn(new Totals(2L, BigDecimal.TEN, BigDecimal.ONE, BigDecimal.ONE));
+        lenient().when(detailRepository.sumFailedMoney(DISTRIBUTION_ID)).thenReturn(BigDecimal.ZERO);
+
+        // Thay cho transaction của chunk (afterCommit gửi email)
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    @Test
+    @DisplayName("start: trừ ví công ty 1 lần cho cả đợt, chunk chỉ cộng ví owner")
+    void startDebitsCompanyOnceAndChunksOnlyCredit() {
+        ProfitDistributionDetail a = detail(1L, 11L, "100.00");
+        ProfitDistributionDetail b = detail(2L, 12L, "50.00");
+        when(detailRepository.findPendingChunks(DISTRIBUTION_ID)).thenReturn(List.of(0), List.of());
+        when(detailRepository.lockPendingChunk(DISTRIBUTION_ID, 0)).thenReturn(List.of(a, b));
+
+        engine.start(DISTRIBUTION_ID, new ArrayList<>(List.of(a, b)));
+
+        ArgumentCaptor<WalletPosting> debit = ArgumentCaptor.forClass(WalletPosting.class);
+        verify(walletTransferEngine).debit(debit.capture());
+        assertThat(debit.getValue().getWalletId()).isEqualTo(COMPANY_WALLET_ID);
+        assertThat(debit.getValue().getAmount()).isEqualByComparingTo("150.00");
+
+        List<WalletPosting> credits = captureCredits().get(0);
+        assertThat(credits).extracting(WalletPosting::getWalletId).containsExactly(201L, 202L);
+        assertThat(a.getStatus()).isEqualTo("SUCCESS");
+        assertThat(b.getStatus()).isEqualTo("SUCCESS");
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("start: kế hoạch đã ghi mà chưa chạy được thì không ném lỗi, đợt vẫn PROCESSING để chạy lại")
+    void startKeepsDistributionProcessingWhenResumeFails() {
+        ProfitDistributionDetail a = detail(1L, 11L, "100.00");
+        when(detailRepository.findPendingChunks(DISTRIBUTION_ID))
+                .thenThrow(new PessimisticLockingFailureException("lock wait timeout"))
+                .thenReturn(List.of(0), List.of());
+        when(detailRepository.lockPendingChunk(DISTRIBUTION_ID, 0)).thenReturn(List.of(a));
+        when(detailRepository.findProcessingDistributionIdsWithPending()).thenReturn(List.of(DISTRIBUTION_ID));
+
+        engine.start(DISTRIBUTION_ID, new ArrayList<>(List.of(a)));
+
+        verify(walletTransferEngine, times(1)).debit(any());
+        assertThat(a.getStatus()).isEqualTo("PENDING");
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.PROCESSING);
+
+        engine.retryUnfinished();
+
+        assertThat(a.getStatus()).isEqualTo("SUCCESS");
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.COMPLETED);
+        verify(walletTransferEngine, times(1)).debit(any());
+    }
+
+    @Test
+    @DisplayName("resume: chỉ trả chunk còn PENDING, không trừ ví công ty lần nữa")
+    void resumePaysOnlyPendingChunks() {
+        ProfitDistributionDetail b = detail(2L, 12L, "50.00");
+        when(detailRepository.findPendingChunks(DISTRIBUTION_ID)).thenReturn(List.of(1), List.of());
+        when(detailRepository.lockPendingChunk(DISTRIBUTION_ID, 1)).thenReturn(List.of(b));
+
+        engine.resume(DISTRIBUTION_ID);
+
+        verify(detailRepository, never()).lockPendingChunk(DISTRIBUTION_ID, 0);
+        verify(walletTransferEngine, never()).debit(any());
+        assertThat(captureCredits().get(0)).extracting(WalletPosting::getWalletId).containsExactly(202L);
+        assertThat(b.getStatus()).isEqualTo("SUCCESS");
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("Lock conflict: chunk được thử lại và trả đủ, không owner nào FAILED")
+    void retriesChunkOnLockConflict() {
+        when(detailRepository.findPendingChunks(DISTRIBUTION_ID)).thenReturn(List.of(0), List.of());
+        // Mỗi lần thử đọc lại các dòng PENDING (lần trước đã rollback)
+        when(detailRepository.lockPendingChunk(DISTRIBUTION_ID, 0))
+                .thenAnswer(inv -> List.of(detail(1L, 11L, "100.00"), detail(2L, 12L, "50.00")));
+        doThrow(new PessimisticLockingFailureException("lock wait timeout"))
+                .doNothing()
+                .when(walletTransferEngine).credit(anyList());
+
+        engine.resume(DISTRIBUTION_ID);
+
+        verify(walletTransferEngine, times(2)).credit(anyList());
+        verify(detailRepository, never()).lockPendingById(anyLong());
+        verify(detailRepository, never()).failPendingDetail(anyLong(), anyString(), any());
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.COMPLETED);
+    }
+
+    @Test
+    @DisplayName("Chunk lỗi: trả từng owner, chỉ owner lỗi FAILED, tiền của owner đó hoàn về ví công ty")
+    void partialFailureFailsOnlyBrokenOwnerAndRefunds() {
+        ProfitDistributionDetail a = detail(1L, 11L, "100.00");
+        ProfitDistributionDetail b = detail(2L, 12L, "50.00");
+        when(detailRepository.findPendingChunks(DISTRIBUTION_ID)).thenReturn(List.of(0), List.of());
+        when(detailRepository.lockPendingChunk(DISTRIBUTION_ID, 0)).thenReturn(List.of(a, b));
+        when(detailRepository.findPendingIdsInChunk(DISTRIBUTION_ID, 0)).thenReturn(List.of(1L, 2L));
+        when(detailRepository.lockPendingById(1L)).thenReturn(List.of(a));
+        when(detailRepository.lockPendingById(2L)).thenReturn(List.of(b));
+        // Ví của owner 12 hỏng: mọi lần cộng có ví 202 đều lỗi
+        doAnswer(inv -> {
+            List<WalletPosting> postings = inv.getArgument(0);
+            if (postings.stream().anyMatch(p -> p.getWalletId().equals(202L))) {
+                // Rollback cả chunk: dòng của owner 11 quay lại PENDING
+                if (postings.stream().anyMatch(p -> p.getWalletId().equals(201L))) {
+                    a.setStatus("PENDING");
+                }
+                throw new IllegalStateException("wallet 202 is broken");
+            }
+            return null;
+        }).when(walletTransferEngine).credit(anyList());
+        when(detailRepository.sumFailedMoney(DISTRIBUTION_ID)).thenReturn(new BigDecimal("50.00"));
+
+        engine.resume(DISTRIBUTION_ID);
+
+        assertThat(a.getStatus()).isEqualTo("SUCCESS");
+        verify(detailRepository).failPendingDetail(eq(2L), contains("wallet 202"), any());
+        verify(detailRepository, never()).failPendingDetail(eq(1L), anyString(), any());
+
+        List<List<WalletPosting>> calls = captureCredits();
+        WalletPosting refund = calls.get(calls.size() - 1).get(0);
+        assertThat(refund.getWalletId()).isEqualTo(COMPANY_WALLET_ID);
+        assertThat(refund.getAmount()).isEqualByComparingTo("50.00");
+        assertThat(distribution.getStatus()).isEqualTo(ProfitDistributionStatus.COMPLETED);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<WalletPosting>> captureCredits() {
+        ArgumentCaptor<List<WalletPosting>> captor = ArgumentCaptor.forClass(List.class);
+        verify(walletTransferEngine, atLeastOnce()).credit(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private ProfitDistributionDetail detail(Long id, Long ownerId, String money) {
+        ProfitDistributionDetail detail = new ProfitDistributionDetail();
+        detail.setId(id);
+        detail.setDistribution(distribution);
+        detail.setEvOwner(owners.get(ownerId));
+        detail.setMoneyAmount(new BigDecimal(money));
+        detail.setCreditAmount(BigDecimal.ONE);
+        detail.setEnergyAmount(BigDecimal.ONE);
+        detail.setStatus("PENDING");
+        return detail;
+    }
+
+    private static EVOwner owner(Long id, Long userId) {
+        return EVOwner.builder().id(id).name("Owner " + id)
+                .user(User.builder().id(userId).email("owner" + id + "@test.com").build())
+                .build();
+    }
+}
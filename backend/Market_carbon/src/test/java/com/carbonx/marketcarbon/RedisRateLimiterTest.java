@@ -0,0 +1,162 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.config.RateLimitConfig;
+import com.carbonx.marketcarbon.config.RateLimitInterceptor;
+import com.carbonx.marketcarbon.config.RedisRateLimiter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * RedisRateLimiter với Redis giả lập (override execute): near-cache key bị chặn, dự phòng cục bộ khi Redis lỗi,
+ * map cục bộ có giới hạn.
+ * Benchmark overhead mỗi request: mvn test -Dtest=RedisRateLimiterTest -Dbenchmark=true
+ */
+class RedisRateLimiterTest {
+
+    private static final RateLimitConfig.Policy POLICY = new RateLimitConfig.Policy(3, Duration.ofMinutes(1));
+
+    // Redis giả lập: trả kết quả của script theo supplier, đếm số lần gọi
+    private static class FakeRedis extends StringRedisTemplate {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Supplier<List<Long>> reply;
+
+        FakeRedis(Supplier<List<Long>> reply) {
+            this.reply = reply;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            calls.incrementAndGet();
+            return (T) reply.get();
+        }
+    }
+
+    private static RedisRateLimiter limiter(FakeRedis redis, int localMaxKeys) {
+        RedisRateLimiter limiter = new RedisRateLimiter(redis);
+        ReflectionTestUtils.setField(limiter, "localMaxKeys", localMaxKeys);
+        return limiter;
+    }
+
+    @Test
+    @DisplayName("Key đã hết token bị chặn cục bộ tới lúc nạp lại, không hỏi Redis")
+    void blockedKeyIsServedFromNearCache() {
+        FakeRedis redis = new FakeRedis(() -> List.of(0L, 0L, 60_000L));
+        RedisRateLimiter limiter = limiter(redis, 100);
+
+        for (int i = 0; i < 50; i++) {
+            RedisRateLimiter.Decision decision = limiter.tryConsume("IP:1.2.3.4:READ:X#y", POLICY);
+            assertThat(decision.allowed()).isFalse();
+            assertThat(decision.retryAfterMs()).isPositive();
+        }
+        assertThat(redis.calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Redis lỗi thì mỗi node tự giới hạn bằng bucket cục bộ và tạm ngừng gọi Redis")
+    void fallsBackToLocalBucketsWhenRedisIsDown() {
+        FakeRedis redis = new FakeRedis(() -> {
+            throw new RedisConnectionFailureException("down");
+        });
+        RedisRateLimiter limiter = limiter(redis, 100);
+
+        List<Boolean> allowed = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            allowed.add(limiter.tryConsume("USER:a@b.c:WRITE:X#y", POLICY).allowed());
+        }
+
+        assertThat(allowed).containsExactly(true, true, true, false, false);
+        assertThat(redis.calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Scan nhiều IP: map cục bộ không vượt local-max-keys")
+    void localStateIsBounded() {
+        FakeRedis redis = new FakeRedis(() -> {
+            throw new RedisConnectionFailureException("down");
+        });
+        RedisRateLimiter limiter = limiter(redis, 100);
+
+        for (int i = 0; i < 10_000; i++) {
+            String key = "IP:10.0." + (i / 256) + "." + (i % 256) + ":READ:X#y";
+            for (int j = 0; j < 4; j++) {
+                limiter.tryConsume(key, POLICY);
+            }
+        }
+
+        assertThat(limiter.localKeys()).isLessThanOrEqualTo(200);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @DisplayName("Benchmark: overhead của RateLimitInterceptor mỗi request (không tính RTT Redis)")
+    void benchmarkInterceptorOverhead() throws Exception {
+        int threads = 8;
+        int perThread = 250_000;
+        RateLimitConfig config = new RateLimitConfig();
+
+        System.out.printf("threads=%d, requests/thread=%d, cpus=%d%n",
+                threads, perThread, Runtime.getRuntime().availableProcessors());
+        // Chỉ dựng request/response giả, không qua limiter (trừ đi khi đọc kết quả)
+        run("baseline (no limiter)", config, null, threads, perThread, 1);
+        // 1 IP trong quota (Redis trả allowed)
+        run("redis allowed", config, new FakeRedis(() -> List.of(1L, 10L, 0L)), threads, perThread, 1);
+        // 1 IP đã hết quota (near-cache)
+        run("near-cache blocked", config, new FakeRedis(() -> List.of(0L, 0L, 60_000L)), threads, perThread, 1);
+        // Scan 100k IP khi Redis lỗi (bucket cục bộ, LRU 10k key)
+        run("local fallback scan", config, new FakeRedis(() -> {
+            throw new RedisConnectionFailureException("down");
+        }), threads, perThread, 100_000);
+    }
+
+    private static void run(String name, RateLimitConfig config, FakeRedis redis,
+                            int threads, int perThread, int distinctIps) throws Exception {
+        RedisRateLimiter limiter = redis != null ? limiter(redis, 10_000) : null;
+        RateLimitInterceptor interceptor = limiter != null ? new RateLimitInterceptor(config, limiter) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                futures.add(pool.submit(() -> {
+                    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/v1/projects");
+                    for (int i = 0; i < perThread; i++) {
+                        int ip = (offset * perThread + i) % distinctIps;
+                        request.setRemoteAddr("10." + (ip >> 16) + "." + ((ip >> 8) & 255) + "." + (ip & 255));
+                        MockHttpServletResponse response = new MockHttpServletResponse();
+                        if (interceptor != null) interceptor.preHandle(request, response, null);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+            long wallNs = System.nanoTime() - start;
+            long total = (long) threads * perThread;
+            System.out.printf("%-22s %6.0f ns/request (wall / requests), %.0f req/s, redis calls=%d, local keys=%d%n",
+                    name, (double) wallNs / total, total / (wallNs / 1e9),
+                    redis != null ? redis.calls.get() : 0, limiter != null ? limiter.localKeys() : 0);
+            if (limiter != null) assertThat(limiter.localKeys()).isLessThanOrEqualTo(20_000);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
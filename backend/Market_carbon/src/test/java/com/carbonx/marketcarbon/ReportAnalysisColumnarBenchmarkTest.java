@@ -0,0 +1,248 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.dto.analysis.RuleResult;
+import com.carbonx.marketcarbon.service.analysis.AnalysisContext;
+import com.carbonx.marketcarbon.service.analysis.ColumnarRows;
+import com.carbonx.marketcarbon.service.analysis.IRule;
+import com.carbonx.marketcarbon.service.analysis.SharedPass;
+import com.carbonx.marketcarbon.service.analysis.rules.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Benchmark chấm report 1M dòng: cách cũ (List<Map> + mỗi rule tự parse/duyệt/sort lại)
+ * so với AnalysisContext dạng cột + pass dùng chung. Đo gồm cả bước dựng dữ liệu từ các dòng detail.
+ * Không dùng JMH (không có trong pom), tự warmup rồi lấy thời gian tốt nhất.
+ * Chạy: mvn test -Dtest=ReportAnalysisColumnarBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ReportAnalysisColumnarBenchmarkTest {
+
+    private static final int ROWS = 1_000_000;
+    private static final int WARMUP = 3;
+    private static final int MEASURE = 5;
+    private static final String PERIOD = "2026-10";
+
+    private record Detail(BigDecimal energy, String plate) {
+    }
+
+    @Test
+    @DisplayName("Context dạng cột cho kết quả như cách cũ và chạy nhanh hơn trên report 1M dòng")
+    void compareMapRowsWithColumnar() {
+        List<Detail> details = generate();
+
+        // Kết quả phải trùng nhau trước khi so tốc độ
+        assertThat(columnar(details)).isEqualTo(legacy(details));
+
+        long legacyNs = best(() -> legacy(details));
+        long columnarNs = best(() -> columnar(details));
+
+        System.out.printf("%-10s %12s%n", "strategy", "ms/report");
+        System.out.printf("%-10s %12.1f%n", "map-rows", legacyNs / 1e6);
+        System.out.printf("%-10s %12.1f%n", "columnar", columnarNs / 1e6);
+        System.out.printf("speedup x%.2f%n", (double) legacyNs / columnarNs);
+
+        assertThat(columnarNs).isLessThan(legacyNs);
+    }
+
+    private List<Detail> generate() {
+        Random random = new Random(42);
+        List<Detail> details = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            BigDecimal energy = i % 997 == 0 ? null
+                    : BigDecimal.valueOf(50 + random.nextGaussian() * 12).setScale(3, RoundingMode.HALF_UP);
+            // ~1% biển số lặp lại
+            String plate = i % 100 == 0 ? "51A-" + (i / 7) : "51A-" + i;
+            details.add(new Detail(energy, plate));
+        }
+        return details;
+    }
+
+    private long best(Runnable run) {
+        for (int i = 0; i < WARMUP; i++) run.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURE; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // ===== Cách mới: dựng cột 1 lần, pass dùng chung =====
+
+    private List<String> columnar(List<Detail> details) {
+        ColumnarRows.Builder builder = ColumnarRows.builder(details.size());
+        for (Detail d : details) {
+            builder.add(PERIOD, d.energy() == null ? null : d.energy().doubleValue(), d.plate());
+        }
+        AnalysisContext ctx = AnalysisContext.builder()
+                .reportId(1L)
+                .reportingPeriod(PERIOD)
+                .rows(builder.build())
+                .columns(Set.of(ColumnarRows.PERIOD, ColumnarRows.TOTAL_ENERGY, ColumnarRows.LICENSE_PLATE))
+                .build();
+
+        List<IRule> rules = List.of(
+                new EnergyValidRule(),
+                new DuplicatePlateRule(),
+                new ExactDuplicateRowRule(),
+                new EnergyOutlierIqrRule(),
+                new EnergyUniformityCvRule(0.02),
+                new RepeatedRoundedEnergyRule(2)
+        );
+        Set<SharedPass> passes = EnumSet.copyOf(FraudDetector.SHARED_PASSES);
+        rules.forEach(r -> passes.addAll(r.sharedPasses()));
+        ctx.prepare(passes);
+
+        List<String> out = new ArrayList<>();
+        for (IRule rule : rules) {
+            RuleResult rr = rule.apply(ctx);
+            out.add(rr.getScore() + "|" + rr.getEvidence());
+        }
+        out.add(String.valueOf(new FraudDetector().detect(ctx).getScore()));
+        return out;
+    }
+
+    // ===== Cách cũ: List<Map>, mỗi rule parse lại String -> Double và duyệt lại các dòng =====
+
+    private List<String> legacy(List<Detail> details) {
+        List<Map<String, Object>> rows = new ArrayList<>(details.size());
+        for (Detail d : details) {
+            Map<String, Object> m = new HashMap<>();
+            m.put("period", PERIOD);
+            m.put("total_energy", d.energy() == null ? null : d.energy().doubleValue());
+            m.put("license_plate", d.plate());
+            rows.add(m);
+        }
+
+        List<String> out = new ArrayList<>();
+
+        // DQ3
+        int nonNumeric = 0, nonPositive = 0;
+        for (var row : rows) {
+            try {
+                if (Double.parseDouble(String.valueOf(row.get("total_energy"))) <= 0) nonPositive++;
+            } catch (Exception e) {
+                nonNumeric++;
+            }
+        }
+        int total = rows.size();
+        boolean perfect = nonNumeric == 0 && nonPositive == 0;
+        int valid = total - nonPositive - nonNumeric;
+        int s3 = perfect ? 15 : valid >= total * 0.95 ? 10 : valid >= total * 0.80 ? 5 : 0;
+        out.add(s3 + "|" + String.format("totalRows=%d, nonNumeric=%d, nonPositive=%d", total, nonNumeric, nonPositive));
+
+        // DQ4
+        int dupPlates = duplicatePlates(rows);
+        out.add(((dupPlates == 0) ? 10 : (dupPlates <= 2 ? 7 : (dupPlates <= 5 ? 3 : 0))) + "|duplicateCount=" + dupPlates);
+
+        // DQ5
+        Set<String> signatures = new HashSet<>();
+        int dupRows = 0;
+        for (var row : rows) if (!signatures.add(row.toString())) dupRows++;
+        out.add(((dupRows == 0) ? 5 : (dupRows <= 2 ? 3 : 0)) + "|duplicateRows=" + dupRows);
+
+        // DQ6
+        List<Double> vals = energies(rows);
+        vals.sort(Double::compareTo);
+        double q1 = quantile(vals, 0.25), q3 = quantile(vals, 0.75), iqr = q3 - q1;
+        double lower = q1 - 1.5 * iqr, upper = q3 + 1.5 * iqr;
+        long outliers = vals.stream().filter(v -> v < lower || v > upper).count();
+        out.add(((outliers == 0) ? 10 : (outliers <= 2 ? 8 : (outliers <= 5 ? 5 : 2))) + "|" + String.format(
+                "q1=%.3f, q3=%.3f, lower=%.3f, upper=%.3f, outliers=%d", q1, q3, lower, upper, outliers));
+
+        // DQ7
+        double[] cv = cv(energies(rows));
+        out.add((cv[2] < 0.02 ? 2 : 5) + "|" + String.format(
+                "mean=%.6f, std=%.6f, cv=%.6f, threshold=%.6f", cv[0], cv[1], cv[2], 0.02));
+
+        // DQ8
+        Map<String, Integer> freq = roundedFrequency(rows);
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(freq.entrySet());
+        entries.sort((a, b) -> b.getValue() - a.getValue());
+        int repeatedKeys = (int) entries.stream().filter(e -> e.getValue() > 1).count();
+        String top = entries.stream().filter(e -> e.getValue() > 1).limit(5).toList().toString();
+        out.add(((repeatedKeys == 0) ? 5 : (repeatedKeys <= 3 ? 3 : 1)) + "|"
+                + String.format("repeatedKeys=%d, top=%s", repeatedKeys, top));
+
+        // Fraud: các pass lặp lại như FraudDetector cũ
+        int fraud = 0;
+        int dup = duplicatePlates(rows);
+        if (dup > 0) fraud += Math.min(10, dup * 2);
+        int rep = 0;
+        for (int c : roundedFrequency(rows).values()) if (c > 1) rep++;
+        fraud += rep > 3 ? 10 : rep > 0 ? 5 : 0;
+        if (cv(energies(rows))[2] < 0.02) fraud += 5;
+        Set<String> periods = new HashSet<>();
+        boolean fmt = true;
+        for (var row : rows) {
+            String p = String.valueOf(row.get("period"));
+            if (!p.matches("^\\d{4}-\\d{2}$")) fmt = false;
+            if (!p.isEmpty()) periods.add(p);
+        }
+        if (!(fmt && periods.size() == 1)) fraud += 5;
+        out.add(String.valueOf(Math.min(fraud, 30)));
+        return out;
+    }
+
+    private int duplicatePlates(List<Map<String, Object>> rows) {
+        Set<String> seen = new HashSet<>();
+        int dup = 0;
+        for (var row : rows) {
+            String plate = String.valueOf(row.get("license_plate")).trim();
+            if (!plate.isEmpty() && !seen.add(plate)) dup++;
+        }
+        return dup;
+    }
+
+    private List<Double> energies(List<Map<String, Object>> rows) {
+        List<Double> vals = new ArrayList<>();
+        for (var row : rows) {
+            try { vals.add(Double.valueOf(String.valueOf(row.get("total_energy")))); }
+            catch (Exception ignored) {}
+        }
+        return vals;
+    }
+
+    private Map<String, Integer> roundedFrequency(List<Map<String, Object>> rows) {
+        Map<String, Integer> freq = new HashMap<>();
+        for (var row : rows) {
+            try {
+                double v = Double.parseDouble(String.valueOf(row.get("total_energy")));
+                freq.merge(new BigDecimal(v).setScale(2, RoundingMode.HALF_UP).toPlainString(), 1, Integer::sum);
+            } catch (Exception ignored) {}
+        }
+        return freq;
+    }
+
+    private double[] cv(List<Double> vals) {
+        double mean = vals.stream().mapToDouble(d -> d).average().orElse(0);
+        double var = vals.stream().mapToDouble(d -> (d - mean) * (d - mean)).sum() / (vals.size() - 1);
+        double std = Math.sqrt(var);
+        return new double[]{mean, std, mean == 0 ? 0 : std / mean};
+    }
+
+    private double quantile(List<Double> sorted, double p) {
+        double pos = p * (sorted.size() - 1);
+        int i = (int) Math.floor(pos);
+        int j = (int) Math.ceil(pos);
+        if (i == j) return sorted.get(i);
+        double w = pos - i;
+        return sorted.get(i) * (1 - w) + sorted.get(j) * w;
+    }
+}
@@ -0,0 +1,57 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.model.Company;
+import com.carbonx.marketcarbon.model.Project;
+import com.carbonx.marketcarbon.service.credit.SerialBlockAllocator;
+import com.carbonx.marketcarbon.service.credit.SerialNumberService;
+import com.carbonx.marketcarbon.service.credit.SerialNumberService.SerialRange;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * SerialBlockAllocator: cắt dải serial trong block đã giữ, nạp trước block kế tiếp ở background.
+ */
+class SerialBlockAllocatorTest {
+
+    private SerialNumberService serialNumberService;
+    private TaskExecutor executor;
+    private SerialBlockAllocator allocator;
+    private Project project;
+    private Company company;
+
+    @BeforeEach
+    void setUp() {
+        serialNumberService = mock(SerialNumberService.class);
+        executor = mock(TaskExecutor.class);
+        allocator = new SerialBlockAllocator(serialNumberService, executor);
+        ReflectionTestUtils.setField(allocator, "blockSize", 100);
+        ReflectionTestUtils.setField(allocator, "refillThreshold", 50);
+        project = Project.builder().id(1L).build();
+        company = Company.builder().id(2L).build();
+    }
+
+    @Test
+    @DisplayName("Pool nạp trước từ chối task: vẫn trả dải đã cắt, block kế tiếp được giữ đồng bộ")
+    void rejectedRefillStillReturnsRange() {
+        when(serialNumberService.reserve(project, company, 2025, 100))
+                .thenReturn(new SerialRange(1, 100))
+                .thenReturn(new SerialRange(101, 200));
+        doThrow(new TaskRejectedException("queue full")).when(executor).execute(any());
+
+        SerialRange first = allocator.allocate(project, company, 2025, 60);
+        SerialRange second = allocator.allocate(project, company, 2025, 50);
+
+        assertThat(first).isEqualTo(new SerialRange(1, 60));
+        // 40 serial còn lại không đủ 50: bỏ phần dư, lấy block mới đồng bộ
+        assertThat(second).isEqualTo(new SerialRange(101, 150));
+        verify(serialNumberService, times(2)).reserve(project, company, 2025, 100);
+    }
+}
@@ -0,0 +1,116 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.service.notification.SseHub;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * SseHub: nhiều kết nối / user, hàng đợi giới hạn mỗi kết nối, đóng client chậm mà không chặn luồng gửi.
+ */
+class SseHubTest {
+
+    // Pool ghi "kẹt": chỉ giữ task, không chạy (giống client không đọc socket)
+    private static class StuckExecutor implements TaskExecutor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    }
+
+    private static SseHub hub(TaskExecutor executor, int queueCapacity) {
+        SseHub hub = new SseHub(executor);
+        ReflectionTestUtils.setField(hub, "queueCapacity", queueCapacity);
+        return hub;
+    }
+
+    @Test
+    @DisplayName("1 user mở nhiều kết nối, vượt max-connections-per-user thì đóng kết nối cũ nhất")
+    void keepsSeveralConnectionsPerUser() {
+        SseHub hub = hub(Runnable::run, 16);
+        ReflectionTestUtils.setField(hub, "maxConnectionsPerUser", 3);
+
+        for (int i = 0; i < 5; i++) {
+            hub.connect(1L);
+        }
+        hub.connect(2L);
+        hub.sendToUser(1L, "notification", "hello");
+
+        assertThat(hub.connectionCount(1L)).isEqualTo(3);
+        assertThat(hub.connectionCount()).isEqualTo(4);
+    }
+
+    @Test
+    @DisplayName("Client chậm: hàng đợi đầy thì kết nối bị đóng, luồng gửi không bị chặn")
+    void evictsSlowConsumerWithoutBlockingSender() {
+        StuckExecutor writer = new StuckExecutor();
+        SseHub hub = hub(writer, 8);
+        hub.connect(1L);
+        hub.connect(2L);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            hub.sendToUser(1L, "notification", "message " + i);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(hub.connectionCount(1L)).isZero();
+        assertThat(hub.connectionCount(2L)).isEqualTo(1);
+        // Mỗi kết nối chỉ có tối đa 1 task ghi chờ trong pool
+        assertThat(writer.tasks).hasSize(2);
+        assertThat(elapsedMs).isLessThan(2_000);
+    }
+
+    @Test
+    @DisplayName("Heartbeat không chồng lên hàng đợi đang có event")
+    void heartbeatOnlyForIdleConnections() {
+        StuckExecutor writer = new StuckExecutor();
+        SseHub hub = hub(writer, 2);
+        hub.connect(1L);
+
+        // Hàng đợi đang có "init": heartbeat không thêm event nên kết nối không bị coi là chậm
+        for (int i = 0; i < 10; i++) {
+            hub.heartbeat();
+        }
+
+        assertThat(hub.connectionCount(1L)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Nhiều luồng cùng mở kết nối cho 1 user: không mất kết nối, không vượt giới hạn")
+    void concurrentConnectsKeepLimit() throws Exception {
+        // Pool ghi không chạy task: chỉ kiểm tra việc thêm/bỏ kết nối
+        SseHub hub = hub(task -> { }, 16);
+        ReflectionTestUtils.setField(hub, "maxConnectionsPerUser", 3);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        hub.connect(1L);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(hub.connectionCount(1L)).isEqualTo(3);
+    }
+}
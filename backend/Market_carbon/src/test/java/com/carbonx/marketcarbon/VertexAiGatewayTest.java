@@ -0,0 +1,263 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.config.AiVertexConfig;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.exception.ErrorCode;
+import com.carbonx.marketcarbon.service.ai.CircuitBreaker;
+import com.carbonx.marketcarbon.service.ai.VertexAiGateway;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * VertexAiGateway chạy với 1 endpoint Vertex giả lập (reactor-netty) trên localhost:
+ * đếm số request thật sự tới "Vertex", số request đồng thời, chỉnh độ trễ và mã lỗi trả về.
+ * Benchmark độ trễ/throughput: mvn test -Dtest=VertexAiGatewayTest -Dbenchmark=true
+ */
+class VertexAiGatewayTest {
+
+    private static final String RESPONSE = """
+            {"candidates":[{"content":{"role":"model","parts":[{"text":"{\\"score\\": 8}"}]}}]}
+            """;
+
+    private static final List<String> STREAM_CHUNKS = List.of("Tín chỉ ", "carbon ", "là...");
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile Duration latency = Duration.ofMillis(20);
+    private volatile int status = 200;
+    // Stream giả lập giữ các chunk sau chunk đầu đến khi future này hoàn tất
+    private final CompletableFuture<Void> restReleased = new CompletableFuture<>();
+
+    private DisposableServer server;
+
+    @BeforeEach
+    void startStandIn() {
+        server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .handle((req, res) -> req.receive().aggregate().then(Mono.defer(() -> {
+                    if (req.uri().contains(":streamGenerateContent")) {
+                        requests.incrementAndGet();
+                        // Mỗi chunk 1 event SSE; các chunk sau chỉ gửi khi client đã nhận chunk đầu
+                        Flux<String> chunks = Flux.concat(
+                                Mono.just(STREAM_CHUNKS.get(0)),
+                                Mono.fromFuture(restReleased).thenMany(Flux.fromIterable(STREAM_CHUNKS.subList(1, STREAM_CHUNKS.size()))));
+                        return res.status(status)
+                                .header("Content-Type", "text/event-stream")
+                                .sendString(chunks.map(text -> "data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\""
+                                        + text + "\"}]}}]}\n\n"), StandardCharsets.UTF_8)
+                                .then();
+                    }
+                    requests.incrementAndGet();
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    return Mono.delay(latency).then(Mono.defer(() -> {
+                        inFlight.decrementAndGet();
+                        return res.status(status)
+                                .header("Content-Type", "application/json")
+                                .sendString(Mono.just(RESPONSE))
+                                .then();
+                    }));
+                })))
+                .bindNow();
+    }
+
+    @AfterEach
+    void stopStandIn() {
+        server.disposeNow();
+    }
+
+    private VertexAiGateway gateway(int maxConcurrency, int maxQueued, int breakerThreshold) {
+        AiVertexConfig cfg = new AiVertexConfig();
+        cfg.setProjectId("test-project");
+        cfg.setTimeoutMs(5000);
+        cfg.setMaxConcurrency(maxConcurrency);
+        cfg.setMaxQueued(maxQueued);
+        cfg.setBreakerFailureThreshold(breakerThreshold);
+        cfg.setBreakerOpenMs(60_000);
+        return new VertexAiGateway(WebClient.create("http://127.0.0.1:" + server.port()), cfg);
+    }
+
+    @Test
+    @DisplayName("Cùng prompt + cùng upload thì dùng response đã cache, khác upload thì gọi lại")
+    void cachesByPromptAndUploadScope() {
+        VertexAiGateway gateway = gateway(4, 10, 5);
+
+        Map<String, Object> first = gateway.generate("prompt", 0.1, 768, "sha-1").block();
+        Map<String, Object> second = gateway.generate("prompt", 0.1, 768, "sha-1").block();
+        assertThat(second).isEqualTo(first);
+        assertThat(requests.get()).isEqualTo(1);
+
+        gateway.generate("prompt", 0.1, 768, "sha-2").block();
+        gateway.generate("other prompt", 0.1, 768, "sha-1").block();
+        assertThat(requests.get()).isEqualTo(3);
+
+        // Không có scope: không cache
+        gateway.generate("prompt", 0.1, 768, null).block();
+        gateway.generate("prompt", 0.1, 768, null).block();
+        assertThat(requests.get()).isEqualTo(5);
+    }
+
+    @Test
+    @DisplayName("Các lời gọi trùng key đang chạy dùng chung 1 request")
+    void concurrentIdenticalCallsShareOneRequest() {
+        VertexAiGateway gateway = gateway(4, 10, 5);
+        latency = Duration.ofMillis(200);
+
+        List<Map<String, Object>> results = Flux.range(0, 10)
+                .flatMap(i -> gateway.generate("prompt", 0.1, 768, "sha-1"))
+                .collectList()
+                .block();
+
+        assertThat(results).hasSize(10);
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Số request đồng thời tới Vertex không vượt maxConcurrency, phần còn lại xếp hàng")
+    void limitsConcurrency() {
+        VertexAiGateway gateway = gateway(2, 50, 5);
+        latency = Duration.ofMillis(50);
+
+        List<Map<String, Object>> results = Flux.range(0, 12)
+                .flatMap(i -> gateway.generate("prompt " + i, 0.1, 768, null))
+                .collectList()
+                .block();
+
+        assertThat(results).hasSize(12);
+        assertThat(requests.get()).isEqualTo(12);
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Hàng đợi đầy thì báo AI_GATEWAY_BUSY ngay")
+    void rejectsWhenQueueIsFull() {
+        VertexAiGateway gateway = gateway(1, 1, 5);
+        latency = Duration.ofMillis(300);
+        AtomicInteger busy = new AtomicInteger();
+
+        List<Map<String, Object>> results = Flux.range(0, 3)
+                .flatMap(i -> gateway.generate("prompt " + i, 0.1, 768, null)
+                        .onErrorResume(e -> {
+                            if (e instanceof AppException ae && ae.getErrorCode() == ErrorCode.AI_GATEWAY_BUSY) {
+                                busy.incrementAndGet();
+                            }
+                            return Mono.empty();
+                        }))
+                .collectList()
+                .block();
+
+        assertThat(results).hasSize(2);
+        assertThat(busy.get()).isEqualTo(1);
+        assertThat(gateway.circuitState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    @DisplayName("Vertex lỗi liên tiếp thì ngắt mạch, request sau bị từ chối mà không gọi Vertex")
+    void opensCircuitAfterConsecutiveFailures() {
+        VertexAiGateway gateway = gateway(4, 10, 2);
+        status = 500;
+
+        for (int i = 0; i < 2; i++) {
+            int n = i;
+            assertThatThrownBy(() -> gateway.generate("prompt " + n, 0.1, 768, null).block())
+                    .isInstanceOf(WebClientResponseException.class);
+        }
+        assertThat(gateway.circuitState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        assertThatThrownBy(() -> gateway.generate("prompt", 0.1, 768, null).block())
+                .isInstanceOf(AppException.class)
+                .satisfies(e -> assertThat(((AppException) e).getErrorCode()).isEqualTo(ErrorCode.AI_GATEWAY_UNAVAILABLE));
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Stream: từng chunk SSE được phát ra ngay khi tới, theo đúng thứ tự")
+    void streamsChunksAsTheyArrive() {
+        VertexAiGateway gateway = gateway(4, 10, 5);
+
+        // Ghi thứ tự sự kiện: nếu gateway gom cả stream rồi mới phát thì chunk đầu không bao giờ tới
+        // trước khi server nhả phần còn lại -> stream treo và block() hết hạn
+        List<String> events = new CopyOnWriteArrayList<>();
+        List<String> texts = gateway.stream("prompt", 0.3, 1024)
+                .map(chunk -> {
+                    var candidate = (Map<?, ?>) ((List<?>) chunk.get("candidates")).get(0);
+                    var part = (Map<?, ?>) ((List<?>) ((Map<?, ?>) candidate.get("content")).get("parts")).get(0);
+                    return (String) part.get("text");
+                })
+                .doOnNext(text -> {
+                    events.add("chunk:" + text);
+                    if (!restReleased.isDone()) {
+                        events.add("released");
+                        restReleased.complete(null);
+                    }
+                })
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertThat(texts).containsExactlyElementsOf(STREAM_CHUNKS);
+        assertThat(events).containsExactly("chunk:" + STREAM_CHUNKS.get(0), "released",
+                "chunk:" + STREAM_CHUNKS.get(1), "chunk:" + STREAM_CHUNKS.get(2));
+        assertThat(requests.get()).isEqualTo(1);
+        assertThat(gateway.circuitState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @DisplayName("Benchmark: độ trễ và throughput qua gateway với Vertex giả lập trễ 200ms")
+    void benchmarkLatencyAndThroughput() {
+        int calls = 400;
+        latency = Duration.ofMillis(200);
+        VertexAiGateway gateway = gateway(32, calls, 5);
+
+        long[] took = new long[calls];
+        long start = System.nanoTime();
+        Flux.range(0, calls)
+                .flatMap(i -> {
+                    long t0 = System.nanoTime();
+                    return gateway.generate("prompt " + i, 0.1, 768, null)
+                            .doOnNext(r -> took[i] = System.nanoTime() - t0);
+                }, calls)
+                .blockLast();
+        long wallNs = System.nanoTime() - start;
+
+        long cacheStart = System.nanoTime();
+        gateway.generate("cached", 0.1, 768, "sha").block();
+        long missNs = System.nanoTime() - cacheStart;
+        cacheStart = System.nanoTime();
+        gateway.generate("cached", 0.1, 768, "sha").block();
+        long hitNs = System.nanoTime() - cacheStart;
+
+        Arrays.sort(took);
+        System.out.printf("calls=%d, maxConcurrency=32, stand-in latency=200ms%n", calls);
+        System.out.printf("wall=%.0f ms, throughput=%.1f req/s, maxInFlight=%d%n",
+                wallNs / 1e6, calls / (wallNs / 1e9), maxInFlight.get());
+        System.out.printf("p50=%.0f ms, p99=%.0f ms%n", took[calls / 2] / 1e6, took[calls * 99 / 100] / 1e6);
+        System.out.printf("cache miss=%.1f ms, cache hit=%.3f ms%n", missNs / 1e6, hitNs / 1e6);
+
+        // Tuần tự sẽ mất >= calls * 200ms
+        assertThat(wallNs).isLessThan(calls * latency.toNanos() / 4);
+        assertThat(maxInFlight.get()).isLessThanOrEqualTo(32);
+    }
+}
@@ -0,0 +1,105 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.dto.response.CursorPageResponse;
+import com.carbonx.marketcarbon.dto.response.WalletTransactionResponse;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.model.ProfitDistribution;
+import com.carbonx.marketcarbon.model.User;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.model.WalletTransaction;
+import com.carbonx.marketcarbon.repository.UserRepository;
+import com.carbonx.marketcarbon.repository.WalletRepository;
+import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
+import com.carbonx.marketcarbon.service.impl.WalletTransactionServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Lịch sử ví phân trang seek: đọc size + 1 dòng, gộp đợt chia lợi nhuận bằng tổng lấy từ DB, con trỏ dùng lại được.
+ */
+@ExtendWith(MockitoExtension.class)
+class WalletTransactionHistoryTest {
+
+    private static final LocalDateTime AT = LocalDateTime.of(2025, 5, 1, 10, 0);
+
+    @Mock private WalletTransactionRepository walletTransactionRepository;
+    @Mock private WalletRepository walletRepository;
+    @Mock private UserRepository userRepository;
+    @InjectMocks private WalletTransactionServiceImpl service;
+
+    private record Total(Long getDistributionId, Long getMembers, BigDecimal getTotal, BigDecimal getBalanceBefore)
+            implements WalletTransactionRepository.DistributionTotal {}
+
+    @BeforeEach
+    void setUp() {
+        SecurityContextHolder.setContext(new SecurityContextImpl(
+                new UsernamePasswordAuthenticationToken("company@test.com", null, List.of())));
+        when(userRepository.findByEmail("company@test.com")).thenReturn(User.builder().id(1L).build());
+        when(walletRepository.findByUserId(1L)).thenReturn(Wallet.builder().id(9L).build());
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    private static WalletTransaction tx(long id, WalletTransactionType type, String amount, ProfitDistribution distribution) {
+        return WalletTransaction.builder().id(id).transactionType(type).amount(new BigDecimal(amount))
+                .balanceBefore(new BigDecimal("1000")).balanceAfter(new BigDecimal("900"))
+                .createdAt(AT.minusMinutes(id)).distribution(distribution).build();
+    }
+
+    @Test
+    @DisplayName("Trang 2 dòng: khoản chi đại diện thay bằng tổng cả đợt, nextCursor dẫn tới trang sau")
+    void pagesAndMergesDistribution() {
+        ProfitDistribution distribution = new ProfitDistribution();
+        distribution.setId(7L);
+        when(walletTransactionRepository.findHistory(9L, PageRequest.of(0, 3))).thenReturn(List.of(
+                tx(1, WalletTransactionType.PROFIT_SHARING, "-100", distribution),
+                tx(2, WalletTransactionType.ADD_MONEY, "50", null),
+                tx(3, WalletTransactionType.BUY_CARBON_CREDIT, "20", null)));
+        when(walletTransactionRepository.findDistributionTotals(9L, Set.of(7L)))
+                .thenReturn(List.of(new Total(7L, 4L, new BigDecimal("-400"), new BigDecimal("2000"))));
+
+        CursorPageResponse<WalletTransactionResponse> page = service.getTransactionHistory(null, 2);
+
+        assertThat(page.isHasMore()).isTrue();
+        assertThat(page.getItems()).hasSize(2);
+        WalletTransactionResponse merged = page.getItems().get(0);
+        assertThat(merged.getAmount()).isEqualByComparingTo("-400");
+        assertThat(merged.getBalanceBefore()).isEqualByComparingTo("2000");
+        assertThat(merged.getBalanceAfter()).isEqualByComparingTo("900");
+        assertThat(merged.getDescription()).contains("#7").contains("4 owners");
+
+        service.getTransactionHistory(page.getNextCursor(), 2);
+        verify(walletTransactionRepository).findHistoryBefore(eq(9L), eq(AT.minusMinutes(2)), eq(2L), eq(PageRequest.of(0, 3)));
+    }
+
+    @Test
+    @DisplayName("Con trỏ hỏng: báo lỗi, không query")
+    void rejectsInvalidCursor() {
+        assertThatThrownBy(() -> service.getTransactionHistory("not-a-cursor", 10)).isInstanceOf(AppException.class);
+    }
+}
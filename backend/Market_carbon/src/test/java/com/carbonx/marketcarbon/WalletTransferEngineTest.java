@@ -0,0 +1,224 @@
+package com.carbonx.marketcarbon;
+
+import com.carbonx.marketcarbon.common.WalletTransactionType;
+import com.carbonx.marketcarbon.exception.AppException;
+import com.carbonx.marketcarbon.model.Wallet;
+import com.carbonx.marketcarbon.repository.WalletTransactionRepository;
+import com.carbonx.marketcarbon.service.wallet.TransferLeg;
+import com.carbonx.marketcarbon.service.wallet.WalletTransferEngine;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * WalletTransferEngine: chuyển chéo A->B / B->A song song không deadlock, số dư được bảo toàn.
+ * Khóa dòng DB được mô phỏng trong EntityManager giả: refresh(PESSIMISTIC_WRITE) giữ ReentrantLock của ví
+ * (tryLock timeout như innodb_lock_wait_timeout), "transaction" kết thúc thì nhả mọi khóa của luồng.
+ * Benchmark throughput chuyển chéo: mvn test -Dtest=WalletTransferEngineTest -Dbenchmark=true
+ */
+class WalletTransferEngineTest {
+
+    private static final long LOCK_TIMEOUT_MS = 2_000;
+
+    private final Map<Long, Wallet> wallets = new ConcurrentHashMap<>();
+    private final Map<Long, ReentrantLock> rowLocks = new ConcurrentHashMap<>();
+    private final ThreadLocal<List<ReentrantLock>> held = ThreadLocal.withInitial(ArrayList::new);
+    private final ThreadLocal<List<Long>> lockSequence = ThreadLocal.withInitial(ArrayList::new);
+    private final AtomicInteger lockTimeouts = new AtomicInteger();
+    private final AtomicInteger unorderedLocks = new AtomicInteger();
+
+    private WalletTransactionRepository walletTransactionRepository;
+    private WalletTransferEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        walletTransactionRepository = mock(WalletTransactionRepository.class);
+        EntityManager entityManager = mock(EntityManager.class);
+        when(entityManager.find(eq(Wallet.class), anyLong())).thenAnswer(inv -> wallets.get(inv.<Long>getArgument(1)));
+        doAnswer(inv -> {
+            Wallet wallet = inv.getArgument(0);
+            ReentrantLock lock = rowLocks.computeIfAbsent(wallet.getId(), id -> new ReentrantLock());
+            if (lock.isHeldByCurrentThread()) {
+                return null;
+            }
+            List<Long> sequence = lockSequence.get();
+            if (!sequence.isEmpty() && sequence.get(sequence.size() - 1) > wallet.getId()) {
+                unorderedLocks.incrementAndGet();
+            }
+            sequence.add(wallet.getId());
+            if (!lock.tryLock(LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                lockTimeouts.incrementAndGet();
+                throw new CannotAcquireLockException("Lock wait timeout on wallet " + wallet.getId());
+            }
+            held.get().add(lock);
+            return null;
+        }).when(entityManager).refresh(any(Wallet.class), eq(LockModeType.PESSIMISTIC_WRITE));
+
+        WalletTransferEngine target = new WalletTransferEngine(walletTransactionRepository, entityManager);
+        engine = spy(target);
+        // Proxy @Transactional giả: hết applyInNewTransaction (commit hoặc rollback) thì nhả khóa
+        doAnswer(inv -> {
+            try {
+                return inv.callRealMethod();
+            } finally {
+                releaseLocks();
+            }
+        }).when(engine).applyInNewTransaction(anyList());
+        ApplicationContext context = mock(ApplicationContext.class);
+        when(context.getBean(WalletTransferEngine.class)).thenReturn(engine);
+        ReflectionTestUtils.setField(engine, "applicationContext", context);
+
+        for (long id = 1; id <= 4; id++) {
+            wallets.put(id, Wallet.builder().id(id).balance(new BigDecimal("1000")).build());
+        }
+    }
+
+    private void releaseLocks() {
+        List<ReentrantLock> locks = held.get();
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+        locks.clear();
+        lockSequence.get().clear();
+    }
+
+    private static TransferLeg leg(long from, long to, String amount) {
+        return TransferLeg.builder()
+                .fromWalletId(from)
+                .toWalletId(to)
+                .amount(new BigDecimal(amount))
+                .debitType(WalletTransactionType.BUY_CARBON_CREDIT)
+                .creditType(WalletTransactionType.SELL_CARBON_CREDIT)
+                .build();
+    }
+
+    // Nửa số luồng đi 1->2->3, nửa còn lại đi ngược 3->2->1 (N leg trong 1 transaction); trả về thời gian chạy (ns)
+    private long runCrossingTransfers(int threads, int transfersPerThread) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                boolean forward = t % 2 == 0;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < transfersPerThread; i++) {
+                        List<TransferLeg> legs = forward
+                                ? List.of(leg(1, 2, "1"), leg(2, 3, "1"))
+                                : List.of(leg(3, 2, "1"), leg(2, 1, "1"));
+                        engine.transfer(legs);
+                    }
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            return System.nanoTime() - begin;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Chuyển chéo A->B và B->A song song: khóa theo id tăng dần, không timeout, tổng số dư không đổi")
+    void crossingTransfersDoNotDeadlock() throws Exception {
+        runCrossingTransfers(8, 200);
+
+        assertThat(lockTimeouts.get()).isZero();
+        assertThat(unorderedLocks.get()).isZero();
+        // Mỗi cặp luồng xuôi/ngược triệt tiêu nhau
+        assertThat(wallets.get(1L).getBalance()).isEqualByComparingTo("1000");
+        assertThat(wallets.get(2L).getBalance()).isEqualByComparingTo("1000");
+        assertThat(wallets.get(3L).getBalance()).isEqualByComparingTo("1000");
+        assertThat(rowLocks.values()).noneMatch(ReentrantLock::isLocked);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @DisplayName("Benchmark: số lượt transfer/giây khi chuyển chéo song song trên cùng vài ví nóng")
+    void benchmarkCrossingTransferThroughput() throws Exception {
+        int transfersPerThread = 5_000;
+        for (long id = 1; id <= 3; id++) {
+            // Đủ số dư cho mọi thứ tự xen kẽ giữa luồng xuôi và ngược
+            wallets.get(id).setBalance(new BigDecimal("1000000"));
+        }
+        // Khởi động JIT trước khi đo
+        runCrossingTransfers(4, 1_000);
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            long elapsedNs = runCrossingTransfers(threads, transfersPerThread);
+            long transfers = (long) threads * transfersPerThread;
+            System.out.printf("threads=%2d transfers=%6d in %5d ms -> %.0f transfers/s (lock timeouts=%d)%n",
+                    threads, transfers, elapsedNs / 1_000_000, transfers * 1e9 / elapsedNs, lockTimeouts.get());
+        }
+        assertThat(lockTimeouts.get()).isZero();
+        assertThat(unorderedLocks.get()).isZero();
+        assertThat(rowLocks.values()).noneMatch(ReentrantLock::isLocked);
+    }
+
+    @Test
+    @DisplayName("lockInOrder khóa theo id tăng dần bất kể thứ tự truyền vào")
+    void lockInOrderSortsIds() {
+        Map<Long, Wallet> locked = engine.lockInOrder(List.of(4L, 1L, 3L));
+
+        assertThat(locked.keySet()).containsExactly(1L, 3L, 4L);
+        assertThat(lockSequence.get()).containsExactly(1L, 3L, 4L);
+        releaseLocks();
+    }
+
+    @Test
+    @DisplayName("Không đủ số dư: không ghi bút toán và nhả khóa")
+    void insufficientFundsWritesNothing() {
+        assertThatThrownBy(() -> engine.transfer(List.of(leg(1, 2, "5000"))))
+                .isInstanceOf(AppException.class);
+
+        verify(walletTransactionRepository, never()).insertBatch(anyList());
+        assertThat(rowLocks.values()).noneMatch(ReentrantLock::isLocked);
+    }
+
+    @Test
+    @DisplayName("Transfer với ví caller đã khóa: thiếu ví trong map thì từ chối")
+    void transferWithLockedWalletsRequiresAllLocks() {
+        Map<Long, Wallet> locked = engine.lockInOrder(List.of(1L));
+        try {
+            assertThatThrownBy(() -> engine.transfer(List.of(leg(1, 2, "1")), locked))
+                    .isInstanceOf(IllegalStateException.class);
+        } finally {
+            releaseLocks();
+        }
+    }
+}